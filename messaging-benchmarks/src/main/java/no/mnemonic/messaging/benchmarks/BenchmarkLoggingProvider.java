@@ -0,0 +1,115 @@
+package no.mnemonic.messaging.benchmarks;
+
+import no.mnemonic.commons.logging.Logger;
+import no.mnemonic.commons.logging.LoggingContext;
+import no.mnemonic.commons.logging.LoggingProvider;
+
+/**
+ * Logging provider only printing warnings and errors, to avoid measuring debug logging in the benchmarks.
+ * Registered in <code>META-INF/no.mnemonic.commons.logging.Logging.properties</code>.
+ */
+public class BenchmarkLoggingProvider implements LoggingProvider {
+
+  @Override
+  public Logger getLogger(String name) {
+    return new WarningLogger(name);
+  }
+
+  @Override
+  public LoggingContext getLoggingContext() {
+    return new LoggingContext() {
+      @Override
+      public void clear() {
+      }
+
+      @Override
+      public boolean containsKey(String key) {
+        return false;
+      }
+
+      @Override
+      public String get(String key) {
+        return null;
+      }
+
+      @Override
+      public void put(String key, String value) {
+      }
+
+      @Override
+      public void remove(String key) {
+      }
+    };
+  }
+
+  private static class WarningLogger implements Logger {
+
+    private final String name;
+
+    private WarningLogger(String name) {
+      this.name = name;
+    }
+
+    @Override
+    public void fatal(String formattedMessage, Object... args) {
+      log("FATAL", null, formattedMessage, args);
+    }
+
+    @Override
+    public void error(String formattedMessage, Object... args) {
+      log("ERROR", null, formattedMessage, args);
+    }
+
+    @Override
+    public void warning(String formattedMessage, Object... args) {
+      log("WARN", null, formattedMessage, args);
+    }
+
+    @Override
+    public void info(String formattedMessage, Object... args) {
+    }
+
+    @Override
+    public void debug(String formattedMessage, Object... args) {
+    }
+
+    @Override
+    public void fatal(Throwable ex, String formattedMessage, Object... args) {
+      log("FATAL", ex, formattedMessage, args);
+    }
+
+    @Override
+    public void error(Throwable ex, String formattedMessage, Object... args) {
+      log("ERROR", ex, formattedMessage, args);
+    }
+
+    @Override
+    public void warning(Throwable ex, String formattedMessage, Object... args) {
+      log("WARN", ex, formattedMessage, args);
+    }
+
+    @Override
+    public void info(Throwable ex, String formattedMessage, Object... args) {
+    }
+
+    @Override
+    public void debug(Throwable ex, String formattedMessage, Object... args) {
+    }
+
+    @Override
+    public boolean isDebug() {
+      return false;
+    }
+
+    @Override
+    public boolean isInfo() {
+      return false;
+    }
+
+    private void log(String level, Throwable ex, String formattedMessage, Object... args) {
+      String message = args == null || args.length == 0 ? formattedMessage : String.format(formattedMessage, args);
+      System.err.println(level + " " + name + ": " + message);
+      if (ex != null) ex.printStackTrace();
+    }
+  }
+}
@@ -0,0 +1,37 @@
+package no.mnemonic.messaging.benchmarks;
+
+import no.mnemonic.messaging.requestsink.Message;
+
+import java.util.UUID;
+
+public class BenchmarkMessage implements Message {
+
+  private static final long serialVersionUID = 3785414950294614471L;
+
+  private final String callID;
+  private final long timestamp = System.currentTimeMillis();
+  private final byte[] payload;
+
+  public BenchmarkMessage(int payloadSize) {
+    this(UUID.randomUUID().toString(), payloadSize);
+  }
+
+  public BenchmarkMessage(String callID, int payloadSize) {
+    this.callID = callID;
+    this.payload = new byte[payloadSize];
+  }
+
+  @Override
+  public String getCallID() {
+    return callID;
+  }
+
+  @Override
+  public long getMessageTimestamp() {
+    return timestamp;
+  }
+
+  public byte[] getPayload() {
+    return payload;
+  }
+}
@@ -0,0 +1,67 @@
+package no.mnemonic.messaging.benchmarks;
+
+import no.mnemonic.messaging.requestsink.jms.util.FragmentConsumer;
+import no.mnemonic.messaging.requestsink.jms.util.JMSUtils;
+import no.mnemonic.messaging.requestsink.jms.util.MessageFragment;
+import org.openjdk.jmh.annotations.*;
+
+import javax.jms.JMSException;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures splitting a large message into fragments, and reassembling the fragments into the message,
+ * as done for messages exceeding the max message size of the JMS transport.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FragmentBenchmark {
+
+  @Param({"100000", "1000000"})
+  private int messageSize;
+
+  @Param({"65536"})
+  private int fragmentSize;
+
+  private byte[] data;
+  private List<MessageFragment> fragments;
+  private String checksum;
+
+  @Setup(Level.Trial)
+  public void setup() throws JMSException {
+    data = new byte[messageSize];
+    new Random(1).nextBytes(data);
+    fragments = fragment();
+    checksum = JMSUtils.md5(data);
+  }
+
+  @Benchmark
+  public List<MessageFragment> fragment() throws JMSException {
+    List<MessageFragment> result = new ArrayList<>();
+    JMSUtils.fragment(new ByteArrayInputStream(data), fragmentSize, new FragmentConsumer() {
+      @Override
+      public void fragment(byte[] fragment, int idx) {
+        result.add(new MessageFragment("callID", "responseID", idx, fragment));
+      }
+
+      @Override
+      public void end(int fragments, byte[] digest) {
+      }
+    });
+    return result;
+  }
+
+  @Benchmark
+  public byte[] reassemble() throws IOException, JMSException {
+    return JMSUtils.reassembleFragments(fragments, fragments.size(), checksum);
+  }
+
+}
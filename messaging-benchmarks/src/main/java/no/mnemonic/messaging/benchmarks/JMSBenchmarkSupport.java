@@ -0,0 +1,24 @@
+package no.mnemonic.messaging.benchmarks;
+
+import no.mnemonic.messaging.requestsink.jms.AbstractJMSRequestBase;
+
+/**
+ * Connection setup for benchmarks running client and proxy against an embedded ActiveMQ broker,
+ * created by the first connection to the vm:// URL.
+ */
+class JMSBenchmarkSupport {
+
+  private static final String BROKER_URL = "vm://benchmark?broker.persistent=false&broker.useJmx=false";
+
+  private JMSBenchmarkSupport() {
+  }
+
+  static <T extends AbstractJMSRequestBase.BaseBuilder<T>> T connect(T builder, String queueName) {
+    return builder
+            .setContextFactoryName("org.apache.activemq.jndi.ActiveMQInitialContextFactory")
+            .setContextURL(BROKER_URL)
+            .setConnectionFactoryName("ConnectionFactory")
+            .setConnectionProperty("trustAllPackages", "true")
+            .setDestinationName("dynamicQueues/" + queueName);
+  }
+}
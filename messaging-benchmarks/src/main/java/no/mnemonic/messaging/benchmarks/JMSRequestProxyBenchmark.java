@@ -0,0 +1,88 @@
+package no.mnemonic.messaging.benchmarks;
+
+import no.mnemonic.messaging.requestsink.Message;
+import no.mnemonic.messaging.requestsink.RequestContext;
+import no.mnemonic.messaging.requestsink.RequestHandler;
+import no.mnemonic.messaging.requestsink.RequestSink;
+import no.mnemonic.messaging.requestsink.jms.JMSRequestProxy;
+import no.mnemonic.messaging.requestsink.jms.JMSRequestSink;
+import no.mnemonic.messaging.requestsink.jms.serializer.DefaultJavaMessageSerializer;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+import static no.mnemonic.messaging.benchmarks.JMSBenchmarkSupport.connect;
+
+/**
+ * Compares request handling in {@link JMSRequestProxy} on a fixed thread pool and on virtual threads,
+ * with a downstream RequestSink blocking for a while before responding, as when waiting for I/O.
+ * Client and proxy communicate through an embedded ActiveMQ broker.
+ * <p>
+ * Virtual threads require running the benchmark on Java 21, on older runtimes the proxy uses a platform thread per request.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class JMSRequestProxyBenchmark {
+
+  private static final String QUEUE_NAME = "JMSRequestProxyBenchmark";
+
+  @Param({"false", "true"})
+  private boolean useVirtualThreads;
+
+  @Param({"0", "10"})
+  private long blockingMillis;
+
+  private JMSRequestProxy proxy;
+  private JMSRequestSink sink;
+  private Message response;
+
+  @Setup(Level.Trial)
+  public void setup() {
+    response = new BenchmarkMessage(16);
+    //endpoint blocking before replying with a single response
+    RequestSink endpoint = new RequestSink() {
+      @Override
+      public <T extends RequestContext> T signal(Message msg, T signalContext, long maxWait) {
+        try {
+          if (blockingMillis > 0) Thread.sleep(blockingMillis);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+        signalContext.addResponse(response);
+        signalContext.endOfStream();
+        return signalContext;
+      }
+    };
+    proxy = connect(JMSRequestProxy.builder(), QUEUE_NAME)
+            .addSerializer(new DefaultJavaMessageSerializer())
+            .setRequestSink(endpoint)
+            .setUseVirtualThreads(useVirtualThreads)
+            .setMaxVirtualThreadCalls(1000)
+            .build();
+    proxy.startComponent();
+    sink = connect(JMSRequestSink.builder(), QUEUE_NAME)
+            .setSerializer(new DefaultJavaMessageSerializer())
+            .build();
+    sink.startComponent();
+  }
+
+  @TearDown(Level.Trial)
+  public void teardown() {
+    sink.stopComponent();
+    proxy.stopComponent();
+  }
+
+  @Benchmark
+  @Threads(64)
+  public Message roundTrip() throws Exception {
+    RequestHandler handler = RequestHandler.signal(sink, new BenchmarkMessage(16), false, 10000);
+    Message result = handler.getNextResponse();
+    if (result == null) throw new IllegalStateException("No response");
+    return result;
+  }
+
+}
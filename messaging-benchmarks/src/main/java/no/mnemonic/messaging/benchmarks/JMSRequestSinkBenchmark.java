@@ -0,0 +1,97 @@
+package no.mnemonic.messaging.benchmarks;
+
+import no.mnemonic.messaging.requestsink.Message;
+import no.mnemonic.messaging.requestsink.RequestContext;
+import no.mnemonic.messaging.requestsink.RequestHandler;
+import no.mnemonic.messaging.requestsink.RequestSink;
+import no.mnemonic.messaging.requestsink.jms.JMSRequestProxy;
+import no.mnemonic.messaging.requestsink.jms.JMSRequestSink;
+import no.mnemonic.messaging.requestsink.jms.serializer.DefaultJavaMessageSerializer;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+import static no.mnemonic.messaging.benchmarks.JMSBenchmarkSupport.connect;
+
+/**
+ * Measures a request through {@link JMSRequestSink} and {@link JMSRequestProxy} over an embedded ActiveMQ broker,
+ * both as the latency of a single request/response round trip, and as the throughput of a streamed response.
+ */
+@State(Scope.Benchmark)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class JMSRequestSinkBenchmark {
+
+  private static final String QUEUE_NAME = "JMSRequestSinkBenchmark";
+  private static final int STREAMED_RESPONSES = 1000;
+
+  @Param({"16", "4096"})
+  private int payloadSize;
+
+  private JMSRequestProxy proxy;
+  private JMSRequestSink sink;
+  private Message response;
+
+  @Setup(Level.Trial)
+  public void setup() {
+    response = new BenchmarkMessage(payloadSize);
+    //endpoint replying with the number of responses given by the payload size of the request
+    RequestSink endpoint = new RequestSink() {
+      @Override
+      public <T extends RequestContext> T signal(Message msg, T signalContext, long maxWait) {
+        int responses = Math.max(1, ((BenchmarkMessage) msg).getPayload().length);
+        for (int i = 0; i < responses; i++) {
+          signalContext.addResponse(response);
+        }
+        signalContext.endOfStream();
+        return signalContext;
+      }
+    };
+    proxy = connect(JMSRequestProxy.builder(), QUEUE_NAME)
+            .addSerializer(new DefaultJavaMessageSerializer())
+            .setRequestSink(endpoint)
+            .build();
+    proxy.startComponent();
+    sink = connect(JMSRequestSink.builder(), QUEUE_NAME)
+            .setSerializer(new DefaultJavaMessageSerializer())
+            .build();
+    sink.startComponent();
+  }
+
+  @TearDown(Level.Trial)
+  public void teardown() {
+    sink.stopComponent();
+    proxy.stopComponent();
+  }
+
+  @Benchmark
+  @BenchmarkMode(Mode.SampleTime)
+  @OutputTimeUnit(TimeUnit.MICROSECONDS)
+  public Message roundTripLatency() throws Exception {
+    return receive(1);
+  }
+
+  @Benchmark
+  @BenchmarkMode(Mode.Throughput)
+  @OutputTimeUnit(TimeUnit.SECONDS)
+  @OperationsPerInvocation(STREAMED_RESPONSES)
+  public Message streamThroughput() throws Exception {
+    return receive(STREAMED_RESPONSES);
+  }
+
+  private Message receive(int responses) throws Exception {
+    //the request payload size tells the endpoint how many responses to send
+    RequestHandler handler = RequestHandler.signal(sink, new BenchmarkMessage(responses), false, 10000);
+    Message last = null;
+    int received = 0;
+    Message next;
+    while ((next = handler.getNextResponse()) != null) {
+      last = next;
+      received++;
+    }
+    if (received != responses) throw new IllegalStateException("Expected " + responses + " responses, got " + received);
+    return last;
+  }
+
+}
@@ -0,0 +1,63 @@
+package no.mnemonic.messaging.benchmarks;
+
+import no.mnemonic.messaging.requestsink.*;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the round trip of a request with a single response through a {@link LocalRequestSink},
+ * as a baseline for the JMS transport.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LocalRequestSinkBenchmark {
+
+  @Param({"false", "true"})
+  private boolean copyOnSend;
+
+  @Param({"16", "4096"})
+  private int payloadSize;
+
+  private LocalRequestSink sink;
+  private Message response;
+
+  @Setup(Level.Trial)
+  public void setup() {
+    response = new BenchmarkMessage(payloadSize);
+    //echo endpoint, replying with a single response
+    RequestSink endpoint = new RequestSink() {
+      @Override
+      public <T extends RequestContext> T signal(Message msg, T signalContext, long maxWait) {
+        signalContext.addResponse(response);
+        signalContext.endOfStream();
+        return signalContext;
+      }
+    };
+    sink = LocalRequestSink.builder()
+            .setRequestSink(endpoint)
+            .setCopyOnSend(copyOnSend)
+            .setMaxConcurrentCalls(4)
+            .build();
+    sink.startComponent();
+  }
+
+  @TearDown(Level.Trial)
+  public void teardown() {
+    sink.stopComponent();
+  }
+
+  @Benchmark
+  @Threads(4)
+  public Message roundTrip() throws Exception {
+    RequestHandler handler = RequestHandler.signal(sink, new BenchmarkMessage(payloadSize), false, 10000);
+    Message result = handler.getNextResponse();
+    if (result == null) throw new IllegalStateException("No response");
+    return result;
+  }
+
+}
@@ -0,0 +1,71 @@
+package no.mnemonic.messaging.benchmarks;
+
+import no.mnemonic.messaging.requestsink.Message;
+import no.mnemonic.messaging.requestsink.RequestHandler;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the throughput of a single response stream through a {@link RequestHandler},
+ * with one producer adding responses and a varying number of concurrent readers consuming them.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RequestHandlerBenchmark {
+
+  private static final int RESPONSES = 10000;
+
+  @Param({"1", "4", "16"})
+  private int readers;
+
+  private ExecutorService executor;
+  private Message response;
+
+  @Setup(Level.Trial)
+  public void setup() {
+    executor = Executors.newFixedThreadPool(readers);
+    response = new BenchmarkMessage("callID", 16);
+  }
+
+  @TearDown(Level.Trial)
+  public void teardown() {
+    executor.shutdownNow();
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(RESPONSES)
+  public int streamResponses() throws Exception {
+    RequestHandler handler = new RequestHandler(false, "callID", 60000);
+    List<Future<Integer>> results = new ArrayList<>();
+    for (int i = 0; i < readers; i++) {
+      results.add(executor.submit(() -> {
+        int received = 0;
+        while (handler.getNextResponse() != null) {
+          received++;
+        }
+        return received;
+      }));
+    }
+    for (int i = 0; i < RESPONSES; i++) {
+      handler.addResponse(response);
+    }
+    handler.endOfStream();
+    int received = 0;
+    for (Future<Integer> result : results) {
+      received += result.get();
+    }
+    if (received != RESPONSES) throw new IllegalStateException("Expected " + RESPONSES + " responses, got " + received);
+    return received;
+  }
+
+}
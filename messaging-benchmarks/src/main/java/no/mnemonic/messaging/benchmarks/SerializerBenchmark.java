@@ -0,0 +1,56 @@
+package no.mnemonic.messaging.benchmarks;
+
+import no.mnemonic.messaging.requestsink.Message;
+import no.mnemonic.messaging.requestsink.jms.serializer.DefaultJavaMessageSerializer;
+import no.mnemonic.messaging.requestsink.jms.serializer.MessageSerializer;
+import no.mnemonic.messaging.requestsink.jms.serializer.XStreamMessageSerializer;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares encoding and decoding of messages with the available {@link MessageSerializer}s.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SerializerBenchmark {
+
+  @Param({"java", "xstream"})
+  private String serializerType;
+
+  @Param({"16", "4096", "65536"})
+  private int payloadSize;
+
+  private MessageSerializer serializer;
+  private Message message;
+  private byte[] encoded;
+
+  @Setup(Level.Trial)
+  public void setup() throws IOException {
+    if ("xstream".equals(serializerType)) {
+      serializer = XStreamMessageSerializer.builder()
+              .addAllowedClass(BenchmarkMessage.class)
+              .build();
+    } else {
+      serializer = new DefaultJavaMessageSerializer();
+    }
+    message = new BenchmarkMessage(payloadSize);
+    encoded = serializer.serialize(message);
+  }
+
+  @Benchmark
+  public byte[] serialize() throws IOException {
+    return serializer.serialize(message);
+  }
+
+  @Benchmark
+  public Message deserialize() throws IOException {
+    return serializer.deserialize(encoded, getClass().getClassLoader());
+  }
+
+}
@@ -25,6 +25,8 @@ public abstract class AbstractJMSRequestBase implements LifecycleAspect, AppendM
 
   static final int DEFAULT_MAX_MAX_MESSAGE_SIZE = 100000;
   static final int DEFAULT_PRIORITY = 1;
+  static final int MIN_JMS_PRIORITY = 0;
+  static final int MAX_JMS_PRIORITY = 9;
 
   public static final String SERIALIZER_KEY = "ArgusMessagingSerializer";
   public static final String PROTOCOL_VERSION_KEY = "ArgusMessagingProtocol";
@@ -38,11 +40,22 @@ public abstract class AbstractJMSRequestBase implements LifecycleAspect, AppendM
   public static final String MESSAGE_TYPE_SIGNAL_FRAGMENT = "JMSSignalFragment";
   public static final String MESSAGE_TYPE_SIGNAL_RESPONSE = "JMSSignalResponse";
   public static final String MESSAGE_TYPE_EXTEND_WAIT = "JMSExtendWait";
+  public static final String MESSAGE_TYPE_RESPONSE_CREDIT = "JMSResponseCredit";
+  public static final String MESSAGE_TYPE_SIGNAL_BATCH = "JMSSignalBatch";
+  public static final String MESSAGE_TYPE_RESPONSE_QUEUE_PROBE = "JMSResponseQueueProbe";
   public static final String PROPERTY_REQ_TIMEOUT = "RequestTimeout";
   public static final String PROPERTY_FRAGMENTS_TOTAL = "TotalFragments";
   public static final String PROPERTY_FRAGMENTS_IDX = "FragmentIndex";
   public static final String PROPERTY_RESPONSE_ID = "ResponseID";
   public static final String PROPERTY_DATA_CHECKSUM_MD5 = "DataChecksumMD5";
+  public static final String PROPERTY_RESPONSE_WINDOW = "ResponseWindow";
+  public static final String PROPERTY_RESPONSE_CREDITS = "ResponseCredits";
+  public static final String PROPERTY_CLIENT_SEND_TIME = "ClientSendTime";
+  public static final String PROPERTY_PROXY_RECEIVE_TIME = "ProxyReceiveTime";
+  public static final String PROPERTY_DISPATCH_TIME = "DispatchTime";
+  public static final String PROPERTY_RESPONSE_SEND_TIME = "ResponseSendTime";
+  public static final String PROPERTY_COMPRESSION = "Compression";
+  public static final String PROPERTY_UNCOMPRESSED_SIZE = "UncompressedSize";
 
   static final String ERROR_CLOSED = "closed";
 
@@ -151,7 +164,7 @@ public abstract class AbstractJMSRequestBase implements LifecycleAspect, AppendM
     return getOrUpdateSynchronized(session, this::createSession);
   }
 
-  private Session createSession() throws NamingException, JMSException {
+  Session createSession() throws NamingException, JMSException {
     LOGGER.debug("Creating session");
     return getConnection().createSession(false, Session.AUTO_ACKNOWLEDGE);
   }
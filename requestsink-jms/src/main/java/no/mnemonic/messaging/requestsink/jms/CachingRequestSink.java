@@ -0,0 +1,371 @@
+package no.mnemonic.messaging.requestsink.jms;
+
+import no.mnemonic.commons.component.Dependency;
+import no.mnemonic.commons.logging.Logger;
+import no.mnemonic.commons.logging.Logging;
+import no.mnemonic.commons.metrics.MetricAspect;
+import no.mnemonic.commons.metrics.MetricException;
+import no.mnemonic.commons.metrics.Metrics;
+import no.mnemonic.commons.metrics.MetricsData;
+import no.mnemonic.messaging.requestsink.Message;
+import no.mnemonic.messaging.requestsink.MessagingException;
+import no.mnemonic.messaging.requestsink.RequestContext;
+import no.mnemonic.messaging.requestsink.RequestListener;
+import no.mnemonic.messaging.requestsink.RequestSink;
+import no.mnemonic.messaging.requestsink.jms.serializer.MessageSerializer;
+import no.mnemonic.messaging.requestsink.jms.util.RequestDigest;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+import static no.mnemonic.messaging.requestsink.jms.util.JMSUtils.assertNotNull;
+
+/**
+ * RequestSink decorator caching the response stream of idempotent requests.
+ * <p>
+ * Requests are keyed on a digest of the request serialized with the configured {@link MessageSerializer},
+ * ignoring the callID and message timestamp (see {@link RequestDigest}), so repeated requests with equal content get the same key.
+ * A completed response stream is stored in serialized form, and replayed into the RequestContext of later requests
+ * with the same key, so each caller gets its own copy of the responses.
+ * Only response streams which complete without error are cached.
+ * <p>
+ * The cache is bounded by the max number of entries, evicting the least recently used entry,
+ * and each entry expires after the time to live. Requests matching the bypass predicate are never cached.
+ */
+public class CachingRequestSink implements RequestSink, MetricAspect {
+
+  private static final Logger LOGGER = Logging.getLogger(CachingRequestSink.class);
+
+  static final int DEFAULT_MAX_ENTRIES = 1000;
+  static final int DEFAULT_MAX_ENTRY_RESPONSES = 100;
+  static final long DEFAULT_TIME_TO_LIVE = 10000;
+
+  @Dependency
+  private final RequestSink requestSink;
+  private final MessageSerializer serializer;
+  private final Function<Message, String> keyFunction;
+  private final Predicate<Message> bypass;
+  private final int maxEntries;
+  private final int maxEntryResponses;
+  private final long timeToLive;
+  private final Map<String, CacheEntry> cache;
+
+  private final LongAdder hitCount = new LongAdder();
+  private final LongAdder missCount = new LongAdder();
+  private final LongAdder bypassCount = new LongAdder();
+  private final LongAdder evictionCount = new LongAdder();
+  private final LongAdder expiredCount = new LongAdder();
+  private final LongAdder errorCount = new LongAdder();
+
+  private CachingRequestSink(RequestSink requestSink, MessageSerializer serializer, Function<Message, String> keyFunction,
+                             Predicate<Message> bypass, int maxEntries, int maxEntryResponses, long timeToLive) {
+    this.requestSink = assertNotNull(requestSink, "requestSink not set");
+    this.serializer = assertNotNull(serializer, "serializer not set");
+    this.bypass = assertNotNull(bypass, "bypass not set");
+    if (maxEntries < 1) throw new IllegalArgumentException("maxEntries cannot be lower than 1");
+    if (maxEntryResponses < 0) throw new IllegalArgumentException("maxEntryResponses cannot be negative");
+    if (timeToLive < 1) throw new IllegalArgumentException("timeToLive cannot be lower than 1");
+    this.keyFunction = keyFunction != null ? keyFunction : this::digest;
+    this.maxEntries = maxEntries;
+    this.maxEntryResponses = maxEntryResponses;
+    this.timeToLive = timeToLive;
+    //access ordered map gives LRU eviction
+    this.cache = new LinkedHashMap<String, CacheEntry>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, CacheEntry> eldest) {
+        if (size() <= CachingRequestSink.this.maxEntries) return false;
+        evictionCount.increment();
+        return true;
+      }
+    };
+  }
+
+  @Override
+  public Metrics getMetrics() throws MetricException {
+    return new MetricsData()
+            .addData("hits", hitCount)
+            .addData("misses", missCount)
+            .addData("bypassed", bypassCount)
+            .addData("evictions", evictionCount)
+            .addData("expired", expiredCount)
+            .addData("errors", errorCount)
+            .addData("size", size());
+  }
+
+  @Override
+  public <T extends RequestContext> T signal(Message msg, T signalContext, long maxWait) {
+    assertNotNull(msg, "msg not set");
+    if (signalContext == null || bypass.test(msg)) {
+      bypassCount.increment();
+      return requestSink.signal(msg, signalContext, maxWait);
+    }
+    String key;
+    try {
+      key = keyFunction.apply(msg);
+    } catch (Exception e) {
+      LOGGER.warning(e, "Error creating cache key, bypassing cache [callID=%s]", msg.getCallID());
+      errorCount.increment();
+      return requestSink.signal(msg, signalContext, maxWait);
+    }
+    CacheEntry entry = get(key);
+    if (entry != null && replay(entry, signalContext)) {
+      hitCount.increment();
+      return signalContext;
+    }
+    missCount.increment();
+    requestSink.signal(msg, new RecordingContext(key, signalContext), maxWait);
+    return signalContext;
+  }
+
+  /**
+   * @return the number of entries in the cache, including expired entries not yet removed
+   */
+  public int size() {
+    synchronized (cache) {
+      return cache.size();
+    }
+  }
+
+  /**
+   * Remove all entries from the cache
+   */
+  public void invalidateAll() {
+    synchronized (cache) {
+      cache.clear();
+    }
+  }
+
+  //private methods
+
+  private CacheEntry get(String key) {
+    synchronized (cache) {
+      CacheEntry entry = cache.get(key);
+      if (entry == null) return null;
+      if (entry.expiresAt <= System.currentTimeMillis()) {
+        cache.remove(key);
+        expiredCount.increment();
+        return null;
+      }
+      return entry;
+    }
+  }
+
+  private void put(String key, CacheEntry entry) {
+    synchronized (cache) {
+      cache.put(key, entry);
+    }
+  }
+
+  /**
+   * @return true if the entry was replayed, false if the entry could not be deserialized
+   */
+  private boolean replay(CacheEntry entry, RequestContext ctx) {
+    List<Message> responses = new ArrayList<>();
+    try {
+      ClassLoader classLoader = Thread.currentThread().getContextClassLoader();
+      for (byte[] response : entry.responses) {
+        responses.add(serializer.deserialize(response, classLoader));
+      }
+    } catch (IOException e) {
+      LOGGER.warning(e, "Error deserializing cached response");
+      errorCount.increment();
+      return false;
+    }
+    for (Message response : responses) {
+      if (!ctx.addResponse(response)) break;
+    }
+    ctx.endOfStream();
+    return true;
+  }
+
+  private String digest(Message msg) {
+    try {
+      return RequestDigest.digest(serializer, msg);
+    } catch (IOException e) {
+      throw new MessagingException("Error serializing request", e);
+    }
+  }
+
+  private static class CacheEntry {
+    private final List<byte[]> responses;
+    private final long expiresAt;
+
+    private CacheEntry(List<byte[]> responses, long expiresAt) {
+      this.responses = responses;
+      this.expiresAt = expiresAt;
+    }
+  }
+
+  /**
+   * Context forwarding the response stream to the client, recording the responses for the cache
+   */
+  private class RecordingContext implements RequestContext {
+    private final String key;
+    private final RequestContext clientContext;
+    private final List<byte[]> responses = new ArrayList<>();
+    private final AtomicBoolean cacheable = new AtomicBoolean(true);
+
+    private RecordingContext(String key, RequestContext clientContext) {
+      this.key = key;
+      this.clientContext = clientContext;
+    }
+
+    @Override
+    public boolean addResponse(Message msg) {
+      record(msg);
+      return clientContext.addResponse(msg);
+    }
+
+    @Override
+    public boolean keepAlive(long until) {
+      return clientContext.keepAlive(until);
+    }
+
+    @Override
+    public void endOfStream() {
+      if (cacheable.getAndSet(false)) {
+        List<byte[]> recorded;
+        synchronized (responses) {
+          recorded = Collections.unmodifiableList(new ArrayList<>(responses));
+        }
+        put(key, new CacheEntry(recorded, System.currentTimeMillis() + timeToLive));
+      }
+      clientContext.endOfStream();
+    }
+
+    @Override
+    public void notifyError(Throwable e) {
+      cacheable.set(false);
+      clientContext.notifyError(e);
+    }
+
+    @Override
+    public void notifyClose() {
+      //stream was closed without end of stream
+      cacheable.set(false);
+      clientContext.notifyClose();
+    }
+
+    @Override
+    public void addListener(RequestListener listener) {
+      clientContext.addListener(listener);
+    }
+
+    @Override
+    public void removeListener(RequestListener listener) {
+      clientContext.removeListener(listener);
+    }
+
+    @Override
+    public boolean isClosed() {
+      return clientContext.isClosed();
+    }
+
+    @Override
+    public boolean notifiesResponsesConsumed() {
+      return clientContext.notifiesResponsesConsumed();
+    }
+
+    private void record(Message msg) {
+      if (!cacheable.get()) return;
+      synchronized (responses) {
+        if (responses.size() >= maxEntryResponses) {
+          //too many responses to cache
+          cacheable.set(false);
+          responses.clear();
+          return;
+        }
+        try {
+          responses.add(serializer.serialize(msg));
+        } catch (IOException e) {
+          LOGGER.warning(e, "Error serializing response, not caching [callID=%s]", msg.getCallID());
+          errorCount.increment();
+          cacheable.set(false);
+          responses.clear();
+        }
+      }
+    }
+  }
+
+  public static Builder builder() {
+    return new Builder();
+  }
+
+  public static class Builder {
+
+    private RequestSink requestSink;
+    private MessageSerializer serializer;
+    private Function<Message, String> keyFunction;
+    private Predicate<Message> bypass = m -> false;
+    private int maxEntries = DEFAULT_MAX_ENTRIES;
+    private int maxEntryResponses = DEFAULT_MAX_ENTRY_RESPONSES;
+    private long timeToLive = DEFAULT_TIME_TO_LIVE;
+
+    private Builder() {
+    }
+
+    public CachingRequestSink build() {
+      return new CachingRequestSink(requestSink, serializer, keyFunction, bypass, maxEntries, maxEntryResponses, timeToLive);
+    }
+
+    //setters
+
+    public Builder setRequestSink(RequestSink requestSink) {
+      this.requestSink = requestSink;
+      return this;
+    }
+
+    /**
+     * @param serializer serializer used to create the cache key and to store responses,
+     *                   typically the same serializer as the decorated sink
+     */
+    public Builder setSerializer(MessageSerializer serializer) {
+      this.serializer = serializer;
+      return this;
+    }
+
+    /**
+     * @param keyFunction function creating the cache key of a request. Defaults to a digest of the serialized request
+     */
+    public Builder setKeyFunction(Function<Message, String> keyFunction) {
+      this.keyFunction = keyFunction;
+      return this;
+    }
+
+    /**
+     * @param bypass predicate matching requests which must not be cached
+     */
+    public Builder setBypass(Predicate<Message> bypass) {
+      this.bypass = bypass;
+      return this;
+    }
+
+    /**
+     * @param maxEntries max number of cached response streams, evicting the least recently used entry
+     */
+    public Builder setMaxEntries(int maxEntries) {
+      this.maxEntries = maxEntries;
+      return this;
+    }
+
+    /**
+     * @param maxEntryResponses max number of responses in a cached response stream. Longer streams are not cached.
+     */
+    public Builder setMaxEntryResponses(int maxEntryResponses) {
+      this.maxEntryResponses = maxEntryResponses;
+      return this;
+    }
+
+    /**
+     * @param timeToLive millis before a cached response stream expires
+     */
+    public Builder setTimeToLive(long timeToLive) {
+      this.timeToLive = timeToLive;
+      return this;
+    }
+  }
+}
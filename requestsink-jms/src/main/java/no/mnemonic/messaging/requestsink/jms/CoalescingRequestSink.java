@@ -0,0 +1,431 @@
+package no.mnemonic.messaging.requestsink.jms;
+
+import no.mnemonic.commons.component.Dependency;
+import no.mnemonic.commons.logging.Logger;
+import no.mnemonic.commons.logging.Logging;
+import no.mnemonic.commons.metrics.MetricAspect;
+import no.mnemonic.commons.metrics.MetricException;
+import no.mnemonic.commons.metrics.Metrics;
+import no.mnemonic.commons.metrics.MetricsData;
+import no.mnemonic.commons.utilities.lambda.LambdaUtils;
+import no.mnemonic.messaging.requestsink.Message;
+import no.mnemonic.messaging.requestsink.MessagingException;
+import no.mnemonic.messaging.requestsink.RequestContext;
+import no.mnemonic.messaging.requestsink.RequestListener;
+import no.mnemonic.messaging.requestsink.RequestSink;
+import no.mnemonic.messaging.requestsink.jms.serializer.MessageSerializer;
+import no.mnemonic.messaging.requestsink.jms.util.RequestDigest;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+import static no.mnemonic.commons.utilities.collections.ListUtils.list;
+import static no.mnemonic.messaging.requestsink.jms.util.JMSUtils.assertNotNull;
+
+/**
+ * RequestSink decorator coalescing identical in-flight requests (single flight).
+ * <p>
+ * Requests are keyed on a digest of the request serialized with the configured {@link MessageSerializer},
+ * ignoring callID and message timestamp. If a request with the same key is already in flight,
+ * the new request is not sent, but its RequestContext is attached to the response stream of the request in flight.
+ * Responses, end of stream and errors are fanned out to all attached contexts. Responses received before a context
+ * was attached are buffered and replayed to the late joiner, up to the max buffered responses.
+ * When the buffer overflows, later requests are sent as a new flight instead.
+ * <p>
+ * All attached contexts share the deadline of the request in flight, which is extended by keepalive from the server.
+ * A request waiting longer than the flight (beyond a small tolerance) is sent as a new flight instead,
+ * while a request waiting shorter than the flight is closed by its own context.
+ * An unexpected timeout of any attached context is forwarded to the downstream request.
+ * <p>
+ * The same response objects are delivered to all attached contexts, so responses must not be modified by the receiver.
+ * The downstream request is closed when all attached contexts are closed.
+ * Since attached contexts consume responses at different rates, response flow control is not used for coalesced requests.
+ */
+public class CoalescingRequestSink implements RequestSink, MetricAspect {
+
+  private static final Logger LOGGER = Logging.getLogger(CoalescingRequestSink.class);
+
+  static final int DEFAULT_MAX_BUFFERED_RESPONSES = 1000;
+  static final long JOIN_DEADLINE_TOLERANCE = 100;
+
+  @Dependency
+  private final RequestSink requestSink;
+  private final MessageSerializer serializer;
+  private final Function<Message, String> keyFunction;
+  private final Predicate<Message> bypass;
+  private final int maxBufferedResponses;
+  private final Map<String, Flight> inFlight = new ConcurrentHashMap<>();
+
+  private final LongAdder requestCount = new LongAdder();
+  private final LongAdder coalescedCount = new LongAdder();
+  private final LongAdder bypassCount = new LongAdder();
+  private final LongAdder errorCount = new LongAdder();
+
+  private CoalescingRequestSink(RequestSink requestSink, MessageSerializer serializer, Function<Message, String> keyFunction,
+                                Predicate<Message> bypass, int maxBufferedResponses) {
+    this.requestSink = assertNotNull(requestSink, "requestSink not set");
+    this.bypass = assertNotNull(bypass, "bypass not set");
+    if (keyFunction == null) assertNotNull(serializer, "serializer not set");
+    if (maxBufferedResponses < 0) throw new IllegalArgumentException("maxBufferedResponses cannot be negative");
+    this.serializer = serializer;
+    this.keyFunction = keyFunction != null ? keyFunction : this::digest;
+    this.maxBufferedResponses = maxBufferedResponses;
+  }
+
+  @Override
+  public Metrics getMetrics() throws MetricException {
+    return new MetricsData()
+            .addData("requests", requestCount)
+            .addData("coalesced", coalescedCount)
+            .addData("bypassed", bypassCount)
+            .addData("errors", errorCount)
+            .addData("inFlight", inFlight.size());
+  }
+
+  @Override
+  public <T extends RequestContext> T signal(Message msg, T signalContext, long maxWait) {
+    assertNotNull(msg, "msg not set");
+    if (signalContext == null || bypass.test(msg)) {
+      bypassCount.increment();
+      return requestSink.signal(msg, signalContext, maxWait);
+    }
+    String key;
+    try {
+      key = keyFunction.apply(msg);
+    } catch (Exception e) {
+      LOGGER.warning(e, "Error creating request key, not coalescing [callID=%s]", msg.getCallID());
+      errorCount.increment();
+      return requestSink.signal(msg, signalContext, maxWait);
+    }
+    requestCount.increment();
+    long deadline = System.currentTimeMillis() + maxWait;
+    while (true) {
+      Flight current = inFlight.get(key);
+      if (current != null) {
+        if (current.join(signalContext, deadline)) {
+          coalescedCount.increment();
+          return signalContext;
+        }
+        //flight is completed, no longer joinable, or ends before this request, replace it
+        Flight flight = new Flight(key, msg.getCallID(), signalContext, deadline);
+        if (inFlight.replace(key, current, flight)) return send(flight, msg, signalContext, maxWait);
+      } else {
+        Flight flight = new Flight(key, msg.getCallID(), signalContext, deadline);
+        if (inFlight.putIfAbsent(key, flight) == null) return send(flight, msg, signalContext, maxWait);
+      }
+    }
+  }
+
+  /**
+   * @return the number of distinct requests currently in flight
+   */
+  public int getInFlightCount() {
+    return inFlight.size();
+  }
+
+  //private methods
+
+  private <T extends RequestContext> T send(Flight flight, Message msg, T signalContext, long maxWait) {
+    try {
+      requestSink.signal(msg, flight, maxWait);
+      return signalContext;
+    } catch (RuntimeException e) {
+      //fail the contexts which joined while sending, and rethrow to the caller who sent the request
+      flight.failed(e);
+      throw e;
+    }
+  }
+
+  private String digest(Message msg) {
+    try {
+      return RequestDigest.digest(serializer, msg);
+    } catch (IOException e) {
+      throw new MessagingException("Error serializing request", e);
+    }
+  }
+
+  /**
+   * Downstream context of a request in flight, fanning out to all attached contexts
+   */
+  private class Flight implements RequestContext {
+    private final String key;
+    private final String callID;
+    private final RequestContext leader;
+    private final List<Subscriber> subscribers = new ArrayList<>();
+    private final List<Message> buffer = new ArrayList<>();
+    private final Set<RequestListener> listeners = ConcurrentHashMap.newKeySet();
+    private final AtomicBoolean timeoutNotified = new AtomicBoolean();
+    private long deadline;
+    private boolean joinable = true;
+    private boolean completed;
+    private boolean closeNotified;
+
+    private Flight(String key, String callID, RequestContext leader, long deadline) {
+      this.key = key;
+      this.callID = callID;
+      this.leader = leader;
+      this.deadline = deadline;
+      attach(leader);
+    }
+
+    private boolean join(RequestContext ctx, long ctxDeadline) {
+      Subscriber subscriber;
+      synchronized (this) {
+        if (completed || !joinable || ctxDeadline > deadline + JOIN_DEADLINE_TOLERANCE) return false;
+        subscriber = attach(ctx);
+        //replay responses received before this context joined, ahead of any new responses
+        for (Message response : buffer) {
+          subscriber.enqueue(() -> ctx.addResponse(response));
+        }
+      }
+      subscriber.drain();
+      return true;
+    }
+
+    private Subscriber attach(RequestContext ctx) {
+      Subscriber subscriber = new Subscriber(ctx);
+      subscribers.add(subscriber);
+      ctx.addListener(new RequestListener() {
+        @Override
+        public void close(String ignored) {
+          subscriberClosed();
+        }
+
+        @Override
+        public void timeout() {
+          //the downstream request is shared, so only notify it once
+          if (timeoutNotified.getAndSet(true)) return;
+          listeners.forEach(l -> LambdaUtils.tryTo(l::timeout));
+        }
+      });
+      return subscriber;
+    }
+
+    private void failed(Throwable e) {
+      //the leader gets the error from the sink, notify the rest
+      deliver(complete(), ctx -> {
+        if (ctx != leader) ctx.notifyError(e);
+      });
+    }
+
+    /**
+     * Mark flight as completed, and remove it from the in-flight requests
+     *
+     * @return the subscribers to notify
+     */
+    private synchronized List<Subscriber> complete() {
+      if (completed) return list();
+      completed = true;
+      buffer.clear();
+      inFlight.remove(key, this);
+      return list(subscribers);
+    }
+
+    private void subscriberClosed() {
+      synchronized (this) {
+        boolean allClosed = subscribers.stream().allMatch(Subscriber::isClosed);
+        if (!allClosed || closeNotified) return;
+        closeNotified = true;
+      }
+      complete();
+      listeners.forEach(l -> LambdaUtils.tryTo(() -> l.close(callID)));
+    }
+
+    /**
+     * Queue the event to each of the subscribers, and deliver it outside the lock of the flight
+     */
+    private void deliver(List<Subscriber> targets, Consumer<RequestContext> event) {
+      targets.forEach(s -> s.enqueue(() -> event.accept(s.ctx)));
+      targets.forEach(Subscriber::drain);
+    }
+
+    @Override
+    public boolean addResponse(Message msg) {
+      List<Subscriber> targets;
+      synchronized (this) {
+        if (completed) return false;
+        if (joinable) {
+          if (buffer.size() < maxBufferedResponses) {
+            buffer.add(msg);
+          } else {
+            //too many responses to replay to late joiners
+            joinable = false;
+            buffer.clear();
+          }
+        }
+        targets = list(subscribers);
+        //queue while holding the lock, so a late joiner gets the replayed responses first
+        targets.forEach(s -> s.enqueue(() -> {
+          if (!s.isClosed()) s.ctx.addResponse(msg);
+        }));
+      }
+      targets.forEach(Subscriber::drain);
+      return targets.stream().anyMatch(s -> !s.isClosed());
+    }
+
+    @Override
+    public boolean keepAlive(long until) {
+      boolean alive = false;
+      for (Subscriber s : subscribersNow()) {
+        if (s.ctx.keepAlive(until)) alive = true;
+      }
+      if (alive) extendDeadline(until);
+      return alive;
+    }
+
+    @Override
+    public void endOfStream() {
+      deliver(complete(), RequestContext::endOfStream);
+    }
+
+    @Override
+    public void notifyError(Throwable e) {
+      deliver(complete(), ctx -> ctx.notifyError(e));
+    }
+
+    @Override
+    public void notifyClose() {
+      deliver(complete(), RequestContext::notifyClose);
+    }
+
+    @Override
+    public void addListener(RequestListener listener) {
+      listeners.add(listener);
+    }
+
+    @Override
+    public void removeListener(RequestListener listener) {
+      listeners.remove(listener);
+    }
+
+    @Override
+    public synchronized boolean isClosed() {
+      return completed || subscribers.stream().allMatch(Subscriber::isClosed);
+    }
+
+    @Override
+    public boolean notifiesResponsesConsumed() {
+      return false;
+    }
+
+    private synchronized void extendDeadline(long until) {
+      deadline = Math.max(deadline, until);
+    }
+
+    private synchronized List<Subscriber> subscribersNow() {
+      return list(subscribers);
+    }
+  }
+
+  /**
+   * Context attached to a flight, receiving events in the order they were queued.
+   * Events are delivered by the thread draining the queue, outside the lock of the flight,
+   * so a slow or re-entrant context does not block other contexts of the flight.
+   */
+  private static class Subscriber {
+    private final RequestContext ctx;
+    private final Queue<Runnable> events = new ArrayDeque<>();
+    private boolean draining;
+
+    private Subscriber(RequestContext ctx) {
+      this.ctx = ctx;
+    }
+
+    private boolean isClosed() {
+      return ctx.isClosed();
+    }
+
+    private synchronized void enqueue(Runnable event) {
+      events.add(event);
+    }
+
+    private void drain() {
+      synchronized (this) {
+        //another thread (or an outer call on this thread) is already delivering events
+        if (draining) return;
+        draining = true;
+      }
+      while (true) {
+        Runnable event;
+        synchronized (this) {
+          event = events.poll();
+          if (event == null) {
+            draining = false;
+            return;
+          }
+        }
+        LambdaUtils.tryTo(event::run, e -> LOGGER.warning(e, "Error notifying coalesced request"));
+      }
+    }
+  }
+
+  public static Builder builder() {
+    return new Builder();
+  }
+
+  public static class Builder {
+
+    private RequestSink requestSink;
+    private MessageSerializer serializer;
+    private Function<Message, String> keyFunction;
+    private Predicate<Message> bypass = m -> false;
+    private int maxBufferedResponses = DEFAULT_MAX_BUFFERED_RESPONSES;
+
+    private Builder() {
+    }
+
+    public CoalescingRequestSink build() {
+      return new CoalescingRequestSink(requestSink, serializer, keyFunction, bypass, maxBufferedResponses);
+    }
+
+    //setters
+
+    public Builder setRequestSink(RequestSink requestSink) {
+      this.requestSink = requestSink;
+      return this;
+    }
+
+    /**
+     * @param serializer serializer used to create the request key, typically the same serializer as the decorated sink
+     */
+    public Builder setSerializer(MessageSerializer serializer) {
+      this.serializer = serializer;
+      return this;
+    }
+
+    /**
+     * @param keyFunction function creating the key of a request. Defaults to a digest of the serialized request
+     */
+    public Builder setKeyFunction(Function<Message, String> keyFunction) {
+      this.keyFunction = keyFunction;
+      return this;
+    }
+
+    /**
+     * @param bypass predicate matching requests which must never be coalesced
+     */
+    public Builder setBypass(Predicate<Message> bypass) {
+      this.bypass = bypass;
+      return this;
+    }
+
+    /**
+     * @param maxBufferedResponses max number of responses to buffer for replay to late joiners
+     */
+    public Builder setMaxBufferedResponses(int maxBufferedResponses) {
+      this.maxBufferedResponses = maxBufferedResponses;
+      return this;
+    }
+  }
+}
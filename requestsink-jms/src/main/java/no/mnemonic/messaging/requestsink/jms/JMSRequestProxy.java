@@ -16,8 +16,14 @@ import no.mnemonic.messaging.requestsink.jms.context.ServerChannelUploadContext;
 import no.mnemonic.messaging.requestsink.jms.context.ServerContext;
 import no.mnemonic.messaging.requestsink.jms.context.ServerResponseContext;
 import no.mnemonic.messaging.requestsink.jms.serializer.MessageSerializer;
+import no.mnemonic.messaging.requestsink.jms.util.CallExecutor;
+import no.mnemonic.messaging.requestsink.jms.util.ExpiryIndex;
+import no.mnemonic.messaging.requestsink.jms.util.MessageCompressor;
+import no.mnemonic.messaging.requestsink.jms.util.PriorityExecutor;
 import no.mnemonic.messaging.requestsink.jms.util.ServerMetrics;
+import no.mnemonic.messaging.requestsink.jms.util.SignalBatch;
 import no.mnemonic.messaging.requestsink.jms.util.ThreadFactoryBuilder;
+import no.mnemonic.messaging.requestsink.jms.util.VirtualThreadExecutor;
 
 import javax.jms.*;
 import javax.naming.NamingException;
@@ -26,7 +32,6 @@ import java.lang.IllegalStateException;
 import java.util.*;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicBoolean;
-import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
 
 import static no.mnemonic.commons.utilities.ObjectUtils.ifNotNull;
@@ -45,6 +50,30 @@ import static no.mnemonic.messaging.requestsink.jms.util.JMSUtils.*;
  * puts a limit on the maximum requests being handled. If more messages are sent to the JMS queue, these will
  * not be consumed by the JMS Request Sink until a thread is available.
  * This allows multiple JMSRequestProxies to share the load from a queue, and acts as a resource limitation.
+ * <p>
+ * Up to <code>maxQueuedCalls</code> requests (default 10) are consumed from JMS and queued up
+ * while all threads are busy. Queued requests are run in order of the JMS priority set by the client
+ * (see {@link Message#getPriority()}), where each <code>priorityAgingInterval</code> millis of waiting time
+ * is worth one priority level, so that low priority requests are not starved.
+ * Queued requests are not available to other proxies sharing the queue. Setting <code>maxQueuedCalls</code> to 0
+ * leaves all waiting requests in JMS, so priorities have no effect beyond the order in which the broker delivers messages.
+ * <p>
+ * If <code>useVirtualThreads</code> is set, each request is handled in a new virtual thread instead,
+ * limited by <code>maxVirtualThreadCalls</code>. This is intended for downstream RequestSinks spending most of their time
+ * blocked on I/O, where the limit may be set to thousands. Requests are never queued in this mode.
+ * Virtual threads require Java 21. On older runtimes a warning is logged, and requests are handled
+ * as if <code>useVirtualThreads</code> was not set, limited by <code>maxConcurrentCalls</code>.
+ * <p>
+ * Requests which time out while waiting for a thread are dropped without being dispatched,
+ * and the downstream RequestSink is signalled with the remaining time budget of the client.
+ * <p>
+ * Each proxy listens to a temporary control queue, receiving response credits from clients using a response window
+ * (protocol V4). The control queue is given as <code>JMSReplyTo</code> on response messages.
+ * The control queue is consumed on a separate session, so credits are delivered while the request consumer is blocked
+ * waiting for a free thread.
+ * <p>
+ * Compressed requests (protocol V7) are always decompressed. If <code>compressionThreshold</code> is set,
+ * responses of at least this size to V7 clients are compressed as well.
  */
 public class JMSRequestProxy extends AbstractJMSRequestBase implements MessageListener, ExceptionListener, MetricAspect {
 
@@ -52,6 +81,13 @@ public class JMSRequestProxy extends AbstractJMSRequestBase implements MessageLi
 
   static final int DEFAULT_MAX_CONCURRENT_CALLS = 10;
   static final int DEFAULT_SHUTDOWN_TIMEOUT = 10000;
+  static final int DEFAULT_MAX_QUEUED_CALLS = 10;
+  static final long DEFAULT_PRIORITY_AGING_INTERVAL = 100;
+  static final int DEFAULT_MAX_VIRTUAL_THREAD_CALLS = 1000;
+  //run reconnect ahead of any queued request
+  private static final int RECONNECT_PRIORITY = 10;
+  private static final int CLEANUP_SWEEP_SIZE = 16;
+  private static final long EXPIRY_RECHECK_INTERVAL = 1000;
 
   // properties
 
@@ -60,41 +96,65 @@ public class JMSRequestProxy extends AbstractJMSRequestBase implements MessageLi
 
   // variables
   private final Map<String, ServerContext> calls = new ConcurrentHashMap<>();
+  private final ExpiryIndex<String> callExpiry = new ExpiryIndex<>();
   private final Semaphore semaphore;
-  private final AtomicLong lastCleanupTimestamp = new AtomicLong();
   private final AtomicBoolean reconnecting = new AtomicBoolean();
 
-  private final ExecutorService executor;
+  private final CallExecutor executor;
   private final ServerMetrics metrics = new ServerMetrics();
+  private final MessageCompressor compressor;
   private final long shutdownTimeout;
 
   private final Set<JMSRequestProxyConnectionListener> connectionListeners = new HashSet<>();
   private final Map<String, MessageSerializer> serializers;
   private final AtomicReference<MessageProducer> replyProducer = new AtomicReference<>();
   private final AtomicReference<MessageConsumer> consumer = new AtomicReference<>();
+  private final AtomicReference<Session> controlSession = new AtomicReference<>();
+  private final AtomicReference<TemporaryQueue> controlQueue = new AtomicReference<>();
+  private final AtomicReference<MessageConsumer> controlConsumer = new AtomicReference<>();
 
 
   private JMSRequestProxy(String contextFactoryName, String contextURL, String connectionFactoryName,
                           String username, String password, Map<String, String> connectionProperties,
-                          String destinationName, int priority, int maxConcurrentCalls,
-                          int maxMessageSize, RequestSink requestSink, long shutdownTimeout, Collection<MessageSerializer> serializers) {
+                          String destinationName, int priority, int maxConcurrentCalls, int maxQueuedCalls,
+                          long priorityAgingInterval, boolean useVirtualThreads, int maxVirtualThreadCalls, int maxMessageSize, RequestSink requestSink, long shutdownTimeout, Collection<MessageSerializer> serializers,
+                          int compressionThreshold) {
     super(contextFactoryName, contextURL, connectionFactoryName,
             username, password, connectionProperties, destinationName,
             priority, maxMessageSize);
 
     if (maxConcurrentCalls < 1)
       throw new IllegalArgumentException("maxConcurrentCalls cannot be lower than 1");
+    if (maxQueuedCalls < 0)
+      throw new IllegalArgumentException("maxQueuedCalls cannot be negative");
+    if (useVirtualThreads && maxVirtualThreadCalls < 1)
+      throw new IllegalArgumentException("maxVirtualThreadCalls cannot be lower than 1");
     if (CollectionUtils.isEmpty(serializers))
       throw new IllegalArgumentException("no serializers provided");
+    if (compressionThreshold < 0)
+      throw new IllegalArgumentException("compressionThreshold cannot be negative");
 
     this.shutdownTimeout = shutdownTimeout;
+    this.compressor = new MessageCompressor(compressionThreshold);
+    metrics.setCompressor(compressor);
     this.serializers = MapUtils.map(serializers, s -> MapUtils.pair(s.serializerID(), s));
     this.requestSink = assertNotNull(requestSink, "requestSink not set");
-    this.executor = Executors.newFixedThreadPool(
-            maxConcurrentCalls,
-            new ThreadFactoryBuilder().setNamePrefix("JMSRequestProxy").build()
-    );
-    this.semaphore = new Semaphore(maxConcurrentCalls);
+    boolean virtualThreads = useVirtualThreads && VirtualThreadExecutor.isSupported();
+    if (useVirtualThreads && !virtualThreads) {
+      //do not fall back to thousands of platform threads
+      LOGGER.warning("Virtual threads not supported by this runtime, limiting to maxConcurrentCalls=%d platform threads", maxConcurrentCalls);
+    }
+    if (virtualThreads) {
+      this.executor = new VirtualThreadExecutor("JMSRequestProxy");
+      this.semaphore = new Semaphore(maxVirtualThreadCalls);
+    } else {
+      this.executor = new PriorityExecutor(
+              maxConcurrentCalls,
+              priorityAgingInterval,
+              new ThreadFactoryBuilder().setNamePrefix("JMSRequestProxy").build()
+      );
+      this.semaphore = new Semaphore(maxConcurrentCalls + maxQueuedCalls);
+    }
   }
 
   @Override
@@ -152,6 +212,16 @@ public class JMSRequestProxy extends AbstractJMSRequestBase implements MessageLi
         c.setMessageListener(this);
         consumer.set(c);
 
+        //receive credits on a separate session, as the request consumer may block its delivery thread
+        //waiting for a permit held by a call which is waiting for credits
+        Session cs = createSession();
+        controlSession.set(cs);
+        TemporaryQueue q = cs.createTemporaryQueue();
+        controlQueue.set(q);
+        MessageConsumer cc = cs.createConsumer(q);
+        cc.setMessageListener(this::onControlMessage);
+        controlConsumer.set(cc);
+
         set(connectionListeners).forEach(l -> l.connected(this));
         LOGGER.info("Connected");
         metrics.reconnected();
@@ -166,6 +236,9 @@ public class JMSRequestProxy extends AbstractJMSRequestBase implements MessageLi
       // try to nicely shut down all resources
       executeAndReset(replyProducer, MessageProducer::close, "Error closing reply producer");
       executeAndReset(consumer, MessageConsumer::close, "Error closing consumer");
+      executeAndReset(controlConsumer, MessageConsumer::close, "Error closing control consumer");
+      executeAndReset(controlQueue, TemporaryQueue::delete, "Error deleting control queue");
+      executeAndReset(controlSession, Session::close, "Error closing control session");
       executeAndReset(session, Session::close, "Error closing session");
       executeAndReset(connection, Connection::close, "Error closing connection");
     } finally {
@@ -176,6 +249,9 @@ public class JMSRequestProxy extends AbstractJMSRequestBase implements MessageLi
   private synchronized void resetState() {
     replyProducer.set(null);
     consumer.set(null);
+    controlConsumer.set(null);
+    controlQueue.set(null);
+    controlSession.set(null);
     session.set(null);
     destination.set(null);
   }
@@ -185,7 +261,7 @@ public class JMSRequestProxy extends AbstractJMSRequestBase implements MessageLi
     metrics.error();
     LOGGER.warning(e, "Exception received");
     //close all resources
-    executor.submit(() -> tryTo(this::reconnect));
+    executor.execute(RECONNECT_PRIORITY, () -> tryTo(this::reconnect));
   }
 
   @SuppressWarnings("WeakerAccess")
@@ -200,6 +276,36 @@ public class JMSRequestProxy extends AbstractJMSRequestBase implements MessageLi
 
   //private and protected methods
 
+  /**
+   * Handle control messages from clients, sent to the control queue of this proxy
+   *
+   * @param message message to handle
+   */
+  private void onControlMessage(javax.jms.Message message) {
+    try {
+      if (!isCompatible(message)) {
+        LOGGER.warning("Ignoring control message of incompatible version: " + message);
+        metrics.incompatibleMessage();
+        return;
+      }
+      String messageType = message.getStringProperty(PROPERTY_MESSAGE_TYPE);
+      if (!MESSAGE_TYPE_RESPONSE_CREDIT.equals(messageType)) {
+        metrics.incompatibleMessage();
+        LOGGER.warning("Ignoring unrecognized control message type: " + messageType);
+        return;
+      }
+      ServerContext ctx = calls.get(message.getJMSCorrelationID());
+      if (!(ctx instanceof ServerResponseContext)) {
+        LOGGER.debug("No response context for credits [callID=%s]", message.getJMSCorrelationID());
+        return;
+      }
+      ((ServerResponseContext) ctx).addResponseCredits(message.getIntProperty(PROPERTY_RESPONSE_CREDITS));
+    } catch (Exception e) {
+      metrics.error();
+      LOGGER.warning(e, "Error handling control message");
+    }
+  }
+
   /**
    * Processor method, handles an incoming message by forking up a new handler thread
    *
@@ -207,6 +313,7 @@ public class JMSRequestProxy extends AbstractJMSRequestBase implements MessageLi
    */
   private void process(javax.jms.Message message) {
     metrics.request();
+    long received = System.nanoTime();
     try {
       if (!isCompatible(message)) {
         LOGGER.warning("Ignoring request of incompatible version: " + message);
@@ -227,21 +334,78 @@ public class JMSRequestProxy extends AbstractJMSRequestBase implements MessageLi
         LOGGER.debug("<< process [callID=%s type=%s]", message.getJMSCorrelationID(), messageType);
       }
 
+      if (MESSAGE_TYPE_SIGNAL_BATCH.equals(messageType)) {
+        processBatch(message, received);
+        return;
+      }
+
       //avoid enqueueing a lot of messages into the executor queue, we rather want them to stay in JMS
       //if semaphore is depleted, this should block the activemq consumer, causing messages to queue up in JMS
       semaphore.acquire();
-      executor.submit(() -> doProcessMessage(message, messageType, timeout));
+      executor.execute(message.getJMSPriority(), () -> doProcessMessage(message, messageType, timeout, received));
     } catch (Exception e) {
       metrics.error();
       LOGGER.warning(e, "Error handling message");
     }
   }
 
-  private void doProcessMessage(javax.jms.Message message, String messageType, long timeout) {
+  /**
+   * Unpack a batch of signals, and process each signal as a separate call with its own response context
+   *
+   * @param message batch message to process
+   */
+  private void processBatch(javax.jms.Message message, long received) throws JMSException, IOException, InterruptedException {
+    Destination responseDestination = message.getJMSReplyTo();
+    //ignore requests without a clear response destination
+    if (responseDestination == null) {
+      LOGGER.info("Batch without return information ignored: " + message);
+      metrics.incompatibleMessage();
+      return;
+    }
+    ProtocolVersion protocolVersion = getProtocolVersion(message);
+    MessageSerializer serializer = determineSerializer(message, serializers);
+    int priority = message.getJMSPriority();
+    long clientSendTime = getClientSendTime(message);
+    byte[] batchBytes = compressor.decompress(extractMessageBytes(message), MessageCompressor.getUncompressedSize(message));
+    List<SignalBatch.Entry> entries = SignalBatch.decode(batchBytes);
+    metrics.signalBatch(entries.size());
+    for (SignalBatch.Entry entry : entries) {
+      if (entry.getTimeout() <= System.currentTimeMillis()) {
+        LOGGER.warning("Ignoring batched request: timed out [callID=%s]", entry.getCallID());
+        metrics.requestTimeout();
+        continue;
+      }
+      //acquire a permit for each request, as for unbatched requests
+      semaphore.acquire();
+      executor.execute(priority, () -> doProcessBatchEntry(entry, responseDestination, protocolVersion, serializer, received, clientSendTime));
+    }
+  }
+
+  private void doProcessBatchEntry(SignalBatch.Entry entry, Destination responseDestination, ProtocolVersion protocolVersion, MessageSerializer serializer,
+                                   long received, long clientSendTime) {
     try {
+      if (isExpiredInQueue(entry.getCallID(), entry.getTimeout(), received)) return;
+      if (LOGGER.isDebug()) {
+        LOGGER.debug("<< handleBatchedSignal [callID=%s]", entry.getCallID());
+      }
+      ServerResponseContext ctx = setupServerContext(entry.getCallID(), responseDestination, entry.getTimeout(), protocolVersion, serializer, entry.getResponseWindow());
+      ctx.setRequestTimestamps(clientSendTime, receiveTime(received));
+      ctx.handle(requestSink, serializer.deserialize(entry.getData(), Thread.currentThread().getContextClassLoader()));
+    } catch (Exception e) {
+      metrics.error();
+      LOGGER.error(e, "Error handling batched JMS call");
+      executor.execute(RECONNECT_PRIORITY, () -> tryTo(this::reconnect));
+    } finally {
+      semaphore.release();
+    }
+  }
+
+  private void doProcessMessage(javax.jms.Message message, String messageType, long timeout, long received) {
+    try {
+      if (isExpiredInQueue(message.getJMSCorrelationID(), timeout, received)) return;
       // get reply address and call lifetime
       if (MESSAGE_TYPE_SIGNAL.equals(messageType)) {
-        handleSignalMessage(message, timeout);
+        handleSignalMessage(message, timeout, received);
       } else if (MESSAGE_TYPE_CHANNEL_REQUEST.equals(messageType)) {
         handleChannelRequest(message, timeout);
       } else {
@@ -251,7 +415,7 @@ public class JMSRequestProxy extends AbstractJMSRequestBase implements MessageLi
     } catch (Exception e) {
       metrics.error();
       LOGGER.error(e, "Error handling JMS call");
-      executor.submit(() -> tryTo(this::reconnect));
+      executor.execute(RECONNECT_PRIORITY, () -> tryTo(this::reconnect));
     } finally {
       semaphore.release();
       if (LOGGER.isDebug()) {
@@ -260,7 +424,20 @@ public class JMSRequestProxy extends AbstractJMSRequestBase implements MessageLi
     }
   }
 
-  private void handleSignalMessage(javax.jms.Message message, long timeout) throws JMSException, NamingException {
+  /**
+   * Record the time the request has been waiting for a thread, and check if the request timed out while waiting
+   *
+   * @return true if the request timed out, and should be dropped
+   */
+  private boolean isExpiredInQueue(String callID, long timeout, long received) {
+    metrics.queueWait(System.nanoTime() - received);
+    if (timeout > System.currentTimeMillis()) return false;
+    LOGGER.warning("Ignoring request: timed out while queued [callID=%s]", callID);
+    metrics.queueExpired();
+    return true;
+  }
+
+  private void handleSignalMessage(javax.jms.Message message, long timeout, long received) throws JMSException, NamingException {
     String callID = message.getJMSCorrelationID();
     MessageSerializer serializer = determineSerializer(message, serializers);
     Destination responseDestination = message.getJMSReplyTo();
@@ -274,8 +451,21 @@ public class JMSRequestProxy extends AbstractJMSRequestBase implements MessageLi
       LOGGER.debug("<< handleSignal [callID=%s]", message.getJMSCorrelationID());
     }
     // create a response context to handle response messages
-    ServerResponseContext ctx = setupServerContext(callID, responseDestination, timeout, getProtocolVersion(message), serializer);
-    ctx.handle(requestSink, extractObject(message, determineSerializer(message, serializers)));
+    ServerResponseContext ctx = setupServerContext(callID, responseDestination, timeout, getProtocolVersion(message), serializer, getResponseWindow(message));
+    ctx.setRequestTimestamps(getClientSendTime(message), receiveTime(received));
+    ctx.handle(requestSink, extractRequest(message, serializer));
+  }
+
+  private Message extractRequest(javax.jms.Message message, MessageSerializer serializer) throws JMSException {
+    int uncompressedSize = MessageCompressor.getUncompressedSize(message);
+    if (uncompressedSize == 0) return extractObject(message, serializer);
+    try {
+      byte[] data = compressor.decompress(extractMessageBytes(message), uncompressedSize);
+      return serializer.deserialize(data, Thread.currentThread().getContextClassLoader());
+    } catch (IOException e) {
+      LOGGER.error(e, "Error deserializing compressed request");
+      throw new JMSException(e.getMessage());
+    }
   }
 
   private void handleChannelRequest(javax.jms.Message message, long timeout) throws JMSException, NamingException {
@@ -291,14 +481,40 @@ public class JMSRequestProxy extends AbstractJMSRequestBase implements MessageLi
     if (LOGGER.isDebug()) {
       LOGGER.debug("<< channelRequest [callID=%s]", message.getJMSCorrelationID());
     }
-    setupChannel(callID, responseDestination, timeout, getProtocolVersion(message), serializer);
+    //the compression properties of the channel request describe the uploaded request
+    setupChannel(callID, responseDestination, timeout, getProtocolVersion(message), serializer, getResponseWindow(message),
+            MessageCompressor.getUncompressedSize(message));
+  }
+
+  /**
+   * @return the time the client sent the message (protocol V6), or 0 if not set
+   */
+  private long getClientSendTime(javax.jms.Message message) throws JMSException {
+    if (!getProtocolVersion(message).atLeast(ProtocolVersion.V6)) return 0;
+    if (!message.propertyExists(PROPERTY_CLIENT_SEND_TIME)) return 0;
+    return message.getLongProperty(PROPERTY_CLIENT_SEND_TIME);
+  }
+
+  /**
+   * @param received the time the request was received, from {@link System#nanoTime()}
+   * @return the time the request was received, as epoch millis
+   */
+  private static long receiveTime(long received) {
+    return System.currentTimeMillis() - TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - received);
+  }
+
+  private int getResponseWindow(javax.jms.Message message) throws JMSException {
+    if (!getProtocolVersion(message).atLeast(ProtocolVersion.V4)) return 0;
+    if (!message.propertyExists(PROPERTY_RESPONSE_WINDOW)) return 0;
+    return message.getIntProperty(PROPERTY_RESPONSE_WINDOW);
   }
 
-  private void handleChannelUploadCompleted(String callID, byte[] data, Destination replyTo, long timeout, ProtocolVersion protocolVersion, MessageSerializer serializer) throws IOException, JMSException, NamingException {
+  private void handleChannelUploadCompleted(String callID, byte[] data, Destination replyTo, long timeout, ProtocolVersion protocolVersion, MessageSerializer serializer, int responseWindow) throws IOException, JMSException, NamingException {
     // create a response context to handle response messages
-    ServerResponseContext r = new ServerResponseContext(callID, getSession(), replyProducer.get(), replyTo, timeout, protocolVersion, getMaxMessageSize(), metrics, serializer);
+    ServerResponseContext r = new ServerResponseContext(callID, getSession(), replyProducer.get(), replyTo, timeout, protocolVersion, getMaxMessageSize(), metrics, serializer,
+            responseWindow, controlQueue.get(), compressor);
     // overwrite channel upload context with a server response context
-    calls.put(callID, r);
+    registerCall(callID, r);
     //send uploaded signal to requestSink
     try (ClassLoaderContext classLoaderCtx = ClassLoaderContext.of(requestSink)) {
       // requestsink will broadcast signal, and responses sent to response mockSink
@@ -309,18 +525,38 @@ public class JMSRequestProxy extends AbstractJMSRequestBase implements MessageLi
     }
   }
 
+  private void registerCall(String callID, ServerContext context) {
+    calls.put(callID, context);
+    callExpiry.add(callID, context.getTimeout());
+  }
+
   /**
-   * Walk through responsesinks and remove them if they are closed
+   * Remove responsesinks which have passed their timeout, and check a bounded number of other responsesinks
+   * for being closed before their timeout.
    */
   private void checkCleanRequests() {
-    if (System.currentTimeMillis() - lastCleanupTimestamp.get() < 10000) return;
-    lastCleanupTimestamp.set(System.currentTimeMillis());
-    for (Map.Entry<String, ServerContext> e : calls.entrySet()) {
-      ServerContext sink = e.getValue();
-      if (sink != null && sink.isClosed()) {
-        calls.remove(e.getKey());
+    long start = System.nanoTime();
+    long now = System.currentTimeMillis();
+    int cleaned = 0;
+    for (String callID : callExpiry.pollExpired(now)) {
+      ServerContext ctx = calls.get(callID);
+      if (ctx == null) continue;
+      if (ctx.isClosed()) {
+        calls.remove(callID, ctx);
+        cleaned++;
+      } else {
+        //timeout has been extended by keepalive
+        callExpiry.add(callID, Math.max(ctx.getTimeout(), now + EXPIRY_RECHECK_INTERVAL));
+      }
+    }
+    for (String callID : callExpiry.sweep(CLEANUP_SWEEP_SIZE)) {
+      ServerContext ctx = calls.get(callID);
+      if (ctx != null && ctx.isClosed() && calls.remove(callID, ctx)) {
+        callExpiry.remove(callID);
+        cleaned++;
       }
     }
+    metrics.cleanup(System.nanoTime() - start, cleaned, calls.size());
   }
 
   /**
@@ -332,27 +568,31 @@ public class JMSRequestProxy extends AbstractJMSRequestBase implements MessageLi
    * @param timeout how long this responsesink will forward messages
    * @return a responsesink fulfilling this API
    */
-  private ServerResponseContext setupServerContext(final String callID, Destination replyTo, long timeout, ProtocolVersion protocolVersion, MessageSerializer serializer) throws JMSException, NamingException {
+  private ServerResponseContext setupServerContext(final String callID, Destination replyTo, long timeout, ProtocolVersion protocolVersion, MessageSerializer serializer, int responseWindow) throws JMSException, NamingException {
     ServerContext ctx = calls.get(callID);
     if (ctx != null) return (ServerResponseContext) ctx;
     //create new response context
-    ServerResponseContext context = new ServerResponseContext(callID, getSession(), replyProducer.get(), replyTo, timeout, protocolVersion, getMaxMessageSize(), metrics, serializer);
+    ServerResponseContext context = new ServerResponseContext(callID, getSession(), replyProducer.get(), replyTo, timeout, protocolVersion, getMaxMessageSize(), metrics, serializer,
+            responseWindow, controlQueue.get(), compressor);
     // register this responsesink
-    calls.put(callID, context);
+    registerCall(callID, context);
     // and return it
     return context;
   }
 
-  private void setupChannel(String callID, Destination replyTo, long timeout, ProtocolVersion protocolVersion, MessageSerializer serializer) throws NamingException, JMSException {
+  private void setupChannel(String callID, Destination replyTo, long timeout, ProtocolVersion protocolVersion, MessageSerializer serializer, int responseWindow,
+                            int uncompressedSize) throws NamingException, JMSException {
     metrics.fragmentedUploadRequested();
     ServerContext ctx = calls.get(callID);
     if (ctx != null) return;
     //create new upload context
-    ServerChannelUploadContext context = new ServerChannelUploadContext(callID, getSession(), replyTo, timeout, protocolVersion, metrics, serializer);
+    ServerChannelUploadContext context = new ServerChannelUploadContext(callID, getSession(), replyTo, timeout, protocolVersion, metrics, serializer, responseWindow);
     // register this responsesink
-    calls.put(callID, context);
+    registerCall(callID, context);
     //listen on upload messages and transmit channel setup
-    context.setupChannel(this::handleChannelUploadCompleted);
+    context.setupChannel((id, data, uploadReplyTo, uploadTimeout, uploadProtocolVersion, uploadSerializer, uploadResponseWindow) ->
+            handleChannelUploadCompleted(id, compressor.decompress(data, uncompressedSize), uploadReplyTo, uploadTimeout,
+                    uploadProtocolVersion, uploadSerializer, uploadResponseWindow));
   }
 
   //builder
@@ -367,8 +607,13 @@ public class JMSRequestProxy extends AbstractJMSRequestBase implements MessageLi
 
     private RequestSink requestSink;
     private int maxConcurrentCalls = DEFAULT_MAX_CONCURRENT_CALLS;
+    private int maxQueuedCalls = DEFAULT_MAX_QUEUED_CALLS;
+    private long priorityAgingInterval = DEFAULT_PRIORITY_AGING_INTERVAL;
+    private boolean useVirtualThreads;
+    private int maxVirtualThreadCalls = DEFAULT_MAX_VIRTUAL_THREAD_CALLS;
     private int shutdownTimeout = DEFAULT_SHUTDOWN_TIMEOUT;
     private List<MessageSerializer> serializers = ListUtils.list();
+    private int compressionThreshold;
 
     private Builder() {
     }
@@ -377,7 +622,9 @@ public class JMSRequestProxy extends AbstractJMSRequestBase implements MessageLi
 
     public JMSRequestProxy build() {
       return new JMSRequestProxy(contextFactoryName, contextURL, connectionFactoryName, username, password,
-              connectionProperties, destinationName, priority, maxConcurrentCalls, maxMessageSize, requestSink, shutdownTimeout, serializers);
+              connectionProperties, destinationName, priority, maxConcurrentCalls, maxQueuedCalls, priorityAgingInterval,
+              useVirtualThreads, maxVirtualThreadCalls, maxMessageSize, requestSink, shutdownTimeout, serializers,
+              compressionThreshold);
     }
 
     //setters
@@ -388,6 +635,43 @@ public class JMSRequestProxy extends AbstractJMSRequestBase implements MessageLi
       return this;
     }
 
+    /**
+     * @param maxQueuedCalls max number of requests to consume and queue up while all threads are busy.
+     *                       Queued requests are run in priority order. Default 10. Set to 0 to leave waiting
+     *                       requests in JMS for other proxies, which means request priorities are not applied by the proxy.
+     */
+    public Builder setMaxQueuedCalls(int maxQueuedCalls) {
+      this.maxQueuedCalls = maxQueuedCalls;
+      return this;
+    }
+
+    /**
+     * @param priorityAgingInterval millis a queued request must wait to be worth one priority level more.
+     *                              Only has effect if maxQueuedCalls is set, as requests are only prioritized when queued.
+     */
+    public Builder setPriorityAgingInterval(long priorityAgingInterval) {
+      this.priorityAgingInterval = priorityAgingInterval;
+      return this;
+    }
+
+    /**
+     * @param useVirtualThreads handle each request in a new virtual thread, limited by maxVirtualThreadCalls
+     *                          instead of maxConcurrentCalls. Ignored with a warning if the runtime does not
+     *                          support virtual threads.
+     */
+    public Builder setUseVirtualThreads(boolean useVirtualThreads) {
+      this.useVirtualThreads = useVirtualThreads;
+      return this;
+    }
+
+    /**
+     * @param maxVirtualThreadCalls max number of requests handled concurrently when using virtual threads
+     */
+    public Builder setMaxVirtualThreadCalls(int maxVirtualThreadCalls) {
+      this.maxVirtualThreadCalls = maxVirtualThreadCalls;
+      return this;
+    }
+
     public Builder setRequestSink(RequestSink requestSink) {
       this.requestSink = requestSink;
       return this;
@@ -407,6 +691,15 @@ public class JMSRequestProxy extends AbstractJMSRequestBase implements MessageLi
       this.shutdownTimeout = shutdownTimeout;
       return this;
     }
+
+    /**
+     * @param compressionThreshold min size in bytes of responses to compress, for clients using protocol V7.
+     *                             Default 0, not compressing responses.
+     */
+    public Builder setCompressionThreshold(int compressionThreshold) {
+      this.compressionThreshold = compressionThreshold;
+      return this;
+    }
   }
 
   //accessors
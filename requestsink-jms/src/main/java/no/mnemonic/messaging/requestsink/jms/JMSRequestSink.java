@@ -12,7 +12,14 @@ import no.mnemonic.messaging.requestsink.jms.context.ChannelUploadMessageContext
 import no.mnemonic.messaging.requestsink.jms.context.ClientRequestContext;
 import no.mnemonic.messaging.requestsink.jms.serializer.DefaultJavaMessageSerializer;
 import no.mnemonic.messaging.requestsink.jms.serializer.MessageSerializer;
+import no.mnemonic.messaging.requestsink.jms.util.CircuitBreaker;
 import no.mnemonic.messaging.requestsink.jms.util.ClientMetrics;
+import no.mnemonic.messaging.requestsink.jms.util.ConcurrencyLimiter;
+import no.mnemonic.messaging.requestsink.jms.util.ExpiryIndex;
+import no.mnemonic.messaging.requestsink.jms.util.SessionPool;
+import no.mnemonic.messaging.requestsink.jms.util.MessageCompressor;
+import no.mnemonic.messaging.requestsink.jms.util.SignalBatch;
+import no.mnemonic.messaging.requestsink.jms.util.StripedExecutor;
 import no.mnemonic.messaging.requestsink.jms.util.ThreadFactoryBuilder;
 
 import javax.jms.*;
@@ -20,16 +27,22 @@ import javax.naming.NamingException;
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.lang.IllegalStateException;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Date;
+import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Set;
+import java.util.UUID;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 import static no.mnemonic.commons.utilities.ObjectUtils.ifNotNullDo;
 import static no.mnemonic.commons.utilities.ObjectUtils.ifNull;
@@ -76,22 +89,80 @@ import static no.mnemonic.messaging.requestsink.jms.util.JMSUtils.*;
  * V1 - Initial version, supports requests with multiple replies (streaming result) and upload channel for fragmented request (for large request messages)
  * V2 - Added support for fragmented response (for large single-object response messages)
  * V3 - Added support for custom message serializers. The client serializer must be supported on the server side, but the server can support multiple serializers.
+ * V4 - Added credit-based flow control for streamed responses. If a response window is set, the server will not send more unconsumed responses than the window,
+ * and the client returns credits to the server as responses are consumed. This requires a client RequestContext which notifies consumed responses,
+ * such as the {@link RequestHandler}.
+ * V5 - Added batching of small signal requests. If batching is enabled, signal requests are collected for up to a linger time
+ * or a max number of requests, and sent as one message. The server unpacks each request into a separate call,
+ * with its own response stream and timeout.
+ * V6 - Added per-hop timestamps for latency decomposition. The client stamps the send time on each request,
+ * and the server stamps the time the request was received by the proxy, dispatched to the RequestSink,
+ * and the time the first response was sent on the first message back to the client.
+ * The client reports the time spent in each hop in its metrics.
+ * V7 - Added compression of message payloads. If a compression threshold is set, payloads of at least this size are
+ * compressed with Deflate, and the codec and uncompressed size are announced in message properties.
+ * The server decompresses such requests, and compresses responses of at least its own threshold to V7 clients.
+ * <p>
+ * The sink can protect an overloaded broker or proxy by limiting the number of outstanding calls with an adaptive
+ * {@link ConcurrencyLimiter}, and by failing fast with a {@link CircuitBreaker} when calls time out or fail to send.
+ * Rejected requests fail with a {@link RequestRejectedException} without being sent.
+ * <p>
+ * JMS sessions are single-threaded, so requests are sent using a {@link SessionPool}, where each sending thread leases
+ * a session for the duration of a single send. The size of the pool limits the number of threads sending concurrently.
+ * <p>
+ * Responses are received on one or more temporary response queues, each with its own session and consumer thread.
+ * Each call is assigned to a response queue by the hash of its callID, so with multiple response queues the handling of
+ * responses is spread over multiple threads. A stale response queue is replaced without affecting the other response queues.
+ * Optionally, responses are handled by a {@link StripedExecutor} instead of the consumer thread, so a response which is slow
+ * to deserialize does not delay responses to other calls. All messages to the same call are handled by the same stripe,
+ * preserving the order of responses and end of stream for each call.
+ * <p>
+ * A stale response queue is otherwise only detected when a client notifies a timeout. If probing is enabled, the sink
+ * periodically sends a probe message to each of its response queues through the broker, and replaces a response queue
+ * when a probe does not arrive within the probe timeout. The probes are only seen by the sink itself, so probing does not
+ * require support from the server.
+ * A call which gets a response from the server counts as a success, a call which gets no response before its deadline
+ * counts as a timeout, and a call closed by the client before any response does not count.
  */
 public class JMSRequestSink extends AbstractJMSRequestBase implements RequestSink, MessageListener, MetricAspect {
 
   private static final Logger LOGGER = Logging.getLogger(JMSRequestSink.class);
+  private static final int CLEANUP_SWEEP_SIZE = 16;
+  private static final long EXPIRY_RECHECK_INTERVAL = 1000;
+  //client timeouts may fire slightly before the deadline registered by the sink
+  private static final long TIMEOUT_TOLERANCE = 100;
+  private static final long CREDIT_LEASE_TIMEOUT = 1000;
+  static final int DEFAULT_SESSION_POOL_SIZE = 1;
+  static final int DEFAULT_RESPONSE_QUEUES = 1;
+  static final long DEFAULT_PROBE_TIMEOUT = 5000;
 
   private final ProtocolVersion protocolVersion;
+  private final int responseWindowSize;
+  private final long batchLingerTime;
+  private final int maxBatchSize;
+  private final ConcurrencyLimiter concurrencyLimiter;
+  private final CircuitBreaker circuitBreaker;
+  private final int sessionPoolSize;
+  private final int responseQueueCount;
+  private final long probeInterval;
+  private final long probeTimeout;
+  private final MessageCompressor compressor;
 
   // variables
 
   private final ConcurrentHashMap<String, ClientRequestContext> requestHandlers = new ConcurrentHashMap<>();
+  private final ExpiryIndex<String> requestExpiry = new ExpiryIndex<>();
+  private final ConcurrentHashMap<String, CallPermit> callPermits = new ConcurrentHashMap<>();
   private final ExecutorService executor;
+  private final StripedExecutor responseExecutor;
+  private final ScheduledExecutorService probeScheduler;
 
-  private final AtomicReference<MessageProducer> producer = new AtomicReference<>();
-  private final AtomicReference<ResponseQueueState> currentResponseQueue = new AtomicReference<>();
+  private final AtomicReference<SessionPool> sessionPool = new AtomicReference<>();
+  private final AtomicReferenceArray<ResponseQueueState> responseQueues;
   private final Set<ResponseQueueState> invalidatedResponseQueues = Collections.newSetFromMap(new ConcurrentHashMap<>());
   private final AtomicBoolean cleanupRunning = new AtomicBoolean();
+  private final PendingBatch[] pendingBatches;
+  private final ScheduledExecutorService batchScheduler;
   private final MessageSerializer serializer;
 
   private final ClientMetrics metrics = new ClientMetrics();
@@ -101,7 +172,11 @@ public class JMSRequestSink extends AbstractJMSRequestBase implements RequestSin
   private JMSRequestSink(String contextFactoryName, String contextURL, String connectionFactoryName,
                          String username, String password, Map<String, String> connectionProperties,
                          String destinationName,
-                         int priority, int maxMessageSize, ProtocolVersion protocolVersion, MessageSerializer serializer) {
+                         int priority, int maxMessageSize, ProtocolVersion protocolVersion, MessageSerializer serializer,
+                         int responseWindowSize, long batchLingerTime, int maxBatchSize,
+                         ConcurrencyLimiter concurrencyLimiter, CircuitBreaker circuitBreaker, int sessionPoolSize,
+                         int responseQueueCount, int responseHandlerThreads, long probeInterval, long probeTimeout,
+                         int compressionThreshold) {
     super(contextFactoryName, contextURL, connectionFactoryName, username, password, connectionProperties, destinationName,
             priority, maxMessageSize);
     //do not use custom serializer unless version V3 is enabled
@@ -110,6 +185,46 @@ public class JMSRequestSink extends AbstractJMSRequestBase implements RequestSin
     if (serializer == null || !protocolVersion.atLeast(ProtocolVersion.V3))
       serializer = new DefaultJavaMessageSerializer();
     this.serializer = serializer;
+    if (responseWindowSize < 0) throw new IllegalArgumentException("responseWindowSize cannot be negative");
+    this.responseWindowSize = responseWindowSize;
+    if (batchLingerTime < 0) throw new IllegalArgumentException("batchLingerTime cannot be negative");
+    if (maxBatchSize < 0) throw new IllegalArgumentException("maxBatchSize cannot be negative");
+    this.batchLingerTime = batchLingerTime;
+    this.maxBatchSize = maxBatchSize;
+    this.concurrencyLimiter = concurrencyLimiter;
+    this.circuitBreaker = circuitBreaker;
+    if (sessionPoolSize < 1) throw new IllegalArgumentException("sessionPoolSize cannot be lower than 1");
+    this.sessionPoolSize = sessionPoolSize;
+    if (responseQueueCount < 1) throw new IllegalArgumentException("responseQueueCount cannot be lower than 1");
+    this.responseQueueCount = responseQueueCount;
+    this.responseQueues = new AtomicReferenceArray<>(responseQueueCount);
+    this.pendingBatches = new PendingBatch[responseQueueCount];
+    for (int i = 0; i < responseQueueCount; i++) {
+      pendingBatches[i] = new PendingBatch();
+    }
+    metrics.setConcurrencyLimiter(concurrencyLimiter);
+    metrics.setCircuitBreaker(circuitBreaker);
+    metrics.setSessionPool(sessionPool::get);
+    if (responseHandlerThreads < 0) throw new IllegalArgumentException("responseHandlerThreads cannot be negative");
+    this.responseExecutor = responseHandlerThreads > 0
+            ? new StripedExecutor(responseHandlerThreads, new ThreadFactoryBuilder().setNamePrefix("JMSRequestSinkResponse").build())
+            : null;
+    metrics.setResponseExecutor(responseExecutor);
+    if (probeInterval < 0) throw new IllegalArgumentException("probeInterval cannot be negative");
+    if (probeTimeout < 1) throw new IllegalArgumentException("probeTimeout cannot be lower than 1");
+    this.probeInterval = probeInterval;
+    this.probeTimeout = probeTimeout;
+    this.probeScheduler = probeInterval > 0
+            ? Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder().setNamePrefix("JMSRequestSinkProbe").build())
+            : null;
+    if (compressionThreshold < 0) throw new IllegalArgumentException("compressionThreshold cannot be negative");
+    //only compress requests if the server supports it
+    this.compressor = new MessageCompressor(protocolVersion.atLeast(ProtocolVersion.V7) ? compressionThreshold : 0);
+    metrics.setCompressor(compressor);
+    //only batch requests if the server supports it
+    this.batchScheduler = isBatching()
+            ? Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder().setNamePrefix("JMSRequestSinkBatch").build())
+            : null;
   }
 
   // **************** interface methods **************************
@@ -132,6 +247,10 @@ public class JMSRequestSink extends AbstractJMSRequestBase implements RequestSin
         metrics.incompatibleMessage();
         return;
       }
+      if (MESSAGE_TYPE_RESPONSE_QUEUE_PROBE.equals(message.getStringProperty(PROPERTY_MESSAGE_TYPE))) {
+        handleProbe(message.getJMSCorrelationID());
+        return;
+      }
       ClientRequestContext handler = requestHandlers.get(message.getJMSCorrelationID());
       if (handler == null) {
         //do not notify/count close message as missing handler, as single-value replies often lead to client-initiated stream close
@@ -147,7 +266,12 @@ public class JMSRequestSink extends AbstractJMSRequestBase implements RequestSin
                 message.getStringProperty(PROPERTY_MESSAGE_TYPE));
         return;
       }
-      handler.handleResponse(message);
+      //channel setup uploads the request using the session of the consumer, so it must be handled in the consumer thread
+      if (responseExecutor == null || MESSAGE_TYPE_CHANNEL_SETUP.equals(message.getStringProperty(PROPERTY_MESSAGE_TYPE))) {
+        handler.handleResponse(message);
+      } else {
+        responseExecutor.execute(message.getJMSCorrelationID(), () -> handleResponse(handler, message));
+      }
     } catch (Exception e) {
       metrics.error();
       LOGGER.error(e, "Error receiving message");
@@ -163,6 +287,8 @@ public class JMSRequestSink extends AbstractJMSRequestBase implements RequestSin
     }
     //if no context given by user, create a null context
     RequestContext ctx = ifNull(signalContext, NullRequestContext::new);
+    //fail fast if the circuit is open or too many calls are outstanding
+    acquirePermit(msg, maxWait);
     //do signal
     checkForFragmentationAndSignal(msg, ctx, maxWait);
     //schedule clean state on every request
@@ -172,19 +298,25 @@ public class JMSRequestSink extends AbstractJMSRequestBase implements RequestSin
 
   @Override
   public void onException(JMSException e) {
-    //replace response queue on received exception
-    replaceResponseQueue();
+    //replace response queues on received exception
+    replaceResponseQueues();
   }
 
   @Override
   public void startComponent() {
     try {
-      //prepare producer
-      getOrCreateProducer();
-      //initialize response queue
-      replaceResponseQueue();
+      //prepare session pool
+      getOrCreateSessionPool();
+      //initialize response queues
+      replaceResponseQueues();
+      if (probeScheduler != null) {
+        probeScheduler.scheduleWithFixedDelay(this::probeResponseQueues, probeInterval, probeInterval, TimeUnit.MILLISECONDS);
+      }
     } catch (Exception e) {
       executor.shutdown();
+      ifNotNullDo(probeScheduler, ExecutorService::shutdown);
+      ifNotNullDo(batchScheduler, ExecutorService::shutdown);
+      ifNotNullDo(responseExecutor, StripedExecutor::shutdown);
       throw new IllegalStateException("Error setting up connection", e);
     }
   }
@@ -193,6 +325,14 @@ public class JMSRequestSink extends AbstractJMSRequestBase implements RequestSin
   public void stopComponent() {
     //stop accepting requests
     closed.set(true);
+    ifNotNullDo(probeScheduler, ExecutorService::shutdown);
+    //send any pending batch, and stop batching
+    if (batchScheduler != null) {
+      for (PendingBatch batch : pendingBatches) {
+        flushBatch(batch);
+      }
+      batchScheduler.shutdown();
+    }
     //shutdown executor and wait for it to finish current requests
     executor.shutdown();
     LambdaUtils.tryTo(
@@ -201,21 +341,115 @@ public class JMSRequestSink extends AbstractJMSRequestBase implements RequestSin
     );
     //close all resources
     closeAllResources();
+    //no more responses are received, so stop handling responses
+    if (responseExecutor != null) {
+      responseExecutor.shutdown();
+      LambdaUtils.tryTo(
+              () -> responseExecutor.awaitTermination(10, TimeUnit.SECONDS),
+              e -> LOGGER.warning(e, "Error waiting for response executor termination")
+      );
+    }
   }
 
   // ****************** private methods ************************
 
-  private MessageProducer getOrCreateProducer() {
-    return producer.updateAndGet(prod -> {
-      if (prod != null) return prod;
+  /**
+   * Check the probe sent to each response queue, replacing response queues where the probe has not arrived
+   * within the probe timeout, and send a new probe to each response queue without an outstanding probe
+   */
+  private void probeResponseQueues() {
+    for (int i = 0; i < responseQueueCount; i++) {
+      ResponseQueueState state = responseQueues.get(i);
+      if (state == null) continue;
       try {
-        prod = getSession().createProducer(getDestination());
-        prod.setDeliveryMode(DeliveryMode.NON_PERSISTENT);
-        return prod;
-      } catch (JMSException | NamingException e) {
-        throw new IllegalStateException("Error setting up producer", e);
+        long probeSent = state.probeSent;
+        if (probeSent != 0 && System.nanoTime() - probeSent > TimeUnit.MILLISECONDS.toNanos(probeTimeout)) {
+          LOGGER.warning("Probe not received on response queue %s within %dms", state.getResponseQueue(), probeTimeout);
+          metrics.responseQueueProbeFailed();
+          //do not replace a response queue which was replaced since the probe was sent
+          if (responseQueues.get(i) == state) replaceResponseQueue(i);
+        } else if (probeSent == 0) {
+          sendProbe(state);
+        }
+      } catch (Exception e) {
+        metrics.error();
+        LOGGER.warning(e, "Error probing response queue %s", state.getResponseQueue());
       }
-    });
+    }
+  }
+
+  private void sendProbe(ResponseQueueState state) throws JMSException, NamingException {
+    String probeID = UUID.randomUUID().toString();
+    try (SessionPool.Lease lease = leaseSession(probeTimeout)) {
+      //message text has no meaning
+      javax.jms.Message m = createTextMessage(lease.getSession(), "response queue probe", protocolVersion);
+      m.setJMSCorrelationID(probeID);
+      m.setStringProperty(PROPERTY_MESSAGE_TYPE, MESSAGE_TYPE_RESPONSE_QUEUE_PROBE);
+      state.probeID = probeID;
+      state.probeSent = System.nanoTime();
+      lease.getProducer().send(state.getResponseQueue(), m, DeliveryMode.NON_PERSISTENT, MAX_JMS_PRIORITY, probeTimeout);
+    }
+  }
+
+  private void handleProbe(String probeID) {
+    for (int i = 0; i < responseQueueCount; i++) {
+      ResponseQueueState state = responseQueues.get(i);
+      if (state != null && probeID.equals(state.probeID)) {
+        metrics.responseQueueProbe(System.nanoTime() - state.probeSent);
+        state.probeSent = 0;
+        return;
+      }
+    }
+    //probe to a response queue which has been replaced
+    LOGGER.debug("Ignoring probe %s", probeID);
+  }
+
+  private void handleResponse(ClientRequestContext handler, javax.jms.Message message) {
+    try {
+      handler.handleResponse(message);
+    } catch (Exception e) {
+      metrics.error();
+      LOGGER.error(e, "Error handling message");
+    }
+  }
+
+  SessionPool getOrCreateSessionPool() {
+    //the pool creates sessions on demand, so creating a pool which is not used is cheap
+    return sessionPool.updateAndGet(pool -> ifNull(pool, () -> new SessionPool(sessionPoolSize, this::createSession)));
+  }
+
+  /**
+   * Lease a session for sending a message
+   *
+   * @param maxWait max millis to wait for a session, if all sessions are leased
+   * @return the leased session
+   * @throws MessagingException if no session was available within maxWait
+   */
+  private SessionPool.Lease leaseSession(long maxWait) throws JMSException, NamingException {
+    long start = System.nanoTime();
+    long deadline = System.currentTimeMillis() + maxWait;
+    try {
+      SessionPool.Lease lease = null;
+      while (lease == null && System.currentTimeMillis() < deadline) {
+        SessionPool pool = getOrCreateSessionPool();
+        try {
+          lease = pool.lease(Math.max(0, deadline - System.currentTimeMillis()));
+        } catch (IllegalStateException e) {
+          //the pool was closed by a concurrent reset, which is not a new failure, so retry on the replacement pool
+          if (!pool.isClosed()) throw e;
+          sessionPool.compareAndSet(pool, null);
+        }
+      }
+      if (lease == null) {
+        metrics.sessionLeaseTimeout();
+        throw new MessagingException("Timed out waiting for an idle session");
+      }
+      metrics.sessionLeased(System.nanoTime() - start);
+      return lease;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new MessagingException(e);
+    }
   }
 
   private void scheduleStateCleanup() {
@@ -229,17 +463,25 @@ public class JMSRequestSink extends AbstractJMSRequestBase implements RequestSin
     }
   }
 
-  private ResponseQueueState replaceResponseQueue() {
+  private void replaceResponseQueues() {
+    for (int i = 0; i < responseQueueCount; i++) {
+      replaceResponseQueue(i);
+    }
+  }
+
+  private ResponseQueueState replaceResponseQueue(int index) {
+    Session queueSession = null;
     try {
-      //create new temporary queue and set a message consumer on it
-      TemporaryQueue queue = getSession().createTemporaryQueue();
-      MessageConsumer consumer = getSession().createConsumer(queue);
+      //create new temporary queue and set a message consumer on it, using a separate session to receive in a separate thread
+      queueSession = createSession();
+      TemporaryQueue queue = queueSession.createTemporaryQueue();
+      MessageConsumer consumer = queueSession.createConsumer(queue);
       consumer.setMessageListener(this);
-      ResponseQueueState newState = new ResponseQueueState(queue, consumer);
+      ResponseQueueState newState = new ResponseQueueState(queueSession, queue, consumer);
       LOGGER.info("Created new response queue %s", newState.getResponseQueue());
 
       //add to list of response queues and set as current active responsequeue
-      ResponseQueueState oldState = currentResponseQueue.getAndUpdate(s -> newState);
+      ResponseQueueState oldState = responseQueues.getAndSet(index, newState);
 
       //mark old responsequeue as invalidated (if set)
       ifNotNullDo(oldState, s -> {
@@ -250,6 +492,7 @@ public class JMSRequestSink extends AbstractJMSRequestBase implements RequestSin
 
       return newState;
     } catch (JMSException | NamingException e) {
+      ifNotNullDo(queueSession, s -> LambdaUtils.tryTo(s::close));
       //if exception is caught when setting up new response queue, we are probably truly disconnected, so close ALL resources and let next request reconnect
       closeAllResources();
       throw new IllegalStateException(e);
@@ -257,21 +500,41 @@ public class JMSRequestSink extends AbstractJMSRequestBase implements RequestSin
   }
 
   private void cleanState() {
+    long start = System.nanoTime();
+    int cleaned = 0;
     try {
-      //cleanup pending calls
-      for (ClientRequestContext handler : list(requestHandlers.values())) {
+      long now = System.currentTimeMillis();
+      //cleanup pending calls which have passed their deadline
+      for (String callID : requestExpiry.pollExpired(now)) {
+        ClientRequestContext handler = requestHandlers.get(callID);
+        if (handler == null) continue;
         if (handler.isClosed()) {
           cleanupRequest(handler);
+          cleaned++;
+        } else {
+          //request is still open, probably extended by keepalive, so check again later
+          requestExpiry.add(callID, Math.max(handler.getDeadline(), now + EXPIRY_RECHECK_INTERVAL));
+        }
+      }
+      //check a bounded number of pending calls for requests closed before their deadline
+      for (String callID : requestExpiry.sweep(CLEANUP_SWEEP_SIZE)) {
+        ClientRequestContext handler = requestHandlers.get(callID);
+        if (handler != null && handler.isClosed()) {
+          cleanupRequest(handler);
+          cleaned++;
         }
       }
       //cleanup old responsequeues
-      for (ResponseQueueState s : list(invalidatedResponseQueues)) {
-        if (s.isIdle()) {
-          s.close();
-          invalidatedResponseQueues.remove(s);
+      if (!invalidatedResponseQueues.isEmpty()) {
+        for (ResponseQueueState s : list(invalidatedResponseQueues)) {
+          if (s.isIdle()) {
+            s.close();
+            invalidatedResponseQueues.remove(s);
+          }
         }
       }
     } finally {
+      metrics.cleanup(System.nanoTime() - start, cleaned, requestHandlers.size());
       cleanupRunning.set(false);
     }
   }
@@ -285,13 +548,52 @@ public class JMSRequestSink extends AbstractJMSRequestBase implements RequestSin
     }
     //close the specified request
     requestHandlers.remove(handler.getCallID());
+    requestExpiry.remove(handler.getCallID());
+    ifNotNullDo(callPermits.remove(handler.getCallID()), p -> p.completed(handler));
     handler.cleanup();
   }
 
+  private void acquirePermit(Message msg, long maxWait) {
+    if (concurrencyLimiter == null && circuitBreaker == null) return;
+    if (circuitBreaker != null && !circuitBreaker.allowRequest()) {
+      metrics.circuitRejected();
+      throw new RequestRejectedException("Circuit breaker is open, rejecting request " + msg.getCallID());
+    }
+    ConcurrencyLimiter.Token token = null;
+    if (concurrencyLimiter != null) {
+      token = concurrencyLimiter.tryAcquire();
+      if (token == null) {
+        //let the circuit breaker probe with another request
+        ifNotNullDo(circuitBreaker, CircuitBreaker::onIgnored);
+        metrics.concurrencyLimited();
+        throw new RequestRejectedException("Too many outstanding calls, rejecting request " + msg.getCallID());
+      }
+    }
+    callPermits.put(msg.getCallID(), new CallPermit(token, System.currentTimeMillis() + maxWait));
+  }
+
+  private void failPermit(String callID) {
+    ifNotNullDo(callPermits.remove(callID), CallPermit::failed);
+  }
+
   private void checkForFragmentationAndSignal(Message msg, RequestContext ctx, long maxWait) {
+    //registration of this request, to undo if sending fails
+    ClientRequestContext handler = null;
+    ResponseQueueState currentResponseQueue = null;
+    RequestContext listenerContext = null;
+    RequestListener listener = null;
     try {
       byte[] messageBytes = serializer.serialize(msg);
+      //compress before checking for fragmentation, so a compressed request may avoid fragmentation
+      int uncompressedSize = 0;
+      byte[] compressedBytes = compressor.compress(messageBytes);
+      if (compressedBytes != null) {
+        uncompressedSize = messageBytes.length;
+        messageBytes = compressedBytes;
+      }
       String messageType = JMSRequestProxy.MESSAGE_TYPE_SIGNAL;
+      //only request flow control if the server supports it, and the client context tells when responses are consumed
+      int responseWindow = protocolVersion.atLeast(ProtocolVersion.V4) && ctx.notifiesResponsesConsumed() ? responseWindowSize : 0;
       //check if we need to fragment this request message
       if (messageBytes.length > getMaxMessageSize()) {
         //if needing to fragment, replace signal context with a wrapper client upload context and send a channel request
@@ -301,63 +603,241 @@ public class JMSRequestSink extends AbstractJMSRequestBase implements RequestSin
         metrics.fragmentedUploadRequested();
       }
       //select response queue to use for this request
-      ResponseQueueState currentResponseQueue = getCurrentResponseQueueState();
-      //setup handler for this request
-      ClientRequestContext handler = new ClientRequestContext(
-              msg.getCallID(), getSession(), metrics,
+      int responseQueueIndex = responseQueueIndex(msg.getCallID());
+      ResponseQueueState responseQueue = getCurrentResponseQueueState(responseQueueIndex);
+      currentResponseQueue = responseQueue;
+      //setup handler for this request, using the session of the response queue, as the handler uses the session in the consumer thread
+      ClientRequestContext requestHandler = new ClientRequestContext(
+              msg.getCallID(), responseQueue.getSession(), metrics,
               Thread.currentThread().getContextClassLoader(), ctx,
-              () -> currentResponseQueue.endCall(msg.getCallID()), serializer);
+              () -> responseQueue.endCall(msg.getCallID()), serializer,
+              responseWindow, this::sendResponseCredits, compressor);
+      handler = requestHandler;
 
       //register handler
-      requestHandlers.put(msg.getCallID(), handler);
+      requestHandler.extendDeadline(System.currentTimeMillis() + maxWait);
+      requestHandlers.put(msg.getCallID(), requestHandler);
+      requestExpiry.add(msg.getCallID(), requestHandler.getDeadline());
       //register call in current response queue
-      currentResponseQueue.addCall(msg.getCallID());
+      responseQueue.addCall(msg.getCallID());
       //register for client-side notifications
-      ctx.addListener(new RequestListener() {
+      listener = new RequestListener() {
         @Override
         public void close(String callID) {
-          cleanupRequest(handler);
+          cleanupRequest(requestHandler);
         }
 
         @Override
         public void timeout() {
-          replaceResponseQueue();
+          replaceResponseQueue(responseQueueIndex);
         }
-      });
-      //send signal message
-      sendMessage(messageBytes, msg.getCallID(), messageType, maxWait, getCurrentResponseQueue());
+
+        @Override
+        public void responsesConsumed(String callID, int count) {
+          requestHandler.responsesConsumed(count);
+        }
+      };
+      listenerContext = ctx;
+      ctx.addListener(listener);
+      //send signal message, batching small signals if enabled
+      //only batch signals of standard priority, as a batch is sent with a single JMS priority
+      //a compressed signal is not small, so it is sent by itself
+      if (isBatching() && JMSRequestProxy.MESSAGE_TYPE_SIGNAL.equals(messageType) && jmsPriority(msg) == getPriority() && uncompressedSize == 0) {
+        addToBatch(new PendingSignal(new SignalBatch.Entry(msg.getCallID(), System.currentTimeMillis() + maxWait, responseWindow, messageBytes), ctx),
+                pendingBatches[responseQueueIndex], currentResponseQueue.getResponseQueue());
+      } else {
+        //for a channel request, the compression properties describe the uploaded request
+        sendMessage(messageBytes, uncompressedSize, msg.getCallID(), messageType, maxWait, currentResponseQueue.getResponseQueue(), responseWindow, jmsPriority(msg));
+      }
       metrics.request();
-    } catch (IOException | JMSException | NamingException e) {
+    } catch (IOException e) {
       LOGGER.warning(e, "Error in checkForFragmentationAndSignal");
+      failPermit(msg.getCallID());
+      unregisterRequest(msg.getCallID(), handler, currentResponseQueue, listenerContext, listener);
       throw new IllegalStateException(e);
+    } catch (RuntimeException e) {
+      failPermit(msg.getCallID());
+      unregisterRequest(msg.getCallID(), handler, currentResponseQueue, listenerContext, listener);
+      throw e;
     }
   }
 
-  private Destination getCurrentResponseQueue() {
-    return getCurrentResponseQueueState().getResponseQueue();
+  /**
+   * Undo the registration of a request which could not be sent, so the client context may be signalled elsewhere
+   */
+  private void unregisterRequest(String callID, ClientRequestContext handler, ResponseQueueState responseQueue,
+                                 RequestContext listenerContext, RequestListener listener) {
+    if (handler != null) requestHandlers.remove(callID, handler);
+    requestExpiry.remove(callID);
+    if (responseQueue != null) responseQueue.endCall(callID);
+    if (listener != null) listenerContext.removeListener(listener);
+  }
+
+  private int responseQueueIndex(String callID) {
+    return Math.floorMod(callID.hashCode(), responseQueueCount);
   }
 
-  private ResponseQueueState getCurrentResponseQueueState() {
-    return ifNull(currentResponseQueue.get(), this::replaceResponseQueue);
+  private ResponseQueueState getCurrentResponseQueueState(int index) {
+    return ifNull(responseQueues.get(index), () -> replaceResponseQueue(index));
   }
 
-  private void sendMessage(byte[] messageBytes, String callID, String messageType, long lifeTime, Destination replyTo) {
+  /**
+   * Map the priority of the message to a JMS priority, where standard priority is the configured priority of this sink
+   */
+  private int jmsPriority(Message msg) {
+    Message.Priority priority = msg.getPriority();
+    if (priority == Message.Priority.BULK) return MIN_JMS_PRIORITY;
+    if (priority == Message.Priority.EXPEDITE) return MAX_JMS_PRIORITY;
+    return getPriority();
+  }
+
+  private void sendMessage(byte[] messageBytes, int uncompressedSize, String callID, String messageType, long lifeTime, Destination replyTo, int responseWindow, int priority) {
+    SessionPool.Lease lease = null;
     try {
-      javax.jms.Message m = createByteMessage(getSession(), messageBytes, protocolVersion, serializer.serializerID());
+      lease = leaseSession(lifeTime);
+      javax.jms.Message m = createByteMessage(lease.getSession(), messageBytes, protocolVersion, serializer.serializerID());
       long timeout = System.currentTimeMillis() + lifeTime;
       m.setJMSReplyTo(replyTo);
       m.setJMSCorrelationID(callID);
       m.setStringProperty(PROPERTY_MESSAGE_TYPE, messageType);
       m.setLongProperty(JMSRequestProxy.PROPERTY_REQ_TIMEOUT, timeout);
-      getOrCreateProducer().send(m, DeliveryMode.NON_PERSISTENT, getPriority(), lifeTime);
+      if (responseWindow > 0) {
+        m.setIntProperty(PROPERTY_RESPONSE_WINDOW, responseWindow);
+      }
+      MessageCompressor.setCompressionProperties(m, uncompressedSize);
+      stampSendTime(m);
+      lease.getProducer().send(getDestination(), m, DeliveryMode.NON_PERSISTENT, priority, lifeTime);
       if (LOGGER.isDebug()) {
         LOGGER.debug(">> sendMessage [destination=%s callID=%s messageType=%s replyTo=%s timeout=%s]", getDestination(), callID, messageType, replyTo, new Date(timeout));
       }
+    } catch (MessagingException e) {
+      //no idle session, but not disconnected
+      LOGGER.warning(e, "Error in sendMessage");
+      throw e;
     } catch (Exception e) {
       LOGGER.warning(e, "Error in sendMessage");
+      ifNotNullDo(lease, SessionPool.Lease::invalidate);
+      //if exception is caught when preparing/sending message, we are truly disconnected, so close ALL resources and let next request reconnect
+      closeAllResources();
+      throw new MessagingException(e);
+    } finally {
+      ifNotNullDo(lease, SessionPool.Lease::close);
+    }
+  }
+
+  private void stampSendTime(javax.jms.Message m) throws JMSException {
+    if (protocolVersion.atLeast(ProtocolVersion.V6)) {
+      m.setLongProperty(PROPERTY_CLIENT_SEND_TIME, System.currentTimeMillis());
+    }
+  }
+
+  private boolean isBatching() {
+    return protocolVersion.atLeast(ProtocolVersion.V5) && maxBatchSize > 1 && batchLingerTime > 0;
+  }
+
+  private void addToBatch(PendingSignal signal, PendingBatch pendingBatch, Destination replyTo) {
+    List<PendingSignal> fullBatch = null;
+    synchronized (pendingBatch) {
+      //all signals in a batch share reply destination, so send the current batch if the response queue has changed
+      if (!pendingBatch.signals.isEmpty() && !Objects.equals(pendingBatch.replyTo, replyTo)) {
+        List<PendingSignal> batch = pendingBatch.take();
+        Destination batchReplyTo = pendingBatch.replyTo;
+        batchScheduler.submit(() -> sendBatchOrNotify(batch, batchReplyTo));
+      }
+      pendingBatch.replyTo = replyTo;
+      pendingBatch.signals.add(signal);
+      if (pendingBatch.signals.size() == 1) {
+        batchScheduler.schedule(() -> flushBatch(pendingBatch), batchLingerTime, TimeUnit.MILLISECONDS);
+      }
+      if (pendingBatch.signals.size() >= maxBatchSize) {
+        fullBatch = pendingBatch.take();
+      }
+    }
+    //send full batch in the calling thread
+    if (fullBatch != null) sendBatchOrNotify(fullBatch, replyTo);
+  }
+
+  private void flushBatch(PendingBatch pendingBatch) {
+    List<PendingSignal> batch;
+    Destination replyTo;
+    synchronized (pendingBatch) {
+      if (pendingBatch.signals.isEmpty()) return;
+      batch = pendingBatch.take();
+      replyTo = pendingBatch.replyTo;
+    }
+    sendBatchOrNotify(batch, replyTo);
+  }
+
+  private void sendBatchOrNotify(List<PendingSignal> batch, Destination replyTo) {
+    try {
+      sendBatch(batch, replyTo);
+    } catch (Exception e) {
+      //the batch may contain requests from other threads, so notify each request instead of throwing
+      metrics.error();
+      batch.forEach(s -> failPermit(s.entry.getCallID()));
+      batch.forEach(s -> LambdaUtils.tryTo(() -> s.context.notifyError(e)));
+    }
+  }
+
+  private void sendBatch(List<PendingSignal> batch, Destination replyTo) {
+    //a single signal is sent as a plain signal message
+    if (batch.size() == 1) {
+      SignalBatch.Entry entry = batch.get(0).entry;
+      sendMessage(entry.getData(), 0, entry.getCallID(), JMSRequestProxy.MESSAGE_TYPE_SIGNAL,
+              Math.max(1, entry.getTimeout() - System.currentTimeMillis()), replyTo, entry.getResponseWindow(), getPriority());
+      return;
+    }
+    SessionPool.Lease lease = null;
+    try {
+      List<SignalBatch.Entry> entries = list(batch, s -> s.entry);
+      long timeout = entries.stream().mapToLong(SignalBatch.Entry::getTimeout).max().orElse(0);
+      long lifeTime = Math.max(1, timeout - System.currentTimeMillis());
+      lease = leaseSession(lifeTime);
+      byte[] batchBytes = SignalBatch.encode(entries);
+      byte[] compressedBytes = compressor.compress(batchBytes);
+      javax.jms.Message m = createByteMessage(lease.getSession(), compressedBytes != null ? compressedBytes : batchBytes, protocolVersion, serializer.serializerID());
+      if (compressedBytes != null) MessageCompressor.setCompressionProperties(m, batchBytes.length);
+      m.setJMSReplyTo(replyTo);
+      m.setStringProperty(PROPERTY_MESSAGE_TYPE, MESSAGE_TYPE_SIGNAL_BATCH);
+      m.setLongProperty(JMSRequestProxy.PROPERTY_REQ_TIMEOUT, timeout);
+      stampSendTime(m);
+      lease.getProducer().send(getDestination(), m, DeliveryMode.NON_PERSISTENT, getPriority(), lifeTime);
+      metrics.signalBatch(entries.size());
+      if (LOGGER.isDebug()) {
+        LOGGER.debug(">> sendBatch [destination=%s size=%d replyTo=%s timeout=%s]", getDestination(), entries.size(), replyTo, new Date(timeout));
+      }
+    } catch (MessagingException e) {
+      //no idle session, but not disconnected
+      LOGGER.warning(e, "Error in sendBatch");
+      throw e;
+    } catch (Exception e) {
+      LOGGER.warning(e, "Error in sendBatch");
+      ifNotNullDo(lease, SessionPool.Lease::invalidate);
       //if exception is caught when preparing/sending message, we are truly disconnected, so close ALL resources and let next request reconnect
       closeAllResources();
       throw new MessagingException(e);
+    } finally {
+      ifNotNullDo(lease, SessionPool.Lease::close);
+    }
+  }
+
+  private void sendResponseCredits(String callID, Destination destination, int credits) {
+    SessionPool.Lease lease = null;
+    try {
+      lease = leaseSession(CREDIT_LEASE_TIMEOUT);
+      //message text has no meaning
+      javax.jms.Message m = createTextMessage(lease.getSession(), "response credits", protocolVersion);
+      m.setJMSCorrelationID(callID);
+      m.setStringProperty(PROPERTY_MESSAGE_TYPE, MESSAGE_TYPE_RESPONSE_CREDIT);
+      m.setIntProperty(PROPERTY_RESPONSE_CREDITS, credits);
+      lease.getProducer().send(destination, m, DeliveryMode.NON_PERSISTENT, getPriority(), javax.jms.Message.DEFAULT_TIME_TO_LIVE);
+    } catch (Exception e) {
+      //server will refuse further responses when the request times out
+      metrics.error();
+      ifNotNullDo(lease, SessionPool.Lease::invalidate);
+      LOGGER.warning(e, "Error sending response credits [callID=%s]", callID);
+    } finally {
+      ifNotNullDo(lease, SessionPool.Lease::close);
     }
   }
 
@@ -366,8 +846,10 @@ public class JMSRequestSink extends AbstractJMSRequestBase implements RequestSin
     metrics.disconnected();
     try {
       // try to nicely shut down all resources
-      executeAndReset(currentResponseQueue, ResponseQueueState::close, "Error closing response queue");
-      executeAndReset(producer, MessageProducer::close, "Error closing producer");
+      for (int i = 0; i < responseQueueCount; i++) {
+        ifNotNullDo(responseQueues.getAndSet(i, null), ResponseQueueState::close);
+      }
+      executeAndReset(sessionPool, SessionPool::close, "Error closing session pool");
       executeAndReset(session, Session::close, "Error closing session");
       executeAndReset(connection, Connection::close, "Error closing connection");
       invalidatedResponseQueues.forEach(ResponseQueueState::close);
@@ -377,22 +859,33 @@ public class JMSRequestSink extends AbstractJMSRequestBase implements RequestSin
   }
 
   private synchronized void resetState() {
-    currentResponseQueue.set(null);
-    producer.set(null);
+    for (int i = 0; i < responseQueueCount; i++) {
+      responseQueues.set(i, null);
+    }
+    sessionPool.set(null);
     session.set(null);
     destination.set(null);
   }
 
   private static class ResponseQueueState {
+    private final Session session;
     private final TemporaryQueue responseQueue;
     private final MessageConsumer responseConsumer;
     private final Set<String> activeCalls = Collections.newSetFromMap(new ConcurrentHashMap<>());
+    //outstanding probe, with the time it was sent, or 0 if no probe is outstanding
+    private volatile String probeID;
+    private volatile long probeSent;
 
-    private ResponseQueueState(TemporaryQueue responseQueue, MessageConsumer responseConsumer) {
+    private ResponseQueueState(Session session, TemporaryQueue responseQueue, MessageConsumer responseConsumer) {
+      this.session = session;
       this.responseQueue = responseQueue;
       this.responseConsumer = responseConsumer;
     }
 
+    Session getSession() {
+      return session;
+    }
+
     TemporaryQueue getResponseQueue() {
       return responseQueue;
     }
@@ -412,6 +905,65 @@ public class JMSRequestSink extends AbstractJMSRequestBase implements RequestSin
     void close() {
       closeConsumer(responseConsumer);
       deleteTemporaryQueue(responseQueue);
+      LambdaUtils.tryTo(session::close, e -> LOGGER.warning(e, "Error closing response queue session"));
+    }
+  }
+
+  /**
+   * Signals collected for the next batch to a response queue
+   */
+  private static class PendingBatch {
+    private final List<PendingSignal> signals = new ArrayList<>();
+    private Destination replyTo;
+
+    private List<PendingSignal> take() {
+      List<PendingSignal> batch = new ArrayList<>(signals);
+      signals.clear();
+      return batch;
+    }
+  }
+
+  private static class PendingSignal {
+    private final SignalBatch.Entry entry;
+    private final RequestContext context;
+
+    private PendingSignal(SignalBatch.Entry entry, RequestContext context) {
+      this.entry = entry;
+      this.context = context;
+    }
+  }
+
+  /**
+   * Permit for an outstanding call, reporting the outcome of the call to the limiter and the circuit breaker
+   */
+  private class CallPermit {
+    private final ConcurrencyLimiter.Token token;
+    private final long deadline;
+
+    private CallPermit(ConcurrencyLimiter.Token token, long deadline) {
+      this.token = token;
+      this.deadline = deadline;
+    }
+
+    private void completed(ClientRequestContext handler) {
+      long latency = handler.getFirstResponseLatency();
+      if (latency >= 0) {
+        ifNotNullDo(token, t -> t.success(latency));
+        ifNotNullDo(circuitBreaker, CircuitBreaker::onSuccess);
+      } else if (System.currentTimeMillis() + TIMEOUT_TOLERANCE >= Math.max(deadline, handler.getDeadline())) {
+        //no response from the server before the deadline
+        ifNotNullDo(token, ConcurrencyLimiter.Token::dropped);
+        ifNotNullDo(circuitBreaker, CircuitBreaker::onFailure);
+      } else {
+        //closed by the client before any response
+        ifNotNullDo(token, ConcurrencyLimiter.Token::ignored);
+        ifNotNullDo(circuitBreaker, CircuitBreaker::onIgnored);
+      }
+    }
+
+    private void failed() {
+      ifNotNullDo(token, ConcurrencyLimiter.Token::ignored);
+      ifNotNullDo(circuitBreaker, CircuitBreaker::onFailure);
     }
   }
 
@@ -464,6 +1016,17 @@ public class JMSRequestSink extends AbstractJMSRequestBase implements RequestSin
     //fields
     private ProtocolVersion protocolVersion = ProtocolVersion.V1;
     private MessageSerializer serializer = new DefaultJavaMessageSerializer();
+    private int responseWindowSize;
+    private long batchLingerTime;
+    private int maxBatchSize;
+    private ConcurrencyLimiter concurrencyLimiter;
+    private CircuitBreaker circuitBreaker;
+    private int sessionPoolSize = DEFAULT_SESSION_POOL_SIZE;
+    private int responseQueueCount = DEFAULT_RESPONSE_QUEUES;
+    private int responseHandlerThreads;
+    private long probeInterval;
+    private long probeTimeout = DEFAULT_PROBE_TIMEOUT;
+    private int compressionThreshold;
 
     private Builder() {
     }
@@ -471,7 +1034,9 @@ public class JMSRequestSink extends AbstractJMSRequestBase implements RequestSin
     public JMSRequestSink build() {
       return new JMSRequestSink(contextFactoryName, contextURL, connectionFactoryName,
               username, password, connectionProperties, destinationName,
-              priority, maxMessageSize, protocolVersion, serializer);
+              priority, maxMessageSize, protocolVersion, serializer, responseWindowSize, batchLingerTime, maxBatchSize,
+              concurrencyLimiter, circuitBreaker, sessionPoolSize, responseQueueCount, responseHandlerThreads,
+              probeInterval, probeTimeout, compressionThreshold);
     }
 
     //setters
@@ -485,6 +1050,126 @@ public class JMSRequestSink extends AbstractJMSRequestBase implements RequestSin
       this.serializer = serializer;
       return this;
     }
+
+    /**
+     * Limit the number of unconsumed responses the server may send for each request.
+     * Requires protocol version V4, and a client RequestContext which notifies consumed responses.
+     *
+     * @param responseWindowSize max number of unconsumed responses, or 0 for no limit (default)
+     */
+    public Builder setResponseWindowSize(int responseWindowSize) {
+      this.responseWindowSize = responseWindowSize;
+      return this;
+    }
+
+    /**
+     * Collect small signal requests for up to this time before sending them as one message.
+     * Requires protocol version V5, and a max batch size of more than 1.
+     *
+     * @param batchLingerTime max millis to delay a request while collecting a batch, or 0 to disable batching (default)
+     */
+    public Builder setBatchLingerTime(long batchLingerTime) {
+      this.batchLingerTime = batchLingerTime;
+      return this;
+    }
+
+    /**
+     * Send a batch as soon as it contains this number of requests.
+     * Requires protocol version V5, and a batch linger time.
+     *
+     * @param maxBatchSize max number of requests in a batch, or 0 to disable batching (default)
+     */
+    public Builder setMaxBatchSize(int maxBatchSize) {
+      this.maxBatchSize = maxBatchSize;
+      return this;
+    }
+
+    /**
+     * Limit the number of outstanding calls, adapting the limit to the observed round trip time and timeouts.
+     * Requests above the limit are rejected with a {@link RequestRejectedException}.
+     *
+     * @param concurrencyLimiter limiter to use, or null for no limit (default)
+     */
+    public Builder setConcurrencyLimiter(ConcurrencyLimiter concurrencyLimiter) {
+      this.concurrencyLimiter = concurrencyLimiter;
+      return this;
+    }
+
+    /**
+     * Fail fast with a {@link RequestRejectedException} when the rate of timeouts and send errors spikes.
+     *
+     * @param circuitBreaker circuit breaker to use, or null for no circuit breaker (default)
+     */
+    public Builder setCircuitBreaker(CircuitBreaker circuitBreaker) {
+      this.circuitBreaker = circuitBreaker;
+      return this;
+    }
+
+    /**
+     * Send requests using a pool of sessions, allowing this number of threads to send concurrently.
+     * Sending threads wait for an idle session when all sessions are in use.
+     *
+     * @param sessionPoolSize max number of sessions used for sending (default 1)
+     */
+    public Builder setSessionPoolSize(int sessionPoolSize) {
+      this.sessionPoolSize = sessionPoolSize;
+      return this;
+    }
+
+    /**
+     * Receive responses on this number of response queues, each handled by a separate thread.
+     * Calls are assigned to a response queue by the hash of the callID.
+     * When batching, signals are batched per response queue.
+     *
+     * @param responseQueueCount number of response queues (default 1)
+     */
+    public Builder setResponseQueueCount(int responseQueueCount) {
+      this.responseQueueCount = responseQueueCount;
+      return this;
+    }
+
+    /**
+     * Deserialize and deliver responses using this number of threads, instead of the consumer thread of the response queue.
+     * Responses to the same call are handled by the same thread, in the order they are received.
+     *
+     * @param responseHandlerThreads number of response handler threads, or 0 to handle responses in the consumer thread (default)
+     */
+    public Builder setResponseHandlerThreads(int responseHandlerThreads) {
+      this.responseHandlerThreads = responseHandlerThreads;
+      return this;
+    }
+
+    /**
+     * Probe each response queue at this interval, by sending a probe message through the broker to the response queue.
+     *
+     * @param probeInterval millis between probes, or 0 to disable probing (default)
+     */
+    public Builder setProbeInterval(long probeInterval) {
+      this.probeInterval = probeInterval;
+      return this;
+    }
+
+    /**
+     * Replace a response queue if a probe does not arrive within this time.
+     * The probe is checked at the probe interval, so a stale response queue is replaced within timeout + interval.
+     *
+     * @param probeTimeout max millis to wait for a probe (default 5000)
+     */
+    public Builder setProbeTimeout(long probeTimeout) {
+      this.probeTimeout = probeTimeout;
+      return this;
+    }
+
+    /**
+     * Compress requests with a payload of at least this size.
+     * Requires protocol version V7.
+     *
+     * @param compressionThreshold min size in bytes of payloads to compress, or 0 to disable compression (default)
+     */
+    public Builder setCompressionThreshold(int compressionThreshold) {
+      this.compressionThreshold = compressionThreshold;
+      return this;
+    }
   }
 
   //allow turning this of for testing
@@ -10,7 +10,11 @@ public enum ProtocolVersion {
 
   V1(1),
   V2(2),
-  V3(3);
+  V3(3),
+  V4(4),
+  V5(5),
+  V6(6),
+  V7(7);
 
   private final int version;
 
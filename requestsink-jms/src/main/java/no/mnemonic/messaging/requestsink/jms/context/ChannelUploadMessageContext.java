@@ -99,6 +99,11 @@ public class ChannelUploadMessageContext implements RequestContext {
     return realContext.addResponse(msg);
   }
 
+  @Override
+  public boolean notifiesResponsesConsumed() {
+    return realContext.notifiesResponsesConsumed();
+  }
+
   @Override
   public void endOfStream() {
     realContext.endOfStream();
@@ -8,9 +8,11 @@ import no.mnemonic.messaging.requestsink.jms.AbstractJMSRequestBase;
 import no.mnemonic.messaging.requestsink.jms.ExceptionMessage;
 import no.mnemonic.messaging.requestsink.jms.serializer.MessageSerializer;
 import no.mnemonic.messaging.requestsink.jms.util.ClientMetrics;
+import no.mnemonic.messaging.requestsink.jms.util.MessageCompressor;
 import no.mnemonic.messaging.requestsink.jms.util.MessageFragment;
 
 import javax.jms.BytesMessage;
+import javax.jms.Destination;
 import javax.jms.JMSException;
 import javax.jms.Message;
 import javax.jms.Session;
@@ -22,6 +24,10 @@ import java.util.Map;
 import java.util.Objects;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 import static no.mnemonic.commons.utilities.collections.CollectionUtils.isEmpty;
 import static no.mnemonic.messaging.requestsink.jms.JMSRequestProxy.*;
@@ -29,6 +35,12 @@ import static no.mnemonic.messaging.requestsink.jms.util.JMSUtils.*;
 
 /**
  * This listener listens for incoming reply messages and adds them to the correct responsehandler
+ * <p>
+ * If a response window is set, the server will not send more unconsumed responses than the window allows.
+ * As the client consumes responses, this context returns credits to the server in batches of half the window,
+ * using the control destination given as <code>JMSReplyTo</code> on the response messages.
+ * <p>
+ * Responses compressed by the server (protocol V7) are decompressed before they are deserialized.
  *
  * @author joakim
  */
@@ -48,11 +60,38 @@ public class ClientRequestContext {
   private final RequestContext requestContext;
   private final Runnable closeListener;
   private final MessageSerializer serializer;
+  private final int responseWindow;
+  private final ResponseCreditSender creditSender;
+  private final MessageCompressor compressor;
+  private final AtomicReference<Destination> creditDestination = new AtomicReference<>();
+  private final AtomicInteger consumedResponses = new AtomicInteger();
+  private final AtomicLong deadline = new AtomicLong();
+  private final long startTimestamp = clock.millis();
+  private final AtomicLong firstResponseTimestamp = new AtomicLong();
+  private final AtomicBoolean hopsRecorded = new AtomicBoolean();
+  private final long startNanos = System.nanoTime();
+  private final AtomicLong lastResponseNanos = new AtomicLong();
 
   private final Map<String, Collection<MessageFragment>> fragments = new ConcurrentHashMap<>();
 
   public ClientRequestContext(String callID, Session session, ClientMetrics metrics, ClassLoader classLoader,
                        RequestContext requestContext, Runnable closeListener, MessageSerializer serializer) {
+    this(callID, session, metrics, classLoader, requestContext, closeListener, serializer, 0, null);
+  }
+
+  public ClientRequestContext(String callID, Session session, ClientMetrics metrics, ClassLoader classLoader,
+                              RequestContext requestContext, Runnable closeListener, MessageSerializer serializer,
+                              int responseWindow, ResponseCreditSender creditSender) {
+    this(callID, session, metrics, classLoader, requestContext, closeListener, serializer, responseWindow, creditSender, new MessageCompressor(0));
+  }
+
+  public ClientRequestContext(String callID, Session session, ClientMetrics metrics, ClassLoader classLoader,
+                              RequestContext requestContext, Runnable closeListener, MessageSerializer serializer,
+                              int responseWindow, ResponseCreditSender creditSender, MessageCompressor compressor) {
+    if (responseWindow > 0) assertNotNull(creditSender, "creditSender not set");
+    this.responseWindow = responseWindow;
+    this.creditSender = creditSender;
+    this.compressor = assertNotNull(compressor, "compressor not set");
     this.serializer = assertNotNull(serializer, "serializer not set");
     this.closeListener = assertNotNull(closeListener, "closeListener not set");
     this.classLoader = assertNotNull(classLoader, "classLoader not set");
@@ -70,11 +109,55 @@ public class ClientRequestContext {
     return requestContext.isClosed();
   }
 
+  /**
+   * @return the time this request is expected to end, as epoch millis, including any extension requested by the server
+   */
+  public long getDeadline() {
+    return deadline.get();
+  }
+
+  /**
+   * Extend the expected end of this request
+   *
+   * @param until new deadline, as epoch millis. Ignored if not later than the current deadline.
+   */
+  public void extendDeadline(long until) {
+    deadline.accumulateAndGet(until, Math::max);
+  }
+
+  /**
+   * @return millis from this request was set up until the first message from the server, or -1 if nothing is received
+   */
+  public long getFirstResponseLatency() {
+    long first = firstResponseTimestamp.get();
+    return first > 0 ? first - startTimestamp : -1;
+  }
+
   public void cleanup() {
     closeListener.run();
     requestContext.notifyClose();
   }
 
+  /**
+   * Notify that the client has consumed responses, returning credits to the server when enough responses are consumed
+   *
+   * @param count number of consumed responses
+   */
+  public void responsesConsumed(int count) {
+    if (responseWindow <= 0 || count <= 0) return;
+    //return credits in batches, to avoid sending a credit message for every consumed response
+    if (consumedResponses.addAndGet(count) < Math.max(1, responseWindow / 2)) return;
+    Destination destination = creditDestination.get();
+    if (destination == null) return;
+    int credits = consumedResponses.getAndSet(0);
+    if (credits <= 0) return;
+    if (LOGGER.isDebug()) {
+      LOGGER.debug(">> responseCredits [callID=%s credits=%d destination=%s]", callID, credits, destination);
+    }
+    metrics.responseCredits();
+    creditSender.sendCredits(callID, destination, credits);
+  }
+
   boolean addFragment(MessageFragment messageFragment) {
     if (messageFragment == null) {
       LOGGER.warning("Fragment was null");
@@ -84,22 +167,30 @@ public class ClientRequestContext {
             .computeIfAbsent(messageFragment.getResponseID(), id -> new LinkedBlockingDeque<>())
             .add(messageFragment);
     //notify requestcontext for each fragment to avoid long fragment stream causing timeout
+    extendDeadline(clock.millis() + KEEPALIVE_ON_FRAGMENT);
     requestContext.keepAlive(clock.millis() + KEEPALIVE_ON_FRAGMENT);
     return true;
   }
 
   boolean reassemble(String responseID, int totalFragments, String checksum) {
+    return reassemble(responseID, totalFragments, checksum, 0);
+  }
+
+  boolean reassemble(String responseID, int totalFragments, String checksum, int uncompressedSize) {
     try {
       Collection<MessageFragment> responseFragments = this.fragments.remove(responseID);
       if (isEmpty(responseFragments)) {
         LOGGER.warning("Received fragment end-message without preceding fragments");
         return false;
       }
+      long start = System.nanoTime();
       byte[] reassembledData = reassembleFragments(responseFragments, totalFragments, checksum);
+      metrics.fragmentReassembly(System.nanoTime() - start);
+      responseReceived();
       if (LOGGER.isDebug()) {
         LOGGER.debug("# addReassembledResponse [responseID=%s]", responseID);
       }
-      return requestContext.addResponse(serializer.deserialize(reassembledData, classLoader));
+      return requestContext.addResponse(serializer.deserialize(compressor.decompress(reassembledData, uncompressedSize), classLoader));
     } catch (JMSException | IOException e) {
       LOGGER.warning(e, "Error unpacking fragments");
       return false;
@@ -133,6 +224,12 @@ public class ClientRequestContext {
       return false;
     }
     String responseType = message.getStringProperty(PROPERTY_MESSAGE_TYPE);
+    long now = clock.millis();
+    //a keepalive is not a response from the server
+    if (!MESSAGE_TYPE_EXTEND_WAIT.equals(responseType) && firstResponseTimestamp.compareAndSet(0, now)) {
+      metrics.firstResponse(System.nanoTime() - startNanos);
+    }
+    recordHops(message, now);
     if (LOGGER.isDebug()) {
       LOGGER.debug("<< handleResponse [callID=%s messageType=%s]", message.getJMSCorrelationID(), responseType);
     }
@@ -208,16 +305,47 @@ public class ClientRequestContext {
               callID, responseID, totalFragments);
     }
     metrics.fragmentedReplyCompleted();
-    return reassemble(responseID, totalFragments, checksum);
+    registerCreditDestination(endMessage);
+    return reassemble(responseID, totalFragments, checksum, MessageCompressor.getUncompressedSize(endMessage));
+  }
+
+  private void registerCreditDestination(Message response) throws JMSException {
+    if (responseWindow <= 0 || response.getJMSReplyTo() == null) return;
+    creditDestination.compareAndSet(null, response.getJMSReplyTo());
+  }
+
+  /**
+   * Record the hop timestamps returned with the first stamped response, if any (protocol V6)
+   */
+  private void recordHops(Message message, long receiveTime) throws JMSException {
+    if (!message.propertyExists(PROPERTY_RESPONSE_SEND_TIME) || !hopsRecorded.compareAndSet(false, true)) return;
+    metrics.hops(
+            message.getLongProperty(PROPERTY_CLIENT_SEND_TIME),
+            message.getLongProperty(PROPERTY_PROXY_RECEIVE_TIME),
+            message.getLongProperty(PROPERTY_DISPATCH_TIME),
+            message.getLongProperty(PROPERTY_RESPONSE_SEND_TIME),
+            receiveTime);
+  }
+
+  /**
+   * Record the time since the previous response of this request
+   */
+  private void responseReceived() {
+    long now = System.nanoTime();
+    long previous = lastResponseNanos.getAndSet(now);
+    if (previous != 0) metrics.interResponseTime(now - previous);
   }
 
   private boolean handleSignalResponse(Message response) throws JMSException {
     if (LOGGER.isDebug()) {
       LOGGER.debug("<< addResponse [callID=%s]", response.getJMSCorrelationID());
     }
+    registerCreditDestination(response);
     try (ClassLoaderContext ignored = ClassLoaderContext.of(classLoader)) {
       metrics.reply();
-      return requestContext.addResponse(serializer.deserialize(extractMessageBytes(response), classLoader));
+      responseReceived();
+      byte[] data = compressor.decompress(extractMessageBytes(response), MessageCompressor.getUncompressedSize(response));
+      return requestContext.addResponse(serializer.deserialize(data, classLoader));
     } catch (IOException e) {
       LOGGER.error(e, "Error deserializing response");
       throw new JMSException(e.getMessage());
@@ -253,6 +381,7 @@ public class ClientRequestContext {
       LOGGER.debug("<< endOfStream [callID=%s]", response.getJMSCorrelationID());
     }
     metrics.endOfStream();
+    metrics.endOfStreamReceived(System.nanoTime() - startNanos);
     requestContext.endOfStream();
     return true;
   }
@@ -267,6 +396,7 @@ public class ClientRequestContext {
       LOGGER.debug("<< extendWait [callID=%s timeout=%s]", response.getJMSCorrelationID(), new Date(timeout));
     }
     metrics.extendWait();
+    extendDeadline(timeout);
     requestContext.keepAlive(timeout);
     return true;
   }
@@ -291,4 +421,8 @@ public class ClientRequestContext {
   static void setClock(Clock clock) {
     ClientRequestContext.clock = clock;
   }
+
+  public interface ResponseCreditSender {
+    void sendCredits(String callID, Destination destination, int credits);
+  }
 }
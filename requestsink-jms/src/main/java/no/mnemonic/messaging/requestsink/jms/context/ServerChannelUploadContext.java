@@ -2,6 +2,7 @@ package no.mnemonic.messaging.requestsink.jms.context;
 
 import no.mnemonic.commons.logging.Logger;
 import no.mnemonic.commons.logging.Logging;
+import no.mnemonic.messaging.requestsink.HashedWheelTimer;
 import no.mnemonic.messaging.requestsink.jms.ExceptionMessage;
 import no.mnemonic.messaging.requestsink.jms.JMSRequestProxy;
 import no.mnemonic.messaging.requestsink.jms.ProtocolVersion;
@@ -26,6 +27,8 @@ import static no.mnemonic.messaging.requestsink.jms.util.JMSUtils.*;
  * <li>Accept fragments and end-of-stream from client</li>
  * <li>Reassemble fragments, verify and submit reassembled message to RequestSink</li>
  * </ul>
+ * When the timeout passes, the context is marked as closed by the shared timer, while the upload channel
+ * is released by the next thread checking {@link #isClosed()}, normally the cleanup of the JMSRequestProxy.
  */
 public class ServerChannelUploadContext implements ServerContext {
 
@@ -35,18 +38,27 @@ public class ServerChannelUploadContext implements ServerContext {
   private final Session session;
   private final Destination responseDestination;
   private final AtomicBoolean closed = new AtomicBoolean();
+  private final AtomicBoolean released = new AtomicBoolean();
   private final BlockingQueue<MessageFragment> fragments = new LinkedBlockingDeque<>();
   private final AtomicLong timeout = new AtomicLong();
   private final ProtocolVersion protocolVersion;
   private final ServerMetrics metrics;
   private final MessageSerializer serializer;
+  private final int responseWindow;
+  private final HashedWheelTimer.Timeout expiry;
 
   private UploadHandler uploadHandler;
   private MessageProducer replyTo;
   private TemporaryQueue channelQueue;
   private MessageConsumer channelConsumer;
+  private long setupNanos;
 
   public ServerChannelUploadContext(String callID, Session session, Destination responseDestination, long timeout, ProtocolVersion protocolVersion, ServerMetrics metrics, MessageSerializer serializer) throws JMSException, NamingException {
+    this(callID, session, responseDestination, timeout, protocolVersion, metrics, serializer, 0);
+  }
+
+  public ServerChannelUploadContext(String callID, Session session, Destination responseDestination, long timeout, ProtocolVersion protocolVersion, ServerMetrics metrics, MessageSerializer serializer, int responseWindow) throws JMSException, NamingException {
+    this.responseWindow = responseWindow;
     this.callID = assertNotNull(callID, "CallID not set");
     this.session = assertNotNull(session, "Session not set");
     this.responseDestination = assertNotNull(responseDestination, "ResponseDestination not set");
@@ -54,6 +66,8 @@ public class ServerChannelUploadContext implements ServerContext {
     this.metrics = assertNotNull(metrics, "metrics not set");
     this.serializer = assertNotNull(serializer, "serializer not set");
     this.timeout.set(timeout);
+    //actively mark the upload channel as closed when the timeout is passed, so the proxy releases the temporary queue
+    this.expiry = HashedWheelTimer.getDefault().scheduleDeadline(this.timeout::get, this::expire);
   }
 
   /**
@@ -61,6 +75,7 @@ public class ServerChannelUploadContext implements ServerContext {
    * @throws JMSException on error receiving from JMS
    */
   public void setupChannel(UploadHandler handler) throws JMSException {
+    setupNanos = System.nanoTime();
     //save reference to handler which should get the reassembled message
     this.uploadHandler = assertNotNull(handler, "UploadHandler not set");
     //create a temporary upload queue, a consumer on that queue, and bind a messagelistener to it
@@ -133,13 +148,16 @@ public class ServerChannelUploadContext implements ServerContext {
     try {
       int expectedFragments = eosMessage.getIntProperty(JMSRequestProxy.PROPERTY_FRAGMENTS_TOTAL);
       String transmittedChecksum = eosMessage.getStringProperty(JMSRequestProxy.PROPERTY_DATA_CHECKSUM_MD5);
+      metrics.fragmentedUpload(System.nanoTime() - setupNanos);
+      long start = System.nanoTime();
       byte[] messageData = reassembleFragments(fragments, expectedFragments, transmittedChecksum);
+      metrics.fragmentReassembly(System.nanoTime() - start);
       if (messageData == null) {
         LOGGER.warning("Ignoring empty channel upload: " + callID);
         return;
       }
       metrics.fragmentedUploadCompleted();
-      uploadHandler.handleRequest(callID, messageData, responseDestination, timeout.get(), protocolVersion, serializer);
+      uploadHandler.handleRequest(callID, messageData, responseDestination, timeout.get(), protocolVersion, serializer, responseWindow);
     } catch (Exception e) {
       LOGGER.warning("Error handling end-of-stream: " + callID);
       notifyError(e);
@@ -174,22 +192,36 @@ public class ServerChannelUploadContext implements ServerContext {
     }
   }
 
+  @Override
+  public long getTimeout() {
+    return timeout.get();
+  }
+
   public boolean isClosed() {
-    if (closed.get()) return true;
-    if (System.currentTimeMillis() > timeout.get()) {
+    if (closed.get() || System.currentTimeMillis() > timeout.get()) {
+      //release the upload channel if closed by expiry
       close();
       return true;
     }
     return false;
   }
 
+  /**
+   * Run on the shared timer thread, so do not call the broker from here
+   */
+  private void expire() {
+    closed.set(true);
+  }
+
   private void close() {
     closed.set(true);
+    if (released.getAndSet(true)) return;
+    if (expiry != null) expiry.cancel();
     removeMessageListenerAndClose(channelConsumer);
     deleteTemporaryQueue(channelQueue);
   }
 
   public interface UploadHandler {
-    void handleRequest(String callID, byte[] message, Destination replyTo, long timeout, ProtocolVersion protocolVersion, MessageSerializer serializer) throws Exception;
+    void handleRequest(String callID, byte[] message, Destination replyTo, long timeout, ProtocolVersion protocolVersion, MessageSerializer serializer, int responseWindow) throws Exception;
   }
 }
@@ -2,4 +2,9 @@ package no.mnemonic.messaging.requestsink.jms.context;
 
 public interface ServerContext {
   boolean isClosed();
+
+  /**
+   * @return the current timeout of this context, as epoch millis
+   */
+  long getTimeout();
 }
@@ -2,6 +2,7 @@ package no.mnemonic.messaging.requestsink.jms.context;
 
 import no.mnemonic.commons.logging.Logger;
 import no.mnemonic.commons.logging.Logging;
+import no.mnemonic.messaging.requestsink.HashedWheelTimer;
 import no.mnemonic.messaging.requestsink.Message;
 import no.mnemonic.messaging.requestsink.RequestContext;
 import no.mnemonic.messaging.requestsink.RequestListener;
@@ -10,6 +11,7 @@ import no.mnemonic.messaging.requestsink.jms.ExceptionMessage;
 import no.mnemonic.messaging.requestsink.jms.ProtocolVersion;
 import no.mnemonic.messaging.requestsink.jms.serializer.MessageSerializer;
 import no.mnemonic.messaging.requestsink.jms.util.FragmentConsumer;
+import no.mnemonic.messaging.requestsink.jms.util.MessageCompressor;
 import no.mnemonic.messaging.requestsink.jms.util.ServerMetrics;
 
 import javax.jms.*;
@@ -20,6 +22,8 @@ import java.io.InputStream;
 import java.time.Clock;
 import java.util.Date;
 import java.util.UUID;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicLong;
 
@@ -33,11 +37,23 @@ import static no.mnemonic.messaging.requestsink.jms.util.JMSUtils.*;
  * <p>
  * Multiple responses will be encoded as multiple messages, creating a response stream back to the client.
  * When channel is closed, responses will be ignored.
+ * <p>
+ * If the client has requested a response window, the context will only send as many responses as the client
+ * has granted credits for. When out of credits, {@link #addResponse(Message)} blocks the server RequestSink
+ * until the client returns more credits, or refuses the response if the request is closed or times out while waiting.
+ * <p>
+ * If the request carries the client send time (protocol V6), the first message sent back to the client is stamped
+ * with the client send time, the time the proxy received the request, the time the request was dispatched to the
+ * RequestSink, and the time the message was sent, allowing the client to decompose the latency of the call.
+ * <p>
+ * If the request is sent using protocol V7 and a compressor is set, responses above the compression threshold are compressed.
+ * A fragmented response is compressed before it is fragmented, and the compression is announced on the end-of-fragments message.
  */
 public class ServerResponseContext implements RequestContext, ServerContext {
 
   private static final Logger LOGGER = Logging.getLogger(ServerResponseContext.class);
   private static Clock clock = Clock.systemUTC();
+  private static final long MAX_CREDIT_WAIT_INTERVAL = 1000;
 
   private final Session session;
   private final MessageProducer replyProducer;
@@ -49,8 +65,30 @@ public class ServerResponseContext implements RequestContext, ServerContext {
   private final int maxMessageSize;
   private final ServerMetrics metrics;
   private final MessageSerializer serializer;
+  private final Semaphore responseCredits;
+  private final Destination creditDestination;
+  private final MessageCompressor compressor;
+  private final HashedWheelTimer.Timeout expiry;
+  private final AtomicBoolean hopTimestampsSent = new AtomicBoolean();
+  private volatile long clientSendTime;
+  private volatile long proxyReceiveTime;
+  private volatile long dispatchTime;
 
   public ServerResponseContext(String callID, Session session, MessageProducer replyProducer, Destination replyTo, long timeout, ProtocolVersion protocolVersion, int maxMessageSize, ServerMetrics metrics, MessageSerializer serializer) throws NamingException, JMSException {
+    this(callID, session, replyProducer, replyTo, timeout, protocolVersion, maxMessageSize, metrics, serializer, 0, null, null);
+  }
+
+  public ServerResponseContext(String callID, Session session, MessageProducer replyProducer, Destination replyTo, long timeout, ProtocolVersion protocolVersion, int maxMessageSize, ServerMetrics metrics, MessageSerializer serializer,
+                               int responseWindow, Destination creditDestination, MessageCompressor compressor) throws NamingException, JMSException {
+    if (responseWindow > 0) {
+      this.creditDestination = assertNotNull(creditDestination, "creditDestination not set");
+      this.responseCredits = new Semaphore(responseWindow);
+    } else {
+      this.creditDestination = null;
+      this.responseCredits = null;
+    }
+    //only compress responses if the client supports it
+    this.compressor = protocolVersion != null && protocolVersion.atLeast(ProtocolVersion.V7) ? compressor : null;
     this.callID = assertNotNull(callID, "CallID not set");
     this.session = assertNotNull(session, "session not set");
     this.replyProducer = assertNotNull(replyProducer, "replyProducer not set");
@@ -62,6 +100,8 @@ public class ServerResponseContext implements RequestContext, ServerContext {
     this.maxMessageSize = maxMessageSize;
     if (timeout <= 0) throw new IllegalArgumentException("Timeout must be a positive integer");
     this.timeout.set(timeout);
+    //actively close the context when the timeout is passed
+    this.expiry = HashedWheelTimer.getDefault().scheduleDeadline(this.timeout::get, this::close);
   }
 
   /**
@@ -70,10 +110,35 @@ public class ServerResponseContext implements RequestContext, ServerContext {
   public void handle(RequestSink requestSink, Message request) throws JMSException {
     assertNotNull(requestSink, "RequestSink not set");
     assertNotNull(request, "Message not set");
+    //pass on the remaining time budget of the caller
+    long maxWait = timeout.get() - clock.millis();
+    if (maxWait <= 0) {
+      LOGGER.warning("Ignoring request: timed out before dispatch [callID=%s]", callID);
+      metrics.queueExpired();
+      close();
+      return;
+    }
     if (LOGGER.isDebug()) {
-      LOGGER.debug("<< signal [callID=%s replyTo=%s]", callID, replyTo);
+      LOGGER.debug("<< signal [callID=%s replyTo=%s maxWait=%d]", callID, replyTo, maxWait);
+    }
+    dispatchTime = clock.millis();
+    long start = System.nanoTime();
+    try {
+      requestSink.signal(request, this, maxWait);
+    } finally {
+      metrics.signal(System.nanoTime() - start);
     }
-    requestSink.signal(request, this, clock.millis() - timeout.get());
+  }
+
+  /**
+   * Set the timestamps to send back to the client on the first response (protocol V6)
+   *
+   * @param clientSendTime   time the client sent the request
+   * @param proxyReceiveTime time the proxy received the request
+   */
+  public void setRequestTimestamps(long clientSendTime, long proxyReceiveTime) {
+    this.clientSendTime = clientSendTime;
+    this.proxyReceiveTime = proxyReceiveTime;
   }
 
   public boolean keepAlive(long until) {
@@ -100,19 +165,44 @@ public class ServerResponseContext implements RequestContext, ServerContext {
     return true;
   }
 
+  /**
+   * Add credits returned by the client, allowing more responses to be sent
+   *
+   * @param credits number of responses consumed by the client
+   */
+  public void addResponseCredits(int credits) {
+    if (responseCredits == null || credits <= 0) return;
+    if (LOGGER.isDebug()) {
+      LOGGER.debug("<< responseCredits [callID=%s credits=%d]", callID, credits);
+    }
+    metrics.responseCredits();
+    responseCredits.release(credits);
+  }
+
   public boolean addResponse(Message msg) {
     // drop message if we're closed
     if (isClosed()) {
       return false;
     }
+    //block until the client has room for more responses
+    if (!acquireResponseCredit()) {
+      return false;
+    }
 
     try {
       byte[] messageBytes = serializer.serialize(msg);
+      //compress before checking for fragmentation, so a compressed response may avoid fragmentation
+      int uncompressedSize = 0;
+      byte[] compressedBytes = compressor != null ? compressor.compress(messageBytes) : null;
+      if (compressedBytes != null) {
+        uncompressedSize = messageBytes.length;
+        messageBytes = compressedBytes;
+      }
       //if request origin is sending using protocol V2 or higher, fragmented responses are supported, so fragment big responses
       if (protocolVersion.atLeast(ProtocolVersion.V2) && messageBytes.length > maxMessageSize) {
-        sendResponseFragments(messageBytes);
+        sendResponseFragments(messageBytes, uncompressedSize);
       } else {
-        sendSingleResponse(messageBytes);
+        sendSingleResponse(messageBytes, uncompressedSize);
       }
       metrics.reply();
       return true;
@@ -125,11 +215,32 @@ public class ServerResponseContext implements RequestContext, ServerContext {
 
   //private methods
 
-  private void sendSingleResponse(byte[] messageBytes) throws JMSException, IOException {
+  private boolean acquireResponseCredit() {
+    if (responseCredits == null || responseCredits.tryAcquire()) return true;
+    metrics.responseCreditWait();
+    try {
+      //wait in intervals, to notice if the request is closed or times out while waiting
+      while (!isClosed()) {
+        long maxWait = Math.min(MAX_CREDIT_WAIT_INTERVAL, timeout.get() - clock.millis());
+        if (responseCredits.tryAcquire(Math.max(maxWait, 1), TimeUnit.MILLISECONDS)) return true;
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    metrics.responseCreditTimeout();
+    LOGGER.warning("Refusing response, client has not returned response credits [callID=%s]", callID);
+    return false;
+  }
+
+  private void sendSingleResponse(byte[] messageBytes, int uncompressedSize) throws JMSException, IOException {
     // construct single response message
     javax.jms.Message returnMessage = createByteMessage(session, messageBytes, protocolVersion, serializer.serializerID());
     returnMessage.setJMSCorrelationID(callID);
     returnMessage.setStringProperty(PROPERTY_MESSAGE_TYPE, MESSAGE_TYPE_SIGNAL_RESPONSE);
+    MessageCompressor.setCompressionProperties(returnMessage, uncompressedSize);
+    //tell client where to return credits
+    if (creditDestination != null) returnMessage.setJMSReplyTo(creditDestination);
+    stampHopTimestamps(returnMessage);
     // send return message
     replyProducer.send(replyTo, returnMessage);
     if (LOGGER.isDebug()) {
@@ -137,7 +248,7 @@ public class ServerResponseContext implements RequestContext, ServerContext {
     }
   }
 
-  private void sendResponseFragments(byte[] messageBytes) throws JMSException, IOException {
+  private void sendResponseFragments(byte[] messageBytes, int uncompressedSize) throws JMSException, IOException {
     UUID responseID = UUID.randomUUID();
     try (InputStream messageDataStream = new ByteArrayInputStream(messageBytes)) {
 
@@ -149,6 +260,7 @@ public class ServerResponseContext implements RequestContext, ServerContext {
           fragment.setStringProperty(PROPERTY_MESSAGE_TYPE, MESSAGE_TYPE_SIGNAL_FRAGMENT);
           fragment.setStringProperty(PROPERTY_RESPONSE_ID, responseID.toString());
           fragment.setIntProperty(PROPERTY_FRAGMENTS_IDX, idx);
+          stampHopTimestamps(fragment);
           //send fragment to upload channel
           replyProducer.send(replyTo, fragment);
           metrics.fragmentReplyFragment();
@@ -167,6 +279,10 @@ public class ServerResponseContext implements RequestContext, ServerContext {
           //send total number of fragments and message digest with EOS message, to allow receiver to verify
           eof.setIntProperty(PROPERTY_FRAGMENTS_TOTAL, fragments);
           eof.setStringProperty(PROPERTY_DATA_CHECKSUM_MD5, hex(digest));
+          //the reassembled response is decompressed
+          MessageCompressor.setCompressionProperties(eof, uncompressedSize);
+          //tell client where to return credits
+          if (creditDestination != null) eof.setJMSReplyTo(creditDestination);
           //send EOS
           replyProducer.send(replyTo, eof);
           metrics.fragmentedReplyCompleted();
@@ -178,8 +294,25 @@ public class ServerResponseContext implements RequestContext, ServerContext {
     }
   }
 
+  /**
+   * Stamp the first message sent back to the client with the timestamps of each hop of the request
+   */
+  private void stampHopTimestamps(javax.jms.Message message) throws JMSException {
+    if (clientSendTime <= 0 || !hopTimestampsSent.compareAndSet(false, true)) return;
+    message.setLongProperty(PROPERTY_CLIENT_SEND_TIME, clientSendTime);
+    message.setLongProperty(PROPERTY_PROXY_RECEIVE_TIME, proxyReceiveTime);
+    message.setLongProperty(PROPERTY_DISPATCH_TIME, dispatchTime);
+    message.setLongProperty(PROPERTY_RESPONSE_SEND_TIME, clock.millis());
+  }
+
   private void close() {
     closed.set(true);
+    if (expiry != null) expiry.cancel();
+  }
+
+  @Override
+  public long getTimeout() {
+    return timeout.get();
   }
 
   public boolean isClosed() {
@@ -211,6 +344,7 @@ public class ServerResponseContext implements RequestContext, ServerContext {
         javax.jms.Message exMessage = createByteMessage(session, serializer.serialize(ex), protocolVersion, serializer.serializerID());
         exMessage.setJMSCorrelationID(callID);
         exMessage.setStringProperty(PROPERTY_MESSAGE_TYPE, MESSAGE_TYPE_EXCEPTION);
+        stampHopTimestamps(exMessage);
         replyProducer.send(replyTo, exMessage);
         metrics.exceptionSignal();
         if (LOGGER.isDebug()) {
@@ -230,6 +364,7 @@ public class ServerResponseContext implements RequestContext, ServerContext {
         javax.jms.Message closeMessage = createTextMessage(session, "stream closed", protocolVersion);
         closeMessage.setJMSCorrelationID(callID);
         closeMessage.setStringProperty(PROPERTY_MESSAGE_TYPE, MESSAGE_TYPE_STREAM_CLOSED);
+        stampHopTimestamps(closeMessage);
         replyProducer.send(replyTo, closeMessage);
         metrics.endOfStream();
         if (LOGGER.isDebug()) {
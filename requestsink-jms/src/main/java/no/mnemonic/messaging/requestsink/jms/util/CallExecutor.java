@@ -0,0 +1,21 @@
+package no.mnemonic.messaging.requestsink.jms.util;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Executor running the calls handled by a request proxy
+ */
+public interface CallExecutor {
+
+  /**
+   * Run a task
+   *
+   * @param priority priority of the task, where higher priority tasks are run first if tasks are queued
+   * @param task     task to run
+   */
+  void execute(int priority, Runnable task);
+
+  void shutdown();
+
+  boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException;
+}
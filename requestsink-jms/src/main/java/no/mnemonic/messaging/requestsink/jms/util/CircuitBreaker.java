@@ -0,0 +1,200 @@
+package no.mnemonic.messaging.requestsink.jms.util;
+
+import java.time.Clock;
+
+/**
+ * Circuit breaker failing calls fast when the failure rate spikes.
+ * <p>
+ * While closed, the outcome of the most recent calls is kept in a sliding window. When the window holds at least
+ * the minimum number of calls, and the failure rate reaches the threshold, the breaker opens, and rejects all calls
+ * for the open time. After the open time, the breaker is half open, and lets a single probe call through.
+ * If the probe succeeds, the breaker closes, otherwise it opens again.
+ */
+public class CircuitBreaker {
+
+  public enum State {
+    CLOSED, OPEN, HALF_OPEN
+  }
+
+  static final double DEFAULT_FAILURE_RATE_THRESHOLD = 0.5;
+  static final int DEFAULT_WINDOW_SIZE = 100;
+  static final int DEFAULT_MINIMUM_CALLS = 20;
+  static final long DEFAULT_OPEN_TIME = 10000;
+
+  private static Clock clock = Clock.systemUTC();
+
+  private final double failureRateThreshold;
+  private final int minimumCalls;
+  private final long openTime;
+  private final boolean[] window;
+
+  private State state = State.CLOSED;
+  private int windowIndex;
+  private int windowCount;
+  private int windowFailures;
+  private long openUntil;
+  private boolean probeInFlight;
+  private long openedCount;
+
+  private CircuitBreaker(double failureRateThreshold, int windowSize, int minimumCalls, long openTime) {
+    if (failureRateThreshold <= 0 || failureRateThreshold > 1)
+      throw new IllegalArgumentException("failureRateThreshold must be above 0 and at most 1");
+    if (windowSize < 1) throw new IllegalArgumentException("windowSize cannot be lower than 1");
+    if (minimumCalls < 1 || minimumCalls > windowSize)
+      throw new IllegalArgumentException("minimumCalls must be between 1 and windowSize");
+    if (openTime < 1) throw new IllegalArgumentException("openTime cannot be lower than 1");
+    this.failureRateThreshold = failureRateThreshold;
+    this.minimumCalls = minimumCalls;
+    this.openTime = openTime;
+    this.window = new boolean[windowSize];
+  }
+
+  /**
+   * @return true if a call may be sent, false if the call should fail fast
+   */
+  public synchronized boolean allowRequest() {
+    switch (state) {
+      case CLOSED:
+        return true;
+      case OPEN:
+        if (clock.millis() < openUntil) return false;
+        state = State.HALF_OPEN;
+        probeInFlight = true;
+        return true;
+      default:
+        //only a single probe in half open state
+        if (probeInFlight) return false;
+        probeInFlight = true;
+        return true;
+    }
+  }
+
+  /**
+   * The call succeeded
+   */
+  public synchronized void onSuccess() {
+    if (state == State.HALF_OPEN) {
+      state = State.CLOSED;
+      probeInFlight = false;
+      resetWindow();
+    } else if (state == State.CLOSED) {
+      record(false);
+    }
+  }
+
+  /**
+   * The call failed
+   */
+  public synchronized void onFailure() {
+    if (state == State.HALF_OPEN) {
+      open();
+    } else if (state == State.CLOSED) {
+      record(true);
+      if (windowCount >= minimumCalls && windowFailures >= failureRateThreshold * windowCount) {
+        open();
+      }
+    }
+  }
+
+  /**
+   * The call ended without a known outcome, i.e. closed by the client before any response
+   */
+  public synchronized void onIgnored() {
+    //let another probe through
+    if (state == State.HALF_OPEN) probeInFlight = false;
+  }
+
+  public synchronized State getState() {
+    return state;
+  }
+
+  /**
+   * @return number of times the breaker has opened
+   */
+  public synchronized long getOpenedCount() {
+    return openedCount;
+  }
+
+  private void open() {
+    state = State.OPEN;
+    openUntil = clock.millis() + openTime;
+    probeInFlight = false;
+    openedCount++;
+    resetWindow();
+  }
+
+  private void record(boolean failure) {
+    if (windowCount == window.length) {
+      //drop the oldest outcome
+      if (window[windowIndex]) windowFailures--;
+    } else {
+      windowCount++;
+    }
+    window[windowIndex] = failure;
+    if (failure) windowFailures++;
+    windowIndex = (windowIndex + 1) % window.length;
+  }
+
+  private void resetWindow() {
+    windowIndex = 0;
+    windowCount = 0;
+    windowFailures = 0;
+  }
+
+  static void setClock(Clock clock) {
+    CircuitBreaker.clock = clock;
+  }
+
+  public static Builder builder() {
+    return new Builder();
+  }
+
+  public static class Builder {
+
+    private double failureRateThreshold = DEFAULT_FAILURE_RATE_THRESHOLD;
+    private int windowSize = DEFAULT_WINDOW_SIZE;
+    private int minimumCalls = DEFAULT_MINIMUM_CALLS;
+    private long openTime = DEFAULT_OPEN_TIME;
+
+    private Builder() {
+    }
+
+    public CircuitBreaker build() {
+      return new CircuitBreaker(failureRateThreshold, windowSize, minimumCalls, openTime);
+    }
+
+    //setters
+
+    /**
+     * @param failureRateThreshold failure rate (0-1) in the window which opens the breaker
+     */
+    public Builder setFailureRateThreshold(double failureRateThreshold) {
+      this.failureRateThreshold = failureRateThreshold;
+      return this;
+    }
+
+    /**
+     * @param windowSize number of recent calls to calculate the failure rate from
+     */
+    public Builder setWindowSize(int windowSize) {
+      this.windowSize = windowSize;
+      return this;
+    }
+
+    /**
+     * @param minimumCalls minimum number of calls in the window before the breaker may open
+     */
+    public Builder setMinimumCalls(int minimumCalls) {
+      this.minimumCalls = minimumCalls;
+      return this;
+    }
+
+    /**
+     * @param openTime millis to reject calls after the breaker opens, before letting a probe call through
+     */
+    public Builder setOpenTime(long openTime) {
+      this.openTime = openTime;
+      return this;
+    }
+  }
+}
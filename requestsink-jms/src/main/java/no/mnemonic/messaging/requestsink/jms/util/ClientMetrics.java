@@ -4,7 +4,10 @@ import no.mnemonic.commons.metrics.MetricException;
 import no.mnemonic.commons.metrics.Metrics;
 import no.mnemonic.commons.metrics.MetricsData;
 
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
 
 public class ClientMetrics {
   private final LongAdder errorCount = new LongAdder();
@@ -22,9 +25,36 @@ public class ClientMetrics {
   private final LongAdder incompatibleMessageCounter = new LongAdder();
   private final LongAdder unknownCallIDMessageCounter = new LongAdder();
   private final LongAdder invalidatedResponseQueues = new LongAdder();
+  private final LongAdder responseCreditsCounter = new LongAdder();
+  private final LongAdder signalBatchCounter = new LongAdder();
+  private final LongAdder batchedRequestCounter = new LongAdder();
+  private final LongAdder cleanupCounter = new LongAdder();
+  private final LongAdder cleanupTime = new LongAdder();
+  private final LongAdder cleanedCallsCounter = new LongAdder();
+  private final AtomicLong pendingCalls = new AtomicLong();
+  private final LongAdder concurrencyLimitedCounter = new LongAdder();
+  private final LongAdder circuitRejectedCounter = new LongAdder();
+  private final LongAdder sessionLeaseTimeoutCounter = new LongAdder();
+  private final LatencyHistogram sessionLeaseTime = new LatencyHistogram();
+  private final LongAdder responseQueueProbeFailedCounter = new LongAdder();
+  private final LatencyHistogram responseQueueProbeTime = new LatencyHistogram();
+  private final LatencyHistogram firstResponseLatency = new LatencyHistogram();
+  private final LatencyHistogram endOfStreamLatency = new LatencyHistogram();
+  private final LatencyHistogram interResponseTime = new LatencyHistogram();
+  private final LatencyHistogram fragmentReassemblyTime = new LatencyHistogram();
+  private final LatencyHistogram requestTransitTime = new LatencyHistogram();
+  private final LatencyHistogram proxyQueueTime = new LatencyHistogram();
+  private final LatencyHistogram proxyProcessingTime = new LatencyHistogram();
+  private final LatencyHistogram responseTransitTime = new LatencyHistogram();
+  private final LatencyHistogram brokerTransitTime = new LatencyHistogram();
+  private ConcurrencyLimiter concurrencyLimiter;
+  private CircuitBreaker circuitBreaker;
+  private Supplier<SessionPool> sessionPool;
+  private StripedExecutor responseExecutor;
+  private MessageCompressor compressor;
 
   public Metrics metrics() throws MetricException {
-    return new MetricsData()
+    MetricsData data = new MetricsData()
             .addData("invalidatedResponseQueues", invalidatedResponseQueues)
             .addData("errors", errorCount)
             .addData("disconnected", disconnectedCount)
@@ -39,7 +69,90 @@ public class ClientMetrics {
             .addData("fragmentedReplyCompleted", fragmentedReplyCompletedCounter)
             .addData("fragmentedReplyFragments", fragmentedReplyFragmentCounter)
             .addData("incompatibleMessages", incompatibleMessageCounter)
-            .addData("unknownCallIDMessages", unknownCallIDMessageCounter);
+            .addData("unknownCallIDMessages", unknownCallIDMessageCounter)
+            .addData("responseCredits", responseCreditsCounter)
+            .addData("signalBatches", signalBatchCounter)
+            .addData("batchedRequests", batchedRequestCounter)
+            .addData("cleanups", cleanupCounter)
+            .addData("cleanupTimeMicros", cleanupTime)
+            .addData("cleanedCalls", cleanedCallsCounter)
+            .addData("pendingCalls", pendingCalls);
+    firstResponseLatency.addTo(data, "firstResponseLatency");
+    endOfStreamLatency.addTo(data, "endOfStreamLatency");
+    interResponseTime.addTo(data, "interResponseTime");
+    fragmentReassemblyTime.addTo(data, "fragmentReassemblyTime");
+    requestTransitTime.addTo(data, "requestTransitTime");
+    proxyQueueTime.addTo(data, "proxyQueueTime");
+    proxyProcessingTime.addTo(data, "proxyProcessingTime");
+    responseTransitTime.addTo(data, "responseTransitTime");
+    brokerTransitTime.addTo(data, "brokerTransitTime");
+    if (concurrencyLimiter != null) {
+      data.addData("concurrencyLimit", concurrencyLimiter.getLimit())
+              .addData("inflightCalls", concurrencyLimiter.getInflight())
+              .addData("baselineRttMillis", concurrencyLimiter.getBaselineRtt())
+              .addData("concurrencyLimited", concurrencyLimitedCounter);
+    }
+    if (responseQueueProbeTime.getCount() > 0 || responseQueueProbeFailedCounter.sum() > 0) {
+      data.addData("responseQueueProbeFailures", responseQueueProbeFailedCounter);
+      responseQueueProbeTime.addTo(data, "responseQueueProbeTime");
+    }
+    SessionPool pool = sessionPool != null ? sessionPool.get() : null;
+    if (pool != null) {
+      data.addData("sessionPoolMaxSize", pool.getMaxSize())
+              .addData("sessionPoolSize", pool.getSize())
+              .addData("sessionPoolLeased", pool.getLeased())
+              .addData("sessionLeaseTimeouts", sessionLeaseTimeoutCounter);
+      sessionLeaseTime.addTo(data, "sessionLeaseTime");
+    }
+    if (responseExecutor != null) {
+      data.addData("responseHandlerThreads", responseExecutor.getStripes())
+              .addData("responseHandlerQueued", responseExecutor.getQueueSize())
+              .addData("responseHandlerMaxStripeQueued", responseExecutor.getMaxQueueSize());
+    }
+    if (compressor != null) {
+      compressor.addTo(data);
+    }
+    if (circuitBreaker != null) {
+      data.addData("circuitState", circuitBreaker.getState().ordinal())
+              .addData("circuitOpened", circuitBreaker.getOpenedCount())
+              .addData("circuitRejected", circuitRejectedCounter);
+    }
+    return data;
+  }
+
+  /**
+   * Expose the state of the concurrency limiter in these metrics
+   */
+  public void setConcurrencyLimiter(ConcurrencyLimiter concurrencyLimiter) {
+    this.concurrencyLimiter = concurrencyLimiter;
+  }
+
+  /**
+   * Expose the state of the circuit breaker in these metrics
+   */
+  public void setCircuitBreaker(CircuitBreaker circuitBreaker) {
+    this.circuitBreaker = circuitBreaker;
+  }
+
+  /**
+   * Expose the utilization of the current session pool in these metrics
+   */
+  public void setSessionPool(Supplier<SessionPool> sessionPool) {
+    this.sessionPool = sessionPool;
+  }
+
+  /**
+   * Expose the queue depth of the response handler stripes in these metrics
+   */
+  public void setResponseExecutor(StripedExecutor responseExecutor) {
+    this.responseExecutor = responseExecutor;
+  }
+
+  /**
+   * Expose the compression ratio and time of the compressor in these metrics
+   */
+  public void setCompressor(MessageCompressor compressor) {
+    this.compressor = compressor;
   }
 
   public void invalidatedResponseQueue() {
@@ -101,4 +214,98 @@ public class ClientMetrics {
   public void extendWait() {
     extendWaitCounter.increment();
   }
+
+  public void responseCredits() {
+    responseCreditsCounter.increment();
+  }
+
+  public void signalBatch(int requests) {
+    signalBatchCounter.increment();
+    batchedRequestCounter.add(requests);
+  }
+
+  public void concurrencyLimited() {
+    concurrencyLimitedCounter.increment();
+  }
+
+  public void circuitRejected() {
+    circuitRejectedCounter.increment();
+  }
+
+  /**
+   * @param nanos time from the request was sent until the first response was received
+   */
+  public void firstResponse(long nanos) {
+    firstResponseLatency.record(nanos, TimeUnit.NANOSECONDS);
+  }
+
+  /**
+   * @param nanos time from the request was sent until end of stream was received
+   */
+  public void endOfStreamReceived(long nanos) {
+    endOfStreamLatency.record(nanos, TimeUnit.NANOSECONDS);
+  }
+
+  /**
+   * @param nanos time between two responses in a response stream
+   */
+  public void interResponseTime(long nanos) {
+    interResponseTime.record(nanos, TimeUnit.NANOSECONDS);
+  }
+
+  /**
+   * @param nanos time spent reassembling a fragmented response
+   */
+  public void fragmentReassembly(long nanos) {
+    fragmentReassemblyTime.record(nanos, TimeUnit.NANOSECONDS);
+  }
+
+  /**
+   * Record the hops of a request, from the timestamps returned with the first response (protocol V6).
+   * All timestamps are epoch millis. The request and response transit times compare clocks of
+   * different hosts, and include any clock skew between client and proxy. The total broker transit
+   * time is measured on each host separately, and is not affected by clock skew.
+   *
+   * @param clientSendTime    time the client sent the request
+   * @param proxyReceiveTime  time the proxy received the request
+   * @param dispatchTime      time the proxy dispatched the request to its RequestSink
+   * @param responseSendTime  time the proxy sent the first response
+   * @param clientReceiveTime time the client received the first response
+   */
+  public void hops(long clientSendTime, long proxyReceiveTime, long dispatchTime, long responseSendTime, long clientReceiveTime) {
+    requestTransitTime.record(proxyReceiveTime - clientSendTime, TimeUnit.MILLISECONDS);
+    proxyQueueTime.record(dispatchTime - proxyReceiveTime, TimeUnit.MILLISECONDS);
+    proxyProcessingTime.record(responseSendTime - dispatchTime, TimeUnit.MILLISECONDS);
+    responseTransitTime.record(clientReceiveTime - responseSendTime, TimeUnit.MILLISECONDS);
+    brokerTransitTime.record((clientReceiveTime - clientSendTime) - (responseSendTime - proxyReceiveTime), TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * @param nanos time spent waiting for a session from the session pool
+   */
+  public void sessionLeased(long nanos) {
+    sessionLeaseTime.record(nanos, TimeUnit.NANOSECONDS);
+  }
+
+  /**
+   * @param nanos round trip time of a probe through the broker to a response queue
+   */
+  public void responseQueueProbe(long nanos) {
+    responseQueueProbeTime.record(nanos, TimeUnit.NANOSECONDS);
+  }
+
+  public void responseQueueProbeFailed() {
+    responseQueueProbeFailedCounter.increment();
+  }
+
+  public void sessionLeaseTimeout() {
+    sessionLeaseTimeoutCounter.increment();
+  }
+
+  public void cleanup(long nanos, int cleanedCalls, int pendingCalls) {
+    cleanupCounter.increment();
+    cleanupTime.add(TimeUnit.NANOSECONDS.toMicros(nanos));
+    cleanedCallsCounter.add(cleanedCalls);
+    this.pendingCalls.set(pendingCalls);
+  }
 }
@@ -0,0 +1,191 @@
+package no.mnemonic.messaging.requestsink.jms.util;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Adaptive limit of outstanding calls, using additive increase/multiplicative decrease (AIMD).
+ * <p>
+ * Each call must acquire a token before it is sent, and complete the token when the call ends.
+ * The limit is increased by one for each limit's worth of successful calls, as long as the round trip time
+ * stays within the RTT tolerance of the baseline (the lowest observed round trip time, slowly adapting upwards).
+ * The limit is decreased by the backoff ratio when a call times out, or when the round trip time exceeds the tolerance,
+ * which indicates that requests are queueing up in the broker or the proxies.
+ */
+public class ConcurrencyLimiter {
+
+  static final int DEFAULT_INITIAL_LIMIT = 20;
+  static final int DEFAULT_MIN_LIMIT = 1;
+  static final int DEFAULT_MAX_LIMIT = 1000;
+  static final double DEFAULT_BACKOFF_RATIO = 0.9;
+  static final double DEFAULT_RTT_TOLERANCE = 2.0;
+  private static final double BASELINE_ADAPT_RATE = 0.01;
+  //avoid backing off on jitter when round trip times are very low
+  private static final long MIN_BASELINE_RTT = 10;
+
+  private final int minLimit;
+  private final int maxLimit;
+  private final double backoffRatio;
+  private final double rttTolerance;
+
+  private double limit;
+  private int inflight;
+  private double baselineRtt = -1;
+
+  private ConcurrencyLimiter(int initialLimit, int minLimit, int maxLimit, double backoffRatio, double rttTolerance) {
+    if (minLimit < 1) throw new IllegalArgumentException("minLimit cannot be lower than 1");
+    if (maxLimit < minLimit) throw new IllegalArgumentException("maxLimit cannot be lower than minLimit");
+    if (initialLimit < minLimit || initialLimit > maxLimit)
+      throw new IllegalArgumentException("initialLimit must be between minLimit and maxLimit");
+    if (backoffRatio <= 0 || backoffRatio >= 1) throw new IllegalArgumentException("backoffRatio must be between 0 and 1");
+    if (rttTolerance < 1) throw new IllegalArgumentException("rttTolerance cannot be lower than 1");
+    this.limit = initialLimit;
+    this.minLimit = minLimit;
+    this.maxLimit = maxLimit;
+    this.backoffRatio = backoffRatio;
+    this.rttTolerance = rttTolerance;
+  }
+
+  /**
+   * @return a token for a new call, or null if the limit of outstanding calls is reached
+   */
+  public synchronized Token tryAcquire() {
+    if (inflight >= getLimit()) return null;
+    inflight++;
+    return new Token();
+  }
+
+  /**
+   * @return the current limit of outstanding calls
+   */
+  public synchronized int getLimit() {
+    return (int) limit;
+  }
+
+  /**
+   * @return the current number of outstanding calls
+   */
+  public synchronized int getInflight() {
+    return inflight;
+  }
+
+  /**
+   * @return the baseline round trip time in millis, or -1 if no round trip time is observed yet
+   */
+  public synchronized long getBaselineRtt() {
+    return (long) baselineRtt;
+  }
+
+  private synchronized void success(long rtt) {
+    inflight--;
+    if (baselineRtt < 0 || rtt < baselineRtt) {
+      baselineRtt = rtt;
+    } else {
+      baselineRtt += (rtt - baselineRtt) * BASELINE_ADAPT_RATE;
+    }
+    if (rtt > Math.max(MIN_BASELINE_RTT, baselineRtt) * rttTolerance) {
+      backoff();
+    } else if (inflight * 2 >= limit) {
+      //only increase the limit when it is actually used
+      limit = Math.min(maxLimit, limit + 1 / limit);
+    }
+  }
+
+  private synchronized void dropped() {
+    inflight--;
+    backoff();
+  }
+
+  private synchronized void ignored() {
+    inflight--;
+  }
+
+  private void backoff() {
+    limit = Math.max(minLimit, limit * backoffRatio);
+  }
+
+  /**
+   * Token for an outstanding call. The first completion of the token releases the call, later completions are ignored.
+   */
+  public class Token {
+    private final AtomicBoolean released = new AtomicBoolean();
+
+    private Token() {
+    }
+
+    /**
+     * The call got a response
+     *
+     * @param rtt round trip time in millis
+     */
+    public void success(long rtt) {
+      if (!released.getAndSet(true)) ConcurrencyLimiter.this.success(rtt);
+    }
+
+    /**
+     * The call timed out without response
+     */
+    public void dropped() {
+      if (!released.getAndSet(true)) ConcurrencyLimiter.this.dropped();
+    }
+
+    /**
+     * The call ended without telling anything about the load, i.e. failed to send or closed by the client
+     */
+    public void ignored() {
+      if (!released.getAndSet(true)) ConcurrencyLimiter.this.ignored();
+    }
+  }
+
+  public static Builder builder() {
+    return new Builder();
+  }
+
+  public static class Builder {
+
+    private int initialLimit = DEFAULT_INITIAL_LIMIT;
+    private int minLimit = DEFAULT_MIN_LIMIT;
+    private int maxLimit = DEFAULT_MAX_LIMIT;
+    private double backoffRatio = DEFAULT_BACKOFF_RATIO;
+    private double rttTolerance = DEFAULT_RTT_TOLERANCE;
+
+    private Builder() {
+    }
+
+    public ConcurrencyLimiter build() {
+      return new ConcurrencyLimiter(initialLimit, minLimit, maxLimit, backoffRatio, rttTolerance);
+    }
+
+    //setters
+
+    public Builder setInitialLimit(int initialLimit) {
+      this.initialLimit = initialLimit;
+      return this;
+    }
+
+    public Builder setMinLimit(int minLimit) {
+      this.minLimit = minLimit;
+      return this;
+    }
+
+    public Builder setMaxLimit(int maxLimit) {
+      this.maxLimit = maxLimit;
+      return this;
+    }
+
+    /**
+     * @param backoffRatio factor to multiply the limit with when a call times out, or the round trip time is too high
+     */
+    public Builder setBackoffRatio(double backoffRatio) {
+      this.backoffRatio = backoffRatio;
+      return this;
+    }
+
+    /**
+     * @param rttTolerance how many times the baseline round trip time a call may take before the limit is decreased
+     */
+    public Builder setRttTolerance(double rttTolerance) {
+      this.rttTolerance = rttTolerance;
+      return this;
+    }
+  }
+}
@@ -0,0 +1,137 @@
+package no.mnemonic.messaging.requestsink.jms.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Index of keys ordered by their expiry deadline, used to find expired state without scanning all state.
+ * <p>
+ * Finding expired keys using {@link #pollExpired(long)} costs O(log n) per expired key, and O(1) if no keys are expired.
+ * {@link #sweep(int)} walks a bounded number of keys per invocation in round-robin order,
+ * allowing callers to incrementally find state which is closed before its deadline.
+ * <p>
+ * This class is thread safe.
+ *
+ * @param <K> key type
+ */
+public class ExpiryIndex<K> {
+
+  private final NavigableSet<Entry<K>> index = new ConcurrentSkipListSet<>();
+  private final Map<K, Entry<K>> entries = new ConcurrentHashMap<>();
+  private final AtomicLong sequence = new AtomicLong();
+  private final AtomicReference<Entry<K>> sweepCursor = new AtomicReference<>();
+
+  /**
+   * Add key to the index, replacing any current deadline for this key
+   *
+   * @param key      key to add
+   * @param deadline deadline of this key, as epoch millis
+   */
+  public void add(K key, long deadline) {
+    if (key == null) throw new IllegalArgumentException("key not set");
+    Entry<K> entry = new Entry<>(key, deadline, sequence.incrementAndGet());
+    //register entry before indexing it, so a concurrent poll will find it
+    Entry<K> previous = entries.put(key, entry);
+    index.add(entry);
+    if (previous != null) index.remove(previous);
+  }
+
+  /**
+   * Remove key from the index
+   *
+   * @param key key to remove
+   * @return true if the key was indexed
+   */
+  public boolean remove(K key) {
+    if (key == null) return false;
+    Entry<K> entry = entries.remove(key);
+    if (entry == null) return false;
+    index.remove(entry);
+    return true;
+  }
+
+  /**
+   * Remove and return all keys with a deadline before the given time
+   *
+   * @param now current time, as epoch millis
+   * @return the expired keys, ordered by deadline
+   */
+  public List<K> pollExpired(long now) {
+    List<K> result = new ArrayList<>();
+    while (true) {
+      Entry<K> first = firstOrNull();
+      if (first == null || first.deadline > now) return result;
+      //another thread may have polled or replaced the entry concurrently
+      if (!index.remove(first)) continue;
+      if (entries.remove(first.key, first)) result.add(first.key);
+    }
+  }
+
+  /**
+   * Return the next keys in round-robin order, continuing where the previous sweep stopped.
+   * Keys are not removed from the index.
+   *
+   * @param count max number of keys to return
+   * @return up to count keys
+   */
+  public List<K> sweep(int count) {
+    List<K> result = new ArrayList<>();
+    Entry<K> cursor = sweepCursor.get();
+    Entry<K> last = cursor;
+    for (Entry<K> e : cursor == null ? index : index.tailSet(cursor, false)) {
+      if (result.size() >= count) break;
+      result.add(e.key);
+      last = e;
+    }
+    //wrap around to the start of the index
+    if (result.size() < count && cursor != null) {
+      for (Entry<K> e : index.headSet(cursor, true)) {
+        if (result.size() >= count) break;
+        result.add(e.key);
+        last = e;
+      }
+    }
+    sweepCursor.compareAndSet(cursor, last);
+    return result;
+  }
+
+  /**
+   * @return number of indexed keys
+   */
+  public int size() {
+    return entries.size();
+  }
+
+  private Entry<K> firstOrNull() {
+    try {
+      return index.first();
+    } catch (NoSuchElementException e) {
+      return null;
+    }
+  }
+
+  private static class Entry<K> implements Comparable<Entry<K>> {
+    private final K key;
+    private final long deadline;
+    private final long sequence;
+
+    private Entry(K key, long deadline, long sequence) {
+      this.key = key;
+      this.deadline = deadline;
+      this.sequence = sequence;
+    }
+
+    @Override
+    public int compareTo(Entry<K> o) {
+      int c = Long.compare(deadline, o.deadline);
+      return c != 0 ? c : Long.compare(sequence, o.sequence);
+    }
+  }
+}
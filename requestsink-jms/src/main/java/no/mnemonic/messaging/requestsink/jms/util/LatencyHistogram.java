@@ -0,0 +1,141 @@
+package no.mnemonic.messaging.requestsink.jms.util;
+
+import no.mnemonic.commons.metrics.MetricException;
+import no.mnemonic.commons.metrics.MetricsData;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free histogram of durations in microseconds, with log-linear buckets.
+ * <p>
+ * Values below 16 are counted exactly. Larger values are counted in buckets splitting each power of two
+ * into 16 linear sub-buckets, so percentiles are reported with a relative error of at most 1/16 (6.25%).
+ * Values above {@link #MAX_VALUE} (about 12 days) are counted in the top bucket.
+ * <p>
+ * Recording is a few atomic increments, and does not allocate. Counts are kept since creation.
+ */
+public class LatencyHistogram {
+
+  private static final int SUB_BUCKET_BITS = 4;
+  private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+  private static final int MAX_MAGNITUDE = 40;
+  static final long MAX_VALUE = (1L << (MAX_MAGNITUDE + 1)) - 1;
+  private static final double[] PERCENTILES = {0.5, 0.9, 0.99, 0.999};
+  private static final String[] PERCENTILE_NAMES = {"P50", "P90", "P99", "P999"};
+
+  private final AtomicLongArray buckets = new AtomicLongArray(bucketIndex(MAX_VALUE) + 1);
+  private final LongAdder count = new LongAdder();
+  private final LongAdder sum = new LongAdder();
+  private final AtomicLong max = new AtomicLong();
+
+  /**
+   * Record a duration
+   *
+   * @param duration duration to record, negative values are recorded as 0
+   * @param unit     unit of the duration
+   */
+  public void record(long duration, TimeUnit unit) {
+    recordMicros(unit.toMicros(duration));
+  }
+
+  /**
+   * Record a duration in microseconds
+   *
+   * @param micros duration to record, negative values are recorded as 0
+   */
+  public void recordMicros(long micros) {
+    long value = Math.min(Math.max(micros, 0), MAX_VALUE);
+    buckets.incrementAndGet(bucketIndex(value));
+    count.increment();
+    sum.add(value);
+    long current;
+    while (value > (current = max.get()) && !max.compareAndSet(current, value)) {
+      //retry until max is at least this value
+    }
+  }
+
+  public long getCount() {
+    return count.sum();
+  }
+
+  public long getMax() {
+    return max.get();
+  }
+
+  /**
+   * @param percentile percentile between 0 and 1
+   * @return approximate value at the given percentile, or 0 if nothing is recorded
+   */
+  public long getPercentile(double percentile) {
+    return percentiles(new double[]{percentile})[0];
+  }
+
+  /**
+   * Add count, mean, max and percentiles of this histogram to the metrics, as
+   * <code>nameCount</code>, <code>nameMeanMicros</code>, <code>nameMaxMicros</code> and
+   * <code>nameP50Micros</code>, <code>nameP90Micros</code>, <code>nameP99Micros</code>, <code>nameP999Micros</code>.
+   *
+   * @param data metrics to add to
+   * @param name name prefix of the metrics
+   */
+  public void addTo(MetricsData data, String name) throws MetricException {
+    long n = count.sum();
+    long[] values = percentiles(PERCENTILES);
+    data.addData(name + "Count", n)
+            .addData(name + "MeanMicros", n > 0 ? sum.sum() / n : 0)
+            .addData(name + "MaxMicros", max.get());
+    for (int i = 0; i < PERCENTILES.length; i++) {
+      data.addData(name + PERCENTILE_NAMES[i] + "Micros", values[i]);
+    }
+  }
+
+  private long[] percentiles(double[] percentiles) {
+    //take a snapshot of the buckets, as recording may continue while iterating
+    long[] snapshot = new long[buckets.length()];
+    long total = 0;
+    for (int i = 0; i < snapshot.length; i++) {
+      snapshot[i] = buckets.get(i);
+      total += snapshot[i];
+    }
+    long[] result = new long[percentiles.length];
+    if (total == 0) return result;
+    for (int p = 0; p < percentiles.length; p++) {
+      long rank = Math.max(1, (long) Math.ceil(percentiles[p] * total));
+      long seen = 0;
+      for (int i = 0; i < snapshot.length; i++) {
+        seen += snapshot[i];
+        if (seen >= rank) {
+          //never report more than the max recorded value
+          result[p] = Math.min(bucketMidpoint(i), max.get());
+          break;
+        }
+      }
+    }
+    return result;
+  }
+
+  static int bucketIndex(long value) {
+    if (value < SUB_BUCKETS) return (int) value;
+    int magnitude = 63 - Long.numberOfLeadingZeros(value);
+    int shift = magnitude - SUB_BUCKET_BITS;
+    //the top bits of the value select the sub-bucket, between SUB_BUCKETS and 2*SUB_BUCKETS-1
+    int subBucket = (int) (value >>> shift);
+    return (shift + 1) * SUB_BUCKETS + subBucket - SUB_BUCKETS;
+  }
+
+  static long bucketLowerBound(int index) {
+    if (index < SUB_BUCKETS) return index;
+    int shift = index / SUB_BUCKETS - 1;
+    long subBucket = index % SUB_BUCKETS + SUB_BUCKETS;
+    return subBucket << shift;
+  }
+
+  private static long bucketMidpoint(int index) {
+    if (index < SUB_BUCKETS) return index;
+    int shift = index / SUB_BUCKETS - 1;
+    return bucketLowerBound(index) + ((1L << shift) >> 1);
+  }
+}
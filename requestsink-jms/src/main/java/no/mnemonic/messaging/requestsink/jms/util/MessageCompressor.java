@@ -0,0 +1,170 @@
+package no.mnemonic.messaging.requestsink.jms.util;
+
+import no.mnemonic.commons.metrics.MetricException;
+import no.mnemonic.commons.metrics.MetricsData;
+import no.mnemonic.messaging.requestsink.jms.AbstractJMSRequestBase;
+import no.mnemonic.messaging.requestsink.jms.ProtocolVersion;
+
+import javax.jms.JMSException;
+import javax.jms.Message;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compression of message payloads with Deflate (protocol V7).
+ * <p>
+ * Payloads of at least the threshold size are compressed, unless compression does not make them smaller.
+ * A compressed message announces the codec and the uncompressed size in message properties, so the receiver knows to
+ * decompress it, and messages without these properties are passed through.
+ * Decompression is always supported, also when compression is disabled.
+ * <p>
+ * Compression and decompression time is measured as CPU time of the calling thread, if supported by the JVM.
+ */
+public class MessageCompressor {
+
+  public static final String CODEC_DEFLATE = "deflate";
+
+  //deflate cannot compress better than about 1032:1, so a larger uncompressed size is invalid
+  private static final int MAX_COMPRESSION_RATIO = 1032;
+  private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+
+  private final int threshold;
+  private final LongAdder compressedCounter = new LongAdder();
+  private final LongAdder uncompressedBytes = new LongAdder();
+  private final LongAdder compressedBytes = new LongAdder();
+  private final LongAdder compressionTime = new LongAdder();
+  private final LongAdder incompressibleCounter = new LongAdder();
+  private final LongAdder decompressedCounter = new LongAdder();
+  private final LongAdder decompressionTime = new LongAdder();
+
+  /**
+   * @param threshold min size in bytes of payloads to compress, or 0 to disable compression
+   */
+  public MessageCompressor(int threshold) {
+    if (threshold < 0) throw new IllegalArgumentException("threshold cannot be negative");
+    this.threshold = threshold;
+  }
+
+  /**
+   * Compress the payload, if it is not smaller than the threshold
+   *
+   * @param data payload to compress
+   * @return the compressed payload, or null if the payload should be sent uncompressed
+   */
+  public byte[] compress(byte[] data) {
+    if (threshold <= 0 || data.length < threshold) return null;
+    long start = cpuTime();
+    Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+    try {
+      deflater.setInput(data);
+      deflater.finish();
+      //only use the compressed payload if it is smaller
+      byte[] buffer = new byte[data.length];
+      int length = 0;
+      while (!deflater.finished() && length < buffer.length) {
+        length += deflater.deflate(buffer, length, buffer.length - length);
+      }
+      compressionTime.add(cpuTime() - start);
+      if (!deflater.finished()) {
+        incompressibleCounter.increment();
+        return null;
+      }
+      compressedCounter.increment();
+      uncompressedBytes.add(data.length);
+      compressedBytes.add(length);
+      return Arrays.copyOf(buffer, length);
+    } finally {
+      deflater.end();
+    }
+  }
+
+  /**
+   * Decompress the payload
+   *
+   * @param data             payload to decompress
+   * @param uncompressedSize size of the uncompressed payload, or 0 if the payload is not compressed
+   * @return the uncompressed payload
+   * @throws IOException if the payload is not valid compressed data of the given size
+   */
+  public byte[] decompress(byte[] data, int uncompressedSize) throws IOException {
+    if (uncompressedSize == 0) return data;
+    if (uncompressedSize < 0 || (long) uncompressedSize > (long) data.length * MAX_COMPRESSION_RATIO) {
+      throw new IOException("Invalid uncompressed size: " + uncompressedSize);
+    }
+    long start = cpuTime();
+    Inflater inflater = new Inflater();
+    try {
+      inflater.setInput(data);
+      byte[] result = new byte[uncompressedSize];
+      int length = 0;
+      while (!inflater.finished() && length < result.length) {
+        int n = inflater.inflate(result, length, result.length - length);
+        if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) break;
+        length += n;
+      }
+      if (!inflater.finished() || length != uncompressedSize) {
+        throw new IOException("Compressed data does not match uncompressed size " + uncompressedSize);
+      }
+      decompressedCounter.increment();
+      decompressionTime.add(cpuTime() - start);
+      return result;
+    } catch (DataFormatException e) {
+      throw new IOException("Invalid compressed data", e);
+    } finally {
+      inflater.end();
+    }
+  }
+
+  /**
+   * Announce the compression of the payload in the message properties
+   *
+   * @param message          message to set properties on
+   * @param uncompressedSize size of the uncompressed payload, or 0 if the payload is not compressed
+   */
+  public static void setCompressionProperties(Message message, int uncompressedSize) throws JMSException {
+    if (uncompressedSize == 0) return;
+    message.setStringProperty(AbstractJMSRequestBase.PROPERTY_COMPRESSION, CODEC_DEFLATE);
+    message.setIntProperty(AbstractJMSRequestBase.PROPERTY_UNCOMPRESSED_SIZE, uncompressedSize);
+  }
+
+  /**
+   * @param message message with a payload, or describing a payload sent in fragments
+   * @return the uncompressed size of the payload, or 0 if the payload is not compressed (or protocol version is below V7)
+   * @throws JMSException if the payload is compressed with an unsupported codec
+   */
+  public static int getUncompressedSize(Message message) throws JMSException {
+    if (!JMSUtils.getProtocolVersion(message).atLeast(ProtocolVersion.V7)) return 0;
+    if (!message.propertyExists(AbstractJMSRequestBase.PROPERTY_COMPRESSION)) return 0;
+    String codec = message.getStringProperty(AbstractJMSRequestBase.PROPERTY_COMPRESSION);
+    if (!CODEC_DEFLATE.equals(codec)) throw new JMSException("Unsupported compression codec: " + codec);
+    return message.getIntProperty(AbstractJMSRequestBase.PROPERTY_UNCOMPRESSED_SIZE);
+  }
+
+  /**
+   * Add the compression metrics, as <code>compressedMessages</code>, <code>incompressibleMessages</code>,
+   * <code>compressionRatio</code> (uncompressed size / compressed size), <code>compressionTimeMicros</code>,
+   * <code>decompressedMessages</code> and <code>decompressionTimeMicros</code>.
+   *
+   * @param data metrics to add to
+   */
+  public void addTo(MetricsData data) throws MetricException {
+    long compressed = compressedBytes.sum();
+    data.addData("compressedMessages", compressedCounter)
+            .addData("incompressibleMessages", incompressibleCounter)
+            .addData("compressionRatio", compressed > 0 ? (double) uncompressedBytes.sum() / compressed : 0)
+            .addData("compressionTimeMicros", TimeUnit.NANOSECONDS.toMicros(compressionTime.sum()))
+            .addData("decompressedMessages", decompressedCounter)
+            .addData("decompressionTimeMicros", TimeUnit.NANOSECONDS.toMicros(decompressionTime.sum()));
+  }
+
+  private static long cpuTime() {
+    return THREADS.isCurrentThreadCpuTimeSupported() ? THREADS.getCurrentThreadCpuTime() : System.nanoTime();
+  }
+}
@@ -0,0 +1,87 @@
+package no.mnemonic.messaging.requestsink.jms.util;
+
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Fixed size thread pool running queued tasks in priority order, with aging.
+ * <p>
+ * Each priority level a task has over another task is worth the aging interval of waiting time,
+ * so a task is run before any task with lower priority which was queued less than
+ * (priority difference * aging interval) earlier. Low priority tasks still make progress,
+ * as a waiting task eventually gets ahead of any newly queued task.
+ * Tasks with the same priority are run in FIFO order.
+ */
+public class PriorityExecutor implements CallExecutor {
+
+  private final ThreadPoolExecutor executor;
+  private final long agingInterval;
+  private final AtomicLong sequence = new AtomicLong();
+
+  /**
+   * @param threads       number of threads
+   * @param agingInterval millis of waiting time worth one priority level
+   * @param threadFactory factory for the threads of this executor
+   */
+  public PriorityExecutor(int threads, long agingInterval, ThreadFactory threadFactory) {
+    if (threads < 1) throw new IllegalArgumentException("threads cannot be lower than 1");
+    if (agingInterval < 0) throw new IllegalArgumentException("agingInterval cannot be negative");
+    this.agingInterval = agingInterval;
+    this.executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS, new PriorityBlockingQueue<>(), threadFactory);
+  }
+
+  /**
+   * Queue a task
+   *
+   * @param priority priority of the task, where higher priority tasks are run first
+   * @param task     task to run
+   */
+  @Override
+  public void execute(int priority, Runnable task) {
+    executor.execute(new PrioritizedTask(System.currentTimeMillis() - priority * agingInterval, sequence.incrementAndGet(), task));
+  }
+
+  /**
+   * @return number of queued tasks not yet started
+   */
+  public int getQueueSize() {
+    return executor.getQueue().size();
+  }
+
+  @Override
+  public void shutdown() {
+    executor.shutdown();
+  }
+
+  @Override
+  public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+    return executor.awaitTermination(timeout, unit);
+  }
+
+  private static class PrioritizedTask implements Runnable, Comparable<PrioritizedTask> {
+    //the time this task is ordered by, which is earlier than the queue time for higher priority tasks
+    private final long virtualTime;
+    private final long sequence;
+    private final Runnable task;
+
+    private PrioritizedTask(long virtualTime, long sequence, Runnable task) {
+      this.virtualTime = virtualTime;
+      this.sequence = sequence;
+      this.task = task;
+    }
+
+    @Override
+    public void run() {
+      task.run();
+    }
+
+    @Override
+    public int compareTo(PrioritizedTask o) {
+      int result = Long.compare(virtualTime, o.virtualTime);
+      return result != 0 ? result : Long.compare(sequence, o.sequence);
+    }
+  }
+}
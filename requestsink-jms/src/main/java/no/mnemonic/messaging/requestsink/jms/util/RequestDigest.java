@@ -0,0 +1,115 @@
+package no.mnemonic.messaging.requestsink.jms.util;
+
+import no.mnemonic.messaging.requestsink.Message;
+import no.mnemonic.messaging.requestsink.jms.serializer.MessageSerializer;
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static no.mnemonic.messaging.requestsink.jms.util.JMSUtils.assertNotNull;
+
+/**
+ * Content digest of a request, used to detect requests with equal content.
+ * <p>
+ * The digest is computed from a copy of the request, made with the serializer, where the fields holding the callID
+ * and the message timestamp are cleared, so requests which only differ in these fields get the same digest.
+ * These fields are found once per message class, by checking which field changes the value returned by
+ * {@link Message#getCallID()} and {@link Message#getMessageTimestamp()}. Other fields are never ignored,
+ * even if they have the same value.
+ * <p>
+ * Requests where these values are not held by a field of the message cannot be digested,
+ * and must be keyed with an explicit key function.
+ */
+public class RequestDigest {
+
+  private static final ThreadLocal<MessageDigest> DIGEST = ThreadLocal.withInitial(() -> {
+    try {
+      return MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  });
+  private static final Map<Class<?>, KeyFields> KEY_FIELDS = new ConcurrentHashMap<>();
+
+  private RequestDigest() {
+  }
+
+  /**
+   * @param serializer serializer to use
+   * @param msg        request to digest
+   * @return Base64 encoded SHA-256 digest of the request, ignoring callID and message timestamp
+   * @throws IOException if serialization fails, or the callID and message timestamp fields of the request are not found
+   */
+  public static String digest(MessageSerializer serializer, Message msg) throws IOException {
+    assertNotNull(serializer, "serializer not set");
+    assertNotNull(msg, "msg not set");
+    //normalize a copy, as the request is owned by the caller
+    Message copy = serializer.deserialize(serializer.serialize(msg), msg.getClass().getClassLoader());
+    KeyFields fields = KEY_FIELDS.computeIfAbsent(copy.getClass(), c -> KeyFields.find(copy));
+    if (fields.callID == null || fields.timestamp == null) {
+      throw new IOException("Cannot find callID and message timestamp fields of " + copy.getClass().getName());
+    }
+    try {
+      fields.callID.set(copy, null);
+      fields.timestamp.setLong(copy, 0);
+    } catch (IllegalAccessException e) {
+      throw new IOException("Cannot normalize " + copy.getClass().getName(), e);
+    }
+    return Base64.getEncoder().encodeToString(DIGEST.get().digest(serializer.serialize(copy)));
+  }
+
+  /**
+   * The fields backing the callID and message timestamp of a message class, or null if not found
+   */
+  private static class KeyFields {
+    private Field callID;
+    private Field timestamp;
+
+    private static KeyFields find(Message sample) {
+      KeyFields result = new KeyFields();
+      for (Class<?> c = sample.getClass(); c != null && c != Object.class; c = c.getSuperclass()) {
+        for (Field f : c.getDeclaredFields()) {
+          if (Modifier.isStatic(f.getModifiers())) continue;
+          try {
+            if (result.callID == null && f.getType() == String.class && backsCallID(sample, f)) result.callID = f;
+            if (result.timestamp == null && f.getType() == long.class && backsTimestamp(sample, f)) result.timestamp = f;
+          } catch (RuntimeException | IllegalAccessException ignored) {
+            //inaccessible field, cannot be normalized
+          }
+        }
+      }
+      return result;
+    }
+
+    /**
+     * Probe the field by changing it on the sample, and check if the getter follows
+     */
+    private static boolean backsCallID(Message sample, Field f) throws IllegalAccessException {
+      f.setAccessible(true);
+      Object value = f.get(sample);
+      if (!Objects.equals(value, sample.getCallID())) return false;
+      String probe = "probe-" + value;
+      f.set(sample, probe);
+      boolean backs = probe.equals(sample.getCallID());
+      f.set(sample, value);
+      return backs;
+    }
+
+    private static boolean backsTimestamp(Message sample, Field f) throws IllegalAccessException {
+      f.setAccessible(true);
+      long value = f.getLong(sample);
+      if (value != sample.getMessageTimestamp()) return false;
+      f.setLong(sample, value + 1);
+      boolean backs = sample.getMessageTimestamp() == value + 1;
+      f.setLong(sample, value);
+      return backs;
+    }
+  }
+}
@@ -4,6 +4,8 @@ import no.mnemonic.commons.metrics.MetricException;
 import no.mnemonic.commons.metrics.Metrics;
 import no.mnemonic.commons.metrics.MetricsData;
 
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.LongAdder;
 
 public class ServerMetrics {
@@ -12,6 +14,7 @@ public class ServerMetrics {
   private final LongAdder exceptionSignalCount = new LongAdder();
   private final LongAdder requestCount = new LongAdder();
   private final LongAdder requestTimeoutCount = new LongAdder();
+  private final LongAdder queueExpiredCount = new LongAdder();
   private final LongAdder replyCount = new LongAdder();
   private final LongAdder endOfStreamCounter = new LongAdder();
   private final LongAdder extendWaitCounter = new LongAdder();
@@ -21,14 +24,29 @@ public class ServerMetrics {
   private final LongAdder fragmentedReplyCompletedCounter = new LongAdder();
   private final LongAdder fragmentedReplyFragmentCounter = new LongAdder();
   private final LongAdder incompatibleMessageCounter = new LongAdder();
+  private final LongAdder responseCreditsCounter = new LongAdder();
+  private final LongAdder responseCreditWaitCounter = new LongAdder();
+  private final LongAdder responseCreditTimeoutCounter = new LongAdder();
+  private final LongAdder signalBatchCounter = new LongAdder();
+  private final LongAdder batchedRequestCounter = new LongAdder();
+  private final LongAdder cleanupCounter = new LongAdder();
+  private final LongAdder cleanupTime = new LongAdder();
+  private final LongAdder cleanedCallsCounter = new LongAdder();
+  private final AtomicLong pendingCalls = new AtomicLong();
+  private final LatencyHistogram queueWaitTime = new LatencyHistogram();
+  private final LatencyHistogram signalTime = new LatencyHistogram();
+  private final LatencyHistogram fragmentedUploadTime = new LatencyHistogram();
+  private final LatencyHistogram fragmentReassemblyTime = new LatencyHistogram();
+  private MessageCompressor compressor;
 
   public Metrics metrics() throws MetricException {
-    return new MetricsData()
+    MetricsData data = new MetricsData()
             .addData("errors", errorCount)
             .addData("reconnections", reconnectCount)
             .addData("exceptionSignal", exceptionSignalCount)
             .addData("requests", requestCount)
             .addData("requestTimeoutCount", requestTimeoutCount)
+            .addData("queueExpiredCount", queueExpiredCount)
             .addData("replies", replyCount)
             .addData("endOfStreams", endOfStreamCounter)
             .addData("extendWaits", extendWaitCounter)
@@ -37,13 +55,75 @@ public class ServerMetrics {
             .addData("fragmentedUploadCompleted", fragmentedUploadCompletedCounter)
             .addData("fragmentedReplyCompleted", fragmentedReplyCompletedCounter)
             .addData("fragmentedReplyFragments", fragmentedReplyFragmentCounter)
-            .addData("incompatibleMessages", incompatibleMessageCounter);
+            .addData("incompatibleMessages", incompatibleMessageCounter)
+            .addData("responseCredits", responseCreditsCounter)
+            .addData("responseCreditWaits", responseCreditWaitCounter)
+            .addData("responseCreditTimeouts", responseCreditTimeoutCounter)
+            .addData("signalBatches", signalBatchCounter)
+            .addData("batchedRequests", batchedRequestCounter)
+            .addData("cleanups", cleanupCounter)
+            .addData("cleanupTimeMicros", cleanupTime)
+            .addData("cleanedCalls", cleanedCallsCounter)
+            .addData("pendingCalls", pendingCalls);
+    queueWaitTime.addTo(data, "queueWaitTime");
+    signalTime.addTo(data, "signalTime");
+    fragmentedUploadTime.addTo(data, "fragmentedUploadTime");
+    fragmentReassemblyTime.addTo(data, "fragmentReassemblyTime");
+    if (compressor != null) {
+      compressor.addTo(data);
+    }
+    return data;
+  }
+
+  /**
+   * Expose the compression ratio and time of the compressor in these metrics
+   */
+  public void setCompressor(MessageCompressor compressor) {
+    this.compressor = compressor;
   }
 
   public void requestTimeout() {
     requestTimeoutCount.increment();
   }
 
+  /**
+   * A request was dequeued for dispatch
+   *
+   * @param nanos time from the request was received until dispatched
+   */
+  public void queueWait(long nanos) {
+    queueWaitTime.record(nanos, TimeUnit.NANOSECONDS);
+  }
+
+  /**
+   * @param nanos time spent in the downstream RequestSink handling a request
+   */
+  public void signal(long nanos) {
+    signalTime.record(nanos, TimeUnit.NANOSECONDS);
+  }
+
+  /**
+   * @param nanos time from a fragmented upload was set up until all fragments were received
+   */
+  public void fragmentedUpload(long nanos) {
+    fragmentedUploadTime.record(nanos, TimeUnit.NANOSECONDS);
+  }
+
+  /**
+   * @param nanos time spent reassembling a fragmented upload
+   */
+  public void fragmentReassembly(long nanos) {
+    fragmentReassemblyTime.record(nanos, TimeUnit.NANOSECONDS);
+  }
+
+  /**
+   * A request timed out while waiting for dispatch
+   */
+  public void queueExpired() {
+    queueExpiredCount.increment();
+    requestTimeoutCount.increment();
+  }
+
   public void reconnected() {
     reconnectCount.increment();
   }
@@ -95,4 +175,28 @@ public class ServerMetrics {
   public void extendWait() {
     extendWaitCounter.increment();
   }
+
+  public void responseCredits() {
+    responseCreditsCounter.increment();
+  }
+
+  public void responseCreditWait() {
+    responseCreditWaitCounter.increment();
+  }
+
+  public void responseCreditTimeout() {
+    responseCreditTimeoutCounter.increment();
+  }
+
+  public void signalBatch(int requests) {
+    signalBatchCounter.increment();
+    batchedRequestCounter.add(requests);
+  }
+
+  public void cleanup(long nanos, int cleanedCalls, int pendingCalls) {
+    cleanupCounter.increment();
+    cleanupTime.add(TimeUnit.NANOSECONDS.toMicros(nanos));
+    cleanedCallsCounter.add(cleanedCalls);
+    this.pendingCalls.set(pendingCalls);
+  }
 }
@@ -0,0 +1,188 @@
+package no.mnemonic.messaging.requestsink.jms.util;
+
+import no.mnemonic.commons.logging.Logger;
+import no.mnemonic.commons.logging.Logging;
+
+import javax.jms.DeliveryMode;
+import javax.jms.JMSException;
+import javax.jms.MessageProducer;
+import javax.jms.Session;
+import javax.naming.NamingException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pool of sessions with an anonymous producer, leased for a single send.
+ * <p>
+ * JMS sessions must only be used by one thread at a time, so each thread sending messages leases
+ * a session from the pool, and returns it when the message is sent.
+ * Sessions are created on demand, up to the size of the pool.
+ * When all sessions are leased, a thread waits for a session to be returned.
+ * <p>
+ * When the pool is closed, idle sessions are closed at once, and leased sessions are closed when returned.
+ * A closed pool cannot be reused, so replace the pool after reconnecting.
+ */
+public class SessionPool {
+
+  private static final Logger LOGGER = Logging.getLogger(SessionPool.class);
+  private static final long MAX_POLL_INTERVAL = 100;
+
+  private final int size;
+  private final JMSUtils.JMSSupplier<Session> sessionFactory;
+  private final LinkedBlockingDeque<Lease> idle = new LinkedBlockingDeque<>();
+  private final AtomicInteger created = new AtomicInteger();
+  private final AtomicInteger leased = new AtomicInteger();
+  private final AtomicBoolean closed = new AtomicBoolean();
+
+  /**
+   * @param size           max number of sessions
+   * @param sessionFactory factory creating a new session
+   */
+  public SessionPool(int size, JMSUtils.JMSSupplier<Session> sessionFactory) {
+    if (size < 1) throw new IllegalArgumentException("size cannot be lower than 1");
+    if (sessionFactory == null) throw new IllegalArgumentException("sessionFactory not set");
+    this.size = size;
+    this.sessionFactory = sessionFactory;
+  }
+
+  /**
+   * Lease a session, creating a new session if none is idle and the pool is not full
+   *
+   * @param maxWait max millis to wait for a session to be returned, if all sessions are leased
+   * @return the leased session, which must be closed to return it to the pool, or null if no session was returned within maxWait
+   * @throws JMSException          if a new session could not be created
+   * @throws IllegalStateException if the pool is closed, also while waiting for a session
+   */
+  public Lease lease(long maxWait) throws JMSException, NamingException, InterruptedException {
+    long deadline = System.currentTimeMillis() + maxWait;
+    while (!closed.get()) {
+      Lease lease = idle.pollFirst();
+      if (lease == null) lease = createIfNotFull();
+      //wait in short intervals, as a discarded session or closing the pool does not notify waiting threads
+      if (lease == null) lease = idle.pollFirst(Math.min(MAX_POLL_INTERVAL, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+      if (lease != null) {
+        leased.incrementAndGet();
+        return lease;
+      }
+      if (System.currentTimeMillis() >= deadline) return null;
+    }
+    throw new IllegalStateException("closed");
+  }
+
+  /**
+   * @return the number of sessions created by this pool
+   */
+  public int getSize() {
+    return created.get();
+  }
+
+  /**
+   * @return the number of sessions currently leased
+   */
+  public int getLeased() {
+    return leased.get();
+  }
+
+  public int getMaxSize() {
+    return size;
+  }
+
+  public boolean isClosed() {
+    return closed.get();
+  }
+
+  /**
+   * Close all idle sessions, and close leased sessions when they are returned
+   */
+  public void close() {
+    if (!closed.compareAndSet(false, true)) return;
+    List<Lease> sessions = new ArrayList<>();
+    idle.drainTo(sessions);
+    sessions.forEach(Lease::closeSession);
+  }
+
+  private Lease createIfNotFull() throws JMSException, NamingException {
+    int current;
+    do {
+      current = created.get();
+      if (current >= size) return null;
+    } while (!created.compareAndSet(current, current + 1));
+    try {
+      LOGGER.debug("Creating pooled session %d of %d", current + 1, size);
+      Session session = sessionFactory.get();
+      MessageProducer producer = session.createProducer(null);
+      producer.setDeliveryMode(DeliveryMode.NON_PERSISTENT);
+      return new Lease(session, producer);
+    } catch (JMSException | NamingException | RuntimeException e) {
+      created.decrementAndGet();
+      throw e;
+    }
+  }
+
+  private void release(Lease lease) {
+    leased.decrementAndGet();
+    idle.addFirst(lease);
+    //the pool may have been closed while this session was leased
+    if (closed.get() && idle.remove(lease)) lease.closeSession();
+  }
+
+  private void discard(Lease lease) {
+    leased.decrementAndGet();
+    created.decrementAndGet();
+    lease.closeSession();
+  }
+
+  /**
+   * A leased session, with a producer without destination
+   */
+  public class Lease implements AutoCloseable {
+    private final Session session;
+    private final MessageProducer producer;
+    private boolean broken;
+
+    private Lease(Session session, MessageProducer producer) {
+      this.session = session;
+      this.producer = producer;
+    }
+
+    public Session getSession() {
+      return session;
+    }
+
+    public MessageProducer getProducer() {
+      return producer;
+    }
+
+    /**
+     * Mark this session as broken, closing it instead of returning it to the pool
+     */
+    public void invalidate() {
+      broken = true;
+    }
+
+    /**
+     * Return the session to the pool
+     */
+    @Override
+    public void close() {
+      if (broken) {
+        discard(this);
+      } else {
+        release(this);
+      }
+    }
+
+    private void closeSession() {
+      try {
+        producer.close();
+        session.close();
+      } catch (Exception e) {
+        LOGGER.warning(e, "Error closing pooled session");
+      }
+    }
+  }
+}
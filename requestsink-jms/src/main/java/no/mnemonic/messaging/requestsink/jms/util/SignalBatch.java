@@ -0,0 +1,98 @@
+package no.mnemonic.messaging.requestsink.jms.util;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import static no.mnemonic.messaging.requestsink.jms.util.JMSUtils.assertNotNull;
+
+/**
+ * Framing of multiple signal requests into a single message body.
+ * <p>
+ * The batch starts with the number of entries, followed by each entry as
+ * callID (modified UTF-8), timeout (epoch millis), response window and the length-prefixed serialized request.
+ */
+public class SignalBatch {
+
+  private SignalBatch() {
+  }
+
+  /**
+   * Encode entries into a batch
+   *
+   * @param entries entries to encode
+   * @return the encoded batch
+   * @throws IOException if encoding fails
+   */
+  public static byte[] encode(Collection<Entry> entries) throws IOException {
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    try (DataOutputStream out = new DataOutputStream(baos)) {
+      out.writeInt(entries.size());
+      for (Entry e : entries) {
+        out.writeUTF(e.getCallID());
+        out.writeLong(e.getTimeout());
+        out.writeInt(e.getResponseWindow());
+        out.writeInt(e.getData().length);
+        out.write(e.getData());
+      }
+    }
+    return baos.toByteArray();
+  }
+
+  /**
+   * Decode a batch into entries
+   *
+   * @param data encoded batch
+   * @return the entries of the batch, in the order they were encoded
+   * @throws IOException if the batch is invalid
+   */
+  public static List<Entry> decode(byte[] data) throws IOException {
+    try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(data))) {
+      int count = in.readInt();
+      if (count < 0) throw new IOException("Invalid batch size: " + count);
+      List<Entry> entries = new ArrayList<>(count);
+      for (int i = 0; i < count; i++) {
+        String callID = in.readUTF();
+        long timeout = in.readLong();
+        int responseWindow = in.readInt();
+        int length = in.readInt();
+        if (length < 0 || length > in.available()) throw new IOException("Invalid batch entry length: " + length);
+        byte[] entryData = new byte[length];
+        in.readFully(entryData);
+        entries.add(new Entry(callID, timeout, responseWindow, entryData));
+      }
+      return entries;
+    }
+  }
+
+  public static class Entry {
+    private final String callID;
+    private final long timeout;
+    private final int responseWindow;
+    private final byte[] data;
+
+    public Entry(String callID, long timeout, int responseWindow, byte[] data) {
+      this.callID = assertNotNull(callID, "callID not set");
+      this.data = assertNotNull(data, "data not set");
+      this.timeout = timeout;
+      this.responseWindow = responseWindow;
+    }
+
+    public String getCallID() {
+      return callID;
+    }
+
+    public long getTimeout() {
+      return timeout;
+    }
+
+    public int getResponseWindow() {
+      return responseWindow;
+    }
+
+    public byte[] getData() {
+      return data;
+    }
+  }
+}
@@ -0,0 +1,84 @@
+package no.mnemonic.messaging.requestsink.jms.util;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Executor with a fixed number of single-threaded stripes, where tasks with the same key always run on the same stripe.
+ * <p>
+ * Tasks with the same key are run one at a time, in the order they were submitted,
+ * while tasks with different keys may run in parallel on different stripes.
+ * A slow task delays later tasks on its stripe, but not tasks on other stripes.
+ */
+public class StripedExecutor {
+
+  private final ThreadPoolExecutor[] stripes;
+
+  /**
+   * @param stripes       number of stripes, each with its own thread
+   * @param threadFactory factory for the threads of this executor
+   */
+  public StripedExecutor(int stripes, ThreadFactory threadFactory) {
+    if (stripes < 1) throw new IllegalArgumentException("stripes cannot be lower than 1");
+    if (threadFactory == null) throw new IllegalArgumentException("threadFactory not set");
+    this.stripes = new ThreadPoolExecutor[stripes];
+    for (int i = 0; i < stripes; i++) {
+      this.stripes[i] = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(), threadFactory);
+    }
+  }
+
+  /**
+   * Queue a task on the stripe of the key
+   *
+   * @param key  key selecting the stripe, tasks with equal keys run in submission order
+   * @param task task to run
+   */
+  public void execute(Object key, Runnable task) {
+    stripes[Math.floorMod(key.hashCode(), stripes.length)].execute(task);
+  }
+
+  public int getStripes() {
+    return stripes.length;
+  }
+
+  /**
+   * @return number of queued tasks not yet started, on all stripes
+   */
+  public int getQueueSize() {
+    int size = 0;
+    for (ThreadPoolExecutor stripe : stripes) {
+      size += stripe.getQueue().size();
+    }
+    return size;
+  }
+
+  /**
+   * @return number of queued tasks not yet started, on the stripe with most queued tasks
+   */
+  public int getMaxQueueSize() {
+    int max = 0;
+    for (ThreadPoolExecutor stripe : stripes) {
+      max = Math.max(max, stripe.getQueue().size());
+    }
+    return max;
+  }
+
+  /**
+   * Stop accepting tasks, letting queued tasks run
+   */
+  public void shutdown() {
+    for (ThreadPoolExecutor stripe : stripes) {
+      stripe.shutdown();
+    }
+  }
+
+  public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+    long deadline = System.nanoTime() + unit.toNanos(timeout);
+    for (ThreadPoolExecutor stripe : stripes) {
+      if (!stripe.awaitTermination(deadline - System.nanoTime(), TimeUnit.NANOSECONDS)) return false;
+    }
+    return true;
+  }
+}
@@ -0,0 +1,77 @@
+package no.mnemonic.messaging.requestsink.jms.util;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Executor running each task in a new virtual thread, for calls spending most of their time blocked on I/O.
+ * Tasks are never queued, so the task priority is ignored, and concurrency must be limited by the caller.
+ * <p>
+ * Virtual threads require Java 21. The library is built for Java 8, so virtual threads are created by reflection.
+ * There is no fallback to platform threads, as the caller may allow thousands of concurrent tasks,
+ * so check {@link #isSupported()} before creating the executor.
+ */
+public class VirtualThreadExecutor implements CallExecutor {
+
+  private final ExecutorService executor;
+
+  /**
+   * @param namePrefix prefix of the thread names
+   * @throws IllegalStateException if the runtime does not support virtual threads
+   */
+  public VirtualThreadExecutor(String namePrefix) {
+    ThreadFactory virtualThreadFactory = createVirtualThreadFactory(namePrefix);
+    if (virtualThreadFactory == null) {
+      throw new IllegalStateException("Virtual threads not supported by this runtime");
+    }
+    this.executor = newThreadPerTaskExecutor(virtualThreadFactory);
+  }
+
+  /**
+   * @return true if the runtime supports virtual threads
+   */
+  public static boolean isSupported() {
+    return createVirtualThreadFactory("probe") != null;
+  }
+
+  @Override
+  public void execute(int priority, Runnable task) {
+    executor.execute(task);
+  }
+
+  @Override
+  public void shutdown() {
+    executor.shutdown();
+  }
+
+  @Override
+  public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+    return executor.awaitTermination(timeout, unit);
+  }
+
+  /**
+   * @return a factory for virtual threads, equivalent to <code>Thread.ofVirtual().name(prefix, 1).factory()</code>,
+   * or null if virtual threads are not supported
+   */
+  private static ThreadFactory createVirtualThreadFactory(String namePrefix) {
+    try {
+      //invoke through the public builder interface, as the implementing classes are not accessible
+      Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+      Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+      builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, namePrefix + "-virtual-", 1L);
+      return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+    } catch (ReflectiveOperationException e) {
+      return null;
+    }
+  }
+
+  private static ExecutorService newThreadPerTaskExecutor(ThreadFactory threadFactory) {
+    try {
+      return (ExecutorService) Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class).invoke(null, threadFactory);
+    } catch (ReflectiveOperationException e) {
+      throw new IllegalStateException("Could not create virtual thread executor", e);
+    }
+  }
+}
@@ -3,12 +3,14 @@ package no.mnemonic.messaging.requestsink.jms;
 import no.mnemonic.commons.container.ComponentContainer;
 import no.mnemonic.messaging.requestsink.Message;
 import no.mnemonic.messaging.requestsink.RequestContext;
+import no.mnemonic.messaging.requestsink.RequestHandler;
 import no.mnemonic.messaging.requestsink.RequestSink;
 import org.junit.Test;
 
 import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static no.mnemonic.commons.utilities.lambda.LambdaUtils.tryTo;
 import static org.junit.Assert.*;
@@ -176,6 +178,176 @@ public abstract class AbstractJMSRequestSinkProxyTest extends AbstractJMSRequest
     verify(endpoint, times(2)).signal(any(), any(), anyLong());
   }
 
+  @Test
+  public void testResponseWindowBlocksServerUntilClientConsumes() throws Exception {
+    serverContainer.initialize();
+
+    //set up request sink with a response window of 2 unconsumed responses
+    requestSink = addConnection(JMSRequestSink.builder())
+            .setDestinationName(queueName)
+            .setProtocolVersion(ProtocolVersion.V4)
+            .setResponseWindowSize(2)
+            .build();
+    clientContainer = ComponentContainer.create(requestSink);
+    clientContainer.initialize();
+
+    AtomicInteger sentResponses = new AtomicInteger();
+    when(endpoint.signal(isA(TestMessage.class), isA(RequestContext.class), anyLong())).thenAnswer(i -> {
+      RequestContext ctx = i.getArgument(1);
+      for (int r = 0; r < 10; r++) {
+        assertTrue(ctx.addResponse(new TestMessage("reply" + r)));
+        sentResponses.incrementAndGet();
+      }
+      ctx.endOfStream();
+      return ctx;
+    });
+
+    RequestHandler handler = RequestHandler.signal(requestSink, new TestMessage("request"), true, 10000);
+    //server must stop when the window is exhausted, since the client does not consume any responses
+    Thread.sleep(500);
+    assertEquals(2, sentResponses.get());
+
+    //consuming responses returns credits, letting the server complete the stream
+    List<TestMessage> responses = new ArrayList<>();
+    TestMessage response;
+    while ((response = handler.getNextResponse()) != null) {
+      responses.add(response);
+    }
+    assertEquals(10, responses.size());
+    assertEquals(10, sentResponses.get());
+  }
+
+  @Test
+  public void testBatchedSignalsGetSeparateResponses() throws Exception {
+    serverContainer.initialize();
+
+    //set up request sink which batches up to 5 signals
+    requestSink = addConnection(JMSRequestSink.builder())
+            .setDestinationName(queueName)
+            .setProtocolVersion(ProtocolVersion.V5)
+            .setBatchLingerTime(1000)
+            .setMaxBatchSize(5)
+            .build();
+    clientContainer = ComponentContainer.create(requestSink);
+    clientContainer.initialize();
+
+    when(endpoint.signal(isA(TestMessage.class), isA(RequestContext.class), anyLong())).thenAnswer(i -> {
+      TestMessage msg = i.getArgument(0);
+      RequestContext ctx = i.getArgument(1);
+      ctx.addResponse(new TestMessage("reply-" + msg.getId()));
+      ctx.endOfStream();
+      return ctx;
+    });
+
+    List<RequestHandler> handlers = new ArrayList<>();
+    for (int r = 0; r < 5; r++) {
+      handlers.add(RequestHandler.signal(requestSink, new TestMessage("request" + r), true, 10000));
+    }
+    //the fifth signal fills the batch, so responses arrive without waiting for the linger time
+    for (int r = 0; r < 5; r++) {
+      TestMessage response = handlers.get(r).getNextResponse();
+      assertEquals("reply-request" + r, response.getId());
+    }
+    assertEquals(1L, requestSink.getMetrics().getData("signalBatches").longValue());
+    assertEquals(5L, requestSink.getMetrics().getData("batchedRequests").longValue());
+    assertEquals(1L, requestProxy.getMetrics().getData("signalBatches").longValue());
+    verify(endpoint, times(5)).signal(isA(TestMessage.class), isA(RequestContext.class), anyLong());
+  }
+
+  @Test
+  public void testBatchIsSentAfterLingerTime() throws Exception {
+    serverContainer.initialize();
+
+    requestSink = addConnection(JMSRequestSink.builder())
+            .setDestinationName(queueName)
+            .setProtocolVersion(ProtocolVersion.V5)
+            .setBatchLingerTime(100)
+            .setMaxBatchSize(100)
+            .build();
+    clientContainer = ComponentContainer.create(requestSink);
+    clientContainer.initialize();
+    mockEndpointSignal(new TestMessage("reply"));
+
+    RequestHandler handler1 = RequestHandler.signal(requestSink, new TestMessage("request1"), true, 10000);
+    RequestHandler handler2 = RequestHandler.signal(requestSink, new TestMessage("request2"), true, 10000);
+    assertNotNull(handler1.getNextResponse());
+    assertNotNull(handler2.getNextResponse());
+    assertEquals(2L, requestSink.getMetrics().getData("batchedRequests").longValue());
+  }
+
+  @Test
+  public void testHopTimestampsAreRecorded() throws Exception {
+    serverContainer.initialize();
+
+    requestSink = addConnection(JMSRequestSink.builder())
+            .setDestinationName(queueName)
+            .setProtocolVersion(ProtocolVersion.V6)
+            .build();
+    clientContainer = ComponentContainer.create(requestSink);
+    clientContainer.initialize();
+    mockEndpointSignal(new TestMessage("reply1"), new TestMessage("reply2"));
+
+    RequestHandler handler = RequestHandler.signal(requestSink, new TestMessage("request"), true, 10000);
+    assertTrue(handler.waitForEndOfStream(1000));
+    assertEquals(2, handler.getResponsesNoWait().size());
+    //only the first response carries the hop timestamps
+    for (String hop : new String[]{"requestTransitTime", "proxyQueueTime", "proxyProcessingTime", "responseTransitTime", "brokerTransitTime"}) {
+      assertEquals(1L, requestSink.getMetrics().getData(hop + "Count").longValue());
+    }
+  }
+
+  @Test
+  public void testHopTimestampsAreRecordedAfterKeepAlive() throws Exception {
+    serverContainer.initialize();
+
+    requestSink = addConnection(JMSRequestSink.builder())
+            .setDestinationName(queueName)
+            .setProtocolVersion(ProtocolVersion.V6)
+            .build();
+    clientContainer = ComponentContainer.create(requestSink);
+    clientContainer.initialize();
+    when(endpoint.signal(isA(TestMessage.class), isA(RequestContext.class), anyLong())).thenAnswer(i -> {
+      RequestContext ctx = i.getArgument(1);
+      ctx.keepAlive(System.currentTimeMillis() + 10000);
+      ctx.addResponse(new TestMessage("reply1"));
+      ctx.addResponse(new TestMessage("reply2"));
+      ctx.endOfStream();
+      return ctx;
+    });
+
+    RequestHandler handler = RequestHandler.signal(requestSink, new TestMessage("request"), true, 10000);
+    assertTrue(handler.waitForEndOfStream(1000));
+    assertEquals(2, handler.getResponsesNoWait().size());
+    //the keepalive is neither the first response, nor carries the hop timestamps
+    assertEquals(1L, requestSink.getMetrics().getData("firstResponseLatencyCount").longValue());
+    for (String hop : new String[]{"requestTransitTime", "proxyQueueTime", "proxyProcessingTime", "responseTransitTime", "brokerTransitTime"}) {
+      assertEquals(1L, requestSink.getMetrics().getData(hop + "Count").longValue());
+    }
+  }
+
+  @Test
+  public void testCompressedRequestIsDecompressed() throws Exception {
+    serverContainer.initialize();
+
+    requestSink = addConnection(JMSRequestSink.builder())
+            .setDestinationName(queueName)
+            .setProtocolVersion(ProtocolVersion.V7)
+            .setCompressionThreshold(100)
+            .build();
+    clientContainer = ComponentContainer.create(requestSink);
+    clientContainer.initialize();
+    TestMessage reply = createBigResponse();
+    Future<TestMessage> request = mockEndpointSignal(reply);
+
+    TestMessage bigRequest = createBigResponse();
+    RequestHandler handler = RequestHandler.signal(requestSink, bigRequest, true, 10000);
+    assertTrue(handler.waitForEndOfStream(1000));
+    assertEquals(bigRequest.getId(), request.get(1000, TimeUnit.MILLISECONDS).getId());
+    assertEquals(reply.getId(), handler.<TestMessage>getResponsesNoWait().iterator().next().getId());
+    assertEquals(1L, requestSink.getMetrics().getData("compressedMessages").longValue());
+    assertEquals(1L, requestProxy.getMetrics().getData("decompressedMessages").longValue());
+  }
+
   //helpers
 
   private Future<TestMessage> mockEndpointSignal(TestMessage... replies) {
@@ -2,15 +2,22 @@ package no.mnemonic.messaging.requestsink.jms;
 
 import no.mnemonic.commons.container.ComponentContainer;
 import no.mnemonic.commons.utilities.collections.ListUtils;
+import no.mnemonic.messaging.requestsink.Message.Priority;
+import no.mnemonic.messaging.requestsink.MessagingException;
 import no.mnemonic.messaging.requestsink.RequestContext;
 import no.mnemonic.messaging.requestsink.RequestListener;
+import no.mnemonic.messaging.requestsink.RequestRejectedException;
 import no.mnemonic.messaging.requestsink.jms.serializer.MessageSerializer;
+import no.mnemonic.messaging.requestsink.jms.util.CircuitBreaker;
+import no.mnemonic.messaging.requestsink.jms.util.ConcurrencyLimiter;
 import no.mnemonic.messaging.requestsink.jms.util.FragmentConsumer;
+import no.mnemonic.messaging.requestsink.jms.util.SessionPool;
 import org.apache.activemq.DestinationDoesNotExistException;
 import org.junit.After;
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
+import org.mockito.InOrder;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
 
@@ -20,6 +27,9 @@ import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
 import java.util.UUID;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicReference;
@@ -158,6 +168,44 @@ public abstract class AbstractJMSRequestSinkTest extends AbstractJMSRequestTest
     verify(requestContext, times(2)).notifyClose();
   }
 
+  @Test
+  public void testConcurrencyLimitRejectsRequests() throws Exception {
+    setupSinkAndContainer(b -> b.setConcurrencyLimiter(ConcurrencyLimiter.builder().setInitialLimit(1).setMaxLimit(1).build()));
+    requestSink.setCleanupInSeparateThread(false);
+    TestMessage first = new TestMessage("test1");
+    requestSink.signal(first, requestContext, 10000);
+    try {
+      requestSink.signal(new TestMessage("test2"), requestContext, 10000);
+      fail();
+    } catch (RequestRejectedException ignored) {
+    }
+    assertEquals(1L, requestSink.getMetrics().getData("concurrencyLimited").longValue());
+    //closing the first request releases the call
+    when(requestContext.isClosed()).thenReturn(true);
+    requestListener.get().close(first.getCallID());
+    assertEquals(0L, requestSink.getMetrics().getData("inflightCalls").longValue());
+    requestSink.signal(new TestMessage("test3"), requestContext, 10000);
+  }
+
+  @Test
+  public void testCircuitBreakerOpensOnTimeouts() throws Exception {
+    setupSinkAndContainer(b -> b.setCircuitBreaker(CircuitBreaker.builder().setWindowSize(2).setMinimumCalls(2).build()));
+    requestSink.setCleanupInSeparateThread(false);
+    requestSink.signal(new TestMessage("test1"), requestContext, 50);
+    requestSink.signal(new TestMessage("test2"), requestContext, 50);
+    Thread.sleep(150);
+    //requests time out without response, and are cleaned up on next request
+    when(requestContext.isClosed()).thenReturn(true);
+    requestSink.signal(new TestMessage("test3"), requestContext, 10000);
+    assertEquals(CircuitBreaker.State.OPEN.ordinal(), requestSink.getMetrics().getData("circuitState").intValue());
+    try {
+      requestSink.signal(new TestMessage("test4"), requestContext, 10000);
+      fail();
+    } catch (RequestRejectedException ignored) {
+    }
+    assertEquals(1L, requestSink.getMetrics().getData("circuitRejected").longValue());
+  }
+
   @Test
   public void testSignalWithProtocolLevelV1() throws Exception {
     setupSinkAndContainer(b -> b.setProtocolVersion(V1));
@@ -169,6 +217,20 @@ public abstract class AbstractJMSRequestSinkTest extends AbstractJMSRequestTest
     Assert.assertEquals(ProtocolVersion.V1.getVersionString(), receivedMessage.getStringProperty(AbstractJMSRequestBase.PROTOCOL_VERSION_KEY));
   }
 
+  @Test
+  public void testSignalStampsClientSendTime() throws Exception {
+    setupSinkAndContainer();
+    requestSink.signal(new TestMessage("test1"), requestContext, 10000);
+    assertFalse(expectSignal().propertyExists(AbstractJMSRequestBase.PROPERTY_CLIENT_SEND_TIME));
+    container.destroy();
+
+    setupSinkAndContainer(b -> b.setProtocolVersion(ProtocolVersion.V6));
+    long before = System.currentTimeMillis();
+    requestSink.signal(new TestMessage("test2"), requestContext, 10000);
+    long sendTime = expectSignal().getLongProperty(AbstractJMSRequestBase.PROPERTY_CLIENT_SEND_TIME);
+    assertTrue(sendTime >= before && sendTime <= System.currentTimeMillis());
+  }
+
   @Test
   public void testSignalReceiveSingleResult() throws Exception {
     doTestSignalReceiveResults(1);
@@ -307,6 +369,190 @@ public abstract class AbstractJMSRequestSinkTest extends AbstractJMSRequestTest
             .setMaxMessageSize(65536);
   }
 
+  @Test
+  public void testConcurrentSendersUseSessionPool() throws Exception {
+    setupSinkAndContainer(b -> b.setSessionPoolSize(4));
+    ExecutorService senders = Executors.newFixedThreadPool(8);
+    try {
+      for (int i = 0; i < 40; i++) {
+        String id = "test" + i;
+        senders.submit(() -> requestSink.signal(new TestMessage(id), requestContext, 10000));
+      }
+      for (int i = 0; i < 40; i++) {
+        expectSignal();
+      }
+    } finally {
+      senders.shutdown();
+    }
+    //a sender returns its session after the message is sent, so wait for all senders before checking the pool
+    assertTrue(senders.awaitTermination(1, TimeUnit.SECONDS));
+    assertTrue(requestSink.getMetrics().getData("sessionPoolSize").intValue() <= 4);
+    assertEquals(4L, requestSink.getMetrics().getData("sessionPoolMaxSize").longValue());
+    assertEquals(0L, requestSink.getMetrics().getData("sessionPoolLeased").longValue());
+    assertEquals(40L, requestSink.getMetrics().getData("sessionLeaseTimeCount").longValue());
+  }
+
+  @Test
+  public void testSenderWaitingOnClosedSessionPoolRetriesWithoutReset() throws Exception {
+    setupSinkAndContainer(b -> b.setSessionPoolSize(1));
+    requestSink.signal(new TestMessage("test1"), requestContext, 10000);
+    expectSignal();
+    //hold the only session, so the next sender waits for it
+    SessionPool pool = requestSink.getOrCreateSessionPool();
+    SessionPool.Lease held = pool.lease(100);
+    ExecutorService senders = Executors.newSingleThreadExecutor();
+    try {
+      Future<?> sender = senders.submit(() -> requestSink.signal(new TestMessage("test2"), requestContext, 10000));
+      Thread.sleep(100);
+      assertFalse(sender.isDone());
+      //closing the pool under the waiting sender must not be handled as a broker failure
+      pool.close();
+      sender.get(1000, TimeUnit.MILLISECONDS);
+    } finally {
+      senders.shutdown();
+    }
+    expectSignal();
+    held.close();
+    assertEquals(0L, requestSink.getMetrics().getData("disconnected").longValue());
+    assertNotSame(pool, requestSink.getOrCreateSessionPool());
+  }
+
+  @Test
+  public void testFailedSendUnregistersRequest() throws Exception {
+    setupSinkAndContainer(b -> b.setSessionPoolSize(1));
+    requestSink.signal(new TestMessage("test1"), requestContext, 10000);
+    expectSignal();
+    //hold the only session, so sending the next request times out
+    try (SessionPool.Lease ignored = requestSink.getOrCreateSessionPool().lease(100)) {
+      requestSink.signal(new TestMessage("test2"), requestContext, 200);
+      fail();
+    } catch (MessagingException ignored) {
+    }
+    //the context may be signalled on another sink, without a listener from this sink
+    verify(requestContext).removeListener(requestListener.get());
+  }
+
+  @Test
+  public void testCallsAreSpreadOverResponseQueues() throws Exception {
+    setupSinkAndContainer(b -> b.setResponseQueueCount(4));
+    List<Message> signals = signalToEachResponseQueue(4);
+    assertEquals(4, new HashSet<>(replyTo(signals)).size());
+    //responses on each response queue reach the request
+    for (Message signal : signals) {
+      reply(signal, new TestMessage("response"));
+    }
+    verify(requestContext, timeout(1000).times(4)).addResponse(any());
+  }
+
+  @Test
+  public void testTimeoutReplacesOnlyResponseQueueOfCall() throws Exception {
+    setupSinkAndContainer(b -> b.setResponseQueueCount(4));
+    List<Destination> before = replyTo(signalToEachResponseQueue(4));
+    //the listener of the last call, which was assigned to the last response queue
+    requestListener.get().timeout();
+    List<Destination> after = replyTo(signalToEachResponseQueue(4));
+    assertEquals(before.subList(0, 3), after.subList(0, 3));
+    assertNotEquals(before.get(3), after.get(3));
+  }
+
+  /**
+   * Signal one call to each response queue, in order of response queue
+   *
+   * @return the signal message of each call
+   */
+  private List<Message> signalToEachResponseQueue(int responseQueues) throws Exception {
+    List<Message> signals = new ArrayList<>();
+    for (int i = 0; i < responseQueues; i++) {
+      TestMessage msg = new TestMessage("test" + i);
+      while (Math.floorMod(msg.getCallID().hashCode(), responseQueues) != i) {
+        msg = new TestMessage("test" + i);
+      }
+      requestSink.signal(msg, requestContext, 10000);
+      signals.add(expectSignal());
+    }
+    return signals;
+  }
+
+  private List<Destination> replyTo(List<Message> signals) throws JMSException {
+    List<Destination> replyTo = new ArrayList<>();
+    for (Message signal : signals) {
+      replyTo.add(signal.getJMSReplyTo());
+    }
+    return replyTo;
+  }
+
+  @Test
+  public void testResponseHandlerThreadsPreserveOrderPerCall() throws Exception {
+    setupSinkAndContainer(b -> b.setResponseHandlerThreads(4));
+    RequestContext otherContext = mock(RequestContext.class);
+    requestSink.signal(new TestMessage("test1"), requestContext, 10000);
+    Message signal1 = expectSignal();
+    requestSink.signal(new TestMessage("test2"), otherContext, 10000);
+    Message signal2 = expectSignal();
+    //interleave responses to both calls
+    for (int i = 0; i < 50; i++) {
+      reply(signal1, new TestMessage("response1-" + i));
+      reply(signal2, new TestMessage("response2-" + i));
+    }
+    eos(signal1);
+    eos(signal2);
+    waitForEOS();
+    verify(otherContext, timeout(1000)).endOfStream();
+
+    InOrder inOrder1 = inOrder(requestContext);
+    InOrder inOrder2 = inOrder(otherContext);
+    for (int i = 0; i < 50; i++) {
+      inOrder1.verify(requestContext).addResponse(eq(new TestMessage("response1-" + i)));
+      inOrder2.verify(otherContext).addResponse(eq(new TestMessage("response2-" + i)));
+    }
+    inOrder1.verify(requestContext).endOfStream();
+    inOrder2.verify(otherContext).endOfStream();
+    assertEquals(4L, requestSink.getMetrics().getData("responseHandlerThreads").longValue());
+  }
+
+  @Test
+  public void testProbeMeasuresResponseQueueRoundTrip() throws Exception {
+    setupSinkAndContainer(b -> b.setProbeInterval(20).setProbeTimeout(1000));
+    requestSink.signal(new TestMessage("test1"), requestContext, 10000);
+    Destination replyTo = expectSignal().getJMSReplyTo();
+    Thread.sleep(200);
+    assertTrue(requestSink.getMetrics().getData("responseQueueProbeTimeCount").longValue() > 0);
+    assertEquals(0L, requestSink.getMetrics().getData("responseQueueProbeFailures").longValue());
+    //response queue is kept
+    requestSink.signal(new TestMessage("test2"), requestContext, 10000);
+    assertEquals(replyTo, expectSignal().getJMSReplyTo());
+  }
+
+  @Test
+  public void testMissingProbeReplacesResponseQueue() throws Exception {
+    setupSinkAndContainer(b -> b.setProbeInterval(20).setProbeTimeout(100));
+    CountDownLatch blocker = new CountDownLatch(1);
+    //block the consumer of the response queue, so the probe is not received
+    when(requestContext.addResponse(any())).thenAnswer(i -> blocker.await(10, TimeUnit.SECONDS));
+    try {
+      requestSink.signal(new TestMessage("test1"), requestContext, 10000);
+      Message signal = expectSignal();
+      reply(signal, new TestMessage("response"));
+      Thread.sleep(500);
+      assertTrue(requestSink.getMetrics().getData("responseQueueProbeFailures").longValue() > 0);
+      requestSink.signal(new TestMessage("test2"), requestContext, 10000);
+      assertNotEquals(signal.getJMSReplyTo(), expectSignal().getJMSReplyTo());
+    } finally {
+      blocker.countDown();
+    }
+  }
+
+  @Test
+  public void testSignalUsesMessagePriority() throws Exception {
+    setupSinkAndContainer();
+    requestSink.signal(new TestMessage("bulk").setPriority(Priority.BULK), requestContext, 10000);
+    assertEquals(0, expectSignal().getJMSPriority());
+    requestSink.signal(new TestMessage("standard"), requestContext, 10000);
+    assertEquals(AbstractJMSRequestBase.DEFAULT_PRIORITY, expectSignal().getJMSPriority());
+    requestSink.signal(new TestMessage("expedite").setPriority(Priority.EXPEDITE), requestContext, 10000);
+    assertEquals(9, expectSignal().getJMSPriority());
+  }
+
   private void waitForEOS() throws Exception {
     endOfStream.get(1000, TimeUnit.MILLISECONDS);
   }
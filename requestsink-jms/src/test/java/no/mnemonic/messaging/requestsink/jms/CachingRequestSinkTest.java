@@ -0,0 +1,186 @@
+package no.mnemonic.messaging.requestsink.jms;
+
+import no.mnemonic.messaging.requestsink.Message;
+import no.mnemonic.messaging.requestsink.RequestContext;
+import no.mnemonic.messaging.requestsink.RequestHandler;
+import no.mnemonic.messaging.requestsink.RequestSink;
+import no.mnemonic.messaging.requestsink.jms.serializer.DefaultJavaMessageSerializer;
+import no.mnemonic.messaging.requestsink.jms.serializer.XStreamMessageSerializer;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import java.lang.reflect.InvocationTargetException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.Mockito.*;
+
+public class CachingRequestSinkTest {
+
+  @Mock
+  private RequestSink downstream;
+
+  private CachingRequestSink sink;
+
+  @Before
+  public void setup() {
+    MockitoAnnotations.initMocks(this);
+    mockDownstream(new TestMessage("reply1"), new TestMessage("reply2"));
+    sink = CachingRequestSink.builder()
+            .setRequestSink(downstream)
+            .setSerializer(new DefaultJavaMessageSerializer())
+            .build();
+  }
+
+  @Test
+  public void testRepeatedRequestIsServedFromCache() throws Exception {
+    List<TestMessage> first = signalAndRead(new TestMessage("request"));
+    //new request with equal content, but different callID and timestamp
+    Thread.sleep(5);
+    List<TestMessage> second = signalAndRead(new TestMessage("request"));
+    verify(downstream, times(1)).signal(any(), any(), anyLong());
+    assertEquals(first, second);
+    //each caller gets its own copy of the responses
+    assertNotSame(first.get(0), second.get(0));
+    assertEquals(1L, sink.getMetrics().getData("hits").longValue());
+    assertEquals(1L, sink.getMetrics().getData("misses").longValue());
+  }
+
+  @Test
+  public void testKeyIgnoresCallIDAndTimestampWithXStream() throws Exception {
+    sink = CachingRequestSink.builder()
+            .setRequestSink(downstream)
+            .setSerializer(XStreamMessageSerializer.builder().addAllowedClass(TestMessage.class).build())
+            .build();
+    signalAndRead(new TestMessage("request"));
+    Thread.sleep(5);
+    signalAndRead(new TestMessage("request"));
+    verify(downstream, times(1)).signal(any(), any(), anyLong());
+  }
+
+  @Test
+  public void testDifferentRequestsAreNotShared() throws InvocationTargetException {
+    signalAndRead(new TestMessage("request1"));
+    signalAndRead(new TestMessage("request2"));
+    verify(downstream, times(2)).signal(any(), any(), anyLong());
+  }
+
+  @Test
+  public void testEntryExpires() throws Exception {
+    sink = CachingRequestSink.builder()
+            .setRequestSink(downstream)
+            .setSerializer(new DefaultJavaMessageSerializer())
+            .setTimeToLive(50)
+            .build();
+    signalAndRead(new TestMessage("request"));
+    Thread.sleep(100);
+    signalAndRead(new TestMessage("request"));
+    verify(downstream, times(2)).signal(any(), any(), anyLong());
+    assertEquals(1L, sink.getMetrics().getData("expired").longValue());
+  }
+
+  @Test
+  public void testLeastRecentlyUsedEntryIsEvicted() throws Exception {
+    sink = CachingRequestSink.builder()
+            .setRequestSink(downstream)
+            .setSerializer(new DefaultJavaMessageSerializer())
+            .setMaxEntries(2)
+            .build();
+    signalAndRead(new TestMessage("request1"));
+    signalAndRead(new TestMessage("request2"));
+    //touch request1, so request2 is least recently used
+    signalAndRead(new TestMessage("request1"));
+    signalAndRead(new TestMessage("request3"));
+    assertEquals(2, sink.size());
+    assertEquals(1L, sink.getMetrics().getData("evictions").longValue());
+    signalAndRead(new TestMessage("request1"));
+    verify(downstream, times(3)).signal(any(), any(), anyLong());
+    signalAndRead(new TestMessage("request2"));
+    verify(downstream, times(4)).signal(any(), any(), anyLong());
+  }
+
+  @Test
+  public void testBypassedRequestIsNotCached() throws Exception {
+    sink = CachingRequestSink.builder()
+            .setRequestSink(downstream)
+            .setSerializer(new DefaultJavaMessageSerializer())
+            .setBypass(m -> ((TestMessage) m).getId().startsWith("nocache"))
+            .build();
+    signalAndRead(new TestMessage("nocache"));
+    signalAndRead(new TestMessage("nocache"));
+    verify(downstream, times(2)).signal(any(), any(), anyLong());
+    assertEquals(0, sink.size());
+    assertEquals(2L, sink.getMetrics().getData("bypassed").longValue());
+  }
+
+  @Test
+  public void testFailedStreamIsNotCached() {
+    doAnswer(i -> {
+      RequestContext ctx = i.getArgument(1);
+      ctx.addResponse(new TestMessage("reply1"));
+      ctx.notifyError(new IllegalStateException("failed"));
+      return ctx;
+    }).when(downstream).signal(any(), any(), anyLong());
+    for (int i = 0; i < 2; i++) {
+      try {
+        signalAndRead(new TestMessage("request"));
+        fail();
+      } catch (InvocationTargetException e) {
+        assertTrue(e.getCause() instanceof IllegalStateException);
+      }
+    }
+    verify(downstream, times(2)).signal(any(), any(), anyLong());
+    assertEquals(0, sink.size());
+  }
+
+  @Test
+  public void testStreamExceedingMaxEntryResponsesIsNotCached() throws Exception {
+    sink = CachingRequestSink.builder()
+            .setRequestSink(downstream)
+            .setSerializer(new DefaultJavaMessageSerializer())
+            .setMaxEntryResponses(1)
+            .build();
+    assertEquals(2, signalAndRead(new TestMessage("request")).size());
+    assertEquals(0, sink.size());
+  }
+
+  @Test
+  public void testCustomKeyFunction() throws Exception {
+    sink = CachingRequestSink.builder()
+            .setRequestSink(downstream)
+            .setSerializer(new DefaultJavaMessageSerializer())
+            .setKeyFunction(m -> "samekey")
+            .build();
+    signalAndRead(new TestMessage("request1"));
+    signalAndRead(new TestMessage("request2"));
+    verify(downstream, times(1)).signal(any(), any(), anyLong());
+  }
+
+  //helpers
+
+  private void mockDownstream(TestMessage... replies) {
+    when(downstream.signal(any(), any(), anyLong())).thenAnswer(i -> {
+      RequestContext ctx = i.getArgument(1);
+      for (TestMessage reply : replies) {
+        ctx.addResponse(reply);
+      }
+      ctx.endOfStream();
+      return ctx;
+    });
+  }
+
+  private List<TestMessage> signalAndRead(Message msg) throws InvocationTargetException {
+    RequestHandler handler = RequestHandler.signal(sink, msg, false, 1000);
+    List<TestMessage> responses = new ArrayList<>();
+    TestMessage response;
+    while ((response = handler.getNextResponse()) != null) {
+      responses.add(response);
+    }
+    return responses;
+  }
+}
@@ -0,0 +1,227 @@
+package no.mnemonic.messaging.requestsink.jms;
+
+import no.mnemonic.messaging.requestsink.Message;
+import no.mnemonic.messaging.requestsink.RequestContext;
+import no.mnemonic.messaging.requestsink.RequestHandler;
+import no.mnemonic.messaging.requestsink.RequestListener;
+import no.mnemonic.messaging.requestsink.RequestSink;
+import no.mnemonic.messaging.requestsink.jms.serializer.DefaultJavaMessageSerializer;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.InOrder;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import java.lang.reflect.InvocationTargetException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.argThat;
+import static org.mockito.Mockito.*;
+
+public class CoalescingRequestSinkTest {
+
+  @Mock
+  private RequestSink downstream;
+  @Mock
+  private RequestListener downstreamListener;
+
+  private final List<RequestContext> flights = new ArrayList<>();
+  private CoalescingRequestSink sink;
+
+  @Before
+  public void setup() {
+    MockitoAnnotations.initMocks(this);
+    when(downstream.signal(any(), any(), anyLong())).thenAnswer(i -> {
+      flights.add(i.getArgument(1));
+      return i.getArgument(1);
+    });
+    sink = createSink(CoalescingRequestSink.DEFAULT_MAX_BUFFERED_RESPONSES);
+  }
+
+  @Test
+  public void testIdenticalRequestsAreCoalesced() throws Exception {
+    RequestHandler handler1 = RequestHandler.signal(sink, new TestMessage("request"), false, 1000);
+    RequestHandler handler2 = RequestHandler.signal(sink, new TestMessage("request"), false, 1000);
+    verify(downstream, times(1)).signal(any(), any(), anyLong());
+    assertEquals(1, sink.getInFlightCount());
+    flights.get(0).addResponse(new TestMessage("reply"));
+    flights.get(0).endOfStream();
+    assertEquals(1, readAll(handler1).size());
+    assertEquals(1, readAll(handler2).size());
+    assertEquals(0, sink.getInFlightCount());
+    assertEquals(1L, sink.getMetrics().getData("coalesced").longValue());
+  }
+
+  @Test
+  public void testDifferentRequestsAreNotCoalesced() {
+    RequestHandler.signal(sink, new TestMessage("request1"), false, 1000);
+    RequestHandler.signal(sink, new TestMessage("request2"), false, 1000);
+    verify(downstream, times(2)).signal(any(), any(), anyLong());
+  }
+
+  @Test
+  public void testLateJoinerGetsBufferedResponses() throws InvocationTargetException {
+    RequestHandler handler1 = RequestHandler.signal(sink, new TestMessage("request"), false, 1000);
+    flights.get(0).addResponse(new TestMessage("reply1"));
+    RequestHandler handler2 = RequestHandler.signal(sink, new TestMessage("request"), false, 1000);
+    flights.get(0).addResponse(new TestMessage("reply2"));
+    flights.get(0).endOfStream();
+    assertEquals(2, readAll(handler1).size());
+    List<TestMessage> late = readAll(handler2);
+    assertEquals(2, late.size());
+    assertEquals("reply1", late.get(0).getId());
+    assertEquals("reply2", late.get(1).getId());
+  }
+
+  @Test
+  public void testSlowJoinerDoesNotBlockFlight() throws Exception {
+    ExecutorService executor = Executors.newCachedThreadPool();
+    try {
+      RequestHandler handler1 = RequestHandler.signal(sink, new TestMessage("request"), false, 1000);
+      flights.get(0).addResponse(new TestMessage("reply1"));
+      //joiner blocking while the buffered response is replayed
+      CountDownLatch replaying = new CountDownLatch(1);
+      CountDownLatch release = new CountDownLatch(1);
+      RequestContext slow = mock(RequestContext.class);
+      when(slow.addResponse(any())).thenAnswer(i -> {
+        replaying.countDown();
+        return release.await(5, TimeUnit.SECONDS);
+      });
+      Future<?> join = executor.submit(() -> sink.signal(new TestMessage("request"), slow, 1000));
+      assertTrue(replaying.await(1, TimeUnit.SECONDS));
+      //new responses are delivered to the other subscribers meanwhile
+      Future<Boolean> response = executor.submit(() -> flights.get(0).addResponse(new TestMessage("reply2")));
+      assertTrue(response.get(1, TimeUnit.SECONDS));
+      release.countDown();
+      join.get(1, TimeUnit.SECONDS);
+      flights.get(0).endOfStream();
+      assertEquals(2, readAll(handler1).size());
+      //the joiner gets the responses in order
+      InOrder order = inOrder(slow);
+      order.verify(slow).addResponse(argThat(m -> "reply1".equals(((TestMessage) m).getId())));
+      order.verify(slow).addResponse(argThat(m -> "reply2".equals(((TestMessage) m).getId())));
+      order.verify(slow).endOfStream();
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  @Test
+  public void testJoinerWaitingLongerStartsNewFlight() {
+    RequestHandler.signal(sink, new TestMessage("request"), false, 1000);
+    RequestHandler.signal(sink, new TestMessage("request"), false, 10000);
+    verify(downstream, times(2)).signal(any(), any(), anyLong());
+  }
+
+  @Test
+  public void testKeepAliveExtendsFlightDeadline() {
+    RequestHandler.signal(sink, new TestMessage("request"), true, 1000);
+    flights.get(0).keepAlive(System.currentTimeMillis() + 20000);
+    RequestHandler.signal(sink, new TestMessage("request"), false, 10000);
+    verify(downstream, times(1)).signal(any(), any(), anyLong());
+  }
+
+  @Test
+  public void testTimeoutIsForwardedToDownstream() {
+    RequestHandler handler1 = RequestHandler.signal(sink, new TestMessage("request"), false, 1000);
+    RequestHandler handler2 = RequestHandler.signal(sink, new TestMessage("request"), false, 1000);
+    flights.get(0).addListener(downstreamListener);
+    handler2.timeout();
+    handler1.timeout();
+    verify(downstreamListener, times(1)).timeout();
+  }
+
+  @Test
+  public void testRequestAfterCompletionStartsNewFlight() {
+    RequestHandler.signal(sink, new TestMessage("request"), false, 1000);
+    flights.get(0).endOfStream();
+    RequestHandler.signal(sink, new TestMessage("request"), false, 1000);
+    verify(downstream, times(2)).signal(any(), any(), anyLong());
+  }
+
+  @Test
+  public void testErrorIsFannedOut() {
+    RequestHandler handler1 = RequestHandler.signal(sink, new TestMessage("request"), false, 1000);
+    RequestHandler handler2 = RequestHandler.signal(sink, new TestMessage("request"), false, 1000);
+    flights.get(0).notifyError(new IllegalStateException("failed"));
+    assertTrue(handler1.hasReceivedError());
+    assertTrue(handler2.hasReceivedError());
+    assertEquals(0, sink.getInFlightCount());
+  }
+
+  @Test
+  public void testBufferOverflowStartsNewFlight() {
+    sink = createSink(1);
+    RequestHandler.signal(sink, new TestMessage("request"), false, 1000);
+    flights.get(0).addResponse(new TestMessage("reply1"));
+    flights.get(0).addResponse(new TestMessage("reply2"));
+    //first flight cannot replay all responses to a late joiner
+    RequestHandler.signal(sink, new TestMessage("request"), false, 1000);
+    verify(downstream, times(2)).signal(any(), any(), anyLong());
+  }
+
+  @Test
+  public void testDownstreamIsClosedWhenAllCallersClose() {
+    RequestHandler handler1 = RequestHandler.signal(sink, new TestMessage("request"), false, 1000);
+    RequestHandler handler2 = RequestHandler.signal(sink, new TestMessage("request"), false, 1000);
+    flights.get(0).addListener(downstreamListener);
+    handler1.close();
+    verify(downstreamListener, never()).close(any());
+    assertFalse(flights.get(0).isClosed());
+    handler2.close();
+    verify(downstreamListener).close(any());
+    assertTrue(flights.get(0).isClosed());
+    assertEquals(0, sink.getInFlightCount());
+  }
+
+  @Test
+  public void testSignalErrorIsPropagated() {
+    when(downstream.signal(any(), any(), anyLong())).thenThrow(new IllegalStateException("failed"));
+    try {
+      RequestHandler.signal(sink, new TestMessage("request"), false, 1000);
+      fail();
+    } catch (IllegalStateException ignored) {
+    }
+    assertEquals(0, sink.getInFlightCount());
+  }
+
+  @Test
+  public void testBypassedRequestIsNotCoalesced() {
+    sink = CoalescingRequestSink.builder()
+            .setRequestSink(downstream)
+            .setSerializer(new DefaultJavaMessageSerializer())
+            .setBypass(m -> true)
+            .build();
+    RequestHandler.signal(sink, new TestMessage("request"), false, 1000);
+    RequestHandler.signal(sink, new TestMessage("request"), false, 1000);
+    verify(downstream, times(2)).signal(any(), any(), anyLong());
+  }
+
+  //helpers
+
+  private CoalescingRequestSink createSink(int maxBufferedResponses) {
+    return CoalescingRequestSink.builder()
+            .setRequestSink(downstream)
+            .setSerializer(new DefaultJavaMessageSerializer())
+            .setMaxBufferedResponses(maxBufferedResponses)
+            .build();
+  }
+
+  private List<TestMessage> readAll(RequestHandler handler) throws InvocationTargetException {
+    List<TestMessage> responses = new ArrayList<>();
+    TestMessage response;
+    while ((response = handler.getNextResponse()) != null) {
+      responses.add(response);
+    }
+    return responses;
+  }
+}
@@ -4,6 +4,8 @@ import no.mnemonic.commons.container.ComponentContainer;
 import no.mnemonic.messaging.requestsink.RequestContext;
 import no.mnemonic.messaging.requestsink.RequestSink;
 import no.mnemonic.messaging.requestsink.jms.serializer.DefaultJavaMessageSerializer;
+import no.mnemonic.messaging.requestsink.jms.util.MessageCompressor;
+import no.mnemonic.messaging.requestsink.jms.util.VirtualThreadExecutor;
 import org.junit.After;
 import org.junit.Assert;
 import org.junit.Before;
@@ -17,10 +19,14 @@ import java.io.IOException;
 import java.util.Date;
 import java.util.List;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
 
 import static no.mnemonic.messaging.requestsink.jms.util.JMSUtils.*;
 import static org.junit.Assert.*;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assume.assumeFalse;
+import static org.junit.Assume.assumeTrue;
 import static org.mockito.Mockito.*;
 
 public class JMSRequestProxyTest extends AbstractJMSRequestTest {
@@ -40,7 +46,7 @@ public class JMSRequestProxyTest extends AbstractJMSRequestTest {
 
   @After
   public void tearDown() throws Exception {
-    container.destroy();
+    if (container != null) container.destroy();
     if (testConnection != null) testConnection.close();
   }
 
@@ -58,6 +64,110 @@ public class JMSRequestProxyTest extends AbstractJMSRequestTest {
     assertEquals(sentMessage, receivedMessage);
   }
 
+  @Test
+  public void testSignalPassesRemainingTime() throws Exception {
+    setupEnvironment();
+    CompletableFuture<Long> maxWait = new CompletableFuture<>();
+    when(endpoint.signal(any(), any(), anyLong())).thenAnswer(i -> {
+      maxWait.complete(i.getArgument(2));
+      return i.getArgument(1);
+    });
+    signal(new TestMessage("test1"), 1000, ProtocolVersion.V2);
+    long remaining = maxWait.get(1000, TimeUnit.MILLISECONDS);
+    assertTrue(remaining > 0 && remaining <= 1000);
+  }
+
+  @Test
+  public void testRequestExpiredWhileQueuedIsDropped() throws Exception {
+    setupEnvironment(b -> b.setMaxConcurrentCalls(1).setMaxQueuedCalls(1));
+    CountDownLatch blocker = new CountDownLatch(1);
+    CountDownLatch firstSignal = new CountDownLatch(1);
+    when(endpoint.signal(any(), any(), anyLong())).thenAnswer(i -> {
+      firstSignal.countDown();
+      blocker.await();
+      return i.getArgument(1);
+    });
+    signal(new TestMessage("test1"), 1000, ProtocolVersion.V2);
+    assertTrue(firstSignal.await(1000, TimeUnit.MILLISECONDS));
+    //second request is queued behind the first, and times out before dispatch
+    signal(new TestMessage("test2"), 100, ProtocolVersion.V2);
+    Thread.sleep(300);
+    blocker.countDown();
+    Thread.sleep(100);
+    verify(endpoint, times(1)).signal(any(), any(), anyLong());
+  }
+
+  @Test
+  public void testExpediteOvertakesBulkWithDefaults() throws Exception {
+    setupEnvironment();
+    CountDownLatch blocker = new CountDownLatch(1);
+    CountDownLatch allBlocked = new CountDownLatch(JMSRequestProxy.DEFAULT_MAX_CONCURRENT_CALLS);
+    List<String> handled = new CopyOnWriteArrayList<>();
+    when(endpoint.signal(any(), any(), anyLong())).thenAnswer(i -> {
+      TestMessage msg = i.getArgument(0);
+      if (msg.getId().startsWith("blocker")) {
+        allBlocked.countDown();
+        blocker.await();
+      }
+      handled.add(msg.getId());
+      return i.getArgument(1);
+    });
+    for (int i = 0; i < JMSRequestProxy.DEFAULT_MAX_CONCURRENT_CALLS; i++) {
+      signal(new TestMessage("blocker" + i), 5000, ProtocolVersion.V2);
+    }
+    assertTrue(allBlocked.await(1000, TimeUnit.MILLISECONDS));
+    //all threads are busy, so both requests are queued up in the proxy
+    signal(new TestMessage("bulk").setPriority(no.mnemonic.messaging.requestsink.Message.Priority.BULK), 5000, ProtocolVersion.V2);
+    signal(new TestMessage("expedite").setPriority(no.mnemonic.messaging.requestsink.Message.Priority.EXPEDITE), 5000, ProtocolVersion.V2);
+    Thread.sleep(100);
+    blocker.countDown();
+    verify(endpoint, timeout(1000).times(JMSRequestProxy.DEFAULT_MAX_CONCURRENT_CALLS + 2)).signal(any(), any(), anyLong());
+    assertTrue(handled.indexOf("expedite") < handled.indexOf("bulk"));
+  }
+
+  @Test
+  public void testVirtualThreadsHandleCallsBeyondMaxConcurrentCalls() throws Exception {
+    assumeTrue(VirtualThreadExecutor.isSupported());
+    setupEnvironment(b -> b.setMaxConcurrentCalls(1).setUseVirtualThreads(true).setMaxVirtualThreadCalls(20));
+    //all calls must be handled concurrently to pass the latch
+    CountDownLatch allStarted = new CountDownLatch(20);
+    when(endpoint.signal(any(), any(), anyLong())).thenAnswer(i -> {
+      allStarted.countDown();
+      allStarted.await();
+      RequestContext ctx = i.getArgument(1);
+      ctx.endOfStream();
+      return ctx;
+    });
+    for (int i = 0; i < 20; i++) {
+      signal(new TestMessage("test" + i), 1000, ProtocolVersion.V2);
+    }
+    assertTrue(allStarted.await(1000, TimeUnit.MILLISECONDS));
+  }
+
+  @Test
+  public void testVirtualThreadsFallBackToMaxConcurrentCalls() throws Exception {
+    assumeFalse(VirtualThreadExecutor.isSupported());
+    setupEnvironment(b -> b.setMaxConcurrentCalls(1).setUseVirtualThreads(true).setMaxVirtualThreadCalls(20));
+    CountDownLatch blocker = new CountDownLatch(1);
+    AtomicInteger running = new AtomicInteger();
+    AtomicInteger maxRunning = new AtomicInteger();
+    when(endpoint.signal(any(), any(), anyLong())).thenAnswer(i -> {
+      maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+      blocker.await();
+      running.decrementAndGet();
+      return i.getArgument(1);
+    });
+    for (int i = 0; i < 5; i++) {
+      signal(new TestMessage("test" + i), 5000, ProtocolVersion.V2);
+    }
+    Thread.sleep(200);
+    //only the single platform thread is handling requests
+    assertEquals(1, maxRunning.get());
+    blocker.countDown();
+    verify(endpoint, timeout(1000).times(5)).signal(any(), any(), anyLong());
+    assertEquals(1, maxRunning.get());
+  }
+
   @Test
   public void testSignalContextEOSReturnsEOSMessage() throws Exception {
     setupEnvironment();
@@ -200,6 +310,75 @@ public class JMSRequestProxyTest extends AbstractJMSRequestTest {
     assertEquals(JMSRequestProxy.MESSAGE_TYPE_SIGNAL_RESPONSE, responseMessage.getStringProperty(JMSRequestProxy.PROPERTY_MESSAGE_TYPE));
   }
 
+  @Test
+  public void testCompressedResponseOnV7Request() throws Exception {
+    setupEnvironment(b -> b.setCompressionThreshold(100));
+    TestMessage response = createBigResponse();
+    byte[] responseBytes = TestUtils.serialize(response);
+
+    Future<MessageAndContext> expectedSignal = expectSignal();
+    Destination responseQueue = signal(new TestMessage("request"), 1000, ProtocolVersion.V7);
+    BlockingQueue<Message> responses = receiveFrom(responseQueue);
+    expectedSignal.get(1000, TimeUnit.MILLISECONDS).ctx.addResponse(response);
+
+    //compressed response fits in a single message
+    Message responseMessage = responses.poll(1000, TimeUnit.MILLISECONDS);
+    assertEquals(JMSRequestProxy.MESSAGE_TYPE_SIGNAL_RESPONSE, responseMessage.getStringProperty(JMSRequestProxy.PROPERTY_MESSAGE_TYPE));
+    assertEquals(MessageCompressor.CODEC_DEFLATE, responseMessage.getStringProperty(JMSRequestProxy.PROPERTY_COMPRESSION));
+    assertEquals(responseBytes.length, MessageCompressor.getUncompressedSize(responseMessage));
+    byte[] data = new MessageCompressor(0).decompress(extractMessageBytes(responseMessage), responseBytes.length);
+    assertEquals(response, TestUtils.unserialize(data));
+    assertEquals(1L, requestProxy.getMetrics().getData("compressedMessages").longValue());
+  }
+
+  @Test
+  public void testNoCompressedResponseOnV6Request() throws Exception {
+    setupEnvironment(b -> b.setCompressionThreshold(100));
+    Future<MessageAndContext> expectedSignal = expectSignal();
+    Destination responseQueue = signal(new TestMessage("request"), 1000, ProtocolVersion.V6);
+    BlockingQueue<Message> responses = receiveFrom(responseQueue);
+    expectedSignal.get(1000, TimeUnit.MILLISECONDS).ctx.addResponse(createBigResponse());
+
+    //uncompressed response is fragmented
+    Message firstFragment = responses.poll(1000, TimeUnit.MILLISECONDS);
+    assertEquals(JMSRequestProxy.MESSAGE_TYPE_SIGNAL_FRAGMENT, firstFragment.getStringProperty(JMSRequestProxy.PROPERTY_MESSAGE_TYPE));
+    assertFalse(firstFragment.propertyExists(JMSRequestProxy.PROPERTY_COMPRESSION));
+  }
+
+  @Test
+  public void testCreditsAreReceivedWhileRequestConsumerIsBlocked() throws Exception {
+    setupEnvironment(b -> b.setMaxConcurrentCalls(1));
+    when(endpoint.signal(any(), any(), anyLong())).thenAnswer(i -> {
+      TestMessage msg = i.getArgument(0);
+      RequestContext ctx = i.getArgument(1);
+      if (msg.getId().equals("windowed")) {
+        for (int r = 0; r < 3; r++) ctx.addResponse(new TestMessage("resp" + r));
+      }
+      ctx.endOfStream();
+      return ctx;
+    });
+
+    TestMessage windowed = new TestMessage("windowed");
+    BlockingQueue<Message> windowedResponses = receiveFrom(signal(windowed, 5000, ProtocolVersion.V4, 1));
+    Message first = windowedResponses.poll(1000, TimeUnit.MILLISECONDS);
+    assertNotNull(first);
+    //the only thread is now waiting for credits, so the next request blocks the request consumer
+    BlockingQueue<Message> otherResponses = receiveFrom(signal(new TestMessage("other"), 5000, ProtocolVersion.V4));
+    Thread.sleep(100);
+
+    //credits must still be delivered to the waiting call
+    for (int r = 1; r < 3; r++) {
+      sendCredits(first.getJMSReplyTo(), windowed.getCallID(), 1);
+      Message response = windowedResponses.poll(1000, TimeUnit.MILLISECONDS);
+      assertNotNull(response);
+      assertEquals(JMSRequestProxy.MESSAGE_TYPE_SIGNAL_RESPONSE, response.getStringProperty(JMSRequestProxy.PROPERTY_MESSAGE_TYPE));
+    }
+    sendCredits(first.getJMSReplyTo(), windowed.getCallID(), 1);
+    assertEquals(JMSRequestProxy.MESSAGE_TYPE_STREAM_CLOSED, windowedResponses.poll(1000, TimeUnit.MILLISECONDS).getStringProperty(JMSRequestProxy.PROPERTY_MESSAGE_TYPE));
+    //when the windowed call is done, the blocked request is handled
+    assertEquals(JMSRequestProxy.MESSAGE_TYPE_STREAM_CLOSED, otherResponses.poll(1000, TimeUnit.MILLISECONDS).getStringProperty(JMSRequestProxy.PROPERTY_MESSAGE_TYPE));
+  }
+
   @Test
   public void testJMSExceptionTriggersReconnect() throws Exception {
     setupEnvironment();
@@ -273,17 +452,37 @@ public class JMSRequestProxyTest extends AbstractJMSRequestTest {
 
   private Destination signal(no.mnemonic.messaging.requestsink.Message msg, long timeout, ProtocolVersion protocolVersion)
           throws NamingException, JMSException, IOException {
+    return signal(msg, timeout, protocolVersion, 0);
+  }
+
+  private Destination signal(no.mnemonic.messaging.requestsink.Message msg, long timeout, ProtocolVersion protocolVersion, int responseWindow)
+          throws NamingException, JMSException, IOException {
     Destination responseQueue = session.createTemporaryQueue();
     Message message = byteMsg(msg, JMSRequestProxy.MESSAGE_TYPE_SIGNAL, msg.getCallID());
     message.setLongProperty(JMSRequestProxy.PROPERTY_REQ_TIMEOUT, System.currentTimeMillis() + timeout);
     message.setStringProperty(JMSRequestProxy.PROTOCOL_VERSION_KEY, protocolVersion.getVersionString());
+    if (responseWindow > 0) message.setIntProperty(JMSRequestProxy.PROPERTY_RESPONSE_WINDOW, responseWindow);
     message.setJMSReplyTo(responseQueue);
     MessageProducer producer = session.createProducer(queue);
-    producer.send(message);
+    producer.send(message, DeliveryMode.NON_PERSISTENT, jmsPriority(msg), javax.jms.Message.DEFAULT_TIME_TO_LIVE);
     producer.close();
     return responseQueue;
   }
 
+  private int jmsPriority(no.mnemonic.messaging.requestsink.Message msg) {
+    if (msg.getPriority() == no.mnemonic.messaging.requestsink.Message.Priority.BULK) return 0;
+    if (msg.getPriority() == no.mnemonic.messaging.requestsink.Message.Priority.EXPEDITE) return 9;
+    return javax.jms.Message.DEFAULT_PRIORITY;
+  }
+
+  private void sendCredits(Destination controlQueue, String callID, int credits) throws Exception {
+    Message message = textMsg("response credits", JMSRequestProxy.MESSAGE_TYPE_RESPONSE_CREDIT, callID);
+    message.setIntProperty(JMSRequestProxy.PROPERTY_RESPONSE_CREDITS, credits);
+    MessageProducer producer = session.createProducer(controlQueue);
+    producer.send(message);
+    producer.close();
+  }
+
   private void uploadAndCloseChannel(Destination channel, String callID, byte[] data, int maxSize) throws Exception {
     MessageProducer producer = session.createProducer(channel);
     String md5sum = md5(data);
@@ -318,22 +517,28 @@ public class JMSRequestProxyTest extends AbstractJMSRequestTest {
     container.initialize();
   }
 
-  private void setupProxy(String queueName) {
+  private void setupProxy(String queueName, Consumer<JMSRequestProxy.Builder> config) {
     //set up request sink pointing at a vm-local topic
-    requestProxy = addConnection(JMSRequestProxy.builder())
+    JMSRequestProxy.Builder builder = addConnection(JMSRequestProxy.builder())
             .setShutdownTimeout(500)
             .addSerializer(new DefaultJavaMessageSerializer())
             .setDestinationName(queueName)
             .setRequestSink(endpoint)
-            .setMaxMessageSize(1000)
-            .build();
+            .setMaxMessageSize(1000);
+    config.accept(builder);
+    requestProxy = builder.build();
   }
 
   private void setupEnvironment() throws NamingException, JMSException, InterruptedException, ExecutionException, TimeoutException {
+    setupEnvironment(b -> {
+    });
+  }
+
+  private void setupEnvironment(Consumer<JMSRequestProxy.Builder> config) throws NamingException, JMSException, InterruptedException, ExecutionException, TimeoutException {
     //set up a real JMS connection to a vm-local activemq
     String queueName = "dynamicQueues/" + generateCookie(10);
 
-    setupProxy(queueName);
+    setupProxy(queueName, config);
     Future<Void> proxyConnected = listenForProxyConnection();
     createContainer();
 
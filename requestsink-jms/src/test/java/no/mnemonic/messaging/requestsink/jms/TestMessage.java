@@ -12,6 +12,7 @@ public class TestMessage implements Message {
   private final String id;
   private String callID;
   private long timestamp = System.currentTimeMillis();
+  private Priority priority = Priority.STANDARD;
 
   public TestMessage(String id) {
     this.id = id;
@@ -23,6 +24,16 @@ public class TestMessage implements Message {
     return timestamp;
   }
 
+  @Override
+  public Priority getPriority() {
+    return priority;
+  }
+
+  public TestMessage setPriority(Priority priority) {
+    this.priority = priority;
+    return this;
+  }
+
   @Override
   public String getCallID() {
     return callID;
@@ -4,6 +4,7 @@ import no.mnemonic.messaging.requestsink.RequestContext;
 import no.mnemonic.messaging.requestsink.jms.*;
 import no.mnemonic.messaging.requestsink.jms.serializer.DefaultJavaMessageSerializer;
 import no.mnemonic.messaging.requestsink.jms.util.ClientMetrics;
+import no.mnemonic.messaging.requestsink.jms.util.MessageCompressor;
 import no.mnemonic.messaging.requestsink.jms.util.MessageFragment;
 import org.junit.After;
 import org.junit.Before;
@@ -22,6 +23,7 @@ import static no.mnemonic.messaging.requestsink.jms.util.JMSUtils.md5;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
 import static org.mockito.ArgumentMatchers.anyLong;
 import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.isA;
@@ -236,6 +238,48 @@ public class ClientRequestContextTest {
     verify(requestContext).addResponse(eq(message));
   }
 
+  @Test
+  public void testCompressedFragmentedResponse() throws JMSException, IOException {
+    TestMessage message = new TestMessage(new String(new char[1000]).replace('\0', 'c'));
+    byte[] uncompressed = TestUtils.serialize(message);
+    byte[] compressed = new MessageCompressor(1).compress(uncompressed);
+
+    handler.handleResponse(createMessageFragment(CALL_ID, "response1", Arrays.copyOfRange(compressed, 0, 3), 0));
+    handler.handleResponse(createMessageFragment(CALL_ID, "response1", Arrays.copyOfRange(compressed, 3, compressed.length), 1));
+    //the compression is announced on the end-of-fragments message
+    TextMessage eof = createEOF(CALL_ID, "response1", 2, md5(compressed));
+    when(eof.getStringProperty(PROTOCOL_VERSION_KEY)).thenReturn(ProtocolVersion.V7.getVersionString());
+    when(eof.propertyExists(PROPERTY_COMPRESSION)).thenReturn(true);
+    when(eof.getStringProperty(PROPERTY_COMPRESSION)).thenReturn(MessageCompressor.CODEC_DEFLATE);
+    when(eof.getIntProperty(PROPERTY_UNCOMPRESSED_SIZE)).thenReturn(uncompressed.length);
+    handler.handleResponse(eof);
+
+    verify(requestContext).addResponse(eq(message));
+  }
+
+  @Test
+  public void testResponseCreditsReturnedWhenHalfWindowConsumed() throws JMSException, IOException {
+    ClientRequestContext.ResponseCreditSender creditSender = mock(ClientRequestContext.ResponseCreditSender.class);
+    handler = new ClientRequestContext(CALL_ID, session, new ClientMetrics(), ClassLoader.getSystemClassLoader(), requestContext, closeListener, new DefaultJavaMessageSerializer(), 4, creditSender);
+    BytesMessage response = createResponseMessage(CALL_ID, testMessage);
+    when(response.getJMSReplyTo()).thenReturn(temporaryQueue);
+    handler.handleResponse(response);
+
+    handler.responsesConsumed(1);
+    verify(creditSender, never()).sendCredits(any(), any(), anyInt());
+    handler.responsesConsumed(1);
+    verify(creditSender).sendCredits(CALL_ID, temporaryQueue, 2);
+  }
+
+  @Test
+  public void testResponseCreditsNotReturnedWithoutWindow() throws JMSException, IOException {
+    BytesMessage response = createResponseMessage(CALL_ID, testMessage);
+    when(response.getJMSReplyTo()).thenReturn(temporaryQueue);
+    handler.handleResponse(response);
+    handler.responsesConsumed(10);
+    verify(session, never()).createProducer(any());
+  }
+
   //helpers
 
   private BytesMessage createMessageFragment(String callID, String responseID, byte[] data, int idx) throws IOException, JMSException {
@@ -0,0 +1,62 @@
+package no.mnemonic.messaging.requestsink.jms.context;
+
+import no.mnemonic.messaging.requestsink.jms.ProtocolVersion;
+import no.mnemonic.messaging.requestsink.jms.serializer.MessageSerializer;
+import no.mnemonic.messaging.requestsink.jms.util.ServerMetrics;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import javax.jms.*;
+
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.*;
+
+public class ServerChannelUploadContextTest {
+
+  private static final String CALL_ID = "callID";
+
+  @Mock
+  private Session session;
+  @Mock
+  private Destination responseDestination;
+  @Mock
+  private TemporaryQueue temporaryQueue;
+  @Mock
+  private MessageConsumer messageConsumer;
+  @Mock
+  private MessageProducer messageProducer;
+  @Mock
+  private TextMessage textMessage;
+  @Mock
+  private MessageSerializer serializer;
+  @Mock
+  private ServerChannelUploadContext.UploadHandler uploadHandler;
+
+  @Before
+  public void setup() throws JMSException {
+    MockitoAnnotations.initMocks(this);
+    when(session.createTemporaryQueue()).thenReturn(temporaryQueue);
+    when(session.createConsumer(any())).thenReturn(messageConsumer);
+    when(session.createProducer(any())).thenReturn(messageProducer);
+    when(session.createTextMessage(any())).thenReturn(textMessage);
+  }
+
+  @Test
+  public void testExpiryReleasesChannelOnCleanup() throws Exception {
+    ServerChannelUploadContext context = new ServerChannelUploadContext(CALL_ID, session, responseDestination,
+            System.currentTimeMillis() + 100, ProtocolVersion.V4, new ServerMetrics(), serializer);
+    context.setupChannel(uploadHandler);
+    Thread.sleep(300);
+    //expiry on the timer thread does not call the broker
+    verify(temporaryQueue, never()).delete();
+    verify(messageConsumer, never()).close();
+    //the channel is released by the thread checking for closed contexts
+    assertTrue(context.isClosed());
+    assertTrue(context.isClosed());
+    verify(messageConsumer).close();
+    verify(temporaryQueue).delete();
+  }
+}
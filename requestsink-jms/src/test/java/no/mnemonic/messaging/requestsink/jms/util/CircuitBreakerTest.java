@@ -0,0 +1,119 @@
+package no.mnemonic.messaging.requestsink.jms.util;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+
+public class CircuitBreakerTest {
+
+  private final AtomicLong now = new AtomicLong(1000);
+  private CircuitBreaker breaker;
+
+  @Before
+  public void setUp() {
+    CircuitBreaker.setClock(new Clock() {
+      @Override
+      public ZoneId getZone() {
+        return ZoneId.systemDefault();
+      }
+
+      @Override
+      public Clock withZone(ZoneId zone) {
+        return this;
+      }
+
+      @Override
+      public Instant instant() {
+        return Instant.ofEpochMilli(now.get());
+      }
+    });
+    breaker = CircuitBreaker.builder()
+            .setWindowSize(10)
+            .setMinimumCalls(4)
+            .setFailureRateThreshold(0.5)
+            .setOpenTime(1000)
+            .build();
+  }
+
+  @After
+  public void tearDown() {
+    CircuitBreaker.setClock(Clock.systemUTC());
+  }
+
+  @Test
+  public void testBreakerStaysClosedBelowMinimumCalls() {
+    for (int i = 0; i < 3; i++) breaker.onFailure();
+    assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+    assertTrue(breaker.allowRequest());
+  }
+
+  @Test
+  public void testBreakerOpensOnFailureRate() {
+    breaker.onSuccess();
+    breaker.onSuccess();
+    breaker.onFailure();
+    assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+    breaker.onFailure();
+    assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+    assertFalse(breaker.allowRequest());
+    assertEquals(1, breaker.getOpenedCount());
+  }
+
+  @Test
+  public void testOldOutcomesLeaveWindow() {
+    breaker = CircuitBreaker.builder().setWindowSize(4).setMinimumCalls(4).build();
+    breaker.onFailure();
+    breaker.onSuccess();
+    breaker.onSuccess();
+    breaker.onSuccess();
+    //first failure is pushed out of the window
+    breaker.onSuccess();
+    breaker.onFailure();
+    assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+  }
+
+  @Test
+  public void testHalfOpenProbeSuccessClosesBreaker() {
+    openBreaker();
+    now.addAndGet(1000);
+    assertTrue(breaker.allowRequest());
+    assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+    //only a single probe
+    assertFalse(breaker.allowRequest());
+    breaker.onSuccess();
+    assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+    assertTrue(breaker.allowRequest());
+  }
+
+  @Test
+  public void testHalfOpenProbeFailureOpensBreaker() {
+    openBreaker();
+    now.addAndGet(1000);
+    assertTrue(breaker.allowRequest());
+    breaker.onFailure();
+    assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+    assertFalse(breaker.allowRequest());
+    assertEquals(2, breaker.getOpenedCount());
+  }
+
+  @Test
+  public void testIgnoredProbeAllowsNewProbe() {
+    openBreaker();
+    now.addAndGet(1000);
+    assertTrue(breaker.allowRequest());
+    breaker.onIgnored();
+    assertTrue(breaker.allowRequest());
+  }
+
+  private void openBreaker() {
+    for (int i = 0; i < 4; i++) breaker.onFailure();
+    assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+  }
+}
@@ -0,0 +1,77 @@
+package no.mnemonic.messaging.requestsink.jms.util;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class ConcurrencyLimiterTest {
+
+  @Test
+  public void testAcquireUpToLimit() {
+    ConcurrencyLimiter limiter = ConcurrencyLimiter.builder().setInitialLimit(2).build();
+    assertNotNull(limiter.tryAcquire());
+    assertNotNull(limiter.tryAcquire());
+    assertNull(limiter.tryAcquire());
+    assertEquals(2, limiter.getInflight());
+  }
+
+  @Test
+  public void testTokenIsReleasedOnce() {
+    ConcurrencyLimiter limiter = ConcurrencyLimiter.builder().setInitialLimit(2).build();
+    ConcurrencyLimiter.Token token = limiter.tryAcquire();
+    limiter.tryAcquire();
+    token.ignored();
+    token.ignored();
+    token.dropped();
+    assertEquals(1, limiter.getInflight());
+    assertEquals(2, limiter.getLimit());
+  }
+
+  @Test
+  public void testLimitIncreasesWhenUsedAndFast() {
+    ConcurrencyLimiter limiter = ConcurrencyLimiter.builder().setInitialLimit(4).setMaxLimit(10).build();
+    for (int i = 0; i < 50; i++) {
+      //keep the limit saturated
+      ConcurrencyLimiter.Token[] tokens = new ConcurrencyLimiter.Token[limiter.getLimit()];
+      for (int t = 0; t < tokens.length; t++) tokens[t] = limiter.tryAcquire();
+      for (ConcurrencyLimiter.Token t : tokens) t.success(5);
+    }
+    assertEquals(10, limiter.getLimit());
+  }
+
+  @Test
+  public void testLimitDoesNotIncreaseWhenUnused() {
+    ConcurrencyLimiter limiter = ConcurrencyLimiter.builder().setInitialLimit(4).build();
+    for (int i = 0; i < 100; i++) {
+      limiter.tryAcquire().success(5);
+    }
+    assertEquals(4, limiter.getLimit());
+  }
+
+  @Test
+  public void testLimitDecreasesOnTimeout() {
+    ConcurrencyLimiter limiter = ConcurrencyLimiter.builder().setInitialLimit(10).setBackoffRatio(0.5).build();
+    limiter.tryAcquire().dropped();
+    assertEquals(5, limiter.getLimit());
+    for (int i = 0; i < 10; i++) {
+      limiter.tryAcquire().dropped();
+    }
+    assertEquals(ConcurrencyLimiter.DEFAULT_MIN_LIMIT, limiter.getLimit());
+  }
+
+  @Test
+  public void testLimitDecreasesOnHighRoundTripTime() {
+    ConcurrencyLimiter limiter = ConcurrencyLimiter.builder().setInitialLimit(10).setBackoffRatio(0.5).build();
+    limiter.tryAcquire().success(20);
+    assertEquals(20, limiter.getBaselineRtt());
+    assertEquals(10, limiter.getLimit());
+    //queueing makes round trip time exceed the tolerance
+    limiter.tryAcquire().success(100);
+    assertEquals(5, limiter.getLimit());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testInvalidLimits() {
+    ConcurrencyLimiter.builder().setMinLimit(10).setMaxLimit(5).build();
+  }
+}
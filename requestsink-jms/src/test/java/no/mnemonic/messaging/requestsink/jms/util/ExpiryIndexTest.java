@@ -0,0 +1,85 @@
+package no.mnemonic.messaging.requestsink.jms.util;
+
+import org.junit.Test;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static no.mnemonic.commons.utilities.collections.ListUtils.list;
+import static org.junit.Assert.*;
+
+public class ExpiryIndexTest {
+
+  private final ExpiryIndex<String> index = new ExpiryIndex<>();
+
+  @Test
+  public void testPollExpiredReturnsExpiredKeysInOrder() {
+    index.add("c", 300);
+    index.add("a", 100);
+    index.add("b", 200);
+    assertEquals(list("a", "b"), index.pollExpired(200));
+    assertEquals(1, index.size());
+    assertTrue(index.pollExpired(299).isEmpty());
+    assertEquals(list("c"), index.pollExpired(300));
+    assertEquals(0, index.size());
+  }
+
+  @Test
+  public void testPollExpiredWithNoKeys() {
+    assertTrue(index.pollExpired(Long.MAX_VALUE).isEmpty());
+  }
+
+  @Test
+  public void testAddReplacesDeadline() {
+    index.add("a", 100);
+    index.add("a", 500);
+    assertEquals(1, index.size());
+    assertTrue(index.pollExpired(200).isEmpty());
+    assertEquals(list("a"), index.pollExpired(500));
+  }
+
+  @Test
+  public void testRemove() {
+    index.add("a", 100);
+    assertTrue(index.remove("a"));
+    assertFalse(index.remove("a"));
+    assertEquals(0, index.size());
+    assertTrue(index.pollExpired(100).isEmpty());
+  }
+
+  @Test
+  public void testSweepIsBoundedAndRoundRobin() {
+    for (int i = 0; i < 10; i++) {
+      index.add("key" + i, i);
+    }
+    Set<String> seen = new HashSet<>();
+    for (int i = 0; i < 3; i++) {
+      List<String> keys = index.sweep(4);
+      assertEquals(4, keys.size());
+      seen.addAll(keys);
+    }
+    //three sweeps of 4 keys covers all 10 keys
+    assertEquals(10, seen.size());
+    //sweep does not remove keys
+    assertEquals(10, index.size());
+  }
+
+  @Test
+  public void testSweepWithFewerKeysThanCount() {
+    index.add("a", 100);
+    index.add("b", 200);
+    assertEquals(list("a", "b"), index.sweep(16));
+    assertEquals(list("a", "b"), index.sweep(16));
+  }
+
+  @Test
+  public void testSweepContinuesAfterCursorIsRemoved() {
+    for (int i = 0; i < 4; i++) {
+      index.add("key" + i, i);
+    }
+    assertEquals(list("key0", "key1"), index.sweep(2));
+    index.remove("key1");
+    assertEquals(list("key2", "key3"), index.sweep(2));
+  }
+}
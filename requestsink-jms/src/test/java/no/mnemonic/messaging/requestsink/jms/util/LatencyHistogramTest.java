@@ -0,0 +1,98 @@
+package no.mnemonic.messaging.requestsink.jms.util;
+
+import no.mnemonic.commons.metrics.MetricsData;
+import org.junit.Test;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class LatencyHistogramTest {
+
+  @Test
+  public void testBucketsAreContiguous() {
+    for (long value = 0; value < 100000; value++) {
+      int index = LatencyHistogram.bucketIndex(value);
+      assertTrue(LatencyHistogram.bucketLowerBound(index) <= value);
+      assertTrue(LatencyHistogram.bucketLowerBound(index + 1) > value);
+    }
+  }
+
+  @Test
+  public void testSmallValuesAreExact() {
+    LatencyHistogram histogram = new LatencyHistogram();
+    for (int i = 1; i <= 10; i++) histogram.recordMicros(i);
+    assertEquals(5, histogram.getPercentile(0.5));
+    assertEquals(9, histogram.getPercentile(0.9));
+    assertEquals(10, histogram.getPercentile(1));
+    assertEquals(10, histogram.getMax());
+    assertEquals(10, histogram.getCount());
+  }
+
+  @Test
+  public void testPercentilesWithinRelativeError() {
+    LatencyHistogram histogram = new LatencyHistogram();
+    for (int i = 1; i <= 100000; i++) histogram.recordMicros(i);
+    assertEquals(50000, histogram.getPercentile(0.5), 50000 / 16.0);
+    assertEquals(99000, histogram.getPercentile(0.99), 99000 / 16.0);
+    assertEquals(100000, histogram.getMax());
+  }
+
+  @Test
+  public void testRecordWithUnit() {
+    LatencyHistogram histogram = new LatencyHistogram();
+    histogram.record(3, TimeUnit.MILLISECONDS);
+    assertEquals(3000, histogram.getMax());
+    histogram.record(-1, TimeUnit.MILLISECONDS);
+    assertEquals(0, histogram.getPercentile(0));
+  }
+
+  @Test
+  public void testHugeValuesAreClamped() {
+    LatencyHistogram histogram = new LatencyHistogram();
+    histogram.recordMicros(Long.MAX_VALUE);
+    assertEquals(LatencyHistogram.MAX_VALUE, histogram.getMax());
+    assertEquals(LatencyHistogram.MAX_VALUE, histogram.getPercentile(1), LatencyHistogram.MAX_VALUE / 16.0);
+  }
+
+  @Test
+  public void testEmptyHistogram() throws Exception {
+    LatencyHistogram histogram = new LatencyHistogram();
+    assertEquals(0, histogram.getPercentile(0.99));
+    MetricsData data = new MetricsData();
+    histogram.addTo(data, "latency");
+    assertEquals(0L, data.getData().get("latencyCount"));
+    assertEquals(0L, data.getData().get("latencyMeanMicros"));
+  }
+
+  @Test
+  public void testAddToMetrics() throws Exception {
+    LatencyHistogram histogram = new LatencyHistogram();
+    histogram.recordMicros(2);
+    histogram.recordMicros(4);
+    MetricsData data = new MetricsData();
+    histogram.addTo(data, "latency");
+    assertEquals(2L, data.getData().get("latencyCount"));
+    assertEquals(3L, data.getData().get("latencyMeanMicros"));
+    assertEquals(4L, data.getData().get("latencyMaxMicros"));
+    assertEquals(2L, data.getData().get("latencyP50Micros"));
+    assertEquals(4L, data.getData().get("latencyP999Micros"));
+  }
+
+  @Test
+  public void testConcurrentRecording() throws Exception {
+    LatencyHistogram histogram = new LatencyHistogram();
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    for (int t = 0; t < 4; t++) {
+      executor.submit(() -> {
+        for (int i = 0; i < 10000; i++) histogram.recordMicros(i);
+      });
+    }
+    executor.shutdown();
+    assertTrue(executor.awaitTermination(5, TimeUnit.SECONDS));
+    assertEquals(40000, histogram.getCount());
+    assertEquals(9999, histogram.getMax());
+  }
+}
@@ -0,0 +1,102 @@
+package no.mnemonic.messaging.requestsink.jms.util;
+
+import no.mnemonic.commons.metrics.MetricsData;
+import no.mnemonic.messaging.requestsink.jms.MockMessageBuilder;
+import no.mnemonic.messaging.requestsink.jms.ProtocolVersion;
+import org.junit.Test;
+
+import javax.jms.JMSException;
+import javax.jms.TextMessage;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import static no.mnemonic.messaging.requestsink.jms.AbstractJMSRequestBase.*;
+import static org.junit.Assert.*;
+
+public class MessageCompressorTest {
+
+  private final MessageCompressor compressor = new MessageCompressor(100);
+
+  @Test
+  public void testCompressAndDecompress() throws Exception {
+    byte[] data = compressibleData(10000);
+    byte[] compressed = compressor.compress(data);
+    assertNotNull(compressed);
+    assertTrue(compressed.length < data.length);
+    assertArrayEquals(data, compressor.decompress(compressed, data.length));
+
+    MetricsData metrics = new MetricsData();
+    compressor.addTo(metrics);
+    assertEquals(1L, metrics.getData("compressedMessages").longValue());
+    assertEquals(1L, metrics.getData("decompressedMessages").longValue());
+    assertTrue(metrics.getData("compressionRatio").doubleValue() > 1);
+  }
+
+  @Test
+  public void testDataBelowThresholdIsNotCompressed() {
+    assertNull(compressor.compress(compressibleData(99)));
+    assertNotNull(compressor.compress(compressibleData(100)));
+  }
+
+  @Test
+  public void testDisabledCompressorStillDecompresses() throws Exception {
+    byte[] data = compressibleData(10000);
+    MessageCompressor disabled = new MessageCompressor(0);
+    assertNull(disabled.compress(data));
+    assertArrayEquals(data, disabled.decompress(compressor.compress(data), data.length));
+  }
+
+  @Test
+  public void testIncompressibleDataIsNotCompressed() throws Exception {
+    byte[] data = new byte[10000];
+    new Random(1).nextBytes(data);
+    assertNull(compressor.compress(data));
+    MetricsData metrics = new MetricsData();
+    compressor.addTo(metrics);
+    assertEquals(1L, metrics.getData("incompressibleMessages").longValue());
+    assertEquals(0L, metrics.getData("compressedMessages").longValue());
+  }
+
+  @Test
+  public void testUncompressedDataIsPassedThrough() throws Exception {
+    byte[] data = compressibleData(10);
+    assertSame(data, compressor.decompress(data, 0));
+  }
+
+  @Test(expected = IOException.class)
+  public void testWrongUncompressedSizeIsRejected() throws Exception {
+    byte[] data = compressibleData(10000);
+    compressor.decompress(compressor.compress(data), data.length - 1);
+  }
+
+  @Test(expected = IOException.class)
+  public void testInvalidDataIsRejected() throws Exception {
+    compressor.decompress(compressibleData(100), 1000);
+  }
+
+  @Test
+  public void testUncompressedSizeRequiresV7() throws JMSException {
+    assertEquals(1000, MessageCompressor.getUncompressedSize(compressedMessage(ProtocolVersion.V7, MessageCompressor.CODEC_DEFLATE)));
+    assertEquals(0, MessageCompressor.getUncompressedSize(compressedMessage(ProtocolVersion.V6, MessageCompressor.CODEC_DEFLATE)));
+  }
+
+  @Test(expected = JMSException.class)
+  public void testUnknownCodecIsRejected() throws JMSException {
+    MessageCompressor.getUncompressedSize(compressedMessage(ProtocolVersion.V7, "lz4"));
+  }
+
+  private static TextMessage compressedMessage(ProtocolVersion protocolVersion, String codec) throws JMSException {
+    return new MockMessageBuilder<>(TextMessage.class)
+            .withProperty(PROTOCOL_VERSION_KEY, protocolVersion.getVersionString())
+            .withProperty(PROPERTY_COMPRESSION, codec)
+            .withProperty(PROPERTY_UNCOMPRESSED_SIZE, 1000)
+            .build();
+  }
+
+  private static byte[] compressibleData(int size) {
+    byte[] data = new byte[size];
+    Arrays.fill(data, (byte) 'c');
+    return data;
+  }
+}
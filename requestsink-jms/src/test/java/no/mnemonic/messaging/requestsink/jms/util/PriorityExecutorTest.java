@@ -0,0 +1,87 @@
+package no.mnemonic.messaging.requestsink.jms.util;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static no.mnemonic.commons.utilities.collections.ListUtils.list;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class PriorityExecutorTest {
+
+  private final CountDownLatch blocker = new CountDownLatch(1);
+  private final List<String> executed = new CopyOnWriteArrayList<>();
+  private PriorityExecutor executor;
+
+  @After
+  public void tearDown() throws InterruptedException {
+    blocker.countDown();
+    if (executor == null) return;
+    executor.shutdown();
+    executor.awaitTermination(1, TimeUnit.SECONDS);
+  }
+
+  @Test
+  public void testQueuedTasksRunInPriorityOrder() throws InterruptedException {
+    executor = new PriorityExecutor(1, 10000, new ThreadFactoryBuilder().setNamePrefix("PriorityExecutorTest").build());
+    blockExecutor();
+    executor.execute(0, () -> executed.add("bulk"));
+    executor.execute(1, () -> executed.add("standard"));
+    executor.execute(9, () -> executed.add("expedite"));
+    assertEquals(3, executor.getQueueSize());
+    runQueuedTasks();
+    assertEquals(list("expedite", "standard", "bulk"), executed);
+  }
+
+  @Test
+  public void testSamePriorityRunsInOrder() throws InterruptedException {
+    executor = new PriorityExecutor(1, 10000, new ThreadFactoryBuilder().setNamePrefix("PriorityExecutorTest").build());
+    blockExecutor();
+    for (int i = 0; i < 10; i++) {
+      String id = "task" + i;
+      executor.execute(1, () -> executed.add(id));
+    }
+    runQueuedTasks();
+    assertEquals(list("task0", "task1", "task2", "task3", "task4", "task5", "task6", "task7", "task8", "task9"), executed);
+  }
+
+  @Test
+  public void testWaitingTaskAgesAheadOfHigherPriority() throws InterruptedException {
+    executor = new PriorityExecutor(1, 10, new ThreadFactoryBuilder().setNamePrefix("PriorityExecutorTest").build());
+    blockExecutor();
+    executor.execute(0, () -> executed.add("bulk"));
+    //waiting longer than the aging interval makes up for a single priority level
+    Thread.sleep(50);
+    executor.execute(1, () -> executed.add("standard"));
+    runQueuedTasks();
+    assertEquals(list("bulk", "standard"), executed);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testInvalidThreads() {
+    new PriorityExecutor(0, 10, new ThreadFactoryBuilder().setNamePrefix("PriorityExecutorTest").build());
+  }
+
+  private void blockExecutor() {
+    executor.execute(0, () -> {
+      try {
+        blocker.await();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    });
+  }
+
+  private void runQueuedTasks() throws InterruptedException {
+    CountDownLatch done = new CountDownLatch(1);
+    //low priority, running after all other queued tasks
+    executor.execute(-1000, done::countDown);
+    blocker.countDown();
+    assertTrue(done.await(1, TimeUnit.SECONDS));
+  }
+}
@@ -0,0 +1,85 @@
+package no.mnemonic.messaging.requestsink.jms.util;
+
+import no.mnemonic.messaging.requestsink.Message;
+import no.mnemonic.messaging.requestsink.jms.serializer.DefaultJavaMessageSerializer;
+import no.mnemonic.messaging.requestsink.jms.serializer.MessageSerializer;
+import org.junit.Test;
+
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+
+public class RequestDigestTest {
+
+  private final MessageSerializer serializer = new DefaultJavaMessageSerializer();
+
+  @Test
+  public void testCallIDAndTimestampAreIgnored() throws IOException {
+    assertEquals(
+            RequestDigest.digest(serializer, new DigestMessage("call1", 1000, "request", 1)),
+            RequestDigest.digest(serializer, new DigestMessage("call2", 2000, "request", 1)));
+  }
+
+  @Test
+  public void testPayloadDigitChangesDigest() throws IOException {
+    //the timestamp value also occurs in the payload of the first request
+    assertNotEquals(
+            RequestDigest.digest(serializer, new DigestMessage("call1", 5, "request5", 5)),
+            RequestDigest.digest(serializer, new DigestMessage("call2", 5, "request6", 5)));
+    assertNotEquals(
+            RequestDigest.digest(serializer, new DigestMessage("call1", 5, "request", 5)),
+            RequestDigest.digest(serializer, new DigestMessage("call2", 5, "request", 0)));
+  }
+
+  @Test
+  public void testPayloadEqualToCallIDIsNotIgnored() throws IOException {
+    assertNotEquals(
+            RequestDigest.digest(serializer, new DigestMessage("call1", 1000, "call1", 1)),
+            RequestDigest.digest(serializer, new DigestMessage("call2", 1000, "other", 1)));
+  }
+
+  @Test(expected = IOException.class)
+  public void testMessageWithoutCallIDFieldIsRejected() throws IOException {
+    RequestDigest.digest(serializer, new ComputedCallIDMessage());
+  }
+
+  private static class DigestMessage implements Message {
+    private static final long serialVersionUID = 1L;
+    private final String text;
+    private final long value;
+    private final String callID;
+    private final long timestamp;
+
+    private DigestMessage(String callID, long timestamp, String text, long value) {
+      this.callID = callID;
+      this.timestamp = timestamp;
+      this.text = text;
+      this.value = value;
+    }
+
+    @Override
+    public String getCallID() {
+      return callID;
+    }
+
+    @Override
+    public long getMessageTimestamp() {
+      return timestamp;
+    }
+  }
+
+  private static class ComputedCallIDMessage implements Message {
+    private static final long serialVersionUID = 1L;
+    private final long timestamp = System.currentTimeMillis();
+
+    @Override
+    public String getCallID() {
+      return "call-" + timestamp;
+    }
+
+    @Override
+    public long getMessageTimestamp() {
+      return timestamp;
+    }
+  }
+}
@@ -0,0 +1,147 @@
+package no.mnemonic.messaging.requestsink.jms.util;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import javax.jms.JMSException;
+import javax.jms.MessageProducer;
+import javax.jms.Session;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.*;
+
+public class SessionPoolTest {
+
+  @Mock
+  private Session session;
+  @Mock
+  private MessageProducer producer;
+
+  private final AtomicInteger createdSessions = new AtomicInteger();
+
+  @Before
+  public void setUp() throws JMSException {
+    MockitoAnnotations.initMocks(this);
+    when(session.createProducer(any())).thenReturn(producer);
+  }
+
+  @Test
+  public void testIdleSessionIsReused() throws Exception {
+    SessionPool pool = createPool(2);
+    SessionPool.Lease lease1 = pool.lease(100);
+    lease1.close();
+    SessionPool.Lease lease2 = pool.lease(100);
+    assertSame(lease1, lease2);
+    assertEquals(1, createdSessions.get());
+    assertEquals(1, pool.getLeased());
+  }
+
+  @Test
+  public void testSessionsAreCreatedUpToSize() throws Exception {
+    SessionPool pool = createPool(2);
+    SessionPool.Lease lease1 = pool.lease(100);
+    SessionPool.Lease lease2 = pool.lease(100);
+    assertNotSame(lease1, lease2);
+    assertEquals(2, pool.getSize());
+    assertEquals(2, pool.getLeased());
+    //pool is full, so wait for a session to be returned
+    assertNull(pool.lease(10));
+    assertEquals(2, createdSessions.get());
+  }
+
+  @Test
+  public void testWaitForReturnedSession() throws Exception {
+    SessionPool pool = createPool(1);
+    SessionPool.Lease lease = pool.lease(100);
+    CompletableFuture<SessionPool.Lease> waiting = CompletableFuture.supplyAsync(() -> {
+      try {
+        return pool.lease(1000);
+      } catch (Exception e) {
+        throw new IllegalStateException(e);
+      }
+    });
+    Thread.sleep(50);
+    assertFalse(waiting.isDone());
+    lease.close();
+    assertSame(lease, waiting.get(1000, TimeUnit.MILLISECONDS));
+  }
+
+  @Test
+  public void testInvalidatedSessionIsClosedAndReplaced() throws Exception {
+    SessionPool pool = createPool(1);
+    SessionPool.Lease lease = pool.lease(100);
+    lease.invalidate();
+    lease.close();
+    verify(session).close();
+    assertEquals(0, pool.getSize());
+    assertNotSame(lease, pool.lease(100));
+    assertEquals(2, createdSessions.get());
+  }
+
+  @Test
+  public void testCloseClosesIdleAndReturnedSessions() throws Exception {
+    SessionPool pool = createPool(2);
+    SessionPool.Lease idle = pool.lease(100);
+    SessionPool.Lease leased = pool.lease(100);
+    idle.close();
+    pool.close();
+    verify(session, times(1)).close();
+    leased.close();
+    verify(session, times(2)).close();
+  }
+
+  @Test
+  public void testCloseFailsWaitingLeaser() throws Exception {
+    SessionPool pool = createPool(1);
+    SessionPool.Lease lease = pool.lease(100);
+    CompletableFuture<Exception> waiting = CompletableFuture.supplyAsync(() -> {
+      try {
+        pool.lease(5000);
+        return null;
+      } catch (Exception e) {
+        return e;
+      }
+    });
+    Thread.sleep(50);
+    pool.close();
+    //waiting leaser notices the closed pool within one poll interval
+    assertTrue(waiting.get(1000, TimeUnit.MILLISECONDS) instanceof IllegalStateException);
+    assertTrue(pool.isClosed());
+    lease.close();
+    verify(session).close();
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void testLeaseFromClosedPool() throws Exception {
+    SessionPool pool = createPool(1);
+    pool.close();
+    pool.lease(100);
+  }
+
+  @Test
+  public void testFailedSessionCreationFreesSlot() throws Exception {
+    SessionPool pool = new SessionPool(1, () -> {
+      if (createdSessions.incrementAndGet() == 1) throw new JMSException("failed");
+      return session;
+    });
+    try {
+      pool.lease(100);
+      fail();
+    } catch (JMSException ignored) {
+    }
+    assertNotNull(pool.lease(100));
+  }
+
+  private SessionPool createPool(int size) {
+    return new SessionPool(size, () -> {
+      createdSessions.incrementAndGet();
+      return session;
+    });
+  }
+}
@@ -0,0 +1,43 @@
+package no.mnemonic.messaging.requestsink.jms.util;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.List;
+
+import static no.mnemonic.commons.utilities.collections.ListUtils.list;
+import static org.junit.Assert.*;
+
+public class SignalBatchTest {
+
+  @Test
+  public void testEncodeDecode() throws IOException {
+    byte[] data = SignalBatch.encode(list(
+            new SignalBatch.Entry("call1", 1000, 0, "request1".getBytes()),
+            new SignalBatch.Entry("call2", 2000, 10, new byte[0])
+    ));
+    List<SignalBatch.Entry> entries = SignalBatch.decode(data);
+    assertEquals(2, entries.size());
+    assertEquals("call1", entries.get(0).getCallID());
+    assertEquals(1000, entries.get(0).getTimeout());
+    assertEquals(0, entries.get(0).getResponseWindow());
+    assertArrayEquals("request1".getBytes(), entries.get(0).getData());
+    assertEquals("call2", entries.get(1).getCallID());
+    assertEquals(2000, entries.get(1).getTimeout());
+    assertEquals(10, entries.get(1).getResponseWindow());
+    assertEquals(0, entries.get(1).getData().length);
+  }
+
+  @Test
+  public void testEncodeEmptyBatch() throws IOException {
+    assertTrue(SignalBatch.decode(SignalBatch.encode(list())).isEmpty());
+  }
+
+  @Test(expected = IOException.class)
+  public void testDecodeTruncatedBatch() throws IOException {
+    byte[] data = SignalBatch.encode(list(new SignalBatch.Entry("call1", 1000, 0, "request1".getBytes())));
+    byte[] truncated = new byte[data.length - 4];
+    System.arraycopy(data, 0, truncated, 0, truncated.length);
+    SignalBatch.decode(truncated);
+  }
+}
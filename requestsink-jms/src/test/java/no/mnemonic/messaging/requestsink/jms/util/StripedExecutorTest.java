@@ -0,0 +1,81 @@
+package no.mnemonic.messaging.requestsink.jms.util;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class StripedExecutorTest {
+
+  private final CountDownLatch blocker = new CountDownLatch(1);
+  private StripedExecutor executor;
+
+  @After
+  public void tearDown() throws InterruptedException {
+    blocker.countDown();
+    if (executor == null) return;
+    executor.shutdown();
+    executor.awaitTermination(1, TimeUnit.SECONDS);
+  }
+
+  @Test
+  public void testTasksWithSameKeyRunInOrder() throws InterruptedException {
+    executor = new StripedExecutor(4, new ThreadFactoryBuilder().setNamePrefix("StripedExecutorTest").build());
+    List<Integer> executed = new CopyOnWriteArrayList<>();
+    List<Integer> expected = new ArrayList<>();
+    for (int i = 0; i < 1000; i++) {
+      int value = i;
+      executor.execute("key", () -> executed.add(value));
+      expected.add(i);
+    }
+    executor.shutdown();
+    assertTrue(executor.awaitTermination(1, TimeUnit.SECONDS));
+    assertEquals(expected, executed);
+  }
+
+  @Test
+  public void testBlockedStripeDoesNotBlockOtherStripes() throws InterruptedException {
+    executor = new StripedExecutor(2, new ThreadFactoryBuilder().setNamePrefix("StripedExecutorTest").build());
+    executor.execute(0, this::block);
+    CountDownLatch done = new CountDownLatch(1);
+    executor.execute(1, done::countDown);
+    assertTrue(done.await(1, TimeUnit.SECONDS));
+  }
+
+  @Test
+  public void testQueueSize() throws InterruptedException {
+    executor = new StripedExecutor(2, new ThreadFactoryBuilder().setNamePrefix("StripedExecutorTest").build());
+    executor.execute(0, this::block);
+    executor.execute(1, this::block);
+    //wait for the blocking tasks to start, so further tasks are queued
+    Thread.sleep(50);
+    for (int i = 0; i < 3; i++) executor.execute(0, () -> {});
+    executor.execute(1, () -> {});
+    assertEquals(4, executor.getQueueSize());
+    assertEquals(3, executor.getMaxQueueSize());
+    blocker.countDown();
+    executor.shutdown();
+    assertTrue(executor.awaitTermination(1, TimeUnit.SECONDS));
+    assertEquals(0, executor.getQueueSize());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testInvalidStripes() {
+    new StripedExecutor(0, new ThreadFactoryBuilder().setNamePrefix("StripedExecutorTest").build());
+  }
+
+  private void block() {
+    try {
+      blocker.await();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+}
@@ -0,0 +1,71 @@
+package no.mnemonic.messaging.requestsink.jms.util;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeFalse;
+import static org.junit.Assume.assumeTrue;
+
+public class VirtualThreadExecutorTest {
+
+  private VirtualThreadExecutor executor;
+
+  @After
+  public void tearDown() throws InterruptedException {
+    if (executor == null) return;
+    executor.shutdown();
+    executor.awaitTermination(1, TimeUnit.SECONDS);
+  }
+
+  @Test
+  public void testTasksRunConcurrently() throws InterruptedException {
+    createExecutor();
+    //all tasks must run concurrently to pass the latch
+    CountDownLatch allStarted = new CountDownLatch(100);
+    CountDownLatch done = new CountDownLatch(100);
+    for (int i = 0; i < 100; i++) {
+      executor.execute(0, () -> {
+        allStarted.countDown();
+        try {
+          if (allStarted.await(1, TimeUnit.SECONDS)) done.countDown();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      });
+    }
+    assertTrue(done.await(2, TimeUnit.SECONDS));
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void testUnsupportedRuntimeIsRejected() {
+    assumeFalse(VirtualThreadExecutor.isSupported());
+    new VirtualThreadExecutor("VirtualThreadExecutorTest");
+  }
+
+  @Test
+  public void testShutdownWaitsForRunningTasks() throws InterruptedException {
+    createExecutor();
+    CountDownLatch done = new CountDownLatch(1);
+    executor.execute(0, () -> {
+      try {
+        Thread.sleep(100);
+        done.countDown();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    });
+    executor.shutdown();
+    assertTrue(executor.awaitTermination(1, TimeUnit.SECONDS));
+    assertTrue(done.await(0, TimeUnit.SECONDS));
+  }
+
+  private void createExecutor() {
+    //virtual threads require Java 21
+    assumeTrue(VirtualThreadExecutor.isSupported());
+    executor = new VirtualThreadExecutor("VirtualThreadExecutorTest");
+  }
+}
@@ -0,0 +1,347 @@
+package no.mnemonic.messaging.requestsink;
+
+import no.mnemonic.commons.logging.Logger;
+import no.mnemonic.commons.logging.Logging;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.LongSupplier;
+
+/**
+ * Low-overhead timer for a large number of pending timeouts, based on a hashed timing wheel.
+ * <p>
+ * Scheduling and cancelling a timeout is O(1), and only enqueues the timeout for the worker thread.
+ * The worker thread advances the wheel once per tick, and runs the tasks of expired timeouts.
+ * Timeouts are not precise, but expire within one tick after their deadline.
+ * <p>
+ * Tasks are run on the worker thread, so tasks must be short and non-blocking.
+ * <p>
+ * Use {@link #getDefault()} to use the timer shared by all requests in the JVM.
+ */
+public class HashedWheelTimer {
+
+  private static final Logger LOGGER = Logging.getLogger(HashedWheelTimer.class);
+
+  static final long DEFAULT_TICK_MILLIS = 10;
+  static final int DEFAULT_WHEEL_SIZE = 1024;
+  private static final int MAX_TRANSFERS_PER_TICK = 100000;
+
+  private static final int STATE_INIT = 0;
+  private static final int STATE_STARTED = 1;
+  private static final int STATE_STOPPED = 2;
+
+  private final String name;
+  private final long tickNanos;
+  private final Bucket[] wheel;
+  private final int mask;
+  private final Queue<Entry> pendingEntries = new ConcurrentLinkedQueue<>();
+  private final Queue<Entry> cancelledEntries = new ConcurrentLinkedQueue<>();
+  private final AtomicInteger state = new AtomicInteger(STATE_INIT);
+  private final AtomicLong pendingTimeouts = new AtomicLong();
+  private final Thread worker;
+  private volatile long startTime;
+
+  public HashedWheelTimer(String name, long tickMillis, int wheelSize) {
+    if (tickMillis <= 0) throw new IllegalArgumentException("tickMillis must be a positive integer");
+    if (wheelSize <= 0) throw new IllegalArgumentException("wheelSize must be a positive integer");
+    this.name = name;
+    this.tickNanos = TimeUnit.MILLISECONDS.toNanos(tickMillis);
+    //round wheel size up to a power of two, to select bucket using a mask
+    int size = Integer.highestOneBit(wheelSize - 1 > 0 ? wheelSize - 1 : 1) << 1;
+    this.wheel = new Bucket[size];
+    for (int i = 0; i < size; i++) wheel[i] = new Bucket();
+    this.mask = size - 1;
+    this.worker = new Thread(this::run, name);
+    this.worker.setDaemon(true);
+  }
+
+  /**
+   * @return the timer shared by all requests in this JVM
+   */
+  public static HashedWheelTimer getDefault() {
+    return DefaultHolder.INSTANCE;
+  }
+
+  /**
+   * Schedule a task to run after the given delay
+   *
+   * @param task  the task to run
+   * @param delay the delay
+   * @param unit  the unit of the delay
+   * @return a handle to cancel the timeout
+   */
+  public Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+    if (task == null) throw new IllegalArgumentException("task not set");
+    if (unit == null) throw new IllegalArgumentException("unit not set");
+    start();
+    Entry entry = new Entry(task, System.nanoTime() - startTime + unit.toNanos(Math.max(delay, 0)));
+    pendingTimeouts.incrementAndGet();
+    pendingEntries.add(entry);
+    return entry;
+  }
+
+  /**
+   * Schedule a task to run when a deadline has passed, where the deadline may be extended after scheduling.
+   * When the timeout fires, the current deadline is checked, and the timeout is rescheduled if the deadline
+   * has been extended. This makes extending the deadline free, as no timer operation is needed.
+   *
+   * @param deadline supplier of the current deadline, as epoch millis
+   * @param task     the task to run when the deadline has passed
+   * @return a handle to cancel the timeout
+   */
+  public Timeout scheduleDeadline(LongSupplier deadline, Runnable task) {
+    if (deadline == null) throw new IllegalArgumentException("deadline not set");
+    if (task == null) throw new IllegalArgumentException("task not set");
+    DeadlineTimeout timeout = new DeadlineTimeout(deadline, task);
+    timeout.reschedule();
+    return timeout;
+  }
+
+  /**
+   * @return number of scheduled timeouts which are not yet expired or cancelled
+   */
+  public long getPendingTimeouts() {
+    return pendingTimeouts.get();
+  }
+
+  /**
+   * Stop the worker thread. Pending timeouts will not expire.
+   */
+  public void stop() {
+    if (state.getAndSet(STATE_STOPPED) != STATE_STARTED) return;
+    worker.interrupt();
+    try {
+      worker.join(1000);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  //private methods
+
+  private void start() {
+    if (state.get() == STATE_STARTED) return;
+    if (state.get() == STATE_STOPPED) throw new IllegalStateException("Timer is stopped: " + name);
+    synchronized (this) {
+      if (state.get() == STATE_INIT) {
+        startTime = System.nanoTime();
+        state.set(STATE_STARTED);
+        worker.start();
+      }
+    }
+  }
+
+  private void run() {
+    long tick = 0;
+    while (state.get() == STATE_STARTED) {
+      long now = waitForNextTick(tick);
+      if (now < 0) continue;
+      removeCancelledEntries();
+      transferPendingEntries(tick);
+      wheel[(int) (tick & mask)].expire(now);
+      tick++;
+    }
+  }
+
+  private long waitForNextTick(long tick) {
+    long deadline = tickNanos * (tick + 1);
+    while (true) {
+      long now = System.nanoTime() - startTime;
+      long sleepMillis = TimeUnit.NANOSECONDS.toMillis(deadline - now + 999999);
+      if (sleepMillis <= 0) return now;
+      try {
+        Thread.sleep(sleepMillis);
+      } catch (InterruptedException e) {
+        if (state.get() != STATE_STARTED) return -1;
+      }
+    }
+  }
+
+  private void transferPendingEntries(long tick) {
+    for (int i = 0; i < MAX_TRANSFERS_PER_TICK; i++) {
+      Entry entry = pendingEntries.poll();
+      if (entry == null) return;
+      if (entry.state.get() != Entry.STATE_PENDING) continue;
+      long expiryTick = entry.deadline / tickNanos;
+      entry.remainingRounds = (expiryTick - tick) / wheel.length;
+      //entries which should already have expired are put into the current bucket
+      wheel[(int) (Math.max(expiryTick, tick) & mask)].add(entry);
+    }
+  }
+
+  private void removeCancelledEntries() {
+    Entry entry;
+    while ((entry = cancelledEntries.poll()) != null) {
+      if (entry.bucket != null) entry.bucket.remove(entry);
+    }
+  }
+
+  private static class DefaultHolder {
+    private static final HashedWheelTimer INSTANCE = new HashedWheelTimer("RequestSinkTimer", DEFAULT_TICK_MILLIS, DEFAULT_WHEEL_SIZE);
+  }
+
+  /**
+   * Handle to a scheduled timeout
+   */
+  public interface Timeout {
+
+    /**
+     * Cancel this timeout, so its task will not run
+     *
+     * @return true if the timeout was cancelled, false if it has already expired or been cancelled
+     */
+    boolean cancel();
+
+    /**
+     * @return true if this timeout has expired, and its task has been run
+     */
+    boolean isExpired();
+
+    /**
+     * @return true if this timeout was cancelled
+     */
+    boolean isCancelled();
+  }
+
+  private class Entry implements Timeout {
+    private static final int STATE_PENDING = 0;
+    private static final int STATE_CANCELLED = 1;
+    private static final int STATE_EXPIRED = 2;
+
+    private final Runnable task;
+    private final long deadline;
+    private final AtomicInteger state = new AtomicInteger(STATE_PENDING);
+    //only accessed by the worker thread
+    private long remainingRounds;
+    private Bucket bucket;
+    private Entry next;
+    private Entry prev;
+
+    private Entry(Runnable task, long deadline) {
+      this.task = task;
+      this.deadline = deadline;
+    }
+
+    @Override
+    public boolean cancel() {
+      if (!state.compareAndSet(STATE_PENDING, STATE_CANCELLED)) return false;
+      pendingTimeouts.decrementAndGet();
+      //let the worker thread unlink the entry from its bucket
+      cancelledEntries.add(this);
+      return true;
+    }
+
+    @Override
+    public boolean isExpired() {
+      return state.get() == STATE_EXPIRED;
+    }
+
+    @Override
+    public boolean isCancelled() {
+      return state.get() == STATE_CANCELLED;
+    }
+
+    private void expire() {
+      if (!state.compareAndSet(STATE_PENDING, STATE_EXPIRED)) return;
+      pendingTimeouts.decrementAndGet();
+      try {
+        task.run();
+      } catch (Throwable e) {
+        LOGGER.warning(e, "Error running timer task");
+      }
+    }
+  }
+
+  /**
+   * Doubly linked list of entries, only accessed by the worker thread
+   */
+  private static class Bucket {
+    private Entry head;
+    private Entry tail;
+
+    private void add(Entry entry) {
+      entry.bucket = this;
+      if (head == null) {
+        head = tail = entry;
+      } else {
+        tail.next = entry;
+        entry.prev = tail;
+        tail = entry;
+      }
+    }
+
+    private void expire(long now) {
+      Entry entry = head;
+      while (entry != null) {
+        Entry next = entry.next;
+        if (entry.state.get() != Entry.STATE_PENDING) {
+          remove(entry);
+        } else if (entry.remainingRounds <= 0 && entry.deadline <= now) {
+          remove(entry);
+          entry.expire();
+        } else {
+          entry.remainingRounds--;
+        }
+        entry = next;
+      }
+    }
+
+    private void remove(Entry entry) {
+      if (entry.bucket != this) return;
+      if (entry.prev != null) entry.prev.next = entry.next;
+      if (entry.next != null) entry.next.prev = entry.prev;
+      if (entry == head) head = entry.next;
+      if (entry == tail) tail = entry.prev;
+      entry.prev = entry.next = null;
+      entry.bucket = null;
+    }
+  }
+
+  private class DeadlineTimeout implements Timeout {
+    private final LongSupplier deadline;
+    private final Runnable task;
+    private final AtomicReference<Timeout> current = new AtomicReference<>();
+    private final AtomicBoolean cancelled = new AtomicBoolean();
+    private final AtomicBoolean expired = new AtomicBoolean();
+
+    private DeadlineTimeout(LongSupplier deadline, Runnable task) {
+      this.deadline = deadline;
+      this.task = task;
+    }
+
+    private void reschedule() {
+      long delay = deadline.getAsLong() - System.currentTimeMillis();
+      if (delay < 0) {
+        if (!cancelled.get() && expired.compareAndSet(false, true)) task.run();
+        return;
+      }
+      //deadline is exclusive, so fire the millisecond after the deadline
+      current.set(schedule(this::reschedule, delay + 1, TimeUnit.MILLISECONDS));
+      //avoid leaving a pending timeout if cancelled concurrently
+      if (cancelled.get()) current.get().cancel();
+    }
+
+    @Override
+    public boolean cancel() {
+      if (expired.get() || !cancelled.compareAndSet(false, true)) return false;
+      Timeout timeout = current.get();
+      if (timeout != null) timeout.cancel();
+      return true;
+    }
+
+    @Override
+    public boolean isExpired() {
+      return expired.get();
+    }
+
+    @Override
+    public boolean isCancelled() {
+      return cancelled.get();
+    }
+  }
+}
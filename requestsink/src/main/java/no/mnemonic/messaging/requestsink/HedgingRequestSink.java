@@ -0,0 +1,474 @@
+package no.mnemonic.messaging.requestsink;
+
+import no.mnemonic.commons.component.Dependency;
+import no.mnemonic.commons.logging.Logger;
+import no.mnemonic.commons.logging.Logging;
+import no.mnemonic.commons.metrics.MetricAspect;
+import no.mnemonic.commons.metrics.MetricException;
+import no.mnemonic.commons.metrics.Metrics;
+import no.mnemonic.commons.metrics.MetricsData;
+import no.mnemonic.commons.utilities.lambda.LambdaUtils;
+
+import java.time.Clock;
+import java.util.Arrays;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+import static no.mnemonic.commons.utilities.collections.ListUtils.list;
+
+/**
+ * RequestSink decorator sending a second (hedged) request if the first request has not responded within a hedge delay,
+ * to cut the latency of requests hitting a slow server.
+ * <p>
+ * The hedge delay is a percentile of the observed latency of the primary request until its first response (or end of stream),
+ * so only the slowest requests are hedged. Until enough samples are observed, the initial hedge delay is used.
+ * A primary request closed by a winning hedge before responding counts with the time until it was closed.
+ * <p>
+ * The hedge timer only hands the hedge off to the hedge executor, which sends the hedged request,
+ * as sending to the downstream RequestSink may block.
+ * <p>
+ * The hedged request is created by the hedge function, which must return a copy of the request with a new callID,
+ * or null if the request is not idempotent and must not be hedged.
+ * The first request to respond wins, and all responses from the winner are forwarded to the client context.
+ * The losing request is closed, and its responses are discarded. The client only sees its own RequestContext.
+ */
+public class HedgingRequestSink implements RequestSink, MetricAspect {
+
+  private static final Logger LOGGER = Logging.getLogger(HedgingRequestSink.class);
+
+  static final double DEFAULT_HEDGE_PERCENTILE = 95;
+  static final long DEFAULT_INITIAL_HEDGE_DELAY = 1000;
+  static final long DEFAULT_MIN_HEDGE_DELAY = 10;
+  static final int DEFAULT_SAMPLE_WINDOW = 1000;
+  private static final int MIN_SAMPLES = 100;
+
+  private static Clock clock = Clock.systemUTC();
+
+  @Dependency
+  private final RequestSink requestSink;
+  private final Function<Message, Message> hedgeFunction;
+  private final HedgingTimer timer;
+  private final Executor hedgeExecutor;
+  private final LatencyWindow latencies;
+  private final double hedgePercentile;
+  private final long initialHedgeDelay;
+  private final long minHedgeDelay;
+
+  private final LongAdder requestCount = new LongAdder();
+  private final LongAdder hedgeCount = new LongAdder();
+  private final LongAdder hedgeWonCount = new LongAdder();
+  private final LongAdder hedgeErrorCount = new LongAdder();
+
+  private HedgingRequestSink(RequestSink requestSink, Function<Message, Message> hedgeFunction, HedgingTimer timer,
+                             Executor hedgeExecutor, double hedgePercentile, long initialHedgeDelay, long minHedgeDelay, int sampleWindow) {
+    if (requestSink == null) throw new IllegalArgumentException("requestSink not set");
+    if (hedgeFunction == null) throw new IllegalArgumentException("hedgeFunction not set");
+    if (hedgePercentile <= 0 || hedgePercentile >= 100) throw new IllegalArgumentException("hedgePercentile must be between 0 and 100");
+    if (sampleWindow < MIN_SAMPLES) throw new IllegalArgumentException("sampleWindow cannot be lower than " + MIN_SAMPLES);
+    this.requestSink = requestSink;
+    this.hedgeFunction = hedgeFunction;
+    this.timer = timer;
+    this.hedgeExecutor = hedgeExecutor != null ? hedgeExecutor : createDefaultHedgeExecutor();
+    this.hedgePercentile = hedgePercentile;
+    this.initialHedgeDelay = initialHedgeDelay;
+    this.minHedgeDelay = minHedgeDelay;
+    this.latencies = new LatencyWindow(sampleWindow);
+  }
+
+  @Override
+  public Metrics getMetrics() throws MetricException {
+    return new MetricsData()
+            .addData("requests", requestCount)
+            .addData("hedges", hedgeCount)
+            .addData("hedgesWon", hedgeWonCount)
+            .addData("hedgeErrors", hedgeErrorCount)
+            .addData("hedgeDelay", getHedgeDelay());
+  }
+
+  @Override
+  public <T extends RequestContext> T signal(Message msg, T signalContext, long maxWait) {
+    if (msg == null) throw new IllegalArgumentException("msg not set");
+    //requests without a client context have no responses to wait for
+    if (signalContext == null) return requestSink.signal(msg, null, maxWait);
+    requestCount.increment();
+    HedgedRequest request = new HedgedRequest(msg, signalContext, maxWait);
+    request.start();
+    return signalContext;
+  }
+
+  /**
+   * @return the current hedge delay in millis
+   */
+  public long getHedgeDelay() {
+    long percentile = latencies.percentile(hedgePercentile);
+    return Math.max(minHedgeDelay, percentile < 0 ? initialHedgeDelay : percentile);
+  }
+
+  private static Executor createDefaultHedgeExecutor() {
+    AtomicInteger threadCounter = new AtomicInteger();
+    //idle threads expire, so the executor does not need to be shut down
+    return Executors.newCachedThreadPool(r -> {
+      Thread t = new Thread(r, "HedgingRequestSink-" + threadCounter.incrementAndGet());
+      t.setDaemon(true);
+      return t;
+    });
+  }
+
+  static void setClock(Clock clock) {
+    HedgingRequestSink.clock = clock;
+  }
+
+  /**
+   * Timer used to schedule hedged requests, pluggable for testing
+   */
+  interface HedgingTimer {
+    HashedWheelTimer.Timeout schedule(Runnable task, long delay);
+  }
+
+  /**
+   * State of a client request, with the primary attempt and the hedged attempt
+   */
+  private class HedgedRequest {
+    private final Message msg;
+    private final RequestContext clientContext;
+    private final long maxWait;
+    private final long startTime = clock.millis();
+    private final AtomicReference<Attempt> winner = new AtomicReference<>();
+    private final Set<Attempt> attempts = ConcurrentHashMap.newKeySet();
+    private volatile HashedWheelTimer.Timeout hedgeTimeout;
+
+    private HedgedRequest(Message msg, RequestContext clientContext, long maxWait) {
+      this.msg = msg;
+      this.clientContext = clientContext;
+      this.maxWait = maxWait;
+    }
+
+    private void start() {
+      //forward client events to downstream listeners
+      clientContext.addListener(new RequestListener() {
+        @Override
+        public void close(String callID) {
+          cancelHedge();
+          list(attempts).forEach(Attempt::close);
+        }
+
+        @Override
+        public void timeout() {
+          list(attempts).forEach(a -> a.listeners.forEach(l -> LambdaUtils.tryTo(l::timeout)));
+        }
+
+        @Override
+        public void responsesConsumed(String callID, int count) {
+          Attempt w = winner.get();
+          if (w != null) w.listeners.forEach(l -> LambdaUtils.tryTo(() -> l.responsesConsumed(w.callID, count)));
+        }
+      });
+      Attempt primary = new Attempt(msg.getCallID(), false);
+      attempts.add(primary);
+      long delay = getHedgeDelay();
+      //no point hedging if the hedge would be sent after the request times out
+      if (delay < maxWait) {
+        hedgeTimeout = timer.schedule(this::submitHedge, delay);
+      }
+      try {
+        requestSink.signal(msg, primary, maxWait);
+      } catch (RuntimeException e) {
+        cancelHedge();
+        throw e;
+      }
+    }
+
+    /**
+     * Run on the timer thread, so only hand off the hedge
+     */
+    private void submitHedge() {
+      if (winner.get() != null || clientContext.isClosed()) return;
+      try {
+        hedgeExecutor.execute(this::hedge);
+      } catch (RejectedExecutionException e) {
+        LOGGER.warning(e, "Hedge executor rejected hedged request [callID=%s]", msg.getCallID());
+        hedgeErrorCount.increment();
+      }
+    }
+
+    private void hedge() {
+      if (winner.get() != null || clientContext.isClosed()) return;
+      Message hedged;
+      try {
+        hedged = hedgeFunction.apply(msg);
+      } catch (Exception e) {
+        LOGGER.warning(e, "Error creating hedged request [callID=%s]", msg.getCallID());
+        hedgeErrorCount.increment();
+        return;
+      }
+      //request is not idempotent
+      if (hedged == null) return;
+      long remaining = maxWait - (clock.millis() - startTime);
+      if (remaining <= 0) return;
+      Attempt attempt = new Attempt(hedged.getCallID(), true);
+      attempts.add(attempt);
+      hedgeCount.increment();
+      if (LOGGER.isDebug()) {
+        LOGGER.debug(">> hedge [callID=%s hedgeCallID=%s]", msg.getCallID(), hedged.getCallID());
+      }
+      try {
+        requestSink.signal(hedged, attempt, remaining);
+      } catch (Exception e) {
+        LOGGER.warning(e, "Error sending hedged request [callID=%s]", msg.getCallID());
+        hedgeErrorCount.increment();
+        attempt.close();
+      }
+    }
+
+    /**
+     * @return true if this attempt is (or just became) the winner
+     */
+    private boolean claim(Attempt attempt) {
+      if (winner.compareAndSet(null, attempt)) {
+        if (attempt.hedge) hedgeWonCount.increment();
+        cancelHedge();
+        //close the losers
+        list(attempts).stream().filter(a -> a != attempt).forEach(Attempt::close);
+        return true;
+      }
+      return winner.get() == attempt;
+    }
+
+    private boolean hasOtherLiveAttempt(Attempt attempt) {
+      return attempts.stream().anyMatch(a -> a != attempt && !a.closed.get());
+    }
+
+    private void cancelHedge() {
+      HashedWheelTimer.Timeout t = hedgeTimeout;
+      if (t != null) t.cancel();
+    }
+
+    /**
+     * Downstream context of a single attempt
+     */
+    private class Attempt implements RequestContext {
+      private final String callID;
+      private final boolean hedge;
+      private final AtomicBoolean closed = new AtomicBoolean();
+      private final AtomicBoolean latencyRecorded = new AtomicBoolean();
+      private final Set<RequestListener> listeners = ConcurrentHashMap.newKeySet();
+
+      private Attempt(String callID, boolean hedge) {
+        this.callID = callID;
+        this.hedge = hedge;
+      }
+
+      @Override
+      public boolean isClosed() {
+        return closed.get() || clientContext.isClosed();
+      }
+
+      @Override
+      public boolean keepAlive(long until) {
+        if (isClosed()) return false;
+        return clientContext.keepAlive(until);
+      }
+
+      @Override
+      public void notifyError(Throwable e) {
+        recordLatency();
+        if (isClosed()) return;
+        //let the other attempt continue, unless this is the last attempt standing
+        if (winner.get() == null && hasOtherLiveAttempt(this)) {
+          close();
+          return;
+        }
+        if (claim(this)) clientContext.notifyError(e);
+      }
+
+      @Override
+      public void notifyClose() {
+        if (winner.get() == this) {
+          clientContext.notifyClose();
+        } else if (winner.get() == null && !hasOtherLiveAttempt(this)) {
+          cancelHedge();
+          clientContext.notifyClose();
+        }
+        closed.set(true);
+      }
+
+      @Override
+      public void addListener(RequestListener listener) {
+        listeners.add(listener);
+      }
+
+      @Override
+      public void removeListener(RequestListener listener) {
+        listeners.remove(listener);
+      }
+
+      @Override
+      public boolean addResponse(Message msg) {
+        recordLatency();
+        if (isClosed() || !claim(this)) return false;
+        return clientContext.addResponse(msg);
+      }
+
+      @Override
+      public boolean notifiesResponsesConsumed() {
+        return clientContext.notifiesResponsesConsumed();
+      }
+
+      @Override
+      public void endOfStream() {
+        recordLatency();
+        if (isClosed() || !claim(this)) return;
+        clientContext.endOfStream();
+      }
+
+      private void close() {
+        if (closed.getAndSet(true)) return;
+        //a primary closed before responding took at least this long
+        recordLatency();
+        listeners.forEach(l -> LambdaUtils.tryTo(() -> l.close(callID)));
+      }
+
+      /**
+       * Record the latency of the primary attempt, whether or not it wins, as the latency of the hedge would
+       * bias the hedge delay downwards, hedging more and more requests
+       */
+      private void recordLatency() {
+        if (hedge || !latencyRecorded.compareAndSet(false, true)) return;
+        latencies.add(clock.millis() - startTime);
+      }
+    }
+  }
+
+  /**
+   * Sliding window of the most recent latency samples
+   */
+  private static class LatencyWindow {
+    private final long[] samples;
+    private int count;
+    private int index;
+    private int samplesSinceUpdate;
+    private volatile long cachedPercentile = -1;
+    private double cachedFor = -1;
+
+    private LatencyWindow(int size) {
+      this.samples = new long[size];
+    }
+
+    private synchronized void add(long latency) {
+      samples[index] = latency;
+      index = (index + 1) % samples.length;
+      if (count < samples.length) count++;
+      samplesSinceUpdate++;
+    }
+
+    /**
+     * @return the percentile of the current samples, or -1 if there are too few samples
+     */
+    private synchronized long percentile(double percentile) {
+      if (count < MIN_SAMPLES) return -1;
+      //avoid sorting the window on every request
+      if (cachedFor == percentile && samplesSinceUpdate < MIN_SAMPLES / 10) return cachedPercentile;
+      long[] sorted = Arrays.copyOf(samples, count);
+      Arrays.sort(sorted);
+      int idx = (int) Math.ceil(percentile / 100 * count) - 1;
+      cachedPercentile = sorted[Math.max(0, Math.min(count - 1, idx))];
+      cachedFor = percentile;
+      samplesSinceUpdate = 0;
+      return cachedPercentile;
+    }
+  }
+
+  public static Builder builder() {
+    return new Builder();
+  }
+
+  public static class Builder {
+
+    private RequestSink requestSink;
+    private Function<Message, Message> hedgeFunction;
+    private HedgingTimer timer = (task, delay) -> HashedWheelTimer.getDefault().schedule(task, delay, TimeUnit.MILLISECONDS);
+    private Executor hedgeExecutor;
+    private double hedgePercentile = DEFAULT_HEDGE_PERCENTILE;
+    private long initialHedgeDelay = DEFAULT_INITIAL_HEDGE_DELAY;
+    private long minHedgeDelay = DEFAULT_MIN_HEDGE_DELAY;
+    private int sampleWindow = DEFAULT_SAMPLE_WINDOW;
+
+    private Builder() {
+    }
+
+    public HedgingRequestSink build() {
+      return new HedgingRequestSink(requestSink, hedgeFunction, timer, hedgeExecutor, hedgePercentile, initialHedgeDelay, minHedgeDelay, sampleWindow);
+    }
+
+    //setters
+
+    public Builder setRequestSink(RequestSink requestSink) {
+      this.requestSink = requestSink;
+      return this;
+    }
+
+    /**
+     * @param hedgeFunction function creating a copy of the request with a new callID,
+     *                      or returning null if the request is not idempotent, and must not be hedged
+     */
+    public Builder setHedgeFunction(Function<Message, Message> hedgeFunction) {
+      this.hedgeFunction = hedgeFunction;
+      return this;
+    }
+
+    /**
+     * @param hedgeExecutor executor sending hedged requests, as sending may block.
+     *                      Default is a pool of daemon threads created on demand.
+     */
+    public Builder setHedgeExecutor(Executor hedgeExecutor) {
+      this.hedgeExecutor = hedgeExecutor;
+      return this;
+    }
+
+    /**
+     * @param hedgePercentile percentile of the observed latency to use as hedge delay (default 95)
+     */
+    public Builder setHedgePercentile(double hedgePercentile) {
+      this.hedgePercentile = hedgePercentile;
+      return this;
+    }
+
+    /**
+     * @param initialHedgeDelay hedge delay in millis to use until enough latency samples are observed
+     */
+    public Builder setInitialHedgeDelay(long initialHedgeDelay) {
+      this.initialHedgeDelay = initialHedgeDelay;
+      return this;
+    }
+
+    /**
+     * @param minHedgeDelay lower bound of the hedge delay in millis, to avoid hedging all requests when latency is very low
+     */
+    public Builder setMinHedgeDelay(long minHedgeDelay) {
+      this.minHedgeDelay = minHedgeDelay;
+      return this;
+    }
+
+    /**
+     * @param sampleWindow number of recent latency samples used to calculate the hedge delay
+     */
+    public Builder setSampleWindow(int sampleWindow) {
+      this.sampleWindow = sampleWindow;
+      return this;
+    }
+
+    Builder setTimer(HedgingTimer timer) {
+      this.timer = timer;
+      return this;
+    }
+  }
+}
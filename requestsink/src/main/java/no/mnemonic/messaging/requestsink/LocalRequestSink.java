@@ -0,0 +1,308 @@
+package no.mnemonic.messaging.requestsink;
+
+import no.mnemonic.commons.component.Dependency;
+import no.mnemonic.commons.component.LifecycleAspect;
+import no.mnemonic.commons.logging.Logger;
+import no.mnemonic.commons.logging.Logging;
+import no.mnemonic.commons.metrics.MetricAspect;
+import no.mnemonic.commons.metrics.MetricException;
+import no.mnemonic.commons.metrics.Metrics;
+import no.mnemonic.commons.metrics.MetricsData;
+import no.mnemonic.commons.utilities.ClassLoaderContext;
+import no.mnemonic.commons.utilities.lambda.LambdaUtils;
+
+import java.io.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * RequestSink transport for a client and server RequestSink running in the same JVM.
+ * <p>
+ * Requests are passed by reference to the server RequestSink, without serialization or a JMS broker,
+ * but with the same semantics as the JMS transport: requests are handled by a bounded worker pool,
+ * the server may stream multiple responses, extend the request using keepAlive, or notify errors,
+ * and the server context is closed when the request times out or is closed by the client.
+ * <p>
+ * Passing by reference lets the client and the server share mutable message objects.
+ * Enable <code>copyOnSend</code> to isolate them, by sending a copy of each request and response using java serialization.
+ * The copy of the request is deserialized using the classloader of the server RequestSink,
+ * and responses using the classloader of the signalling thread.
+ */
+public class LocalRequestSink implements RequestSink, LifecycleAspect, MetricAspect {
+
+  private static final Logger LOGGER = Logging.getLogger(LocalRequestSink.class);
+
+  static final int DEFAULT_MAX_CONCURRENT_CALLS = 10;
+  static final int DEFAULT_SHUTDOWN_TIMEOUT = 10000;
+
+  @Dependency
+  private final RequestSink requestSink;
+  private final boolean copyOnSend;
+  private final long shutdownTimeout;
+  private final ExecutorService executor;
+  private final AtomicBoolean closed = new AtomicBoolean();
+
+  private final LongAdder requestCount = new LongAdder();
+  private final LongAdder replyCount = new LongAdder();
+  private final LongAdder endOfStreamCount = new LongAdder();
+  private final LongAdder extendWaitCount = new LongAdder();
+  private final LongAdder exceptionSignalCount = new LongAdder();
+  private final LongAdder requestTimeoutCount = new LongAdder();
+  private final LongAdder errorCount = new LongAdder();
+
+  private LocalRequestSink(RequestSink requestSink, int maxConcurrentCalls, boolean copyOnSend, long shutdownTimeout) {
+    if (requestSink == null) throw new IllegalArgumentException("requestSink not set");
+    if (maxConcurrentCalls < 1) throw new IllegalArgumentException("maxConcurrentCalls cannot be lower than 1");
+    this.requestSink = requestSink;
+    this.copyOnSend = copyOnSend;
+    this.shutdownTimeout = shutdownTimeout;
+    AtomicInteger threadCounter = new AtomicInteger();
+    this.executor = Executors.newFixedThreadPool(maxConcurrentCalls, r -> {
+      Thread t = new Thread(r, "LocalRequestSink-" + threadCounter.incrementAndGet());
+      t.setDaemon(true);
+      return t;
+    });
+  }
+
+  @Override
+  public Metrics getMetrics() throws MetricException {
+    return new MetricsData()
+            .addData("requests", requestCount)
+            .addData("replies", replyCount)
+            .addData("endOfStreams", endOfStreamCount)
+            .addData("extendWaits", extendWaitCount)
+            .addData("exceptionSignal", exceptionSignalCount)
+            .addData("requestTimeoutCount", requestTimeoutCount)
+            .addData("errors", errorCount);
+  }
+
+  @Override
+  public void startComponent() {
+    //nothing to start
+  }
+
+  @Override
+  public void stopComponent() {
+    //stop accepting requests
+    closed.set(true);
+    //wait for ongoing requests to finish
+    executor.shutdown();
+    LambdaUtils.tryTo(
+            () -> executor.awaitTermination(shutdownTimeout, TimeUnit.MILLISECONDS),
+            e -> LOGGER.warning(e, "Error waiting for executor termination")
+    );
+  }
+
+  @Override
+  public <T extends RequestContext> T signal(Message msg, T signalContext, long maxWait) {
+    if (closed.get()) throw new IllegalStateException("closed");
+    if (msg == null) throw new IllegalArgumentException("msg not set");
+    if (maxWait <= 0) throw new IllegalArgumentException("maxWait must be a positive integer");
+    Message request = copyOnSend ? copy(msg, requestSink.getClass().getClassLoader()) : msg;
+    ServerContext serverContext = new ServerContext(msg.getCallID(), signalContext, System.currentTimeMillis() + maxWait,
+            Thread.currentThread().getContextClassLoader());
+    //close the server side of the request if the client closes it
+    if (signalContext != null) {
+      signalContext.addListener(new RequestListener() {
+        @Override
+        public void close(String callID) {
+          serverContext.close();
+        }
+
+        @Override
+        public void timeout() {
+          //ignore
+        }
+      });
+    }
+    requestCount.increment();
+    executor.submit(() -> process(request, serverContext));
+    return signalContext;
+  }
+
+  //private methods
+
+  private void process(Message request, ServerContext serverContext) {
+    long remaining = serverContext.timeout.get() - System.currentTimeMillis();
+    //drop requests which timed out or were closed by the client while waiting for a worker
+    if (remaining <= 0) {
+      LOGGER.warning("Ignoring request: timed out [callID=%s]", serverContext.callID);
+      requestTimeoutCount.increment();
+      return;
+    }
+    if (serverContext.isClosed()) {
+      LOGGER.debug("Ignoring request: closed by client [callID=%s]", serverContext.callID);
+      return;
+    }
+    try (ClassLoaderContext ignored = ClassLoaderContext.of(requestSink)) {
+      requestSink.signal(request, serverContext, remaining);
+    } catch (Exception e) {
+      errorCount.increment();
+      LOGGER.warning(e, "Error handling request [callID=%s]", serverContext.callID);
+      serverContext.notifyError(e);
+    }
+  }
+
+  private static Message copy(Message msg, ClassLoader classLoader) {
+    try {
+      ByteArrayOutputStream baos = new ByteArrayOutputStream();
+      try (ObjectOutputStream oos = new ObjectOutputStream(baos)) {
+        oos.writeObject(msg);
+      }
+      try (ObjectInputStream ois = new ClassLoaderObjectInputStream(new ByteArrayInputStream(baos.toByteArray()), classLoader)) {
+        return (Message) ois.readObject();
+      }
+    } catch (IOException | ClassNotFoundException e) {
+      throw new MessagingException(e);
+    }
+  }
+
+  /**
+   * Server side of a request, forwarding responses to the client context.
+   * If the client did not provide a context, the request is still handled, but responses are discarded.
+   */
+  private class ServerContext implements RequestContext {
+    private final String callID;
+    private final RequestContext clientContext;
+    private final ClassLoader clientClassLoader;
+    private final AtomicLong timeout = new AtomicLong();
+    private final AtomicBoolean closed = new AtomicBoolean();
+
+    private ServerContext(String callID, RequestContext clientContext, long timeout, ClassLoader clientClassLoader) {
+      this.callID = callID;
+      this.clientContext = clientContext;
+      this.clientClassLoader = clientClassLoader;
+      this.timeout.set(timeout);
+    }
+
+    @Override
+    public boolean isClosed() {
+      if (closed.get()) return true;
+      //we claim to be closed if this request has timed out, or if the client has closed it
+      if (System.currentTimeMillis() > timeout.get() || (clientContext != null && clientContext.isClosed())) {
+        close();
+        return true;
+      }
+      return false;
+    }
+
+    @Override
+    public boolean keepAlive(long until) {
+      if (isClosed()) return false;
+      if (until <= timeout.get()) return true;
+      extendWaitCount.increment();
+      timeout.set(until);
+      return clientContext == null || clientContext.keepAlive(until);
+    }
+
+    @Override
+    public void notifyError(Throwable e) {
+      if (isClosed()) return;
+      exceptionSignalCount.increment();
+      if (clientContext != null) clientContext.notifyError(e);
+      close();
+    }
+
+    @Override
+    public void notifyClose() {
+      close();
+    }
+
+    @Override
+    public void addListener(RequestListener listener) {
+      //do nothing
+    }
+
+    @Override
+    public void removeListener(RequestListener listener) {
+      //do nothing
+    }
+
+    @Override
+    public boolean addResponse(Message msg) {
+      if (isClosed()) return false;
+      replyCount.increment();
+      return clientContext != null && clientContext.addResponse(copyOnSend ? copy(msg, clientClassLoader) : msg);
+    }
+
+    @Override
+    public void endOfStream() {
+      if (isClosed()) return;
+      endOfStreamCount.increment();
+      close();
+      if (clientContext != null) clientContext.endOfStream();
+    }
+
+    private void close() {
+      closed.set(true);
+    }
+  }
+
+  private static class ClassLoaderObjectInputStream extends ObjectInputStream {
+    private final ClassLoader classLoader;
+
+    private ClassLoaderObjectInputStream(InputStream in, ClassLoader classLoader) throws IOException {
+      super(in);
+      this.classLoader = classLoader;
+    }
+
+    @Override
+    protected Class<?> resolveClass(ObjectStreamClass desc) throws IOException, ClassNotFoundException {
+      if (classLoader == null) return super.resolveClass(desc);
+      try {
+        return Class.forName(desc.getName(), false, classLoader);
+      } catch (ClassNotFoundException e) {
+        return super.resolveClass(desc);
+      }
+    }
+  }
+
+  public static Builder builder() {
+    return new Builder();
+  }
+
+  public static class Builder {
+
+    private RequestSink requestSink;
+    private int maxConcurrentCalls = DEFAULT_MAX_CONCURRENT_CALLS;
+    private boolean copyOnSend;
+    private long shutdownTimeout = DEFAULT_SHUTDOWN_TIMEOUT;
+
+    private Builder() {
+    }
+
+    public LocalRequestSink build() {
+      return new LocalRequestSink(requestSink, maxConcurrentCalls, copyOnSend, shutdownTimeout);
+    }
+
+    //setters
+
+    public Builder setRequestSink(RequestSink requestSink) {
+      this.requestSink = requestSink;
+      return this;
+    }
+
+    public Builder setMaxConcurrentCalls(int maxConcurrentCalls) {
+      this.maxConcurrentCalls = maxConcurrentCalls;
+      return this;
+    }
+
+    /**
+     * @param copyOnSend if true, send a serialized copy of each request and response, so client and server do not share message objects
+     */
+    public Builder setCopyOnSend(boolean copyOnSend) {
+      this.copyOnSend = copyOnSend;
+      return this;
+    }
+
+    public Builder setShutdownTimeout(long shutdownTimeout) {
+      this.shutdownTimeout = shutdownTimeout;
+      return this;
+    }
+  }
+}
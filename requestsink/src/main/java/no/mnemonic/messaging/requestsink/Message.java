@@ -18,4 +18,29 @@ public interface Message extends Serializable {
    */
   long getMessageTimestamp();
 
+  /**
+   * @return the priority of this message. Requests may override this to be scheduled ahead of (or behind) other requests.
+   */
+  default Priority getPriority() {
+    return Priority.STANDARD;
+  }
+
+  /**
+   * Priority of a request, used by transports to order requests waiting to be handled
+   */
+  enum Priority {
+    /**
+     * Background work, which may wait behind other requests
+     */
+    BULK,
+    /**
+     * Default priority
+     */
+    STANDARD,
+    /**
+     * Interactive requests, which should be handled ahead of other requests
+     */
+    EXPEDITE
+  }
+
 }
@@ -57,6 +57,15 @@ public interface RequestContext {
    */
   boolean addResponse(Message msg);
 
+  /**
+   * @return true if this context notifies its listeners using {@link RequestListener#responsesConsumed(String, int)}
+   * when responses are consumed by the client. If so, the RequestSink may limit the number of unconsumed responses
+   * sent to this context.
+   */
+  default boolean notifiesResponsesConsumed() {
+    return false;
+  }
+
   /**
    * Signal end of stream (the current context holder will not provide any more data).
    */
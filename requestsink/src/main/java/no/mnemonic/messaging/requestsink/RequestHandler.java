@@ -2,16 +2,22 @@ package no.mnemonic.messaging.requestsink;
 
 import no.mnemonic.commons.logging.Logger;
 import no.mnemonic.commons.logging.Logging;
+import no.mnemonic.commons.utilities.ObjectUtils;
 import no.mnemonic.commons.utilities.lambda.LambdaUtils;
 
+import java.io.IOException;
 import java.lang.reflect.InvocationTargetException;
+import java.nio.file.Path;
 import java.time.Clock;
 import java.util.*;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 import static no.mnemonic.commons.utilities.collections.ListUtils.list;
 
@@ -20,6 +26,31 @@ import static no.mnemonic.commons.utilities.collections.ListUtils.list;
  * <p>
  * After making an asynchronous call, this requesthandler may be used for tracking responses
  * from the requestsink.
+ * <p>
+ * Responses are kept in a lock-free queue. Threads waiting for responses are parked, and each added response
+ * wakes up a single thread waiting in {@link #getNextResponse(long)}, instead of waking up every waiting thread.
+ * <p>
+ * The handler is actively closed when its timeout passes, using the shared {@link HashedWheelTimer},
+ * so listeners are notified even if no thread is waiting for responses. Keepalive just extends the timeout.
+ * The timer only hands the expiry off to a shared pool of daemon threads, which closes the handler,
+ * so slow listeners and subscriber callbacks do not delay the timeouts of other requests.
+ * <p>
+ * Instead of blocking a thread, responses may also be received asynchronously, using
+ * {@link #getResponsesAsync()} to receive all responses when the stream is closed,
+ * or {@link #subscribe(ResponseSubscriber)} to receive each response as it arrives.
+ * Completion, errors and timeouts are then delivered as callbacks.
+ * Asynchronous and blocking methods consume responses from the same queue, and should not be mixed.
+ * <p>
+ * Responses may also be consumed lazily as a {@link Stream} using {@link #stream()},
+ * which only blocks when the next response is needed.
+ * <p>
+ * Registered listeners are notified when responses are consumed, allowing the RequestSink
+ * to bound the number of unconsumed responses held by this handler.
+ * <p>
+ * For very large response streams, a handler created using {@link #builder()} may set an overflow threshold.
+ * When more unconsumed responses than the threshold are held in memory, further responses are serialized
+ * into a memory-mapped temporary file, and deserialized when read. Responses are still returned in the order received.
+ * Overflow requires that responses are {@link java.io.Serializable}.
  */
 @SuppressWarnings({"WeakerAccess", "SameParameterValue"})
 public class RequestHandler implements RequestContext {
@@ -27,19 +58,41 @@ public class RequestHandler implements RequestContext {
   static final int KEEPALIVE_PERIOD = 10000;
   private static Clock clock = Clock.systemUTC();
   private static final Logger LOGGER = Logging.getLogger(RequestHandler.class);
+  private static final Executor EXPIRY_EXECUTOR = createExpiryExecutor();
 
-  private final BlockingQueue<Message> responses = new LinkedBlockingDeque<>();
+  private final Queue<Message> responses = new ConcurrentLinkedQueue<>();
+  private final AtomicInteger responseCount = new AtomicInteger();
+  private final WaitQueue responseWaiters = new WaitQueue();
+  private final WaitQueue batchWaiters = new WaitQueue();
+  private final WaitQueue closeWaiters = new WaitQueue();
   private final AtomicBoolean closed = new AtomicBoolean();
   private final AtomicReference<Throwable> error = new AtomicReference<>();
   private final Set<RequestListener> requestListeners = Collections.synchronizedSet(new HashSet<>());
   private final boolean allowKeepAlive;
   private final String callID;
   private final AtomicLong timeout = new AtomicLong();
+  private final AtomicBoolean timedOut = new AtomicBoolean();
+  private final AtomicReference<AsyncSubscription<?>> subscription = new AtomicReference<>();
+  private final AtomicBoolean timeoutNotified = new AtomicBoolean();
+  private final HashedWheelTimer.Timeout expiry;
+  private final int overflowThreshold;
+  private final Path overflowDirectory;
+  private final Object spillLock = new Object();
+  private ResponseSpillFile spillFile;
 
   public RequestHandler(boolean allowKeepAlive, String callID, long maxWait) {
+    this(allowKeepAlive, callID, maxWait, 0, null);
+  }
+
+  private RequestHandler(boolean allowKeepAlive, String callID, long maxWait, int overflowThreshold, Path overflowDirectory) {
+    if (overflowThreshold < 0) throw new IllegalArgumentException("OverflowThreshold cannot be negative");
+    this.overflowThreshold = overflowThreshold;
+    this.overflowDirectory = overflowDirectory;
     this.allowKeepAlive = allowKeepAlive;
     this.callID = callID;
     this.timeout.set(clock.millis() + maxWait);
+    //actively close the handler when the timeout is passed, keepalive just extends the timeout
+    this.expiry = HashedWheelTimer.getDefault().scheduleDeadline(timeout::get, () -> EXPIRY_EXECUTOR.execute(this::expire));
   }
 
   public static RequestHandler signal(RequestSink sink, Message msg, boolean allowKeepAlive, long maxWait) {
@@ -54,6 +107,28 @@ public class RequestHandler implements RequestContext {
     return handler;
   }
 
+  /**
+   * Send a signal, and receive all responses asynchronously when the response stream is closed.
+   *
+   * @return a stage completed with all responses when end of stream is received,
+   * or completed exceptionally if the request fails or times out
+   * @see #getResponsesAsync()
+   */
+  public static <T extends Message> CompletionStage<List<T>> signalAsync(RequestSink sink, Message msg, boolean allowKeepAlive, long maxWait) {
+    return signal(sink, msg, allowKeepAlive, maxWait).getResponsesAsync();
+  }
+
+  /**
+   * Send a signal, and publish the responses asynchronously as they arrive.
+   * Responses received before subscribing are buffered until requested by the subscriber.
+   *
+   * @return a publisher of the response stream
+   * @see #subscribe(ResponseSubscriber)
+   */
+  public static <T extends Message> ResponsePublisher<T> signalPublisher(RequestSink sink, Message msg, boolean allowKeepAlive, long maxWait) {
+    return signal(sink, msg, allowKeepAlive, maxWait)::subscribe;
+  }
+
   //interface methods
 
   public void addListener(RequestListener listener) {
@@ -89,9 +164,7 @@ public class RequestHandler implements RequestContext {
       LOGGER.debug("<< notifyError [callID=%s throwable=%s]", callID, e.getClass());
     }
     error.set(e);
-    synchronized (this) {
-      this.notifyAll();
-    }
+    signalAllWaiters();
     close();
   }
 
@@ -116,18 +189,28 @@ public class RequestHandler implements RequestContext {
     if (LOGGER.isDebug()) {
       LOGGER.debug("<< addResponse [callID=%s]", callID);
     }
-    responses.add(msg);
+    if (!enqueueResponse(msg)) {
+      return false;
+    }
+    responseCount.incrementAndGet();
     //whenever receiving another response, this is an implicit 10sec keepalive
     keepAlive(clock.millis() + KEEPALIVE_PERIOD);
-    synchronized (this) {
-      this.notifyAll();
-    }
+    //hand the response over to a single waiting reader, but let batch readers count responses
+    responseWaiters.signalOne();
+    batchWaiters.signalAll();
+    drainSubscription();
+    return true;
+  }
+
+  @Override
+  public boolean notifiesResponsesConsumed() {
     return true;
   }
 
   public boolean isClosed() {
-    //close and return true if handler timeout is exceeded
-    if (clock.millis() > this.timeout.get()) {
+    //close and return true if handler timeout is reached, as the timer would
+    if (clock.millis() >= this.timeout.get()) {
+      if (!closed.get()) timedOut.set(true);
       close();
     }
     return closed.get();
@@ -142,18 +225,11 @@ public class RequestHandler implements RequestContext {
    * @return true if handler is closed (end of stream or timeout), false otherwise
    */
   public boolean waitForEndOfStream(long maxWait) {
-    long localTimeout = clock.millis() + maxWait;
     try {
       //do not wait if EOS has already been received
       if (isClosed()) return true;
-      //wait until timeout, but never longer
-      long now;
-      while ((now = clock.millis()) < localTimeout) {
-        synchronized (this) {
-          this.wait(localTimeout - now);
-        }
-        if (isClosed() || hasReceivedError()) return isClosed();
-      }
+      //wait until closed or error, but never longer than maxWait
+      closeWaiters.await(() -> isClosed() || hasReceivedError(), maxWait);
       return isClosed();
     } catch (InterruptedException e) {
       LOGGER.warning(e, "Interrupted");
@@ -170,15 +246,23 @@ public class RequestHandler implements RequestContext {
     return error.get() != null;
   }
 
+  /**
+   * @return true if the handler was closed because the request timed out before end of stream
+   */
+  public boolean hasTimedOut() {
+    return timedOut.get();
+  }
+
   /**
    * Close this handler, closing all listening resources.
    * Further responses to this signal will be ignored
    */
   public void close() {
     boolean wasClosed = closed.getAndSet(true);
-    synchronized (this) {
-      this.notifyAll();
-    }
+    signalAllWaiters();
+    ObjectUtils.ifNotNullDo(expiry, HashedWheelTimer.Timeout::cancel);
+    closeSpillFile();
+    drainSubscription();
     if (!wasClosed) {
       if (LOGGER.isDebug()) {
         LOGGER.debug("# close [callID=%s]", callID);
@@ -191,9 +275,11 @@ public class RequestHandler implements RequestContext {
   }
 
   /**
-   * Signal unexpected timeout to request listeners
+   * Signal unexpected timeout to request listeners.
+   * Listeners are only notified the first time this is invoked.
    */
   public void timeout() {
+    if (timeoutNotified.getAndSet(true)) return;
     list(requestListeners).forEach(l -> LambdaUtils.tryTo(l::timeout));
   }
 
@@ -205,10 +291,13 @@ public class RequestHandler implements RequestContext {
    */
   public <T extends Message> Collection<T> getResponsesNoWait() throws InvocationTargetException {
     checkIfReceivedError();
-    Collection<Message> result = new ArrayList<>();
-    responses.drainTo(result);
-    //noinspection unchecked
-    return list(result, v -> (T) v);
+    Collection<T> result = new ArrayList<>();
+    T response;
+    while ((response = pollResponse()) != null) {
+      result.add(response);
+    }
+    notifyResponsesConsumed(result.size());
+    return result;
   }
 
 
@@ -237,15 +326,14 @@ public class RequestHandler implements RequestContext {
   public <T extends Message> T getNextResponse(long maxWait) throws InvocationTargetException {
     try {
       checkIfReceivedError();
-      if (responses.isEmpty()) {
+      if (!hasPendingResponses()) {
         if (isClosed()) return null;
-        synchronized (this) {
-          this.wait(maxWait);
-        }
+        responseWaiters.await(() -> hasPendingResponses() || closed.get() || hasReceivedError(), maxWait);
         checkIfReceivedError();
       }
-      //noinspection unchecked
-      return (T) responses.poll();
+      T response = pollResponse();
+      if (response != null) notifyResponsesConsumed(1);
+      return response;
     } catch (InterruptedException e) {
       throw new RuntimeException(e);
     }
@@ -261,19 +349,10 @@ public class RequestHandler implements RequestContext {
    * or maxResults results, whatever happens first.
    */
   public <T extends Message> Collection<T> getResponses(long maxWait, int maxResults) throws InvocationTargetException {
-    // determine timeout
-    long timeout = maxWait > 0 ? clock.millis() + maxWait : 0;
     //wait for timeout (or enough responses)
-    while (timeout > 0 && clock.millis() < timeout) {
-      // if enough responses have come, return responses (so far)
-      checkIfReceivedError();
-      if (responses.size() >= maxResults || isClosed()) {
-        return getResponsesNoWait();
-      }
+    if (maxWait > 0) {
       try {
-        synchronized (this) {
-          this.wait(Math.max(1, timeout - clock.millis()));
-        }
+        batchWaiters.await(() -> responseCount.get() >= maxResults || isClosed() || hasReceivedError(), maxWait);
       } catch (InterruptedException e) {
         throw new RuntimeException(e);
       }
@@ -282,10 +361,333 @@ public class RequestHandler implements RequestContext {
     return getResponsesNoWait();
   }
 
+  /**
+   * Consume the response stream lazily as a {@link Stream}, pulling each response as it is needed.
+   * The stream blocks only while waiting for the next response, and ends when end of stream is received,
+   * or when the request times out. If the requestsink notifies an error, the stream throws
+   * a {@link MessagingException} with the error as cause.
+   * <p>
+   * Closing the stream closes this handler, tearing down the request. Use try-with-resources
+   * when the stream may not be consumed to the end, i.e. when using short-circuiting operations.
+   *
+   * @return a sequential stream of responses
+   */
+  public <T extends Message> Stream<T> stream() {
+    Spliterator<T> spliterator = new Spliterators.AbstractSpliterator<T>(Long.MAX_VALUE, Spliterator.ORDERED | Spliterator.NONNULL) {
+      @Override
+      public boolean tryAdvance(Consumer<? super T> action) {
+        try {
+          T response = getNextResponse();
+          if (response == null) return false;
+          action.accept(response);
+          return true;
+        } catch (InvocationTargetException e) {
+          throw new MessagingException(e.getCause());
+        }
+      }
+    };
+    return StreamSupport.stream(spliterator, false).onClose(this::close);
+  }
+
+  /**
+   * Receive all responses asynchronously, without blocking a thread.
+   *
+   * @return a stage which is completed with all responses when end of stream is received,
+   * completed exceptionally with the error notified by the requestsink,
+   * or completed exceptionally with a {@link TimeoutException} if the request times out.
+   */
+  public <T extends Message> CompletionStage<List<T>> getResponsesAsync() {
+    CompletableFuture<List<T>> result = new CompletableFuture<>();
+    subscribe(new ResponseSubscriber<T>() {
+      private final List<T> received = new ArrayList<>();
+
+      @Override
+      public void onSubscribe(ResponseSubscription subscription) {
+        subscription.request(Long.MAX_VALUE);
+      }
+
+      @Override
+      public void onNext(T response) {
+        received.add(response);
+      }
+
+      @Override
+      public void onError(Throwable error) {
+        result.completeExceptionally(error);
+      }
+
+      @Override
+      public void onComplete() {
+        result.complete(received);
+      }
+    });
+    return result;
+  }
+
+  /**
+   * Subscribe to the response stream, receiving each response as a callback when it arrives,
+   * without blocking a thread. Responses received before subscribing are delivered when requested.
+   * The response stream can only be subscribed once.
+   * <p>
+   * The subscriber receives {@link ResponseSubscriber#onComplete()} when end of stream is received,
+   * {@link ResponseSubscriber#onError(Throwable)} with the notified error if the request fails,
+   * or with a {@link TimeoutException} if the request times out.
+   *
+   * @param subscriber the subscriber to receive the responses
+   */
+  public <T extends Message> void subscribe(ResponseSubscriber<T> subscriber) {
+    if (subscriber == null) throw new IllegalArgumentException("Subscriber cannot be null");
+    AsyncSubscription<T> s = new AsyncSubscription<>(subscriber);
+    if (!subscription.compareAndSet(null, s)) {
+      subscriber.onSubscribe(new ClosedSubscription());
+      subscriber.onError(new IllegalStateException("Response stream is already subscribed [callID=" + callID + "]"));
+      return;
+    }
+    subscriber.onSubscribe(s);
+    s.drain();
+  }
+
+  private static Executor createExpiryExecutor() {
+    AtomicInteger threadCounter = new AtomicInteger();
+    //idle threads expire, so the executor does not need to be shut down
+    return Executors.newCachedThreadPool(r -> {
+      Thread t = new Thread(r, "RequestHandlerExpiry-" + threadCounter.incrementAndGet());
+      t.setDaemon(true);
+      return t;
+    });
+  }
+
+  private void expire() {
+    if (LOGGER.isDebug()) {
+      LOGGER.debug("# expired [callID=%s]", callID);
+    }
+    if (!closed.get()) timedOut.set(true);
+    close();
+  }
+
+  private void drainSubscription() {
+    ObjectUtils.ifNotNullDo(subscription.get(), AsyncSubscription::drain);
+  }
+
+  private boolean hasPendingResponses() {
+    return responseCount.get() > 0;
+  }
+
+  private boolean enqueueResponse(Message msg) {
+    if (overflowThreshold <= 0) {
+      responses.add(msg);
+      return true;
+    }
+    synchronized (spillLock) {
+      //keep responses in order, so once spilling, all responses are spilled until the spill file is drained
+      if ((spillFile == null || spillFile.isEmpty()) && responseCount.get() < overflowThreshold) {
+        responses.add(msg);
+        return true;
+      }
+      try {
+        if (spillFile == null) {
+          spillFile = new ResponseSpillFile(overflowDirectory, Thread.currentThread().getContextClassLoader());
+          LOGGER.info("Spilling responses to disk [callID=%s threshold=%d]", callID, overflowThreshold);
+        }
+        spillFile.append(msg);
+        return true;
+      } catch (IOException e) {
+        LOGGER.warning(e, "Error spilling response to disk [callID=%s]", callID);
+        notifyError(new MessagingException("Error spilling response to disk", e));
+        return false;
+      }
+    }
+  }
+
+  private Message pollSpilledResponse() {
+    try {
+      synchronized (spillLock) {
+        //a response may have been added to memory after the spill file was drained
+        Message response = responses.poll();
+        if (response != null || spillFile == null) return response;
+        return spillFile.poll();
+      }
+    } catch (IOException e) {
+      LOGGER.warning(e, "Error reading spilled response [callID=%s]", callID);
+      //the unreadable response is consumed
+      responseCount.decrementAndGet();
+      notifyError(new MessagingException("Error reading spilled response", e));
+      return null;
+    }
+  }
+
+  private void closeSpillFile() {
+    if (overflowThreshold <= 0) return;
+    synchronized (spillLock) {
+      //spilled responses can still be read after closing
+      ObjectUtils.ifNotNullDo(spillFile, f -> LambdaUtils.tryTo(f::close, e -> LOGGER.warning(e, "Error closing spill file")));
+    }
+  }
+
+  private <T extends Message> T pollResponse() {
+    Message response = responses.poll();
+    if (response == null && overflowThreshold > 0) {
+      response = pollSpilledResponse();
+    }
+    if (response == null) return null;
+    responseCount.decrementAndGet();
+    //if more responses are pending, pass the signal on to the next waiting reader
+    if (hasPendingResponses()) responseWaiters.signalOne();
+    //noinspection unchecked
+    return (T) response;
+  }
+
+  private void notifyResponsesConsumed(int count) {
+    if (count == 0 || requestListeners.isEmpty()) return;
+    list(requestListeners).forEach(l -> LambdaUtils.tryTo(
+            () -> l.responsesConsumed(callID, count),
+            e -> LOGGER.warning(e, "Error invoking RequestListener")
+    ));
+  }
+
+  private void signalAllWaiters() {
+    responseWaiters.signalAll();
+    batchWaiters.signalAll();
+    closeWaiters.signalAll();
+  }
+
   private void checkIfReceivedError() throws InvocationTargetException {
     if (hasReceivedError()) {
       throw new InvocationTargetException(error.get());
     }
   }
 
+  private class AsyncSubscription<T extends Message> implements ResponseSubscription {
+    private final ResponseSubscriber<T> subscriber;
+    private final AtomicLong demand = new AtomicLong();
+    private final AtomicInteger pendingDrains = new AtomicInteger();
+    private final AtomicBoolean done = new AtomicBoolean();
+
+    private AsyncSubscription(ResponseSubscriber<T> subscriber) {
+      this.subscriber = subscriber;
+    }
+
+    @Override
+    public void request(long n) {
+      if (n <= 0) {
+        terminate(new IllegalArgumentException("Requested responses must be positive"));
+        return;
+      }
+      demand.getAndUpdate(d -> d + n < 0 ? Long.MAX_VALUE : d + n);
+      drain();
+    }
+
+    @Override
+    public void cancel() {
+      if (done.compareAndSet(false, true)) {
+        close();
+      }
+    }
+
+    /**
+     * Deliver pending responses and terminal events to the subscriber.
+     * Only one thread drains at a time, other threads just mark that another round is needed,
+     * so callbacks are never invoked concurrently.
+     */
+    void drain() {
+      if (pendingDrains.getAndIncrement() != 0) return;
+      do {
+        if (hasReceivedError()) {
+          terminate(error.get());
+        }
+        while (!done.get() && demand.get() > 0) {
+          T response = pollResponse();
+          if (response == null) break;
+          if (demand.get() != Long.MAX_VALUE) demand.decrementAndGet();
+          try {
+            subscriber.onNext(response);
+          } catch (Exception e) {
+            LOGGER.warning(e, "Error invoking ResponseSubscriber, cancelling subscription");
+            cancel();
+          }
+          notifyResponsesConsumed(1);
+        }
+        if (!done.get() && !hasPendingResponses() && isClosed()) {
+          if (hasReceivedError()) {
+            terminate(error.get());
+          } else if (hasTimedOut()) {
+            terminate(new TimeoutException("Request timed out [callID=" + callID + "]"));
+          } else if (done.compareAndSet(false, true)) {
+            LambdaUtils.tryTo(subscriber::onComplete, e -> LOGGER.warning(e, "Error invoking ResponseSubscriber"));
+          }
+        }
+      } while (pendingDrains.decrementAndGet() != 0);
+    }
+
+    private void terminate(Throwable e) {
+      if (!done.compareAndSet(false, true)) return;
+      LambdaUtils.tryTo(() -> subscriber.onError(e), ex -> LOGGER.warning(ex, "Error invoking ResponseSubscriber"));
+    }
+  }
+
+  private static class ClosedSubscription implements ResponseSubscription {
+    @Override
+    public void request(long n) {
+      //do nothing
+    }
+
+    @Override
+    public void cancel() {
+      //do nothing
+    }
+  }
+
+  public static Builder builder() {
+    return new Builder();
+  }
+
+  public static class Builder {
+    private boolean allowKeepAlive;
+    private String callID;
+    private long maxWait;
+    private int overflowThreshold;
+    private Path overflowDirectory;
+
+    private Builder() {
+    }
+
+    public RequestHandler build() {
+      return new RequestHandler(allowKeepAlive, callID, maxWait, overflowThreshold, overflowDirectory);
+    }
+
+    //setters
+
+    public Builder setAllowKeepAlive(boolean allowKeepAlive) {
+      this.allowKeepAlive = allowKeepAlive;
+      return this;
+    }
+
+    public Builder setCallID(String callID) {
+      this.callID = callID;
+      return this;
+    }
+
+    public Builder setMaxWait(long maxWait) {
+      this.maxWait = maxWait;
+      return this;
+    }
+
+    /**
+     * @param overflowThreshold max number of unconsumed responses to keep in memory before spilling to disk,
+     *                          or 0 to keep all responses in memory (default)
+     */
+    public Builder setOverflowThreshold(int overflowThreshold) {
+      this.overflowThreshold = overflowThreshold;
+      return this;
+    }
+
+    /**
+     * @param overflowDirectory directory for spill files, or null to use the default temporary directory
+     */
+    public Builder setOverflowDirectory(Path overflowDirectory) {
+      this.overflowDirectory = overflowDirectory;
+      return this;
+    }
+  }
+
 }
\ No newline at end of file
@@ -18,4 +18,16 @@ public interface RequestListener {
    */
   void timeout();
 
+  /**
+   * Client side notification that responses have been consumed by the client.
+   * Only invoked by contexts which return true for {@link RequestContext#notifiesResponsesConsumed()}.
+   * The listener may use this to let the server send more responses.
+   *
+   * @param callID the ID of the request
+   * @param count  the number of responses consumed since last notification
+   */
+  default void responsesConsumed(String callID, int count) {
+    //do nothing
+  }
+
 }
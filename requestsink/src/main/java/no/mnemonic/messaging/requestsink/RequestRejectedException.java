@@ -0,0 +1,14 @@
+package no.mnemonic.messaging.requestsink;
+
+/**
+ * Thrown when a request is rejected without being sent, e.g. because a circuit breaker is open,
+ * or the limit of outstanding calls is reached.
+ */
+public class RequestRejectedException extends MessagingException {
+
+  private static final long serialVersionUID = -2209478711925342377L;
+
+  public RequestRejectedException(String s) {
+    super(s);
+  }
+}
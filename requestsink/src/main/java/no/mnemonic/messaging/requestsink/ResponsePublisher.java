@@ -0,0 +1,18 @@
+package no.mnemonic.messaging.requestsink;
+
+/**
+ * Publisher of a response stream. Each response stream can only be subscribed once.
+ *
+ * @param <T> the type of responses
+ */
+@FunctionalInterface
+public interface ResponsePublisher<T extends Message> {
+
+  /**
+   * Subscribe to the response stream
+   *
+   * @param subscriber the subscriber to receive responses
+   */
+  void subscribe(ResponseSubscriber<T> subscriber);
+
+}
@@ -0,0 +1,157 @@
+package no.mnemonic.messaging.requestsink;
+
+import no.mnemonic.commons.logging.Logger;
+import no.mnemonic.commons.logging.Logging;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * Append-only FIFO of serialized responses, stored in a memory-mapped temporary file.
+ * <p>
+ * Each response is stored as a length-prefixed record of the java serialized message.
+ * The file is mapped in regions, and a record never spans two regions.
+ * When all records are read, the file is reused from the start, so the file size is bounded by the largest backlog.
+ * <p>
+ * The temporary file is deleted as soon as it is opened, so disk space is released when the spill file is closed and
+ * all mapped regions are garbage collected.
+ * <p>
+ * This class is not thread safe, callers must synchronize access.
+ */
+class ResponseSpillFile implements Closeable {
+
+  private static final Logger LOGGER = Logging.getLogger(ResponseSpillFile.class);
+  private static final int REGION_SIZE = 16 * 1024 * 1024;
+  private static final int END_OF_REGION = -1;
+
+  private final FileChannel channel;
+  private final ClassLoader classLoader;
+  private final int regionSize;
+  private final Deque<MappedByteBuffer> regions = new ArrayDeque<>();
+  private long writePosition;
+  private int readOffset;
+  private int records;
+
+  ResponseSpillFile(Path directory, ClassLoader classLoader) throws IOException {
+    this(directory, classLoader, REGION_SIZE);
+  }
+
+  ResponseSpillFile(Path directory, ClassLoader classLoader, int regionSize) throws IOException {
+    this.classLoader = classLoader;
+    this.regionSize = regionSize;
+    Path file = directory != null
+            ? Files.createTempFile(directory, "responses", ".spill")
+            : Files.createTempFile("responses", ".spill");
+    this.channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    try {
+      //the open channel and mapped regions keep the data available
+      Files.delete(file);
+    } catch (IOException e) {
+      LOGGER.warning(e, "Could not delete spill file, deleting on exit: %s", file);
+      file.toFile().deleteOnExit();
+    }
+  }
+
+  /**
+   * Append a response to the end of the file
+   *
+   * @param msg response to append
+   * @throws IOException if the response could not be serialized or written
+   */
+  void append(Message msg) throws IOException {
+    byte[] data = serialize(msg);
+    MappedByteBuffer region = writableRegion(Integer.BYTES + data.length);
+    region.putInt(data.length);
+    region.put(data);
+    records++;
+  }
+
+  /**
+   * @return the oldest response in the file, or null if the file is empty
+   * @throws IOException if the response could not be deserialized
+   */
+  Message poll() throws IOException {
+    if (records == 0) return null;
+    MappedByteBuffer region = regions.peekFirst();
+    //the writer leaves unused space at the end of a region, skip to next region
+    if (readOffset + Integer.BYTES > region.position() || region.getInt(readOffset) == END_OF_REGION) {
+      regions.removeFirst();
+      readOffset = 0;
+      region = regions.peekFirst();
+    }
+    int length = region.getInt(readOffset);
+    byte[] data = new byte[length];
+    ByteBuffer buffer = region.duplicate();
+    buffer.position(readOffset + Integer.BYTES);
+    buffer.get(data);
+    readOffset += Integer.BYTES + length;
+    if (--records == 0) {
+      //file is empty, so start writing from the beginning again
+      regions.clear();
+      readOffset = 0;
+      writePosition = 0;
+    }
+    return deserialize(data);
+  }
+
+  boolean isEmpty() {
+    return records == 0;
+  }
+
+  int size() {
+    return records;
+  }
+
+  @Override
+  public void close() throws IOException {
+    //mapped regions stay valid after closing the channel, so pending records can still be read
+    channel.close();
+  }
+
+  private MappedByteBuffer writableRegion(int recordSize) throws IOException {
+    MappedByteBuffer region = regions.peekLast();
+    if (region != null && region.remaining() >= recordSize) return region;
+    if (region != null) {
+      //mark end of region, and continue writing from the end of the region
+      if (region.remaining() >= Integer.BYTES) region.putInt(END_OF_REGION);
+      writePosition += region.capacity();
+    }
+    region = channel.map(FileChannel.MapMode.READ_WRITE, writePosition, Math.max(regionSize, recordSize));
+    regions.addLast(region);
+    return region;
+  }
+
+  private byte[] serialize(Message msg) throws IOException {
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    try (ObjectOutputStream oos = new ObjectOutputStream(baos)) {
+      oos.writeObject(msg);
+    }
+    return baos.toByteArray();
+  }
+
+  private Message deserialize(byte[] data) throws IOException {
+    try (ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(data)) {
+      @Override
+      protected Class<?> resolveClass(ObjectStreamClass desc) throws IOException, ClassNotFoundException {
+        if (classLoader == null) return super.resolveClass(desc);
+        try {
+          return Class.forName(desc.getName(), false, classLoader);
+        } catch (ClassNotFoundException e) {
+          return super.resolveClass(desc);
+        }
+      }
+    }) {
+      return (Message) ois.readObject();
+    } catch (ClassNotFoundException e) {
+      throw new IOException("Could not deserialize spilled response", e);
+    }
+  }
+
+}
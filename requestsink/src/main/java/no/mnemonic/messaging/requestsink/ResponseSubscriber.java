@@ -0,0 +1,46 @@
+package no.mnemonic.messaging.requestsink;
+
+/**
+ * Callback interface for receiving streamed responses without blocking a thread.
+ * <p>
+ * Follows the contract of a reactive streams subscriber: {@link #onSubscribe(ResponseSubscription)} is invoked once,
+ * followed by at most as many {@link #onNext(Message)} invocations as requested using
+ * {@link ResponseSubscription#request(long)}, and finally a single invocation of either
+ * {@link #onComplete()} or {@link #onError(Throwable)}.
+ * <p>
+ * Callbacks are invoked sequentially, but on the thread triggering the event
+ * (the thread delivering the response, closing the request or requesting more responses),
+ * so callbacks should not block.
+ *
+ * @param <T> the type of responses
+ */
+public interface ResponseSubscriber<T extends Message> {
+
+  /**
+   * Invoked when subscribing to the response stream
+   *
+   * @param subscription the subscription to request responses from
+   */
+  void onSubscribe(ResponseSubscription subscription);
+
+  /**
+   * Invoked for each requested response
+   *
+   * @param response the next response
+   */
+  void onNext(T response);
+
+  /**
+   * Invoked if the response stream is terminated by an error.
+   * If the request times out before end of stream, the error is a {@link java.util.concurrent.TimeoutException}.
+   *
+   * @param error the error terminating the response stream
+   */
+  void onError(Throwable error);
+
+  /**
+   * Invoked when end of stream is received, and all responses are delivered
+   */
+  void onComplete();
+
+}
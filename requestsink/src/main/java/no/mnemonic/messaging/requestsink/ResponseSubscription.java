@@ -0,0 +1,20 @@
+package no.mnemonic.messaging.requestsink;
+
+/**
+ * Subscription to a response stream, given to a {@link ResponseSubscriber}.
+ */
+public interface ResponseSubscription {
+
+  /**
+   * Request more responses to be delivered to the subscriber
+   *
+   * @param n the number of additional responses to deliver, must be positive
+   */
+  void request(long n);
+
+  /**
+   * Cancel the subscription, closing the request. No more responses are delivered to the subscriber.
+   */
+  void cancel();
+
+}
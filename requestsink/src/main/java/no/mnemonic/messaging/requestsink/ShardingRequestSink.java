@@ -0,0 +1,244 @@
+package no.mnemonic.messaging.requestsink;
+
+import no.mnemonic.commons.component.Dependency;
+import no.mnemonic.commons.logging.Logger;
+import no.mnemonic.commons.logging.Logging;
+import no.mnemonic.commons.metrics.*;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+/**
+ * RequestSink routing each request to one of several downstream sinks (shards), using consistent hashing on a key
+ * extracted from the request message. Requests with the same key are sent to the same shard, as long as the shard is available.
+ * <p>
+ * Each shard is placed on a hash ring with a number of virtual nodes, using the shard name, so the ring is the same
+ * in every JVM configured with the same shard names. A key is routed to the first shard following the hash of the key on the ring.
+ * <p>
+ * If signalling a shard fails with a {@link MessagingException} or an {@link IllegalStateException} (e.g. a disconnected sink),
+ * the shard is marked as unavailable, and the request is retried on the next shard on the ring.
+ * A {@link RequestRejectedException} and other errors, such as an invalid request, are thrown to the client without failover.
+ * Only the keys of the failed shard are moved, keys for other shards are not affected.
+ * An unavailable shard is tried again after the failure retry interval.
+ */
+public class ShardingRequestSink implements RequestSink, MetricAspect {
+
+  private static final Logger LOGGER = Logging.getLogger(ShardingRequestSink.class);
+
+  static final int DEFAULT_VIRTUAL_NODES = 100;
+  static final long DEFAULT_FAILURE_RETRY_INTERVAL = 10000;
+
+  @Dependency
+  private final List<RequestSink> sinks;
+  private final List<Shard> shards;
+  private final NavigableMap<Long, Shard> ring = new TreeMap<>();
+  private final Function<Message, String> keyFunction;
+  private final long failureRetryInterval;
+
+  private static final ThreadLocal<MessageDigest> DIGEST = ThreadLocal.withInitial(() -> {
+    try {
+      return MessageDigest.getInstance("MD5");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  });
+
+  private ShardingRequestSink(Map<String, RequestSink> shards, Function<Message, String> keyFunction, int virtualNodes, long failureRetryInterval) {
+    if (shards == null || shards.isEmpty()) throw new IllegalArgumentException("no shards provided");
+    if (keyFunction == null) throw new IllegalArgumentException("keyFunction not set");
+    if (virtualNodes < 1) throw new IllegalArgumentException("virtualNodes cannot be lower than 1");
+    this.keyFunction = keyFunction;
+    this.failureRetryInterval = failureRetryInterval;
+    List<Shard> shardList = new ArrayList<>();
+    for (Map.Entry<String, RequestSink> e : shards.entrySet()) {
+      Shard shard = new Shard(e.getKey(), e.getValue());
+      shardList.add(shard);
+      for (int i = 0; i < virtualNodes; i++) {
+        ring.put(hash(e.getKey() + "#" + i), shard);
+      }
+    }
+    this.shards = Collections.unmodifiableList(shardList);
+    this.sinks = Collections.unmodifiableList(new ArrayList<>(shards.values()));
+  }
+
+  @Override
+  public Metrics getMetrics() throws MetricException {
+    MetricsGroup group = new MetricsGroup();
+    for (Shard shard : shards) {
+      group.addSubMetrics(shard.name, new MetricsData()
+              .addData("requests", shard.requestCount)
+              .addData("errors", shard.errorCount)
+              .addData("reroutedRequests", shard.reroutedCount)
+              .addData("available", shard.isAvailable(System.currentTimeMillis()) ? 1 : 0));
+    }
+    return group;
+  }
+
+  @Override
+  public <T extends RequestContext> T signal(Message msg, T signalContext, long maxWait) {
+    if (msg == null) throw new IllegalArgumentException("msg not set");
+    long now = System.currentTimeMillis();
+    RuntimeException lastError = null;
+    boolean rerouted = false;
+    //try the owner of the key first, then the following shards on the ring
+    for (Shard shard : candidates(hash(key(msg)))) {
+      if (!shard.isAvailable(now)) {
+        rerouted = true;
+        continue;
+      }
+      try {
+        T result = shard.sink.signal(msg, signalContext, maxWait);
+        shard.requestCount.increment();
+        if (rerouted) shard.reroutedCount.increment();
+        shard.available();
+        return result;
+      } catch (RequestRejectedException e) {
+        //the request was rejected without being sent, which is not a failure of the shard
+        throw e;
+      } catch (MessagingException | IllegalStateException e) {
+        LOGGER.warning(e, "Error signalling shard %s, marking shard as unavailable", shard.name);
+        shard.errorCount.increment();
+        shard.failed(now);
+        lastError = e;
+        rerouted = true;
+      }
+    }
+    if (lastError != null) throw lastError;
+    throw new MessagingException("No shards available");
+  }
+
+  /**
+   * @param msg message to route
+   * @return name of the shard which owns the key of this message, ignoring availability
+   */
+  public String getShardName(Message msg) {
+    return ownerOf(hash(key(msg))).name;
+  }
+
+  //private methods
+
+  private String key(Message msg) {
+    String key = keyFunction.apply(msg);
+    return key != null ? key : String.valueOf(msg.getCallID());
+  }
+
+  private Shard ownerOf(long hash) {
+    Map.Entry<Long, Shard> e = ring.ceilingEntry(hash);
+    return e != null ? e.getValue() : ring.firstEntry().getValue();
+  }
+
+  /**
+   * @return all shards in ring order, starting with the owner of the given hash
+   */
+  private Collection<Shard> candidates(long hash) {
+    Set<Shard> result = new LinkedHashSet<>();
+    for (Shard s : ring.tailMap(hash, true).values()) {
+      if (result.add(s) && result.size() == shards.size()) return result;
+    }
+    for (Shard s : ring.headMap(hash, false).values()) {
+      if (result.add(s) && result.size() == shards.size()) return result;
+    }
+    return result;
+  }
+
+  private static long hash(String key) {
+    MessageDigest digest = DIGEST.get();
+    byte[] d = digest.digest(key.getBytes(StandardCharsets.UTF_8));
+    long h = 0;
+    for (int i = 0; i < 8; i++) {
+      h = (h << 8) | (d[i] & 0xff);
+    }
+    return h;
+  }
+
+  private class Shard {
+    private final String name;
+    private final RequestSink sink;
+    private final AtomicLong unavailableUntil = new AtomicLong();
+    private final LongAdder requestCount = new LongAdder();
+    private final LongAdder errorCount = new LongAdder();
+    private final LongAdder reroutedCount = new LongAdder();
+
+    private Shard(String name, RequestSink sink) {
+      this.name = name;
+      this.sink = sink;
+    }
+
+    private boolean isAvailable(long now) {
+      return now >= unavailableUntil.get();
+    }
+
+    private void failed(long now) {
+      unavailableUntil.set(now + failureRetryInterval);
+    }
+
+    private void available() {
+      unavailableUntil.set(0);
+    }
+  }
+
+  public static Builder builder() {
+    return new Builder();
+  }
+
+  public static class Builder {
+
+    private final Map<String, RequestSink> shards = new LinkedHashMap<>();
+    private Function<Message, String> keyFunction = Message::getCallID;
+    private int virtualNodes = DEFAULT_VIRTUAL_NODES;
+    private long failureRetryInterval = DEFAULT_FAILURE_RETRY_INTERVAL;
+
+    private Builder() {
+    }
+
+    public ShardingRequestSink build() {
+      return new ShardingRequestSink(shards, keyFunction, virtualNodes, failureRetryInterval);
+    }
+
+    //setters
+
+    /**
+     * Add a downstream shard
+     *
+     * @param name name of the shard, which decides its place on the hash ring, so it must be stable
+     * @param sink downstream sink for this shard
+     */
+    public Builder addShard(String name, RequestSink sink) {
+      if (name == null) throw new IllegalArgumentException("name not set");
+      if (sink == null) throw new IllegalArgumentException("sink not set");
+      if (shards.containsKey(name)) throw new IllegalArgumentException("Shard already added: " + name);
+      this.shards.put(name, sink);
+      return this;
+    }
+
+    /**
+     * @param keyFunction function extracting the sharding key from a request. Defaults to the callID, which
+     *                    spreads requests evenly without affinity. If the function returns null, the callID is used.
+     */
+    public Builder setKeyFunction(Function<Message, String> keyFunction) {
+      this.keyFunction = keyFunction;
+      return this;
+    }
+
+    /**
+     * @param virtualNodes number of points on the hash ring for each shard. More points gives a more even distribution.
+     */
+    public Builder setVirtualNodes(int virtualNodes) {
+      this.virtualNodes = virtualNodes;
+      return this;
+    }
+
+    /**
+     * @param failureRetryInterval millis to wait before trying a failed shard again
+     */
+    public Builder setFailureRetryInterval(long failureRetryInterval) {
+      this.failureRetryInterval = failureRetryInterval;
+      return this;
+    }
+  }
+}
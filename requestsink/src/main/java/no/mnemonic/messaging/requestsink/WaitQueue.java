@@ -0,0 +1,66 @@
+package no.mnemonic.messaging.requestsink;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Lock-free queue of threads parked while waiting for a condition.
+ * <p>
+ * Waiting threads are parked using {@link LockSupport}, and are woken either one at a time using {@link #signalOne()},
+ * which hands a single event over to a single waiter, or all at once using {@link #signalAll()}.
+ * A waiter always rechecks its condition after registering itself, so a signal issued after the condition
+ * is fulfilled is never lost.
+ */
+class WaitQueue {
+
+  private final Queue<Thread> waiters = new ConcurrentLinkedQueue<>();
+
+  /**
+   * Wait until the condition is fulfilled, or until maxWait millis has elapsed.
+   *
+   * @param condition condition to wait for
+   * @param maxWait   max millis to wait
+   * @return the value of the condition when returning
+   * @throws InterruptedException if the waiting thread is interrupted
+   */
+  boolean await(BooleanSupplier condition, long maxWait) throws InterruptedException {
+    if (condition.getAsBoolean()) return true;
+    long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(maxWait);
+    Thread current = Thread.currentThread();
+    while (true) {
+      waiters.add(current);
+      try {
+        //check condition after registering, to avoid missing a signal
+        if (condition.getAsBoolean()) return true;
+        long remaining = deadline - System.nanoTime();
+        if (remaining <= 0) return false;
+        LockSupport.parkNanos(this, remaining);
+        if (Thread.interrupted()) throw new InterruptedException();
+      } finally {
+        waiters.remove(current);
+      }
+    }
+  }
+
+  /**
+   * Wake up the longest waiting thread, if any
+   */
+  void signalOne() {
+    Thread waiter = waiters.poll();
+    if (waiter != null) LockSupport.unpark(waiter);
+  }
+
+  /**
+   * Wake up all waiting threads
+   */
+  void signalAll() {
+    Thread waiter;
+    while ((waiter = waiters.poll()) != null) {
+      LockSupport.unpark(waiter);
+    }
+  }
+
+}
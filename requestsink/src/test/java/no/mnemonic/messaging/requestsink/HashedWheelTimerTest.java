@@ -0,0 +1,133 @@
+package no.mnemonic.messaging.requestsink;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+
+public class HashedWheelTimerTest {
+
+  private HashedWheelTimer timer;
+
+  @Before
+  public void setUp() {
+    timer = new HashedWheelTimer("TestTimer", 5, 8);
+  }
+
+  @After
+  public void tearDown() {
+    timer.stop();
+  }
+
+  @Test
+  public void testScheduleFires() throws InterruptedException {
+    CountDownLatch latch = new CountDownLatch(1);
+    long start = System.currentTimeMillis();
+    HashedWheelTimer.Timeout timeout = timer.schedule(latch::countDown, 50, TimeUnit.MILLISECONDS);
+    assertTrue(latch.await(1, TimeUnit.SECONDS));
+    assertTrue(System.currentTimeMillis() - start >= 50);
+    assertTrue(timeout.isExpired());
+    assertFalse(timeout.cancel());
+    assertEquals(0, timer.getPendingTimeouts());
+  }
+
+  @Test
+  public void testScheduleBeyondWheelRevolution() throws InterruptedException {
+    //wheel covers 8 * 5ms, so this timeout needs several rounds
+    CountDownLatch latch = new CountDownLatch(1);
+    long start = System.currentTimeMillis();
+    timer.schedule(latch::countDown, 200, TimeUnit.MILLISECONDS);
+    assertTrue(latch.await(1, TimeUnit.SECONDS));
+    assertTrue(System.currentTimeMillis() - start >= 200);
+  }
+
+  @Test
+  public void testCancelPreventsFiring() throws InterruptedException {
+    AtomicInteger fired = new AtomicInteger();
+    HashedWheelTimer.Timeout timeout = timer.schedule(fired::incrementAndGet, 50, TimeUnit.MILLISECONDS);
+    assertEquals(1, timer.getPendingTimeouts());
+    assertTrue(timeout.cancel());
+    assertFalse(timeout.cancel());
+    assertTrue(timeout.isCancelled());
+    assertEquals(0, timer.getPendingTimeouts());
+    Thread.sleep(150);
+    assertEquals(0, fired.get());
+    assertFalse(timeout.isExpired());
+  }
+
+  @Test
+  public void testManyTimeoutsFireExactlyOnce() throws InterruptedException {
+    int count = 10000;
+    AtomicInteger fired = new AtomicInteger();
+    CountDownLatch latch = new CountDownLatch(count);
+    for (int i = 0; i < count; i++) {
+      timer.schedule(() -> {
+        fired.incrementAndGet();
+        latch.countDown();
+      }, i % 100, TimeUnit.MILLISECONDS);
+    }
+    assertTrue(latch.await(5, TimeUnit.SECONDS));
+    Thread.sleep(50);
+    assertEquals(count, fired.get());
+    assertEquals(0, timer.getPendingTimeouts());
+  }
+
+  @Test
+  public void testDeadlineFires() throws InterruptedException {
+    CountDownLatch latch = new CountDownLatch(1);
+    long deadline = System.currentTimeMillis() + 50;
+    HashedWheelTimer.Timeout timeout = timer.scheduleDeadline(() -> deadline, latch::countDown);
+    assertTrue(latch.await(1, TimeUnit.SECONDS));
+    assertTrue(System.currentTimeMillis() > deadline);
+    assertTrue(timeout.isExpired());
+  }
+
+  @Test
+  public void testDeadlineAlreadyPassedRunsImmediately() {
+    AtomicInteger fired = new AtomicInteger();
+    HashedWheelTimer.Timeout timeout = timer.scheduleDeadline(() -> System.currentTimeMillis() - 1000, fired::incrementAndGet);
+    assertEquals(1, fired.get());
+    assertTrue(timeout.isExpired());
+    assertFalse(timeout.cancel());
+  }
+
+  @Test
+  public void testDeadlineExtensionReschedules() throws InterruptedException {
+    CountDownLatch latch = new CountDownLatch(1);
+    AtomicLong deadline = new AtomicLong(System.currentTimeMillis() + 50);
+    timer.scheduleDeadline(deadline::get, latch::countDown);
+    //extend the deadline before the timer fires
+    Thread.sleep(20);
+    deadline.set(System.currentTimeMillis() + 150);
+    assertFalse(latch.await(100, TimeUnit.MILLISECONDS));
+    assertTrue(latch.await(1, TimeUnit.SECONDS));
+    assertTrue(System.currentTimeMillis() > deadline.get());
+  }
+
+  @Test
+  public void testCancelDeadline() throws InterruptedException {
+    AtomicInteger fired = new AtomicInteger();
+    HashedWheelTimer.Timeout timeout = timer.scheduleDeadline(() -> System.currentTimeMillis() + 50, fired::incrementAndGet);
+    assertTrue(timeout.cancel());
+    assertTrue(timeout.isCancelled());
+    Thread.sleep(150);
+    assertEquals(0, fired.get());
+    assertEquals(0, timer.getPendingTimeouts());
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void testScheduleOnStoppedTimer() {
+    timer.schedule(() -> {
+    }, 10, TimeUnit.MILLISECONDS);
+    timer.stop();
+    timer.schedule(() -> {
+    }, 10, TimeUnit.MILLISECONDS);
+  }
+
+}
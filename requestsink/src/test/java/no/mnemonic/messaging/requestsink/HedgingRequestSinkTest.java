@@ -0,0 +1,240 @@
+package no.mnemonic.messaging.requestsink;
+
+import no.mnemonic.messaging.requestsink.RequestHandlerTest.TestMessage;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import java.lang.reflect.InvocationTargetException;
+import java.time.Clock;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.*;
+
+public class HedgingRequestSinkTest {
+
+  @Mock
+  private RequestSink downstream;
+  @Mock
+  private HashedWheelTimer.Timeout timeout;
+  @Mock
+  private RequestListener listener;
+  @Mock
+  private Clock clock;
+
+  private final List<RequestContext> attempts = new ArrayList<>();
+  private final List<Message> sentMessages = new ArrayList<>();
+  private final List<Runnable> scheduledHedges = new ArrayList<>();
+  private final List<Long> scheduledDelays = new ArrayList<>();
+  private HedgingRequestSink sink;
+
+  @Before
+  public void setup() {
+    MockitoAnnotations.initMocks(this);
+    when(downstream.signal(any(), any(), anyLong())).thenAnswer(i -> {
+      sentMessages.add(i.getArgument(0));
+      attempts.add(i.getArgument(1));
+      return i.getArgument(1);
+    });
+    sink = HedgingRequestSink.builder()
+            .setRequestSink(downstream)
+            .setHedgeFunction(m -> new TestMessage("hedge"))
+            .setInitialHedgeDelay(100)
+            .setHedgeExecutor(Runnable::run)
+            .setTimer((task, delay) -> {
+              scheduledHedges.add(task);
+              scheduledDelays.add(delay);
+              return timeout;
+            })
+            .build();
+  }
+
+  @After
+  public void cleanup() {
+    HedgingRequestSink.setClock(Clock.systemUTC());
+  }
+
+  @Test
+  public void testNoHedgeWhenPrimaryRespondsInTime() throws InvocationTargetException {
+    RequestHandler handler = RequestHandler.signal(sink, new TestMessage("request"), false, 1000);
+    attempts.get(0).addResponse(new TestMessage("reply"));
+    attempts.get(0).endOfStream();
+    verify(timeout, atLeastOnce()).cancel();
+    assertEquals(1, readAll(handler).size());
+    //hedge task fired after response does nothing
+    scheduledHedges.get(0).run();
+    assertEquals(1, attempts.size());
+  }
+
+  @Test
+  public void testHedgeIsSentAfterDelay() throws Exception {
+    RequestHandler.signal(sink, new TestMessage("request"), false, 1000);
+    assertEquals(Long.valueOf(100), scheduledDelays.get(0));
+    scheduledHedges.get(0).run();
+    assertEquals(2, attempts.size());
+    assertEquals("hedge", ((TestMessage) sentMessages.get(1)).getMsgID());
+    assertEquals(1L, sink.getMetrics().getData("hedges").longValue());
+  }
+
+  @Test
+  public void testHedgeIsSentFromHedgeExecutor() {
+    List<Runnable> executorTasks = new ArrayList<>();
+    sink = HedgingRequestSink.builder()
+            .setRequestSink(downstream)
+            .setHedgeFunction(m -> new TestMessage("hedge"))
+            .setInitialHedgeDelay(100)
+            .setHedgeExecutor(executorTasks::add)
+            .setTimer((task, delay) -> {
+              scheduledHedges.add(task);
+              return timeout;
+            })
+            .build();
+    RequestHandler.signal(sink, new TestMessage("request"), false, 1000);
+    //timer task only hands off the hedge
+    scheduledHedges.get(0).run();
+    assertEquals(1, attempts.size());
+    assertEquals(1, executorTasks.size());
+    executorTasks.get(0).run();
+    assertEquals(2, attempts.size());
+  }
+
+  @Test
+  public void testHedgeWinsAndPrimaryIsClosed() throws Exception {
+    RequestHandler handler = RequestHandler.signal(sink, new TestMessage("request"), false, 1000);
+    scheduledHedges.get(0).run();
+    attempts.get(0).addListener(listener);
+    assertTrue(attempts.get(1).addResponse(new TestMessage("hedgeReply")));
+    attempts.get(1).endOfStream();
+    //primary is closed, and late responses from primary are discarded
+    verify(listener).close(any());
+    assertTrue(attempts.get(0).isClosed());
+    assertFalse(attempts.get(0).addResponse(new TestMessage("primaryReply")));
+    List<TestMessage> responses = readAll(handler);
+    assertEquals(1, responses.size());
+    assertEquals("hedgeReply", responses.get(0).getMsgID());
+    assertEquals(1L, sink.getMetrics().getData("hedgesWon").longValue());
+  }
+
+  @Test
+  public void testPrimaryWinsAndHedgeIsClosed() throws Exception {
+    RequestHandler handler = RequestHandler.signal(sink, new TestMessage("request"), false, 1000);
+    scheduledHedges.get(0).run();
+    attempts.get(0).addResponse(new TestMessage("primaryReply"));
+    attempts.get(0).endOfStream();
+    assertTrue(attempts.get(1).isClosed());
+    assertEquals("primaryReply", readAll(handler).get(0).getMsgID());
+    assertEquals(0L, sink.getMetrics().getData("hedgesWon").longValue());
+  }
+
+  @Test
+  public void testErrorFromOneAttemptLetsOtherContinue() throws InvocationTargetException {
+    RequestHandler handler = RequestHandler.signal(sink, new TestMessage("request"), false, 1000);
+    scheduledHedges.get(0).run();
+    attempts.get(0).notifyError(new IllegalStateException("failed"));
+    attempts.get(1).addResponse(new TestMessage("hedgeReply"));
+    attempts.get(1).endOfStream();
+    assertEquals("hedgeReply", readAll(handler).get(0).getMsgID());
+  }
+
+  @Test
+  public void testErrorIsForwardedWhenNoOtherAttempt() {
+    RequestHandler handler = RequestHandler.signal(sink, new TestMessage("request"), false, 1000);
+    attempts.get(0).notifyError(new IllegalStateException("failed"));
+    verify(timeout, atLeastOnce()).cancel();
+    try {
+      readAll(handler);
+      fail();
+    } catch (InvocationTargetException e) {
+      assertTrue(e.getCause() instanceof IllegalStateException);
+    }
+  }
+
+  @Test
+  public void testNonIdempotentRequestIsNotHedged() {
+    sink = HedgingRequestSink.builder()
+            .setRequestSink(downstream)
+            .setHedgeFunction(m -> null)
+            .setHedgeExecutor(Runnable::run)
+            .setTimer((task, delay) -> {
+              scheduledHedges.add(task);
+              return timeout;
+            })
+            .build();
+    RequestHandler.signal(sink, new TestMessage("request"), false, 10000);
+    scheduledHedges.get(0).run();
+    assertEquals(1, attempts.size());
+  }
+
+  @Test
+  public void testNoHedgeWhenDelayExceedsMaxWait() {
+    RequestHandler.signal(sink, new TestMessage("request"), false, 50);
+    assertTrue(scheduledHedges.isEmpty());
+  }
+
+  @Test
+  public void testClientCloseClosesAttempts() {
+    RequestHandler handler = RequestHandler.signal(sink, new TestMessage("request"), false, 1000);
+    scheduledHedges.get(0).run();
+    attempts.get(0).addListener(listener);
+    handler.close();
+    verify(listener).close(any());
+    assertTrue(attempts.get(0).isClosed());
+    assertTrue(attempts.get(1).isClosed());
+  }
+
+  @Test
+  public void testResponsesConsumedIsForwardedToWinner() throws InvocationTargetException {
+    RequestHandler handler = RequestHandler.signal(sink, new TestMessage("request"), false, 1000);
+    scheduledHedges.get(0).run();
+    attempts.get(1).addListener(listener);
+    attempts.get(1).addResponse(new TestMessage("hedgeReply"));
+    handler.getNextResponse(100);
+    verify(listener).responsesConsumed(any(), eq(1));
+  }
+
+  @Test
+  public void testHedgeDelayFollowsObservedLatency() {
+    assertEquals(100, sink.getHedgeDelay());
+    for (int i = 0; i < 100; i++) {
+      RequestHandler.signal(sink, new TestMessage("request"), false, 1000);
+      attempts.get(attempts.size() - 1).endOfStream();
+    }
+    //fast responses bring the delay down to the minimum delay
+    assertEquals(HedgingRequestSink.DEFAULT_MIN_HEDGE_DELAY, sink.getHedgeDelay());
+  }
+
+  @Test
+  public void testHedgeDelayFollowsPrimaryLatencyWhenHedgeWins() {
+    HedgingRequestSink.setClock(clock);
+    for (int i = 0; i < 100; i++) {
+      when(clock.millis()).thenReturn(0L);
+      RequestHandler.signal(sink, new TestMessage("request"), false, 1000);
+      scheduledHedges.get(scheduledHedges.size() - 1).run();
+      when(clock.millis()).thenReturn(300L);
+      //primary fails while the hedge is still running, and the fast hedge wins
+      attempts.get(attempts.size() - 2).notifyError(new IllegalStateException("failed"));
+      when(clock.millis()).thenReturn(310L);
+      attempts.get(attempts.size() - 1).endOfStream();
+    }
+    //delay follows the primary latency, not the latency of the winning hedge
+    assertEquals(300, sink.getHedgeDelay());
+  }
+
+  //helpers
+
+  private List<TestMessage> readAll(RequestHandler handler) throws InvocationTargetException {
+    List<TestMessage> responses = new ArrayList<>();
+    TestMessage response;
+    while ((response = handler.getNextResponse()) != null) {
+      responses.add(response);
+    }
+    return responses;
+  }
+}
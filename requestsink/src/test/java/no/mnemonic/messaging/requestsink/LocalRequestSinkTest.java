@@ -0,0 +1,200 @@
+package no.mnemonic.messaging.requestsink;
+
+import no.mnemonic.messaging.requestsink.RequestHandlerTest.TestMessage;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import java.lang.reflect.InvocationTargetException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.Mockito.*;
+
+public class LocalRequestSinkTest {
+
+  @Mock
+  private RequestSink endpoint;
+
+  private LocalRequestSink sink;
+
+  @Before
+  public void setup() {
+    MockitoAnnotations.initMocks(this);
+  }
+
+  @After
+  public void tearDown() {
+    if (sink != null) sink.stopComponent();
+  }
+
+  @Test
+  public void testSignalStreamsResponses() throws InvocationTargetException {
+    sink = LocalRequestSink.builder().setRequestSink(endpoint).build();
+    mockEndpointSignal(new TestMessage("reply1"), new TestMessage("reply2"));
+    RequestHandler handler = RequestHandler.signal(sink, new TestMessage("request"), false, 1000);
+    List<TestMessage> responses = readAll(handler);
+    assertEquals(2, responses.size());
+    assertEquals("reply1", responses.get(0).getMsgID());
+    assertEquals("reply2", responses.get(1).getMsgID());
+    assertFalse(handler.hasTimedOut());
+  }
+
+  @Test
+  public void testMessagesArePassedByReference() throws Exception {
+    sink = LocalRequestSink.builder().setRequestSink(endpoint).build();
+    TestMessage request = new TestMessage("request");
+    TestMessage reply = new TestMessage("reply");
+    CompletableFuture<Message> received = mockEndpointSignal(reply);
+    RequestHandler handler = RequestHandler.signal(sink, request, false, 1000);
+    assertSame(reply, readAll(handler).get(0));
+    assertSame(request, received.get(1, TimeUnit.SECONDS));
+  }
+
+  @Test
+  public void testCopyOnSendIsolatesMessages() throws Exception {
+    sink = LocalRequestSink.builder().setRequestSink(endpoint).setCopyOnSend(true).build();
+    TestMessage request = new TestMessage("request");
+    TestMessage reply = new TestMessage("reply");
+    CompletableFuture<Message> received = mockEndpointSignal(reply);
+    RequestHandler handler = RequestHandler.signal(sink, request, false, 1000);
+    TestMessage response = readAll(handler).get(0);
+    assertNotSame(reply, response);
+    assertEquals("reply", response.getMsgID());
+    Message receivedRequest = received.get(1, TimeUnit.SECONDS);
+    assertNotSame(request, receivedRequest);
+    assertEquals("request", ((TestMessage) receivedRequest).getMsgID());
+  }
+
+  @Test
+  public void testEndpointErrorIsPropagated() {
+    sink = LocalRequestSink.builder().setRequestSink(endpoint).build();
+    when(endpoint.signal(any(), any(), anyLong())).thenThrow(new IllegalStateException("failed"));
+    RequestHandler handler = RequestHandler.signal(sink, new TestMessage("request"), false, 1000);
+    try {
+      readAll(handler);
+      fail();
+    } catch (InvocationTargetException e) {
+      assertTrue(e.getCause() instanceof IllegalStateException);
+    }
+  }
+
+  @Test
+  public void testKeepAliveIsForwardedToClient() throws InvocationTargetException {
+    sink = LocalRequestSink.builder().setRequestSink(endpoint).build();
+    when(endpoint.signal(any(), any(), anyLong())).thenAnswer(i -> {
+      RequestContext ctx = i.getArgument(1);
+      //extend request beyond the initial timeout
+      assertTrue(ctx.keepAlive(System.currentTimeMillis() + 1000));
+      Thread.sleep(300);
+      ctx.addResponse(new TestMessage("reply"));
+      ctx.endOfStream();
+      return ctx;
+    });
+    RequestHandler handler = RequestHandler.signal(sink, new TestMessage("request"), true, 200);
+    assertEquals(1, readAll(handler).size());
+    assertFalse(handler.hasTimedOut());
+  }
+
+  @Test
+  public void testClientCloseClosesServerContext() throws Exception {
+    sink = LocalRequestSink.builder().setRequestSink(endpoint).build();
+    CompletableFuture<RequestContext> serverContext = new CompletableFuture<>();
+    when(endpoint.signal(any(), any(), anyLong())).thenAnswer(i -> {
+      serverContext.complete(i.getArgument(1));
+      return i.getArgument(1);
+    });
+    RequestHandler handler = RequestHandler.signal(sink, new TestMessage("request"), false, 10000);
+    RequestContext ctx = serverContext.get(1, TimeUnit.SECONDS);
+    assertFalse(ctx.isClosed());
+    handler.close();
+    assertTrue(ctx.isClosed());
+    assertFalse(ctx.addResponse(new TestMessage("reply")));
+  }
+
+  @Test
+  public void testServerContextTimesOut() throws Exception {
+    sink = LocalRequestSink.builder().setRequestSink(endpoint).build();
+    CompletableFuture<RequestContext> serverContext = new CompletableFuture<>();
+    when(endpoint.signal(any(), any(), anyLong())).thenAnswer(i -> {
+      serverContext.complete(i.getArgument(1));
+      return i.getArgument(1);
+    });
+    RequestHandler.signal(sink, new TestMessage("request"), false, 100);
+    RequestContext ctx = serverContext.get(1, TimeUnit.SECONDS);
+    Thread.sleep(200);
+    assertTrue(ctx.isClosed());
+  }
+
+  @Test
+  public void testMaxConcurrentCalls() throws Exception {
+    sink = LocalRequestSink.builder().setRequestSink(endpoint).setMaxConcurrentCalls(2).build();
+    AtomicInteger active = new AtomicInteger();
+    AtomicInteger maxActive = new AtomicInteger();
+    CountDownLatch done = new CountDownLatch(6);
+    when(endpoint.signal(any(), any(), anyLong())).thenAnswer(i -> {
+      maxActive.accumulateAndGet(active.incrementAndGet(), Math::max);
+      Thread.sleep(50);
+      active.decrementAndGet();
+      RequestContext ctx = i.getArgument(1);
+      ctx.endOfStream();
+      done.countDown();
+      return ctx;
+    });
+    for (int i = 0; i < 6; i++) {
+      RequestHandler.signal(sink, new TestMessage("request" + i), false, 10000);
+    }
+    assertTrue(done.await(5, TimeUnit.SECONDS));
+    assertEquals(2, maxActive.get());
+    assertEquals(6L, sink.getMetrics().getData("requests").longValue());
+  }
+
+  @Test
+  public void testSignalWithoutContext() throws Exception {
+    sink = LocalRequestSink.builder().setRequestSink(endpoint).build();
+    CompletableFuture<Message> received = mockEndpointSignal(new TestMessage("reply"));
+    sink.signal(new TestMessage("request"), null, 1000);
+    assertNotNull(received.get(1, TimeUnit.SECONDS));
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void testSignalAfterStop() {
+    sink = LocalRequestSink.builder().setRequestSink(endpoint).build();
+    sink.stopComponent();
+    sink.signal(new TestMessage("request"), null, 1000);
+  }
+
+  //helpers
+
+  private CompletableFuture<Message> mockEndpointSignal(TestMessage... replies) {
+    CompletableFuture<Message> received = new CompletableFuture<>();
+    when(endpoint.signal(any(), any(), anyLong())).thenAnswer(i -> {
+      RequestContext ctx = i.getArgument(1);
+      for (TestMessage reply : replies) {
+        ctx.addResponse(reply);
+      }
+      ctx.endOfStream();
+      received.complete(i.getArgument(0));
+      return ctx;
+    });
+    return received;
+  }
+
+  private List<TestMessage> readAll(RequestHandler handler) throws InvocationTargetException {
+    List<TestMessage> responses = new ArrayList<>();
+    TestMessage response;
+    while ((response = handler.getNextResponse()) != null) {
+      responses.add(response);
+    }
+    return responses;
+  }
+}
@@ -1,5 +1,6 @@
 package no.mnemonic.messaging.requestsink;
 
+import no.mnemonic.commons.utilities.collections.ListUtils;
 import no.mnemonic.commons.utilities.collections.SetUtils;
 import org.junit.AfterClass;
 import org.junit.Before;
@@ -7,10 +8,18 @@ import org.junit.Test;
 import org.mockito.MockitoAnnotations;
 
 import java.lang.reflect.InvocationTargetException;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
 import java.util.concurrent.*;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
+import static no.mnemonic.commons.utilities.lambda.LambdaUtils.tryTo;
 import static org.junit.Assert.*;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
 
 public class RequestHandlerTest {
 
@@ -233,6 +242,344 @@ public class RequestHandlerTest {
     assertTrue(msg.get(1000, TimeUnit.MILLISECONDS));
   }
 
+  @Test
+  public void testConcurrentReadersReceiveEachResponseOnce() throws Exception {
+    ExecutorService readers = Executors.newFixedThreadPool(4);
+    try {
+      RequestHandler handler = new RequestHandler(false, "callid", 10000);
+      List<Future<List<String>>> results = new ArrayList<>();
+      for (int i = 0; i < 4; i++) {
+        results.add(readers.submit(() -> {
+          List<String> received = new ArrayList<>();
+          TestMessage msg;
+          while ((msg = handler.getNextResponse()) != null) {
+            received.add(msg.getMsgID());
+          }
+          return received;
+        }));
+      }
+      for (int i = 0; i < 1000; i++) {
+        handler.addResponse(new TestMessage("msg" + i));
+      }
+      handler.endOfStream();
+      List<String> received = new ArrayList<>();
+      for (Future<List<String>> result : results) {
+        received.addAll(result.get(1000, TimeUnit.MILLISECONDS));
+      }
+      assertEquals(1000, received.size());
+      assertEquals(1000, new HashSet<>(received).size());
+    } finally {
+      readers.shutdown();
+    }
+  }
+
+  @Test
+  public void testGetResponsesReturnsWhenClosed() throws InterruptedException, ExecutionException, TimeoutException {
+    RequestHandler handler = new RequestHandler(false, "callid", 10000);
+    Future<Collection<TestMessage>> msg = executor.submit(() -> handler.getResponses(10000, 3));
+    handler.addResponse(new TestMessage("msg1"));
+    handler.endOfStream();
+    assertEquals(1, msg.get(500, TimeUnit.MILLISECONDS).size());
+  }
+
+  @Test
+  public void testGetResponsesAsyncCompletesOnEndOfStream() throws Exception {
+    RequestHandler handler = new RequestHandler(false, "callid", 10000);
+    handler.addResponse(new TestMessage("msg1"));
+    CompletableFuture<List<TestMessage>> result = handler.<TestMessage>getResponsesAsync().toCompletableFuture();
+    handler.addResponse(new TestMessage("msg2"));
+    assertFalse(result.isDone());
+    handler.endOfStream();
+    assertEquals(ListUtils.list("msg1", "msg2"), ListUtils.list(result.get(100, TimeUnit.MILLISECONDS), TestMessage::getMsgID));
+  }
+
+  @Test
+  public void testGetResponsesAsyncCompletesExceptionallyOnError() throws Exception {
+    RequestHandler handler = new RequestHandler(false, "callid", 10000);
+    CompletableFuture<List<TestMessage>> result = handler.<TestMessage>getResponsesAsync().toCompletableFuture();
+    handler.addResponse(new TestMessage("msg1"));
+    handler.notifyError(new IllegalArgumentException("invalid"));
+    try {
+      result.get(100, TimeUnit.MILLISECONDS);
+      fail();
+    } catch (ExecutionException e) {
+      assertTrue(e.getCause() instanceof IllegalArgumentException);
+    }
+  }
+
+  @Test
+  public void testGetResponsesAsyncCompletesExceptionallyOnTimeout() throws Exception {
+    RequestHandler handler = new RequestHandler(false, "callid", 100);
+    CompletableFuture<List<TestMessage>> result = handler.<TestMessage>getResponsesAsync().toCompletableFuture();
+    try {
+      result.get(1000, TimeUnit.MILLISECONDS);
+      fail();
+    } catch (ExecutionException e) {
+      assertTrue(e.getCause() instanceof TimeoutException);
+    }
+    assertTrue(handler.isClosed());
+    assertTrue(handler.hasTimedOut());
+  }
+
+  @Test
+  public void testSignalAsync() throws Exception {
+    RequestSink sink = mock(RequestSink.class);
+    TestMessage msg = new TestMessage("request");
+    when(sink.signal(any(), any(), anyLong())).thenAnswer(i -> {
+      RequestContext ctx = i.getArgument(1);
+      ctx.addResponse(new TestMessage("response"));
+      ctx.endOfStream();
+      return ctx;
+    });
+    List<TestMessage> result = RequestHandler.<TestMessage>signalAsync(sink, msg, false, 10000).toCompletableFuture().get(100, TimeUnit.MILLISECONDS);
+    assertEquals(ListUtils.list("response"), ListUtils.list(result, TestMessage::getMsgID));
+    verify(sink).signal(eq(msg), any(), eq(10000L));
+  }
+
+  @Test
+  public void testSubscribeDeliversRequestedResponses() {
+    RequestHandler handler = new RequestHandler(false, "callid", 10000);
+    TestSubscriber subscriber = new TestSubscriber();
+    handler.subscribe(subscriber);
+    handler.addResponse(new TestMessage("msg1"));
+    handler.addResponse(new TestMessage("msg2"));
+    handler.addResponse(new TestMessage("msg3"));
+    assertEquals(ListUtils.list(), subscriber.received);
+    subscriber.subscription.request(2);
+    assertEquals(ListUtils.list("msg1", "msg2"), subscriber.received);
+    handler.endOfStream();
+    assertFalse(subscriber.completed);
+    subscriber.subscription.request(1);
+    assertEquals(ListUtils.list("msg1", "msg2", "msg3"), subscriber.received);
+    assertTrue(subscriber.completed);
+    assertNull(subscriber.error);
+  }
+
+  @Test
+  public void testSubscribeDeliversResponsesReceivedBeforeSubscribing() {
+    RequestHandler handler = new RequestHandler(false, "callid", 10000);
+    handler.addResponse(new TestMessage("msg1"));
+    handler.endOfStream();
+    TestSubscriber subscriber = new TestSubscriber();
+    handler.subscribe(subscriber);
+    subscriber.subscription.request(10);
+    assertEquals(ListUtils.list("msg1"), subscriber.received);
+    assertTrue(subscriber.completed);
+  }
+
+  @Test
+  public void testSubscribeTwiceFails() {
+    RequestHandler handler = new RequestHandler(false, "callid", 10000);
+    handler.subscribe(new TestSubscriber());
+    TestSubscriber subscriber = new TestSubscriber();
+    handler.subscribe(subscriber);
+    assertTrue(subscriber.error instanceof IllegalStateException);
+  }
+
+  @Test
+  public void testCancelSubscriptionClosesHandler() {
+    RequestHandler handler = new RequestHandler(false, "callid", 10000);
+    RequestListener listener = mock(RequestListener.class);
+    handler.addListener(listener);
+    TestSubscriber subscriber = new TestSubscriber();
+    handler.subscribe(subscriber);
+    subscriber.subscription.cancel();
+    assertTrue(handler.isClosed());
+    verify(listener).close("callid");
+    assertFalse(handler.addResponse(new TestMessage("msg1")));
+    assertFalse(subscriber.completed);
+  }
+
+  @Test
+  public void testStreamReturnsResponsesUntilEndOfStream() {
+    RequestHandler handler = new RequestHandler(false, "callid", 10000);
+    handler.addResponse(new TestMessage("msg1"));
+    handler.addResponse(new TestMessage("msg2"));
+    handler.endOfStream();
+    List<String> result = handler.<TestMessage>stream().map(TestMessage::getMsgID).collect(Collectors.toList());
+    assertEquals(ListUtils.list("msg1", "msg2"), result);
+  }
+
+  @Test
+  public void testStreamWaitsForResponses() throws Exception {
+    RequestHandler handler = new RequestHandler(false, "callid", 10000);
+    Future<List<String>> result = executor.submit(() -> handler.<TestMessage>stream()
+            .map(TestMessage::getMsgID)
+            .filter(id -> !id.equals("msg2"))
+            .collect(Collectors.toList()));
+    handler.addResponse(new TestMessage("msg1"));
+    Thread.sleep(50);
+    assertFalse(result.isDone());
+    handler.addResponse(new TestMessage("msg2"));
+    handler.addResponse(new TestMessage("msg3"));
+    handler.endOfStream();
+    assertEquals(ListUtils.list("msg1", "msg3"), result.get(1000, TimeUnit.MILLISECONDS));
+  }
+
+  @Test
+  public void testStreamEndsOnTimeout() {
+    RequestHandler handler = new RequestHandler(false, "callid", 100);
+    handler.addResponse(new TestMessage("msg1"));
+    assertEquals(1, handler.stream().count());
+    assertTrue(handler.hasTimedOut());
+  }
+
+  @Test
+  public void testStreamThrowsReceivedError() {
+    RequestHandler handler = new RequestHandler(false, "callid", 10000);
+    IllegalArgumentException error = new IllegalArgumentException("error");
+    handler.notifyError(error);
+    try {
+      handler.stream().count();
+      fail();
+    } catch (MessagingException e) {
+      assertSame(error, e.getCause());
+    }
+  }
+
+  @Test
+  public void testClosingStreamClosesHandler() {
+    RequestHandler handler = new RequestHandler(false, "callid", 10000);
+    RequestListener listener = mock(RequestListener.class);
+    handler.addListener(listener);
+    handler.addResponse(new TestMessage("msg1"));
+    handler.addResponse(new TestMessage("msg2"));
+    try (Stream<TestMessage> stream = handler.stream()) {
+      assertEquals("msg1", stream.findFirst().map(TestMessage::getMsgID).orElse(null));
+    }
+    assertTrue(handler.isClosed());
+    verify(listener).close("callid");
+  }
+
+  @Test
+  public void testHandlerIsClosedWhenTimeoutPasses() throws InterruptedException {
+    RequestHandler handler = new RequestHandler(false, "callid", 100);
+    RequestListener listener = mock(RequestListener.class);
+    handler.addListener(listener);
+    //nobody is polling the handler, so the timer must close it
+    verify(listener, timeout(1000)).close("callid");
+    assertTrue(handler.hasTimedOut());
+    assertFalse(handler.addResponse(new TestMessage("msg")));
+    Thread.sleep(100);
+    verify(listener, times(1)).close("callid");
+  }
+
+  @Test
+  public void testSlowListenerDoesNotDelayOtherTimeouts() throws InterruptedException {
+    CountDownLatch release = new CountDownLatch(1);
+    RequestHandler slow = new RequestHandler(false, "slow", 50);
+    slow.addListener(new RequestListener() {
+      @Override
+      public void close(String callID) {
+        tryTo(() -> release.await(5, TimeUnit.SECONDS));
+      }
+
+      @Override
+      public void timeout() {
+      }
+    });
+    RequestHandler handler = new RequestHandler(false, "callid", 100);
+    RequestListener listener = mock(RequestListener.class);
+    handler.addListener(listener);
+    try {
+      //the slow listener blocks its expiry thread, but not the shared timer
+      verify(listener, timeout(1000)).close("callid");
+      assertTrue(slow.isClosed());
+    } finally {
+      release.countDown();
+    }
+  }
+
+  @Test
+  public void testKeepAliveExtendsActiveTimeout() throws InterruptedException {
+    RequestHandler handler = new RequestHandler(true, "callid", 100);
+    RequestListener listener = mock(RequestListener.class);
+    handler.addListener(listener);
+    handler.keepAlive(System.currentTimeMillis() + 400);
+    Thread.sleep(200);
+    verify(listener, never()).close("callid");
+    verify(listener, timeout(1000)).close("callid");
+  }
+
+  @Test
+  public void testTimeoutNotifiesListenersOnce() {
+    RequestHandler handler = new RequestHandler(false, "callid", 10000);
+    RequestListener listener = mock(RequestListener.class);
+    handler.addListener(listener);
+    handler.timeout();
+    handler.timeout();
+    verify(listener, times(1)).timeout();
+  }
+
+  @Test
+  public void testOverflowReturnsResponsesInOrder() throws Exception {
+    RequestHandler handler = RequestHandler.builder()
+            .setCallID("callid")
+            .setMaxWait(10000)
+            .setOverflowThreshold(10)
+            .build();
+    for (int i = 0; i < 100; i++) {
+      assertTrue(handler.addResponse(new TestMessage("msg" + i)));
+    }
+    handler.endOfStream();
+    List<String> received = new ArrayList<>();
+    assertEquals("msg0", handler.<TestMessage>getNextResponse().getMsgID());
+    received.add("msg0");
+    received.addAll(ListUtils.list(handler.<TestMessage>getResponsesNoWait(), TestMessage::getMsgID));
+    assertEquals(100, received.size());
+    for (int i = 0; i < 100; i++) {
+      assertEquals("msg" + i, received.get(i));
+    }
+    assertNull(handler.getNextResponse());
+  }
+
+  @Test
+  public void testOverflowInterleavedWithReads() throws Exception {
+    RequestHandler handler = RequestHandler.builder()
+            .setCallID("callid")
+            .setMaxWait(10000)
+            .setOverflowThreshold(2)
+            .build();
+    int next = 0;
+    for (int i = 0; i < 50; i++) {
+      handler.addResponse(new TestMessage("msg" + (2 * i)));
+      handler.addResponse(new TestMessage("msg" + (2 * i + 1)));
+      assertEquals("msg" + next++, handler.<TestMessage>getNextResponse(100).getMsgID());
+    }
+    TestMessage msg;
+    while ((msg = handler.getNextResponse(100)) != null) {
+      assertEquals("msg" + next++, msg.getMsgID());
+    }
+    assertEquals(100, next);
+  }
+
+  private static class TestSubscriber implements ResponseSubscriber<TestMessage> {
+    private final List<String> received = new ArrayList<>();
+    private ResponseSubscription subscription;
+    private boolean completed;
+    private Throwable error;
+
+    @Override
+    public void onSubscribe(ResponseSubscription subscription) {
+      this.subscription = subscription;
+    }
+
+    @Override
+    public void onNext(TestMessage response) {
+      received.add(response.getMsgID());
+    }
+
+    @Override
+    public void onError(Throwable error) {
+      this.error = error;
+    }
+
+    @Override
+    public void onComplete() {
+      completed = true;
+    }
+  }
+
   public static class TestMessage implements Message {
     private final String msgID;
     private String callID = "callid";
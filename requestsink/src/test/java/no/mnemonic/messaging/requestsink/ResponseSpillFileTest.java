@@ -0,0 +1,85 @@
+package no.mnemonic.messaging.requestsink;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class ResponseSpillFileTest {
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private ResponseSpillFile spillFile;
+
+  @Before
+  public void setup() throws IOException {
+    spillFile = new ResponseSpillFile(folder.getRoot().toPath(), getClass().getClassLoader(), 1024);
+  }
+
+  @After
+  public void cleanup() throws IOException {
+    spillFile.close();
+  }
+
+  @Test
+  public void testPollEmpty() throws IOException {
+    assertTrue(spillFile.isEmpty());
+    assertNull(spillFile.poll());
+  }
+
+  @Test
+  public void testAppendAndPollInOrder() throws IOException {
+    for (int i = 0; i < 100; i++) {
+      spillFile.append(new RequestHandlerTest.TestMessage("msg" + i));
+    }
+    assertEquals(100, spillFile.size());
+    for (int i = 0; i < 100; i++) {
+      assertEquals("msg" + i, ((RequestHandlerTest.TestMessage) spillFile.poll()).getMsgID());
+    }
+    assertTrue(spillFile.isEmpty());
+  }
+
+  @Test
+  public void testRecordLargerThanRegion() throws IOException {
+    char[] data = new char[5000];
+    Arrays.fill(data, 'x');
+    spillFile.append(new RequestHandlerTest.TestMessage("small1"));
+    spillFile.append(new RequestHandlerTest.TestMessage(new String(data)));
+    spillFile.append(new RequestHandlerTest.TestMessage("small2"));
+    assertEquals("small1", ((RequestHandlerTest.TestMessage) spillFile.poll()).getMsgID());
+    assertEquals(5000, ((RequestHandlerTest.TestMessage) spillFile.poll()).getMsgID().length());
+    assertEquals("small2", ((RequestHandlerTest.TestMessage) spillFile.poll()).getMsgID());
+  }
+
+  @Test
+  public void testReuseFileWhenDrained() throws IOException {
+    spillFile.append(new RequestHandlerTest.TestMessage("msg1"));
+    assertEquals("msg1", ((RequestHandlerTest.TestMessage) spillFile.poll()).getMsgID());
+    spillFile.append(new RequestHandlerTest.TestMessage("msg2"));
+    spillFile.append(new RequestHandlerTest.TestMessage("msg3"));
+    assertEquals("msg2", ((RequestHandlerTest.TestMessage) spillFile.poll()).getMsgID());
+    assertEquals("msg3", ((RequestHandlerTest.TestMessage) spillFile.poll()).getMsgID());
+  }
+
+  @Test
+  public void testPollAfterClose() throws IOException {
+    spillFile.append(new RequestHandlerTest.TestMessage("msg1"));
+    spillFile.close();
+    assertEquals("msg1", ((RequestHandlerTest.TestMessage) spillFile.poll()).getMsgID());
+  }
+
+  @Test
+  public void testSpillFileIsDeletedFromDirectory() throws IOException {
+    spillFile.append(new RequestHandlerTest.TestMessage("msg1"));
+    assertEquals(0, Files.list(folder.getRoot().toPath()).count());
+  }
+
+}
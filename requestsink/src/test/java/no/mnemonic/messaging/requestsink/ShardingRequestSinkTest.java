@@ -0,0 +1,184 @@
+package no.mnemonic.messaging.requestsink;
+
+import no.mnemonic.messaging.requestsink.RequestHandlerTest.TestMessage;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.Mockito.*;
+
+public class ShardingRequestSinkTest {
+
+  @Mock
+  private RequestSink sink1;
+  @Mock
+  private RequestSink sink2;
+  @Mock
+  private RequestSink sink3;
+  @Mock
+  private RequestContext requestContext;
+
+  private ShardingRequestSink sink;
+
+  @Before
+  public void setup() {
+    MockitoAnnotations.initMocks(this);
+    sink = createSink(10000);
+  }
+
+  @Test
+  public void testSameKeyIsRoutedToSameShard() {
+    for (int i = 0; i < 10; i++) {
+      sink.signal(new TestMessage("key1"), requestContext, 1000);
+    }
+    int total = 0;
+    for (RequestSink s : new RequestSink[]{sink1, sink2, sink3}) {
+      int invocations = mockingDetails(s).getInvocations().size();
+      assertTrue(invocations == 0 || invocations == 10);
+      total += invocations;
+    }
+    assertEquals(10, total);
+  }
+
+  @Test
+  public void testKeysAreSpreadOverShards() {
+    Map<String, Integer> distribution = new HashMap<>();
+    for (int i = 0; i < 3000; i++) {
+      distribution.merge(sink.getShardName(new TestMessage("key" + i)), 1, Integer::sum);
+    }
+    assertEquals(3, distribution.size());
+    for (int count : distribution.values()) {
+      assertTrue("Uneven distribution: " + distribution, count > 500);
+    }
+  }
+
+  @Test
+  public void testRoutingIsStableAcrossInstances() {
+    ShardingRequestSink other = createSink(10000);
+    for (int i = 0; i < 100; i++) {
+      TestMessage msg = new TestMessage("key" + i);
+      assertEquals(sink.getShardName(msg), other.getShardName(msg));
+    }
+  }
+
+  @Test
+  public void testOnlyKeysOfFailedShardAreMoved() {
+    Map<String, String> before = new HashMap<>();
+    for (int i = 0; i < 300; i++) {
+      before.put("key" + i, sink.getShardName(new TestMessage("key" + i)));
+    }
+    when(sink2.signal(any(), any(), anyLong())).thenThrow(new IllegalStateException("disconnected"));
+    for (int i = 0; i < 300; i++) {
+      sink.signal(new TestMessage("key" + i), requestContext, 1000);
+    }
+    //keys owned by other shards stay, keys owned by failed shard are spread over remaining shards
+    long keysOnShard1 = before.values().stream().filter("shard1"::equals).count();
+    long keysOnShard3 = before.values().stream().filter("shard3"::equals).count();
+    long keysOnShard2 = before.values().stream().filter("shard2"::equals).count();
+    verify(sink1, atLeast((int) keysOnShard1)).signal(any(), any(), anyLong());
+    verify(sink3, atLeast((int) keysOnShard3)).signal(any(), any(), anyLong());
+    //failed shard is only tried once, then marked unavailable
+    verify(sink2, times(1)).signal(any(), any(), anyLong());
+    assertEquals(300, mockingDetails(sink1).getInvocations().size() + mockingDetails(sink3).getInvocations().size());
+    assertTrue(keysOnShard2 > 0);
+  }
+
+  @Test
+  public void testFailedShardIsRetriedAfterInterval() throws InterruptedException {
+    sink = createSink(100);
+    TestMessage msg = keyOwnedBy("shard1");
+    when(sink1.signal(any(), any(), anyLong())).thenThrow(new IllegalStateException("disconnected")).thenReturn(requestContext);
+    sink.signal(msg, requestContext, 1000);
+    sink.signal(msg, requestContext, 1000);
+    verify(sink1, times(1)).signal(any(), any(), anyLong());
+    Thread.sleep(200);
+    sink.signal(msg, requestContext, 1000);
+    verify(sink1, times(2)).signal(any(), any(), anyLong());
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void testAllShardsFailing() {
+    when(sink1.signal(any(), any(), anyLong())).thenThrow(new IllegalStateException("disconnected"));
+    when(sink2.signal(any(), any(), anyLong())).thenThrow(new IllegalStateException("disconnected"));
+    when(sink3.signal(any(), any(), anyLong())).thenThrow(new IllegalStateException("disconnected"));
+    sink.signal(new TestMessage("key"), requestContext, 1000);
+  }
+
+  @Test
+  public void testMessagingExceptionFailsOver() {
+    TestMessage msg = keyOwnedBy("shard1");
+    when(sink1.signal(any(), any(), anyLong())).thenThrow(new MessagingException("send failed"));
+    sink.signal(msg, requestContext, 1000);
+    verify(sink1, times(1)).signal(any(), any(), anyLong());
+    assertEquals(1, mockingDetails(sink2).getInvocations().size() + mockingDetails(sink3).getInvocations().size());
+  }
+
+  @Test
+  public void testInvalidRequestIsNotFailedOver() throws Exception {
+    TestMessage msg = keyOwnedBy("shard1");
+    when(sink1.signal(any(), any(), anyLong())).thenThrow(new IllegalArgumentException("invalid")).thenReturn(requestContext);
+    try {
+      sink.signal(msg, requestContext, 1000);
+      fail();
+    } catch (IllegalArgumentException ignored) {
+    }
+    verifyZeroInteractions(sink2, sink3);
+    //shard is still available
+    assertEquals(1, sink.getMetrics().getSubMetrics("shard1").getData("available").intValue());
+    assertEquals(0L, sink.getMetrics().getSubMetrics("shard1").getData("errors").longValue());
+    sink.signal(msg, requestContext, 1000);
+    verify(sink1, times(2)).signal(any(), any(), anyLong());
+  }
+
+  @Test
+  public void testRejectedRequestIsNotFailedOver() throws Exception {
+    TestMessage msg = keyOwnedBy("shard1");
+    when(sink1.signal(any(), any(), anyLong())).thenThrow(new RequestRejectedException("rejected")).thenReturn(requestContext);
+    try {
+      sink.signal(msg, requestContext, 1000);
+      fail();
+    } catch (RequestRejectedException ignored) {
+    }
+    verifyZeroInteractions(sink2, sink3);
+    assertEquals(1, sink.getMetrics().getSubMetrics("shard1").getData("available").intValue());
+    sink.signal(msg, requestContext, 1000);
+    verify(sink1, times(2)).signal(any(), any(), anyLong());
+  }
+
+  @Test
+  public void testPerShardMetrics() throws Exception {
+    TestMessage msg = keyOwnedBy("shard1");
+    sink.signal(msg, requestContext, 1000);
+    assertEquals(3, sink.getMetrics().getSubMetrics().size());
+    assertEquals(1L, sink.getMetrics().getSubMetrics("shard1").getData("requests").longValue());
+    assertEquals(1, sink.getMetrics().getSubMetrics("shard1").getData("available").intValue());
+    assertEquals(0L, sink.getMetrics().getSubMetrics("shard2").getData("requests").longValue());
+  }
+
+  //helpers
+
+  private ShardingRequestSink createSink(long failureRetryInterval) {
+    return ShardingRequestSink.builder()
+            .addShard("shard1", sink1)
+            .addShard("shard2", sink2)
+            .addShard("shard3", sink3)
+            //shard on the message ID
+            .setKeyFunction(m -> ((TestMessage) m).getMsgID())
+            .setFailureRetryInterval(failureRetryInterval)
+            .build();
+  }
+
+  private TestMessage keyOwnedBy(String shard) {
+    for (int i = 0; ; i++) {
+      TestMessage msg = new TestMessage("key" + i);
+      if (shard.equals(sink.getShardName(msg))) return msg;
+    }
+  }
+}